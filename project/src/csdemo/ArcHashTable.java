@@ -0,0 +1,184 @@
+package csdemo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent open-addressing hash table of arcs (see writeArcHash in
+ * arcs.cl and readArcHash in write.glsl). Every arc of a probe touching
+ * atoms i &lt; j &lt; k is stored under the pairs (i, j) (primary entry),
+ * (i, k) and (j, k) (secondary entries) together with the third atom.
+ * Slots are claimed by CAS on primitive keys, so arc workers can insert
+ * concurrently without locks.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class ArcHashTable {
+
+    private static final long INVALID_KEY = -1L;
+    private static final long SECONDARY_FLAG = 1L << 62;
+    private static final long KEY_MASK = SECONDARY_FLAG - 1L;
+
+    private final int capacity;
+    private final int maxIterations;
+
+    private final AtomicLongArray keys;
+    private final int[] atomk;
+    private final int[] index;
+
+    private final AtomicInteger hashErrorCount = new AtomicInteger();
+
+    /**
+     * Creates hash table.
+     *
+     * @param capacity number of slots, a prime guarantees that quadratic
+     * probing visits at least half of the slots
+     * @param maxIterations maximum number of probes per insert or lookup
+     */
+    public ArcHashTable(int capacity, int maxIterations) {
+        this.capacity = capacity;
+        this.maxIterations = Math.min(maxIterations, capacity);
+        this.keys = new AtomicLongArray(capacity);
+        this.atomk = new int[capacity];
+        this.index = new int[capacity];
+        clear();
+    }
+
+    public final void clear() {
+        for (int i = 0; i < capacity; i++) {
+            keys.set(i, INVALID_KEY);
+        }
+        Arrays.fill(atomk, -1);
+        Arrays.fill(index, -1);
+        hashErrorCount.set(0);
+    }
+
+    /**
+     * Writes arc of atoms i &lt; j &lt; k to pairs (i, j), (i, k) and (j, k).
+     * Can be called concurrently.
+     */
+    public void writeArc(int i, int j, int k, int arc) {
+        write(i, j, k, arc, true);
+        write(i, k, j, arc, false);
+        write(j, k, i, arc, false);
+    }
+
+    private void write(int i, int j, int k, int arc, boolean primary) {
+        long key = key(i, j);
+        long keyFlags = primary ? key : (key | SECONDARY_FLAG);
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            int slot = hash(key, iteration);
+            if (keys.compareAndSet(slot, INVALID_KEY, keyFlags)) {
+                atomk[slot] = k;
+                index[slot] = arc;
+                return;
+            }
+        }
+        hashErrorCount.incrementAndGet();
+    }
+
+    /**
+     * Finds the next entry of pair (i, j). Entries are read as in
+     * readArcHash, i.e., the probe iteration continues where the last
+     * entry was found:
+     * <pre>
+     * for (int it = next(i, j, 0); it &gt;= 0; it = next(i, j, it + 1)) {
+     *     int slot = slot(i, j, it);
+     * }
+     * </pre>
+     *
+     * @return iteration of the next entry or -1, if there is none
+     */
+    public int next(int i, int j, int iteration) {
+        long key = key(i, j);
+        for (; iteration < maxIterations; iteration++) {
+            long entry = keys.get(hash(key, iteration));
+            if (entry == INVALID_KEY) {
+                return -1;
+            }
+            if ((entry & KEY_MASK) == key) {
+                return iteration;
+            }
+        }
+        return -1;
+    }
+
+    public int count(int i, int j) {
+        int count = 0;
+        for (int it = next(i, j, 0); it >= 0; it = next(i, j, it + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    public int slot(int i, int j, int iteration) {
+        return hash(key(i, j), iteration);
+    }
+
+    public int getArc(int slot) {
+        return index[slot];
+    }
+
+    public int getThirdAtom(int slot) {
+        return atomk[slot];
+    }
+
+    public boolean isPrimary(int slot) {
+        return (keys.get(slot) & SECONDARY_FLAG) == 0L;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return size of the table in bytes
+     */
+    public long getMemoryFootprint() {
+        return (8L + 4L + 4L) * capacity;
+    }
+
+    /**
+     * @return number of entries, which were not written (see
+     * CLArcs.getHashErrorCount())
+     */
+    public int getHashErrorCount() {
+        return hashErrorCount.get();
+    }
+
+    private static long key(int i, int j) {
+        return ((long) i << 31) | j;
+    }
+
+    private int hash(long key, int iteration) {
+        // 64-bit finalizer of MurmurHash3
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        // quadratic probing
+        return (int) (((h & Long.MAX_VALUE) % capacity + (long) iteration * iteration) % capacity);
+    }
+
+    /**
+     * @return the smallest prime larger or equal to n
+     */
+    public static int nextPrime(int n) {
+        for (int p = Math.max(n, 2); ; p++) {
+            boolean prime = true;
+            for (int d = 2; (long) d * d <= p; d++) {
+                if (p % d == 0) {
+                    prime = false;
+                    break;
+                }
+            }
+            if (prime) {
+                return p;
+            }
+        }
+    }
+
+}
@@ -7,8 +7,11 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Locale;
 
 /**
  *
@@ -38,9 +41,25 @@ public class Area {
     
     private final Result RESULT = new Result();
     
+    // CPU area (unlimited number of labels)
+    private final WorkerPool workers;
+    private CPUArea cpuArea;
+    private boolean cpu = false;
+    private CPUArea.Result cpuResult;
+    
+    // tracked cavity IDs of labels (null unless tracked, see CavityTracker)
+    private int[] cavityIds;
+    
     // Debugging
     private final Debug debug = Debug.getInstance();
     
+    /**
+     * @param workers pool of workers of CPU areas (owned by the caller)
+     */
+    public Area(WorkerPool workers) {
+        this.workers = workers;
+    }
+    
     public void init(GL4 gl) {    
         // loading resources (shaders, data)
         try {
@@ -85,7 +104,44 @@ public class Area {
         minmaxElapsedQuery = queries[1];
     }
     
-    public Result computeArea(GL4 gl, int trianglesArrayBuffer, int triangleCount, int labelsTex, int labelCount) {
+    public boolean isCpuArea() {
+        return cpu;
+    }
+    
+    /**
+     * Computes areas on the CPU instead of the compute shaders. Areas of all
+     * labels are computed (see getCpuResult), the first MAX_LABEL_COUNT
+     * areas are uploaded to the areas texture.
+     */
+    public void setCpuArea(boolean cpu) {
+        this.cpu = cpu;
+    }
+    
+    /**
+     * @return areas of all labels computed by the last CPU computation
+     */
+    public CPUArea.Result getCpuResult() {
+        return cpuResult;
+    }
+    
+    private CPUArea getCPUArea() {
+        if (cpuArea == null) {
+            cpuArea = new CPUArea(workers);
+        }
+        return cpuArea;
+    }
+    
+    /**
+     * @param cavityIds tracked cavity ID of every label (index is label - 1),
+     * null if cavities are not tracked, IDs are written with areas
+     */
+    public Result computeArea(GL4 gl, int trianglesArrayBuffer, int triangleCount, int labelsTex, int labelCount,
+            int[] cavityIds) {
+        this.cavityIds = cavityIds;
+        if (cpu) {
+            return computeAreaCPU(gl, trianglesArrayBuffer, triangleCount, labelsTex, labelCount);
+        }
+        
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, TRIANGLES_BUFFER_INDEX, trianglesArrayBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, AREAS_BUFFER_INDEX, areasBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, MINMAX_BUFFER_INDEX, minmaxBuffer);
@@ -147,6 +203,54 @@ public class Area {
         return RESULT;
     }
     
+    private Result computeAreaCPU(GL4 gl, int trianglesArrayBuffer, int triangleCount, int labelsTex, int labelCount) {
+        // read back triangles
+        ByteBuffer triangles = Buffers.newDirectByteBuffer(triangleCount * Scene.SIZEOF_TRIANGLE);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, trianglesArrayBuffer);
+        gl.glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, triangles.capacity(), triangles);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        
+        // read back labels from the buffer of the labels texture
+        int[] labelsBuffer = new int[1];
+        gl.glBindTexture(GL_TEXTURE_BUFFER, labelsTex);
+        gl.glGetTexLevelParameteriv(GL_TEXTURE_BUFFER, 0, GL_TEXTURE_BUFFER_DATA_STORE_BINDING, labelsBuffer, 0);
+        gl.glBindTexture(GL_TEXTURE_BUFFER, 0);
+        IntBuffer data = Buffers.newDirectIntBuffer(triangleCount);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, labelsBuffer[0]);
+        gl.glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, triangleCount * Buffers.SIZEOF_INT, data);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        int[] labels = new int[triangleCount];
+        data.get(labels);
+        
+        long start = System.nanoTime();
+        CPUArea.Result cr = getCPUArea().computeArea(triangles, triangleCount, labels, labelCount);
+        long elapsed = System.nanoTime() - start;
+        cpuResult = cr;
+        
+        // upload areas and min max areas
+        int count = Math.min(labelCount, GPUGraph.MAX_LABEL_COUNT);
+        gl.glClearTexImage(areasTex, 0, GL_RED, GL_FLOAT, null);
+        if (count > 0) {
+            gl.glBindTexture(GL_TEXTURE_1D, areasTex);
+            gl.glTexSubImage1D(GL_TEXTURE_1D, 0, 0, count, GL_RED, GL_FLOAT, Buffers.newDirectFloatBuffer(cr.getAreas(), 0, count));
+            gl.glBindTexture(GL_TEXTURE_1D, 0);
+        }
+        
+        MINMAX_DATA.put(0, cr.getMinArea());
+        MINMAX_DATA.put(1, cr.getMaxArea());
+        MINMAX_DATA.put(2, cr.getMax2Area());
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, minmaxBuffer);
+        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, 3 * Buffers.SIZEOF_FLOAT, MINMAX_DATA);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        
+        if (writePerformanceInfo) {
+            writePerformanceInfo = false;
+            System.out.println("Time elapsed (Area, CPU): " + elapsed / 1000000.0 + " ms");
+        }
+        
+        return RESULT;
+    }
+    
     /**
      * Interface to results
      */
@@ -199,12 +303,29 @@ public class Area {
             gl.glGetTexImage(GL_TEXTURE_1D, 0, GL_RED, GL_FLOAT, areas);
             // store to file
             for (int i = 0; i < GPUGraph.MAX_LABEL_COUNT; i++) {
-                writer.append(String.format("(%2d): %f", i, areas.get(i)));
+                if (cavityIds != null && i < cavityIds.length) {
+                    writer.append(String.format("(%2d, cavity %d): %f", i, cavityIds[i], areas.get(i)));
+                } else {
+                    writer.append(String.format("(%2d): %f", i, areas.get(i)));
+                }
                 writer.newLine();
             }
         }
     }
     
+    /**
+     * Writes areas of all labels of the last CPU computation, one line per
+     * label (snapshot, label, cavity, area), cavity is the tracked cavity ID
+     * of the label (-1 if cavities are not tracked).
+     */
+    public void writeCpuAreas(Writer writer, int snapshot) throws IOException {
+        float[] areas = cpuResult.getAreas();
+        for (int i = 0; i < areas.length; i++) {
+            int cavity = (cavityIds != null && i < cavityIds.length) ? cavityIds[i] : -1;
+            writer.write(String.format(Locale.ROOT, "%d,%d,%d,%f\n", snapshot, i + 1, cavity, areas[i]));
+        }
+    }
+    
     public void writeResults(GL4 gl) {
         try {
             //writeAreas(gl);
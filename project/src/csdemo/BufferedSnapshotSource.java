@@ -0,0 +1,96 @@
+package csdemo;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot source, which decodes snapshots into a few reusable buffers.
+ * The topology snapshot is kept as it is, a returned array of another
+ * snapshot is valid only until BUFFER_COUNT other snapshots are accessed.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public abstract class BufferedSnapshotSource implements Molecule.SnapshotSource {
+
+    // number of decoded snapshots (e.g., current and next snapshot are
+    // interpolated together)
+    public static final int BUFFER_COUNT = 4;
+
+    protected final float[] topology;
+    protected final int atomCount;
+
+    // decoded snapshots
+    private final float[][] buffers = new float[BUFFER_COUNT][];
+    private final int[] bufferSnapshots = new int[BUFFER_COUNT];
+    private final long[] bufferAccess = new long[BUFFER_COUNT];
+    private long accessCount = 0L;
+
+    /**
+     * @param topology positions of the topology snapshot (snapshot 0)
+     */
+    protected BufferedSnapshotSource(float[] topology) {
+        this.topology = topology;
+        this.atomCount = topology.length / 3;
+        Arrays.fill(bufferSnapshots, -1);
+    }
+
+    /**
+     * Decodes snapshot.
+     *
+     * @param snapshot snapshot index (1..n)
+     * @param positions buffer for positions of all atoms
+     */
+    protected abstract void decode(int snapshot, float[] positions);
+
+    @Override
+    public synchronized float[] getAtomPositions(int snapshot) {
+        if (snapshot == 0) {
+            return topology;
+        }
+        if (snapshot < 0 || snapshot >= getSnapshotCount()) {
+            throw new IndexOutOfBoundsException("Snapshot " + snapshot + " out of range 0.." + (getSnapshotCount() - 1));
+        }
+
+        accessCount++;
+        int victim = 0;
+        for (int b = 0; b < BUFFER_COUNT; b++) {
+            if (bufferSnapshots[b] == snapshot) {
+                bufferAccess[b] = accessCount;
+                return buffers[b];
+            }
+            if (bufferAccess[b] < bufferAccess[victim]) {
+                victim = b;
+            }
+        }
+
+        // decode into the least recently used buffer
+        if (buffers[victim] == null) {
+            buffers[victim] = new float[3 * atomCount];
+        }
+        decode(snapshot, buffers[victim]);
+        bufferSnapshots[victim] = snapshot;
+        bufferAccess[victim] = accessCount;
+
+        return buffers[victim];
+    }
+
+    /**
+     * Drops decoded snapshots (e.g., after snapshots were translated).
+     */
+    protected synchronized void invalidateBuffers() {
+        Arrays.fill(bufferSnapshots, -1);
+    }
+
+    /**
+     * @return size of buffers in bytes
+     */
+    protected synchronized long getBuffersFootprint() {
+        long size = 0L;
+        for (float[] buffer : buffers) {
+            if (buffer != null) {
+                size += 4L * buffer.length;
+            }
+        }
+        return size;
+    }
+
+}
@@ -26,6 +26,7 @@ import java.nio.IntBuffer;
 public class CLArcs {
     
     private CLDevice device;
+    private CLGLContext cl;
     private CLCommandQueue queue;
     
     private CLKernel arcsKernel;
@@ -49,7 +50,7 @@ public class CLArcs {
         System.out.println("OpenCL platform: " + platform);
         
         device = platform.getMaxFlopsDevice(CLDevice.Type.GPU);
-        CLGLContext cl = CLGLContext.create(gl.getContext(), device);
+        cl = CLGLContext.create(gl.getContext(), device);
         System.out.println("OpenCL device: " + device);
         
         try {
@@ -65,6 +66,30 @@ public class CLArcs {
         // create command queue on device.
         queue = device.createCommandQueue(CLCommandQueue.Mode.PROFILING_MODE);
         
+        countersBuffer = cl.createIntBuffer(4 * Buffers.SIZEOF_INT, CLMemory.Mem.READ_WRITE);
+        paramsBuffer = cl.createByteBuffer(8 * Buffers.SIZEOF_INT, CLMemory.Mem.READ_ONLY);
+        
+        updateBuffers(gl, atomsGLBuffer, neihborsGLBuffer, neighborsCountGLBuffer, smallCirclesGLBuffer,
+                arcsGLBuffer, arcsCountGLBuffer, arcsHashesGLBuffer, smallCirclesVisibleGLBuffer);
+    }
+    
+    /**
+     * Shares GL buffers again after they were reallocated (e.g., sized for
+     * another molecule).
+     */
+    public void updateBuffers(GL4 gl, int atomsGLBuffer, int neihborsGLBuffer, int neighborsCountGLBuffer, int smallCirclesGLBuffer,
+            int arcsGLBuffer, int arcsCountGLBuffer, int arcsHashesGLBuffer, int smallCirclesVisibleGLBuffer) {
+        if (atomsBuffer != null) {
+            atomsBuffer.release();
+            neighborsBuffer.release();
+            neighborsCountBuffer.release();
+            smallCirclesBuffer.release();
+            arcsBuffer.release();
+            arcsCountBuffer.release();
+            arcsHashesBuffer.release();
+            smallCirclesVisibleBuffer.release();
+        }
+        
         // create CL buffers
         atomsBuffer = createFromGLBuffer(cl, gl, atomsGLBuffer, CLMemory.Mem.READ_ONLY);
         neighborsBuffer = createFromGLBuffer(cl, gl, neihborsGLBuffer, CLMemory.Mem.READ_ONLY);
@@ -74,16 +99,19 @@ public class CLArcs {
         arcsCountBuffer = createFromGLBuffer(cl, gl, arcsCountGLBuffer, CLMemory.Mem.WRITE_ONLY);
         arcsHashesBuffer = createFromGLBuffer(cl, gl, arcsHashesGLBuffer, CLMemory.Mem.WRITE_ONLY);
         smallCirclesVisibleBuffer = createFromGLBuffer(cl, gl, smallCirclesVisibleGLBuffer, CLMemory.Mem.WRITE_ONLY);
-        countersBuffer = cl.createIntBuffer(4 * Buffers.SIZEOF_INT, CLMemory.Mem.READ_WRITE);
-        paramsBuffer = cl.createByteBuffer(8 * Buffers.SIZEOF_INT, CLMemory.Mem.READ_ONLY);
         
+        arcsKernel.rewind();
         arcsKernel.putArgs(atomsBuffer, neighborsBuffer, neighborsCountBuffer, smallCirclesBuffer)
                 .putArgs(arcsBuffer, arcsCountBuffer, arcsHashesBuffer, smallCirclesVisibleBuffer)
                 .putArg(countersBuffer)
                 .putArg(paramsBuffer);
     }
     
-    public int computeArcs(GL4 gl, int atomCount, int maxNumNeighbors, int maxNumTotalArcHashes,
+    /**
+     * @return number of arcs (arcs over maxNumTotalArcs are counted, but
+     * not written)
+     */
+    public int computeArcs(GL4 gl, int atomCount, int maxNumNeighbors, int maxNumTotalArcs, int maxNumTotalArcHashes,
             int maxHashIterations, float probeRadius) {
         int localWorkSizeX = maxNumNeighbors;
         int localWorkSizeY = 1;
@@ -102,6 +130,7 @@ public class CLArcs {
         paramsBuffer.getBuffer().putInt(8, maxNumTotalArcHashes);
         paramsBuffer.getBuffer().putInt(12, maxHashIterations);
         paramsBuffer.getBuffer().putFloat(16, probeRadius);
+        paramsBuffer.getBuffer().putInt(20, maxNumTotalArcs);
         
         gl.glFinish();
         
@@ -143,6 +172,14 @@ public class CLArcs {
         return countersBuffer.getBuffer().get(2);
     }
     
+    /**
+     * @return number of small circles with more arcs than arrays of the
+     * kernel can hold
+     */
+    public int getArcOverflowCount() {
+        return countersBuffer.getBuffer().get(0);
+    }
+    
     private static CLGLBuffer<?> createFromGLBuffer(CLGLContext cl, GL4 gl, int glBuffer, CLMemory.Mem ... mems) {
         int[] size = new int[1];
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, glBuffer);
@@ -0,0 +1,180 @@
+package csdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CPU counterpart of Area. Computes areas of probe triangles (spherical
+ * triangles on the unit sphere, see areas.glsl) and sums them per label,
+ * then finds the minimum, maximum and the second maximum area of labels
+ * (see minmax.glsl). Unlike Area, the number of labels is not limited.
+ * Triangles are split into one range per worker, every worker sums areas
+ * into its own array, arrays are added at the end.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class CPUArea {
+
+    // initial minimum (see minmax.glsl)
+    private static final float MAX_AREA = 1000000000f;
+    private static final float PI = 3.1415926f;
+
+    // minimum number of triangles of a worker
+    private static final int GRAIN_SIZE = 4096;
+
+    // workers shared with the caller
+    private final WorkerPool workers;
+
+    public CPUArea() {
+        this(new WorkerPool());
+    }
+
+    /**
+     * @param workers pool of workers (owned by the caller)
+     */
+    public CPUArea(WorkerPool workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Computes areas of labels.
+     *
+     * @param triangles triangles (probe position, vectors to atoms, see
+     * Scene.SIZEOF_TRIANGLE), floats are read in the order of the buffer
+     * @param triangleCount number of triangles
+     * @param labels label of every triangle (labels start at 1, label 0
+     * marks triangles without label)
+     * @param labelCount number of labels
+     * @return areas of labels
+     */
+    public Result computeArea(final ByteBuffer triangles, int triangleCount, final int[] labels, final int labelCount) {
+        double[] sums = workers.reduce(new WorkerPool.Reduction<double[]>() {
+            @Override
+            public double[] compute(int from, int to) {
+                return sumAreas(triangles, labels, labelCount, from, to);
+            }
+
+            @Override
+            public double[] combine(double[] result, double[] partial) {
+                for (int i = 0; i < labelCount; i++) {
+                    result[i] += partial[i];
+                }
+                return result;
+            }
+        }, triangleCount, GRAIN_SIZE);
+
+        float[] areas = new float[labelCount];
+        float minArea = MAX_AREA;
+        float maxArea = 0f;
+        for (int i = 0; i < labelCount; i++) {
+            areas[i] = (float) sums[i];
+            minArea = Math.min(minArea, areas[i]);
+            maxArea = Math.max(maxArea, areas[i]);
+        }
+        // second maximum skips labels with the maximum area
+        float max2Area = 0f;
+        for (int i = 0; i < labelCount; i++) {
+            if (areas[i] != maxArea) {
+                max2Area = Math.max(max2Area, areas[i]);
+            }
+        }
+
+        return new Result(areas, minArea, maxArea, max2Area);
+    }
+
+    private static double[] sumAreas(ByteBuffer triangles, int[] labels, int labelCount, int from, int to) {
+        double[] sums = new double[labelCount];
+        float[] a = new float[3];
+        float[] b = new float[3];
+        float[] c = new float[3];
+        for (int i = from; i < to; i++) {
+            int label = labels[i];
+            if (label < 1 || label > labelCount) {
+                continue;
+            }
+            int offset = i * Scene.SIZEOF_TRIANGLE;
+            normalize(triangles, offset + Scene.SIZEOF_VEC4, a);
+            normalize(triangles, offset + 2 * Scene.SIZEOF_VEC4, b);
+            normalize(triangles, offset + 3 * Scene.SIZEOF_VEC4, c);
+            sums[label - 1] += triangleArea(a, b, c);
+        }
+        return sums;
+    }
+
+    /**
+     * @return area of spherical triangle on the unit sphere (see areas.glsl)
+     */
+    public static float triangleArea(float[] a, float[] b, float[] c) {
+        // normals of planes of edges
+        float caX = c[1] * a[2] - c[2] * a[1];
+        float caY = c[2] * a[0] - c[0] * a[2];
+        float caZ = c[0] * a[1] - c[1] * a[0];
+        float baX = b[1] * a[2] - b[2] * a[1];
+        float baY = b[2] * a[0] - b[0] * a[2];
+        float baZ = b[0] * a[1] - b[1] * a[0];
+        float cbX = c[1] * b[2] - c[2] * b[1];
+        float cbY = c[2] * b[0] - c[0] * b[2];
+        float cbZ = c[0] * b[1] - c[1] * b[0];
+        float angA = baX * caX + baY * caY + baZ * caZ;
+        float angB = -(baX * cbX + baY * cbY + baZ * cbZ);
+        float angC = caX * cbX + caY * cbY + caZ * cbZ;
+        return (float) (acos(angA) + acos(angB) + acos(angC)) - PI;
+    }
+
+    private static double acos(float x) {
+        // clamped like GLSL acos of rounded dot products
+        return Math.acos(Math.max(-1f, Math.min(1f, x)));
+    }
+
+    private static void normalize(ByteBuffer buffer, int offset, float[] v) {
+        float x = buffer.getFloat(offset);
+        float y = buffer.getFloat(offset + 4);
+        float z = buffer.getFloat(offset + 8);
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        v[0] = x / length;
+        v[1] = y / length;
+        v[2] = z / length;
+    }
+
+    public static class Result {
+
+        private final float[] areas;
+        private final float minArea;
+        private final float maxArea;
+        private final float max2Area;
+
+        public Result(float[] areas, float minArea, float maxArea, float max2Area) {
+            this.areas = areas;
+            this.minArea = minArea;
+            this.maxArea = maxArea;
+            this.max2Area = max2Area;
+        }
+
+        /**
+         * @return area of every label (index is label - 1)
+         */
+        public float[] getAreas() {
+            return areas;
+        }
+
+        public int getLabelCount() {
+            return areas.length;
+        }
+
+        public float getMinArea() {
+            return minArea;
+        }
+
+        public float getMaxArea() {
+            return maxArea;
+        }
+
+        /**
+         * @return largest area, which is smaller than the maximum area
+         */
+        public float getMax2Area() {
+            return max2Area;
+        }
+
+    }
+
+}
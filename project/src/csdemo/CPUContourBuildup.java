@@ -1,98 +1,285 @@
 package csdemo;
 
+import com.jogamp.common.nio.Buffers;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import javax.vecmath.Vector3f;
-import javax.vecmath.Vector4f;
 
 /**
+ * CPU implementation of the contour-buildup. Atoms, small circles and arcs
+ * are stored in flat arrays and all temporary arc data live in per-thread
+ * scratch space, so the kernels do not allocate.
  *
  * @author Adam Jurcik <xjurc@fi.muni.cz>
  */
-public class CPUContourBuildup {
+public class CPUContourBuildup implements ContourBuildupEngine {
     
     private Molecule molecule;
     
     // settings
-    private final int maxNeighbors;
     private final float probeRadius;
     
-    private List<Vector4f> atoms;
+    private int atomCount;
+    // atom i: x, y, z, r at 4 * i
+    private float[] atoms;
     private int[] neighborCounts;
     private int[] neighbors;
-    private Vector4f[] smallCircles;
+    // neighbors of atom i are at neighborStarts[i] + jIdx (CSR)
+    private int[] neighborStarts;
+    // small circle of neighbor jIdx of atom i: x, y, z, r at 4 * (neighborStarts[i] + jIdx),
+    // center is relative to atom i
+    private float[] smallCircles;
     private boolean[] smallCirclesValid;
+    private boolean[] smallCirclesVisible;
     private int[] arcCounts;
-
-    public CPUContourBuildup(Molecule molecule, int maxNeighbors, float probeRadius) {
+    // arc a: probe position x, y, z, k + 0.2 at 4 * a (see arcs.cl)
+    private float[] arcs;
+    // arc a: atoms i < j < k at 3 * a
+    private int[] arcAtoms;
+    private int arcCount;
+    // arcs of atom i are in atomArcStarts[i]..atomArcStarts[i + 1]
+    private int[] atomArcStarts;
+    // arcs of atom pairs
+    private ArcHashTable arcHashes;
+    // tori of atom i start at torusStarts[i] (isolated at isolatedStarts[i])
+    private int[] torusStarts;
+    private int[] isolatedStarts;
+    
+    // atoms recomputed by the last update (all atoms unless incremental)
+    private int[] updatedAtoms;
+    private int updatedCount;
+    private boolean[] updated;
+    // incremental mode (0 for full recomputation)
+    private float tolerance = 0f;
+    private Result lastResult;
+    // cavities tracked across snapshots (null if not tracked)
+    private CavityTracker cavityTracker;
+    // per neighbor arrays of the previous update (see updateNeighbors)
+    private int[] spareNeighborStarts;
+    private int[] spareNeighbors;
+    private float[] spareSmallCircles;
+    private boolean[] spareSmallCirclesValid;
+    private boolean[] spareSmallCirclesVisible;
+    private int[] spareArcCounts;
+    
+    // minimum number of atoms of a worker
+    private static final int GRAIN_SIZE = 64;
+    
+    // workers shared with the caller
+    private final WorkerPool workers;
+    
+    // statistics are printed until the next surface is computed
+    private boolean writePerformanceInfo = false;
+    
+    // scratches of live workers (workers of the pool may be replaced)
+    private final List<Scratch> scratches = Collections.synchronizedList(new ArrayList<Scratch>());
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            Scratch s = new Scratch();
+            scratches.add(s);
+            return s;
+        }
+    };
+    
+    public CPUContourBuildup(Molecule molecule, float probeRadius) {
+        this(molecule, probeRadius, new WorkerPool());
+    }
+    
+    /**
+     * Creates contour-buildup, which splits all stages among workers of the
+     * pool. Results are the same as in the sequential mode.
+     *
+     * @param molecule molecule
+     * @param probeRadius probe radius
+     * @param workers pool of workers (owned by the caller)
+     */
+    public CPUContourBuildup(Molecule molecule, float probeRadius, WorkerPool workers) {
         this.molecule = molecule;
         // settings
-        this.maxNeighbors = maxNeighbors;
         this.probeRadius = probeRadius;
+        this.workers = workers;
+    }
+    
+    public boolean isParallel() {
+        return workers.isParallel();
+    }
+    
+    public WorkerPool getWorkerPool() {
+        return workers;
+    }
+    
+    public float getTolerance() {
+        return tolerance;
+    }
+    
+    /**
+     * Enables incremental updates of the surface between snapshots. Only
+     * atoms, which moved more than the tolerance since they were computed,
+     * and their neighbors are recomputed. Other atoms keep their previous
+     * positions, so the surface is exact up to the tolerance.
+     *
+     * @param tolerance maximum atom displacement (0 disables incremental
+     * updates)
+     */
+    public void setTolerance(float tolerance) {
+        this.tolerance = tolerance;
+    }
+    
+    /**
+     * @return number of atoms recomputed by the last update
+     */
+    public int getUpdatedAtomCount() {
+        return updatedCount;
+    }
+
+    /**
+     * Labels the surface graph by a CavityTracker instead of CPUGraph, so
+     * labels keep cavity IDs across snapshots (see
+     * CPUGraph.Result.getCavityIds). Tracking follows the changed part
+     * of the graph in the incremental mode (see setTolerance).
+     */
+    public void setTrackCavities(boolean trackCavities) {
+        cavityTracker = trackCavities ? new CavityTracker() : null;
+    }
+    
+    public boolean isTrackCavities() {
+        return cavityTracker != null;
+    }
+    
+    /**
+     * @return atoms (i, j, k) of every triangle of the last surface
+     */
+    public int[] getTriangleAtoms() {
+        return arcAtoms;
+    }
+    
+    /**
+     * @return atoms (x, y, z, r) of the last surface, positions may differ
+     * from the snapshot up to the tolerance (see setTolerance)
+     */
+    public float[] getAtoms() {
+        return atoms;
+    }
+    
+    public int getAtomCount() {
+        return atomCount;
+    }
+    
+    /**
+     * @return probe positions (x, y, z, k + 0.2) of triangles of the last
+     * surface (see arcs.cl)
+     */
+    public float[] getProbes() {
+        return arcs;
+    }
+    
+    public Molecule getMolecule() {
+        return molecule;
+    }
+    
+    public float getProbeRadius() {
+        return probeRadius;
+    }
+    
+    /**
+     * Prints statistics of the stages of the next surface.
+     */
+    public void writePerformanceInfo() {
+        writePerformanceInfo = true;
+    }
+    
+    @Override
+    public void dispose() {
+        // workers are shared, they are disposed by their owner
+    }
+    
+    @Override
+    public long getMemoryFootprint() {
+        long size = 0L;
+        if (atoms != null) {
+            size += Buffers.SIZEOF_FLOAT * (long) (atoms.length + smallCircles.length)
+                    + Buffers.SIZEOF_INT * (long) (neighborCounts.length + neighborStarts.length
+                    + neighbors.length + arcCounts.length)
+                    + smallCirclesValid.length + smallCirclesVisible.length;
+        }
+        if (spareNeighbors != null) {
+            size += Buffers.SIZEOF_FLOAT * (long) spareSmallCircles.length
+                    + Buffers.SIZEOF_INT * (long) (spareNeighborStarts.length + spareNeighbors.length + spareArcCounts.length)
+                    + spareSmallCirclesValid.length + spareSmallCirclesVisible.length;
+        }
+        if (arcs != null) {
+            size += Buffers.SIZEOF_FLOAT * (long) arcs.length
+                    + Buffers.SIZEOF_INT * (long) (arcAtoms.length + atomArcStarts.length);
+            size += arcHashes.getMemoryFootprint();
+        }
+        if (torusStarts != null) {
+            size += Buffers.SIZEOF_INT * (long) (torusStarts.length + isolatedStarts.length);
+        }
+        synchronized (scratches) {
+            for (Scratch s : scratches) {
+                size += s.getMemoryFootprint();
+            }
+        }
+        return size;
+    }
+    
+    private void run(WorkerPool.Range range) {
+        run(range, atomCount);
+    }
+    
+    private void run(WorkerPool.Range range, int count) {
+        workers.run(range, count, GRAIN_SIZE);
     }
     
     public void computeNeighbors() {
-        float[] positions = molecule.getAtomPositions(0);
-        
-        atoms = new ArrayList<>();
-        for (int i = 0; i < molecule.getAtomCount(); i++) {
-            Vector4f atom = new Vector4f();
-            atom.x = positions[3 * i];
-            atom.y = positions[3 * i + 1];
-            atom.z = positions[3 * i + 2];
-            atom.w = molecule.getAtom(i).r;
-            atoms.add(atom);
-        }
-        
-        neighbors = new int[atoms.size() * maxNeighbors];
-        neighborCounts = new int[atoms.size()];
-        smallCircles = new Vector4f[atoms.size() * maxNeighbors];
-        smallCirclesValid = new boolean[atoms.size() * maxNeighbors];
-        arcCounts = new int[atoms.size() * maxNeighbors];
-        
-        // find small circles (brute force)
-        Arrays.fill(neighborCounts, 0);
-        Arrays.fill(neighbors, -1);
-        Arrays.fill(arcCounts, 0);
-        for (int i = 0; i < atoms.size(); i++) {
-            int count = 0;
-            for (int j = 0; j < atoms.size(); j++) {
-                if (i == j) {
-                    continue;
-                }
-                Vector4f atom = atoms.get(i);
-                Vector4f other = atoms.get(j);
-                Vector4f vec = new Vector4f();
-                vec.sub(other, atom);
-                vec.w = 0f;
-                float dist = vec.length();
-                if (dist < atom.w + other.w + 2 * probeRadius) {
-                    if (count > maxNeighbors) {
-                        throw new IllegalStateException("MAX_NEIGHBORS exceded. Neighbors: " + count);
-                    }
-                    neighbors[i * maxNeighbors + count] = j;
-                    Vector4f smallCircle = new Vector4f();
-                    float r = ((atom.w + probeRadius) * (atom.w + probeRadius))
-                        + (dist * dist)
-                        - ((other.w + probeRadius) * (other.w + probeRadius));
-                    r = r / (2.0f * dist * dist);
-                    // set small circle
-                    vec.scale(r);
-                    smallCircle.set(vec);
-                    smallCircle.w = (float) Math.sqrt(((atom.w + probeRadius) * (atom.w + probeRadius)) - vec.dot(vec));
-                    smallCircles[i * maxNeighbors + count] = smallCircle;
-                    count++;
+        computeNeighbors(0);
+    }
+    
+    public void computeNeighbors(int snapshot) {
+        float[] positions = molecule.getAtomPositions(snapshot);
+        
+        atomCount = molecule.getAtomCount();
+        if (atoms == null || atoms.length < 4 * atomCount) {
+            atoms = new float[4 * atomCount];
+            neighborCounts = new int[atomCount];
+            neighborStarts = new int[atomCount + 1];
+            spareNeighborStarts = new int[atomCount + 1];
+            updatedAtoms = new int[atomCount];
+            updated = new boolean[atomCount];
+        }
+        for (int i = 0; i < atomCount; i++) {
+            atoms[4 * i] = positions[3 * i];
+            atoms[4 * i + 1] = positions[3 * i + 1];
+            atoms[4 * i + 2] = positions[3 * i + 2];
+            atoms[4 * i + 3] = molecule.getAtom(i).r;
+            updatedAtoms[i] = i;
+        }
+        updatedCount = atomCount;
+        Arrays.fill(updated, true);
+        
+        final NeighborGrid grid = buildGrid();
+        
+        // count neighbors first, per neighbor arrays are sized from the counts
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                Scratch s = scratch.get();
+                for (int i = from; i < to; i++) {
+                    neighborCounts[i] = findNeighbors(grid, i, s);
                 }
             }
-            neighborCounts[i] = count;
-        }
+        });
         
         // print statistics
-        int minNeighborCount = maxNeighbors;
+        int minNeighborCount = Integer.MAX_VALUE;
         int maxNeighborCount = 0;
         int totalNeighbors = 0;
-        for (int i = 0; i < atoms.size(); i++) {
+        for (int i = 0; i < atomCount; i++) {
             if (neighborCounts[i] < minNeighborCount) {
                 minNeighborCount = neighborCounts[i];
             }
@@ -101,11 +288,28 @@ public class CPUContourBuildup {
             }
             totalNeighbors += neighborCounts[i];
         }
-        System.out.println("Min. neighbor count (CPU): " + minNeighborCount);
-        System.out.println("Max. neighbor count (CPU): " + maxNeighborCount);
-        System.out.println("Avg. neighbor ocunt (CPU): " + totalNeighbors / (float) atoms.size());
-        System.out.println("Neighbors (CPU): " + totalNeighbors);
+        if (writePerformanceInfo) {
+            System.out.println("Min. neighbor count (CPU): " + minNeighborCount);
+            System.out.println("Max. neighbor count (CPU): " + maxNeighborCount);
+            System.out.println("Avg. neighbor ocunt (CPU): " + totalNeighbors / (float) atomCount);
+            System.out.println("Neighbors (CPU): " + totalNeighbors);
+        }
+        
+        // neighbor offsets
+        neighborStarts[0] = 0;
+        for (int i = 0; i < atomCount; i++) {
+            neighborStarts[i + 1] = neighborStarts[i] + neighborCounts[i];
+        }
+        ensureNeighborCapacity(totalNeighbors);
         
+        // find small circles (see neighbors.glsl)
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                computeNeighbors(grid, from, to);
+            }
+        });
+
 //        // remove covered small circles
 //        for (int i = 0; i < atoms.size(); i++) {
 //            for (int jIdx = 0; jIdx < neighborCounts[i]; jIdx++) {
@@ -198,10 +402,13 @@ public class CPUContourBuildup {
 //        }
         
         // print statistics
+        if (!writePerformanceInfo) {
+            return;
+        }
         int totalSmallCircles = 0;
-        for (int i = 0; i < atoms.size(); i++) {
+        for (int i = 0; i < atomCount; i++) {
             for (int j = 0; j < neighborCounts[i]; j++) {
-                if (smallCircles[i * maxNeighbors + j].w >= 0f) {
+                if (smallCircles[4 * (neighborStarts[i] + j) + 3] >= 0f) {
                     totalSmallCircles++;
                 }
             }
@@ -209,132 +416,351 @@ public class CPUContourBuildup {
         System.out.println("Small circles (CPU): " + totalSmallCircles);
     }
     
+    /**
+     * Updates atoms, which moved more than the tolerance, and recomputes
+     * neighbors of them and of all their neighbors (before and after the
+     * move). Per neighbor data of other atoms are copied from the previous
+     * update. Following filterSmallCircles and computeArcs recompute only
+     * the updated atoms.
+     *
+     * @return false, if no atom moved
+     */
+    private boolean updateNeighbors(int snapshot) {
+        float[] positions = molecule.getAtomPositions(snapshot);
+        
+        // find moved atoms
+        int movedCount = 0;
+        float tolerance2 = tolerance * tolerance;
+        for (int i = 0; i < atomCount; i++) {
+            float dx = positions[3 * i] - atoms[4 * i];
+            float dy = positions[3 * i + 1] - atoms[4 * i + 1];
+            float dz = positions[3 * i + 2] - atoms[4 * i + 2];
+            if (dx * dx + dy * dy + dz * dz > tolerance2) {
+                atoms[4 * i] = positions[3 * i];
+                atoms[4 * i + 1] = positions[3 * i + 1];
+                atoms[4 * i + 2] = positions[3 * i + 2];
+                updatedAtoms[movedCount++] = i;
+            }
+        }
+        if (movedCount == 0) {
+            updatedCount = 0;
+            return false;
+        }
+        
+        final NeighborGrid grid = buildGrid();
+        
+        // mark moved atoms and their old and new neighbors
+        Arrays.fill(updated, false);
+        Scratch s = scratch.get();
+        for (int n = 0; n < movedCount; n++) {
+            int i = updatedAtoms[n];
+            updated[i] = true;
+            for (int e = neighborStarts[i]; e < neighborStarts[i + 1]; e++) {
+                updated[neighbors[e]] = true;
+            }
+            int count = findNeighbors(grid, i, s);
+            for (int c = 0; c < count; c++) {
+                updated[s.candidates[c]] = true;
+            }
+        }
+        updatedCount = 0;
+        for (int i = 0; i < atomCount; i++) {
+            if (updated[i]) {
+                updatedAtoms[updatedCount++] = i;
+            }
+        }
+        
+        // count neighbors of updated atoms, other atoms keep their neighbors
+        final int[] starts = spareNeighborStarts;
+        for (int i = 0; i < atomCount; i++) {
+            starts[i + 1] = neighborStarts[i + 1] - neighborStarts[i];
+        }
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                Scratch s = scratch.get();
+                for (int n = from; n < to; n++) {
+                    int i = updatedAtoms[n];
+                    starts[i + 1] = findNeighbors(grid, i, s);
+                }
+            }
+        }, updatedCount);
+        starts[0] = 0;
+        for (int i = 0; i < atomCount; i++) {
+            starts[i + 1] += starts[i];
+        }
+        
+        // copy per neighbor data of other atoms and swap them with
+        // the previous ones
+        int size = starts[atomCount];
+        if (spareNeighbors == null || spareNeighbors.length < size) {
+            int capacity = (spareNeighbors == null) ? Math.max(size, neighbors.length)
+                    : Math.max(size, 2 * spareNeighbors.length);
+            spareNeighbors = new int[capacity];
+            spareSmallCircles = new float[4 * capacity];
+            spareSmallCirclesValid = new boolean[capacity];
+            spareSmallCirclesVisible = new boolean[capacity];
+            spareArcCounts = new int[capacity];
+        }
+        for (int i = 0; i < atomCount; i++) {
+            if (!updated[i]) {
+                int from = neighborStarts[i];
+                int to = starts[i];
+                int count = neighborStarts[i + 1] - from;
+                System.arraycopy(neighbors, from, spareNeighbors, to, count);
+                System.arraycopy(smallCircles, 4 * from, spareSmallCircles, 4 * to, 4 * count);
+                System.arraycopy(smallCirclesValid, from, spareSmallCirclesValid, to, count);
+                System.arraycopy(smallCirclesVisible, from, spareSmallCirclesVisible, to, count);
+                System.arraycopy(arcCounts, from, spareArcCounts, to, count);
+            }
+        }
+        spareNeighborStarts = neighborStarts;
+        neighborStarts = starts;
+        int[] tmpNeighbors = neighbors;
+        neighbors = spareNeighbors;
+        spareNeighbors = tmpNeighbors;
+        float[] tmpSmallCircles = smallCircles;
+        smallCircles = spareSmallCircles;
+        spareSmallCircles = tmpSmallCircles;
+        boolean[] tmpValid = smallCirclesValid;
+        smallCirclesValid = spareSmallCirclesValid;
+        spareSmallCirclesValid = tmpValid;
+        boolean[] tmpVisible = smallCirclesVisible;
+        smallCirclesVisible = spareSmallCirclesVisible;
+        spareSmallCirclesVisible = tmpVisible;
+        int[] tmpArcCounts = arcCounts;
+        arcCounts = spareArcCounts;
+        spareArcCounts = tmpArcCounts;
+        
+        // find small circles of updated atoms
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                computeNeighbors(grid, from, to);
+            }
+        }, updatedCount);
+        
+        if (writePerformanceInfo) {
+            System.out.println("Moved atoms (CPU): " + movedCount);
+            System.out.println("Updated atoms (CPU): " + updatedCount);
+        }
+        return true;
+    }
+    
+    private NeighborGrid buildGrid() {
+        // hash atoms into a uniform grid (see hash.glsl)
+        float maxRadius = 0f;
+        for (int i = 0; i < atomCount; i++) {
+            maxRadius = Math.max(maxRadius, atoms[4 * i + 3]);
+        }
+        NeighborGrid grid = new NeighborGrid(maxRadius, probeRadius);
+        grid.build(atoms, 4, atomCount);
+        return grid;
+    }
+    
+    /**
+     * Grows per neighbor arrays geometrically, so they are not reallocated
+     * for every snapshot.
+     */
+    private void ensureNeighborCapacity(int size) {
+        if (neighbors != null && neighbors.length >= size) {
+            return;
+        }
+        int capacity = (neighbors == null) ? size : Math.max(size, 2 * neighbors.length);
+        neighbors = new int[capacity];
+        smallCircles = new float[4 * capacity];
+        smallCirclesValid = new boolean[capacity];
+        smallCirclesVisible = new boolean[capacity];
+        arcCounts = new int[capacity];
+    }
+    
+    /**
+     * Finds neighbors of atom i and stores them in scratch candidates.
+     *
+     * @return neighbor count
+     */
+    private int findNeighbors(NeighborGrid grid, int i, Scratch s) {
+        float ar = atoms[4 * i + 3];
+        // examine neighbouring cells
+        int count = 0;
+        int cx = grid.cellX(atoms[4 * i]);
+        int cy = grid.cellY(atoms[4 * i + 1]);
+        int cz = grid.cellZ(atoms[4 * i + 2]);
+        for (int z = Math.max(cz - 1, 0); z <= Math.min(cz + 1, grid.getSizeZ() - 1); z++) {
+            for (int y = Math.max(cy - 1, 0); y <= Math.min(cy + 1, grid.getSizeY() - 1); y++) {
+                for (int x = Math.max(cx - 1, 0); x <= Math.min(cx + 1, grid.getSizeX() - 1); x++) {
+                    int cell = grid.cellIndex(x, y, z);
+                    for (int c = grid.getCellStart(cell); c < grid.getCellEnd(cell); c++) {
+                        int j = grid.getAtom(c);
+                        if (i == j || distance(i, j) >= ar + atoms[4 * j + 3] + 2 * probeRadius) {
+                            continue;
+                        }
+                        if (count == s.candidates.length) {
+                            s.candidates = Arrays.copyOf(s.candidates, 2 * s.candidates.length);
+                        }
+                        s.candidates[count++] = j;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    private void computeNeighbors(NeighborGrid grid, int from, int to) {
+        Scratch s = scratch.get();
+        for (int u = from; u < to; u++) {
+            int i = updatedAtoms[u];
+            float ax = atoms[4 * i];
+            float ay = atoms[4 * i + 1];
+            float az = atoms[4 * i + 2];
+            float ar = atoms[4 * i + 3];
+            int count = findNeighbors(grid, i, s);
+            // keep neighbors in atom order (same as the brute force search)
+            Arrays.sort(s.candidates, 0, count);
+            for (int n = 0; n < count; n++) {
+                int j = s.candidates[n];
+                float vx = atoms[4 * j] - ax;
+                float vy = atoms[4 * j + 1] - ay;
+                float vz = atoms[4 * j + 2] - az;
+                float rj = atoms[4 * j + 3];
+                float dist = distance(i, j);
+                neighbors[neighborStarts[i] + n] = j;
+                float r = ((ar + probeRadius) * (ar + probeRadius))
+                    + (dist * dist)
+                    - ((rj + probeRadius) * (rj + probeRadius));
+                r = r / (2.0f * dist * dist);
+                // set small circle
+                vx *= r;
+                vy *= r;
+                vz *= r;
+                int sc = 4 * (neighborStarts[i] + n);
+                smallCircles[sc] = vx;
+                smallCircles[sc + 1] = vy;
+                smallCircles[sc + 2] = vz;
+                smallCircles[sc + 3] = (float) Math.sqrt(((ar + probeRadius) * (ar + probeRadius)) - (vx * vx + vy * vy + vz * vz));
+            }
+            Arrays.fill(arcCounts, neighborStarts[i], neighborStarts[i] + count, 0);
+            neighborCounts[i] = count;
+        }
+    }
+    
+    private float distance(int i, int j) {
+        float x = atoms[4 * j] - atoms[4 * i];
+        float y = atoms[4 * j + 1] - atoms[4 * i + 1];
+        float z = atoms[4 * j + 2] - atoms[4 * i + 2];
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+    
     public void filterSmallCircles() {
-        for (int x = 0; x < maxNeighbors; x++) {
-            for (int y = 0; y < atoms.size(); y++) {
-                // get atom index
-                int atomIdx = y;
-                // get neighbor atom index
-                int jIdx = x;
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                filterSmallCircles(from, to);
+            }
+        }, updatedCount);
+    }
+    
+    private void filterSmallCircles(int from, int to) {
+        // all small circles of an atom are processed in order by one worker,
+        // an atom without contour (neighborCounts = 0) skips the rest of them
+        for (int u = from; u < to; u++) {
+            int atomIdx = updatedAtoms[u];
+            int neighborStart = neighborStarts[atomIdx];
+            for (int jIdx = 0; jIdx < neighborStarts[atomIdx + 1] - neighborStart; jIdx++) {
                 // set small circle visibility to false
                 //smallCirclesVisible[atomIdx * maxNumNeighbors + jIdx] = 0;
-                smallCirclesValid[atomIdx * maxNeighbors + jIdx] = true;
+                smallCirclesValid[neighborStart + jIdx] = true;
                 // check, if neighbor index is within bounds
                 int numNeighbors = neighborCounts[atomIdx];
                 if (jIdx >= numNeighbors) continue;
-
+                
                 // read position and radius of atom i from sorted array
-                Vector4f atomi = atoms.get(atomIdx);
-                Vector3f pi = new Vector3f(atomi.x, atomi.y, atomi.z);
-                float R = atomi.w + probeRadius;
-
+                float pix = atoms[4 * atomIdx];
+                float piy = atoms[4 * atomIdx + 1];
+                float piz = atoms[4 * atomIdx + 2];
+                float R = atoms[4 * atomIdx + 3] + probeRadius;
+                
                 // flag wether j should be added (true) is cut off (false)
                 boolean addJ = true;
-
+                
                 // the atom index of j
-                int j = neighbors[atomIdx * maxNeighbors + jIdx];
+                int j = neighbors[neighborStart + jIdx];
                 // get small circle j
-                Vector4f scj = smallCircles[atomIdx * maxNeighbors + jIdx];
+                int scj = 4 * (neighborStart + jIdx);
                 // vj = the small circle center
-                Vector3f vj = new Vector3f(scj.x, scj.y, scj.z);
-                // pj = center of atom j
-                Vector4f aj = atoms.get(j);
-                Vector3f pj = new Vector3f(aj.x, aj.y, aj.z);
-
+                float vjx = smallCircles[scj];
+                float vjy = smallCircles[scj + 1];
+                float vjz = smallCircles[scj + 2];
+                // nj = normalize(pi - pj);
+                float njx = pix - atoms[4 * j];
+                float njy = piy - atoms[4 * j + 1];
+                float njz = piz - atoms[4 * j + 2];
+                float norm = (float) (1.0 / Math.sqrt(njx * njx + njy * njy + njz * njz));
+                njx *= norm;
+                njy *= norm;
+                njz *= norm;
+                
                 // check j with all other neighbors k
                 for (int kCnt = 0; kCnt < numNeighbors; kCnt++) {
                     // don't compare the circle with itself
                     if (jIdx != kCnt) {
                         // the atom index of k
-                        int k = neighbors[atomIdx * maxNeighbors + kCnt];
-                        // pk = center of atom k
-                        Vector4f ak = atoms.get(k);
-                        Vector3f pk = new Vector3f(ak.x, ak.y, ak.z);
+                        int k = neighbors[neighborStart + kCnt];
                         // get small circle k
-                        Vector4f sck = smallCircles[atomIdx * maxNeighbors + kCnt];
+                        int sck = 4 * (neighborStart + kCnt);
                         // vk = the small circle center
-                        Vector3f vk = new Vector3f(sck.x, sck.y, sck.z);
+                        float vkx = smallCircles[sck];
+                        float vky = smallCircles[sck + 1];
+                        float vkz = smallCircles[sck + 2];
                         // vj * vk
-                        float vjvk = vj.dot(vk);
+                        float vjvk = vjx * vkx + vjy * vky + vjz * vkz;
+                        float vjvj = vjx * vjx + vjy * vjy + vjz * vjz;
+                        float vkvk = vkx * vkx + vky * vky + vkz * vkz;
                         // denominator
-                        float denom = vj.dot(vj) * vk.dot(vk) - vjvk * vjvk;
+                        float denom = vjvj * vkvk - vjvk * vjvk;
                         // point on straight line (intersection of small circle planes)
                         // h = vj * (dot(vj, vj - vk) * dot(vk, vk)) / denom + vk * (dot(vk - vj, vk) * dot(vj, vj)) / denom;
-                        Vector3f h = new Vector3f();
-                        Vector3f subvjvk = new Vector3f();
-                        Vector3f subvkvj = new Vector3f();
-                        subvjvk.sub(vj, vk);
-                        subvkvj.sub(vk, vj);
-                        Vector3f hj = new Vector3f(vj);
-                        hj.scale((vj.dot(subvjvk) * vk.dot(vk)) / denom);
-                        Vector3f hk = new Vector3f(vk);
-                        hk.scale((subvkvj.dot(vk) * vj.dot(vj)) / denom);
-                        h.add(hj, hk);
+                        float hj = ((vjx * (vjx - vkx) + vjy * (vjy - vky) + vjz * (vjz - vkz)) * vkvk) / denom;
+                        float hk = (((vkx - vjx) * vkx + (vky - vjy) * vky + (vkz - vjz) * vkz) * vjvj) / denom;
+                        float hx = vjx * hj + vkx * hk;
+                        float hy = vjy * hj + vky * hk;
+                        float hz = vjz * hj + vkz * hk;
                         // compute cases
-                        // nj = normalize(pi - pk);
-                        Vector3f nj = new Vector3f();
-                        nj.sub(pi, pj);
-                        nj.normalize();
                         // nk = normalize(pi - pk);
-                        Vector3f nk = new Vector3f();
-                        nk.sub(pi, pk);
-                        nk.normalize();
+                        float nkx = pix - atoms[4 * k];
+                        float nky = piy - atoms[4 * k + 1];
+                        float nkz = piz - atoms[4 * k + 2];
+                        norm = (float) (1.0 / Math.sqrt(nkx * nkx + nky * nky + nkz * nkz));
+                        nkx *= norm;
+                        nky *= norm;
+                        nkz *= norm;
                         // q = vk - vj;
-                        Vector3f q = new Vector3f();
-                        q.sub(vk, vj);
+                        float qx = vkx - vjx;
+                        float qy = vky - vjy;
+                        float qz = vkz - vjz;
+                        float njnk = njx * nkx + njy * nky + njz * nkz;
+                        float njq = njx * qx + njy * qy + njz * qz;
                         // if normals are the same (unrealistic, yet theoretically possible)
-                        if (nj.dot(nk) == 1.0) {
-                            if (nj.dot(nk) > 0.0 /*Redundant?*/) {
-                                if (nj.dot(q) > 0.0) {
+                        if (njnk == 1.0) {
+                            if (njnk > 0.0 /*Redundant?*/) {
+                                if (njq > 0.0) {
                                     // k cuts off j --> remove j
                                     addJ = false;
                                 }
                             }
-                        } else if (h.length() > R) {
+                        } else if ((float) Math.sqrt(hx * hx + hy * hy + hz * hz) > R) {
                             // mj = (vj - h);
-                            Vector3f mj = new Vector3f();
-                            mj.sub(vj, h);
                             // mk = (vk - h);
-                            Vector3f mk = new Vector3f();
-                            mk.sub(vk, h);
-                            if (nj.dot(nk) > 0.0) {
-                                if (mj.dot(mk) > 0.0 && nj.dot(q) > 0.0) {
+                            float mjmk = (vjx - hx) * (vkx - hx) + (vjy - hy) * (vky - hy) + (vjz - hz) * (vkz - hz);
+                            if (njnk > 0.0) {
+                                if (mjmk > 0.0 && njq > 0.0) {
                                     // k cuts off j --> remove j
                                     addJ = false;
-                                } else {
-                                    if (testCapInclusion(scj, vj, nj, sck, vk, nk)) {
-//                                        SmallCirclesPlot plot = new SmallCirclesPlot(atomi, aj, ak, vj, vk, nj, nk, h, probeRadius);
-//                                        plot.setPreferredSize(new Dimension(1280, 960));
-//                                        
-//                                        JFrame f = new JFrame("cap inside I");
-//                                        f.add(plot);
-//                                        f.pack();
-//                                        f.setVisible(true);
-                                    }
                                 }
                             } else {
-                                if (mj.dot(mk) > 0.0 && nj.dot(q) < 0.0) {
+                                if (mjmk > 0.0 && njq < 0.0) {
                                     // atom i has no contour
                                     neighborCounts[atomIdx] = 0;
-                                    
-//                                    SmallCirclesPlot plot = new SmallCirclesPlot(atomi, aj, ak, vj, vk, nj, nk, h, probeRadius);
-//                                    plot.setPreferredSize(new Dimension(1280, 960));
-//
-//                                    JFrame f = new JFrame("no contours");
-//                                    f.add(plot);
-//                                    f.pack();
-//                                    f.setVisible(true);
-                                } else {
-                                    // test cap inclusion
-                                    if (testCapInclusion2(scj, vj, nj, sck, vk, nk, R)) {
-//                                        SmallCirclesPlot plot = new SmallCirclesPlot(atomi, aj, ak, vj, vk, nj, nk, h, probeRadius);
-//                                        plot.setPreferredSize(new Dimension(1280, 960));
-//                                        
-//                                        JFrame f = new JFrame("cap inside II");
-//                                        f.add(plot);
-//                                        f.pack();
-//                                        f.setVisible(true);
-                                    }
                                 }
                             }
                         }
@@ -342,66 +768,12 @@ public class CPUContourBuildup {
                 }
                 // all k were tested, see if j is cut off
                 if (!addJ) {
-                    smallCirclesValid[atomIdx * maxNeighbors + jIdx] = false;
+                    smallCirclesValid[neighborStart + jIdx] = false;
                 }
             }
         }
     }
     
-    private boolean testCapInclusion(Vector4f scj, Vector3f vj, Vector3f nj, Vector4f sck, Vector3f vk, Vector3f nk) {
-        // get point on small circle j
-        Vector3f cj = new Vector3f(vj);
-        cj.normalize();
-        Vector3f scjp = perp(cj);
-        scjp.normalize();
-        scjp.scale(scj.w);
-        scjp.add(vj);
-        
-        // point on small circle k
-        Vector3f ck = new Vector3f(vk);
-        ck.normalize();
-        Vector3f sckp = perp(ck);
-        sckp.normalize();
-        sckp.scale(sck.w);
-        sckp.add(vk);
-
-        scjp.normalize();
-        sckp.normalize();
-        float cosj = -nj.dot(scjp);
-        float cosk = -nk.dot(sckp);
-        float cosjk = nj.dot(nk);
-        
-        return Math.acos(cosk) > Math.acos(cosjk) + Math.acos(cosj);
-    }
-    
-    private boolean testCapInclusion2(Vector4f scj, Vector3f vj, Vector3f nj, Vector4f sck, Vector3f vk, Vector3f nk, float r) {
-        float dj = ((float) Math.sqrt(r * r - scj.w * scj.w)) / r;
-        float dk = ((float) Math.sqrt(r * r - sck.w * sck.w)) / r;
-        if (vj.dot(nj) > 0f) {
-            dj = -dj;
-        }
-        if (vk.dot(nk) > 0f) {
-            dk = -dk;
-        }
-        float a = nj.dot(nk) - dj * dk;
-        
-        return dk <= dj && (a >= 1f || (a >= 0f && a*a >= (1f - dk * dk) * (1f - dj * dj)));
-    }
-    
-    private Vector3f perp(Vector3f v) {
-        Vector3f v2;
-        if (-0.9f < v.x && v.x < 0.9f) {
-            v2 = new Vector3f(1f, 0f, 0f);
-        } else {
-            v2 = new Vector3f(0f, 1f, 0f);
-        }
-        
-        Vector3f vp = new Vector3f();
-        vp.cross(v, v2);
-        
-        return vp;
-    }
-    
 //    typedef struct {
 //        uint key;
 //        uint atomk;
@@ -414,6 +786,13 @@ public class CPUContourBuildup {
 //    constant uint KEY_VALUE_MASK = 0x07ffffff;
 
     private final float TWO_PI = 6.28318530718f;
+    private static final int MAX_HASH_ITERATIONS = 64;
+    private static final Vector3f Z_AXIS = new Vector3f(0f, 0f, 1f);
+    
+    // patch types (see writeSpheres.glsl)
+    private static final int NONE = 0;
+    private static final int SPHERE = 1;
+    private static final int CAP = 2;
 
 //    typedef struct {
 //        uint threadCount;
@@ -436,50 +815,134 @@ public class CPUContourBuildup {
 //            global arc_entry * arcHashes, global counters_t * counters, constant params_t * params);
 
     public void computeArcs() {
-        for (int atomIdx = 0; atomIdx < atoms.size(); atomIdx++) {
-            for (int jIdx = 0; jIdx < neighborCounts[atomIdx]; jIdx++) {
-                computeArcs(atomIdx, jIdx);
+        synchronized (scratches) {
+            Iterator<Scratch> it = scratches.iterator();
+            while (it.hasNext()) {
+                Scratch s = it.next();
+                if (s.owner.isAlive()) {
+                    s.arcCount = 0;
+                } else {
+                    // worker was replaced, its arcs were gathered before
+                    it.remove();
+                }
             }
         }
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                Scratch s = scratch.get();
+                for (int u = from; u < to; u++) {
+                    int atomIdx = updatedAtoms[u];
+                    Arrays.fill(smallCirclesVisible, neighborStarts[atomIdx], neighborStarts[atomIdx + 1], false);
+                    for (int jIdx = 0; jIdx < neighborCounts[atomIdx]; jIdx++) {
+                        computeArcs(atomIdx, jIdx, s);
+                    }
+                }
+            }
+        }, updatedCount);
         
         // statistics
         int totalArcs = 0;
-        for (int i = 0; i < atoms.size(); i++) {
+        for (int i = 0; i < atomCount; i++) {
+            for (int j = 0; j < neighborCounts[i]; j++) {
+                totalArcs += arcCounts[neighborStarts[i] + j];
+            }
+        }
+        if (writePerformanceInfo) {
+            System.out.println("Arcs (CPU): " + totalArcs);
+        }
+        
+        // gather arcs of all workers, arcs of an atom were written by one
+        // worker in order, so the result does not depend on scheduling
+        int[] starts = new int[atomCount + 1];
+        for (int i = 0; i < atomCount; i++) {
+            int count = 0;
             for (int j = 0; j < neighborCounts[i]; j++) {
-                totalArcs += arcCounts[i * maxNeighbors + j];
+                count += arcCounts[neighborStarts[i] + j];
+            }
+            starts[i + 1] = starts[i] + count;
+        }
+        float[] newArcs = new float[4 * totalArcs];
+        int[] newArcAtoms = new int[3 * totalArcs];
+        if (updatedCount < atomCount) {
+            // arcs of atoms, which were not updated
+            for (int i = 0; i < atomCount; i++) {
+                if (!updated[i]) {
+                    int count = starts[i + 1] - starts[i];
+                    System.arraycopy(arcs, 4 * atomArcStarts[i], newArcs, 4 * starts[i], 4 * count);
+                    System.arraycopy(arcAtoms, 3 * atomArcStarts[i], newArcAtoms, 3 * starts[i], 3 * count);
+                }
+            }
+        }
+        atomArcStarts = starts;
+        arcCount = totalArcs;
+        arcs = newArcs;
+        arcAtoms = newArcAtoms;
+        int[] fill = Arrays.copyOf(atomArcStarts, atomCount);
+        for (Scratch s : scratches) {
+            for (int a = 0; a < s.arcCount; a++) {
+                int index = fill[s.arcAtoms[3 * a]]++;
+                System.arraycopy(s.arcs, 4 * a, arcs, 4 * index, 4);
+                System.arraycopy(s.arcAtoms, 3 * a, arcAtoms, 3 * index, 3);
+            }
+        }
+        
+        // hash arcs of atom pairs (see writeArcHash in arcs.cl)
+        int capacity = ArcHashTable.nextPrime(4 * 3 * arcCount);
+        if (arcHashes == null || arcHashes.getCapacity() < capacity) {
+            arcHashes = new ArcHashTable(capacity, MAX_HASH_ITERATIONS);
+        } else {
+            arcHashes.clear();
+        }
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int a = atomArcStarts[from]; a < atomArcStarts[to]; a++) {
+                    arcHashes.writeArc(arcAtoms[3 * a], arcAtoms[3 * a + 1], arcAtoms[3 * a + 2], a);
+                }
             }
+        });
+        if (arcHashes.getHashErrorCount() > 0) {
+            System.err.println("Error: arc hash overflow. Instance count: " + arcHashes.getHashErrorCount());
         }
-        System.out.println("Arcs (CPU): " + totalArcs);
+    }
+    
+    public int getHashErrorCount() {
+        return arcHashes.getHashErrorCount();
     }
     
     public void computeArcs(int atomIdx, int jIdx) {
+        computeArcs(atomIdx, jIdx, scratch.get());
+    }
+    
+    private void computeArcs(int atomIdx, int jIdx, Scratch arcs) {
+        // small circles of atom i are contiguous
+        int neighborStart = neighborStarts[atomIdx];
         // read position and radius of atom i from sorted array
-        Vector4f atomi = atoms.get(atomIdx);
-        Vector3f pi = new Vector3f(atomi.x, atomi.y, atomi.z);
-        float R = atomi.w + probeRadius;
-
+        float pix = atoms[4 * atomIdx];
+        float piy = atoms[4 * atomIdx + 1];
+        float piz = atoms[4 * atomIdx + 2];
+        float R = atoms[4 * atomIdx + 3] + probeRadius;
+        
         // the atom index of j
-        int j = neighbors[atomIdx * maxNeighbors + jIdx];
+        int j = neighbors[neighborStart + jIdx];
         // get small circle j
-        Vector4f scj = smallCircles[atomIdx * maxNeighbors + jIdx];
+        int scj = 4 * (neighborStart + jIdx);
         // do nothing if small circle j has radius -1 (removed)
-        if (!smallCirclesValid[atomIdx * maxNeighbors + jIdx] /*scj.w < -10.0f*/) { // TODO
-            //arcCount[atomIdx * maxNumNeighbors + jIdx] = 0; // DEBUG
+        if (!smallCirclesValid[neighborStart + jIdx]) {
             return;
         }
-        scj.w = Math.abs(scj.w);
+        smallCircles[scj + 3] = Math.abs(smallCircles[scj + 3]);
         // vj = the small circle center
-        Vector3f vj = new Vector3f(scj.x, scj.y, scj.z);
-        // pj = center of atom j
-        //float4 aj = atoms[j]; // NOT REFERENCED?
-        //float4 aj = read_imagef(atoms, sampler, (int2)(j)); // PROFILE
-        //float3 pj = aj.xyz; // NOT REFERENCED?
+        float vjx = smallCircles[scj];
+        float vjy = smallCircles[scj + 1];
+        float vjz = smallCircles[scj + 2];
         // store all arcs
-        float start[] = new float[64];
-        float end[] = new float[64];
-        int startkIndex[] = new int[64];
-        int endkIndex[] = new int[64];
-        boolean arcValid[] = new boolean[64];
+        float[] start = arcs.start;
+        float[] end = arcs.end;
+        int[] startkIndex = arcs.startkIndex;
+        int[] endkIndex = arcs.endkIndex;
+        boolean[] arcValid = arcs.arcValid;
         start[0] = 0.0f;
         end[0] = TWO_PI;
         startkIndex[0] = 0;
@@ -487,96 +950,107 @@ public class CPUContourBuildup {
         arcValid[0] = true;
         int arcCnt = 1;
         // temporary arc arrays for new arcs
-        float tmpStart[] = new float[16];
-        float tmpEnd[] = new float[16];
-        int tmpStartkIndex[] = new int[16];
-        int tmpEndkIndex[] = new int[16];
+        float[] tmpStart = arcs.tmpStart;
+        float[] tmpEnd = arcs.tmpEnd;
+        int[] tmpStartkIndex = arcs.tmpStartkIndex;
+        int[] tmpEndkIndex = arcs.tmpEndkIndex;
         int tmpArcCnt = 0;
         // compute axes of local coordinate system
-        Vector3f ex = new Vector3f(1.0f, 0.0f, 0.0f);
-        Vector3f ey = new Vector3f(0.0f, 1.0f, 0.0f);
-        //float3 xAxis = cross(vj, ey);
-        Vector3f xAxis = new Vector3f();
-        xAxis.cross(vj, ey);
-        if (xAxis.dot(xAxis) == 0.0f) {
-            xAxis.cross(vj, ex);
-        }
-        xAxis.normalize();
-        //float3 yAxis = cross(xAxis, vj);
-        Vector3f yAxis = new Vector3f();
-        yAxis.cross(xAxis, vj);
-        yAxis.normalize();
-
+        // xAxis = cross(vj, ey);
+        float xAxisX = vjy * 0.0f - vjz * 1.0f;
+        float xAxisY = 0.0f * vjz - 0.0f * vjx;
+        float xAxisZ = vjx * 1.0f - vjy * 0.0f;
+        if (xAxisX * xAxisX + xAxisY * xAxisY + xAxisZ * xAxisZ == 0.0f) {
+            // xAxis = cross(vj, ex);
+            xAxisX = vjy * 0.0f - vjz * 0.0f;
+            xAxisY = 1.0f * vjz - 0.0f * vjx;
+            xAxisZ = vjx * 0.0f - vjy * 1.0f;
+        }
+        float norm = (float) (1.0 / Math.sqrt(xAxisX * xAxisX + xAxisY * xAxisY + xAxisZ * xAxisZ));
+        xAxisX *= norm;
+        xAxisY *= norm;
+        xAxisZ *= norm;
+        // yAxis = cross(xAxis, vj);
+        float yAxisX = xAxisY * vjz - xAxisZ * vjy;
+        float yAxisY = vjx * xAxisZ - vjz * xAxisX;
+        float yAxisZ = xAxisX * vjy - xAxisY * vjx;
+        norm = (float) (1.0 / Math.sqrt(yAxisX * yAxisX + yAxisY * yAxisY + yAxisZ * yAxisZ));
+        yAxisX *= norm;
+        yAxisY *= norm;
+        yAxisZ *= norm;
+        float vjvj = vjx * vjx + vjy * vjy + vjz * vjz;
+        
         // check j with all other neighbors k
         for (int kCnt = 0; kCnt < neighborCounts[atomIdx]; kCnt++) {
             // don't compare the circle with itself
-            if (jIdx == kCnt) { 
+            if (jIdx == kCnt) {
                 continue;
             }
             // the atom index of k
-            int k = neighbors[atomIdx * maxNeighbors + kCnt];
+            int k = neighbors[neighborStart + kCnt];
             // get small circle k
-            Vector4f sck = smallCircles[atomIdx * maxNeighbors + kCnt];
+            int sck = 4 * (neighborStart + kCnt);
             // do nothing if small circle k has radius -1 (removed)
-            if (!smallCirclesValid[atomIdx * maxNeighbors + kCnt] /*sck.w < -10.0f*/) {
+            if (!smallCirclesValid[neighborStart + kCnt]) {
                 continue;
             }
-            sck.w = Math.abs(sck.w);
+            smallCircles[sck + 3] = Math.abs(smallCircles[sck + 3]);
             // vk = the small circle center
-            Vector3f vk = new Vector3f(sck.x, sck.y, sck.z);
-            // pk = center of atom k
-            Vector4f ak = atoms.get(k);
-            Vector3f pk = new Vector3f(ak.x, ak.y, ak.z);
+            float vkx = smallCircles[sck];
+            float vky = smallCircles[sck + 1];
+            float vkz = smallCircles[sck + 2];
             // vj * vk
-            float vjvk = vj.dot(vk);
+            float vjvk = vjx * vkx + vjy * vky + vjz * vkz;
+            float vkvk = vkx * vkx + vky * vky + vkz * vkz;
             // denominator
-            float denom = vj.dot(vj) * vk.dot(vk) - vjvk * vjvk;
+            float denom = vjvj * vkvk - vjvk * vjvk;
             // point on straight line (intersection of small circle planes)
-            //float3 h = vj * (dot(vj, vj - vk) * dot(vk, vk)) / denom + vk * (dot(vk - vj, vk) * dot(vj, vj)) / denom;
-            Vector3f h = new Vector3f();
-            Vector3f subvjvk = new Vector3f();
-            Vector3f subvkvj = new Vector3f();
-            subvjvk.sub(vj, vk);
-            subvkvj.sub(vk, vj);
-            Vector3f hj = new Vector3f(vj);
-            hj.scale((vj.dot(subvjvk) * vk.dot(vk)) / denom);
-            Vector3f hk = new Vector3f(vk);
-            hk.scale((subvkvj.dot(vk) * vj.dot(vj)) / denom);
-            h.add(hj, hk);
+            // h = vj * (dot(vj, vj - vk) * dot(vk, vk)) / denom + vk * (dot(vk - vj, vk) * dot(vj, vj)) / denom;
+            float hj = ((vjx * (vjx - vkx) + vjy * (vjy - vky) + vjz * (vjz - vkz)) * vkvk) / denom;
+            float hk = (((vkx - vjx) * vkx + (vky - vjy) * vky + (vkz - vjz) * vkz) * vjvj) / denom;
+            float hx = vjx * hj + vkx * hk;
+            float hy = vjy * hj + vky * hk;
+            float hz = vjz * hj + vkz * hk;
+            float hh = hx * hx + hy * hy + hz * hz;
             // do nothing if h is outside of the extended sphere of atom i
-            if (h.length() > R) { 
+            if ((float) Math.sqrt(hh) > R) {
                 continue;
             }
             // compute the root
-            Vector3f crossvkvj = new Vector3f();
-            crossvkvj.cross(vk, vj);
-            float root = (float) Math.sqrt((R * R - h.dot(h)) / crossvkvj.dot(crossvkvj));
+            // c = cross(vk, vj);
+            float cx = vky * vjz - vkz * vjy;
+            float cy = vjx * vkz - vjz * vkx;
+            float cz = vkx * vjy - vky * vjx;
+            float root = (float) Math.sqrt((R * R - hh) / (cx * cx + cy * cy + cz * cz));
             // compute the two intersection points
-            //float3 x1 = h + cross(vk, vj) * root;
-            Vector3f x1 = new Vector3f(crossvkvj);
-            x1.scale(root);
-            x1.add(h);
-            //float3 x2 = h - cross(vk, vj) * root;
-            Vector3f x2 = new Vector3f(crossvkvj);
-            x2.scale(-root);
-            x2.add(h);
+            // x1 = h + cross(vk, vj) * root;
+            float x1x = cx * root + hx;
+            float x1y = cy * root + hy;
+            float x1z = cz * root + hz;
+            // x2 = h - cross(vk, vj) * root;
+            float x2x = cx * -root + hx;
+            float x2y = cy * -root + hy;
+            float x2z = cz * -root + hz;
             // swap x1 & x2 if vj points in the opposit direction of pj-pi
-            Vector3f subpkpi = new Vector3f();
-            subpkpi.sub(pk, pi);
-            if (vk.dot(subpkpi) < 0.0f) {
-                Vector3f tmpVec = x1;
-                x1 = x2;
-                x2 = tmpVec;
+            float pkpix = atoms[4 * k] - pix;
+            float pkpiy = atoms[4 * k + 1] - piy;
+            float pkpiz = atoms[4 * k + 2] - piz;
+            if (vkx * pkpix + vky * pkpiy + vkz * pkpiz < 0.0f) {
+                float tmp = x1x; x1x = x2x; x2x = tmp;
+                tmp = x1y; x1y = x2y; x2y = tmp;
+                tmp = x1z; x1z = x2z; x2z = tmp;
             }
             // transform x1 and x2 to small circle coordinate system
-            Vector3f subx1vj = new Vector3f();
-            Vector3f subx2vj = new Vector3f();
-            subx1vj.sub(x1, vj);
-            subx2vj.sub(x2, vj);
-            float xX1 = subx1vj.dot(xAxis);
-            float yX1 = subx1vj.dot(yAxis);
-            float xX2 = subx2vj.dot(xAxis);
-            float yX2 = subx2vj.dot(yAxis);
+            x1x -= vjx;
+            x1y -= vjy;
+            x1z -= vjz;
+            x2x -= vjx;
+            x2y -= vjy;
+            x2z -= vjz;
+            float xX1 = x1x * xAxisX + x1y * xAxisY + x1z * xAxisZ;
+            float yX1 = x1x * yAxisX + x1y * yAxisY + x1z * yAxisZ;
+            float xX2 = x2x * xAxisX + x2y * xAxisY + x2z * xAxisZ;
+            float yX2 = x2x * yAxisX + x2y * yAxisY + x2z * yAxisZ;
             float angleX1 = (float) Math.atan2(yX1, xX1);
             float angleX2 = (float) Math.atan2(yX2, xX2);
             // limit angles to 0..2*PI
@@ -593,7 +1067,21 @@ public class CPUContourBuildup {
                 angleX1 += TWO_PI;
                 angleX2 += TWO_PI;
             }
-
+            
+            // every existing arc creates at most one new arc
+            if (arcs.capacity < 2 * arcCnt) {
+                arcs.grow(2 * arcCnt);
+                start = arcs.start;
+                end = arcs.end;
+                startkIndex = arcs.startkIndex;
+                endkIndex = arcs.endkIndex;
+                arcValid = arcs.arcValid;
+                tmpStart = arcs.tmpStart;
+                tmpEnd = arcs.tmpEnd;
+                tmpStartkIndex = arcs.tmpStartkIndex;
+                tmpEndkIndex = arcs.tmpEndkIndex;
+            }
+            
             // check all existing arcs with new arc k
             for (int aCnt = 0; aCnt < arcCnt; aCnt++) {
                 float s = start[aCnt];
@@ -781,44 +1269,43 @@ public class CPUContourBuildup {
         }
 
         int arcWritten = 0;
-        // copy arcs to global arc array
+        float scjw = smallCircles[scj + 3];
+        // copy arcs to worker arc array (see arcs.cl)
         for (int aCnt = 0; aCnt < arcCnt; aCnt++) {
             if (atomIdx < j) {
                 int k = startkIndex[aCnt];
                 if (j < k) {
-//                    uint index = atomic_add(&counters->totalArcCount, 1);
-//                    //uint index = atomicCounterIncrement(totalArcCount);
-//                    //uint index = atomIdx * maxNumNeighbors * maxNumArcs + jIdx * maxNumArcs + arcWritten;
-//                    arcs[index] = (float4)(pi + vj + (cos(start[aCnt]) * xAxis + sin(start[aCnt]) * yAxis) * scj.w,
-//                            (float)k + 0.2f); //start[aCnt]);
-//                    writeArcHash(atomIdx, j, k, index, true, arcHashes, counters, params);
-//                    writeArcHash(atomIdx, k, j, index, false, arcHashes, counters, params);
-//                    writeArcHash(j, k, atomIdx, index, false, arcHashes, counters, params);
+                    // arc = pi + vj + (cos(angle) * xAxis + sin(angle) * yAxis) * scj.w
+                    float cos = (float) Math.cos(start[aCnt]);
+                    float sin = (float) Math.sin(start[aCnt]);
+                    arcs.writeArc(atomIdx, j, k,
+                            pix + vjx + (cos * xAxisX + sin * yAxisX) * scjw,
+                            piy + vjy + (cos * xAxisY + sin * yAxisY) * scjw,
+                            piz + vjz + (cos * xAxisZ + sin * yAxisZ) * scjw);
                     arcWritten++;
                 }
                 k = endkIndex[aCnt];
                 if (j < k) {
-//                    uint index = atomic_add(&counters->totalArcCount, 1);
-//                    //uint index = atomicCounterIncrement(totalArcCount);
-//                    //uint index = atomIdx * maxNumNeighbors * maxNumArcs + jIdx * maxNumArcs + arcWritten;
-//                    arcs[index] = (float4)(pi + vj + (cos(end[aCnt]) * xAxis + sin(end[aCnt]) * yAxis) * scj.w,
-//                            (float)k + 0.2f); //end[aCnt]);
-//                    writeArcHash(atomIdx, j, k, index, true, arcHashes, counters, params);
-//                    writeArcHash(atomIdx, k, j, index, false, arcHashes, counters, params);
-//                    writeArcHash(j, k, atomIdx, index, false, arcHashes, counters, params);
+                    // arc = pi + vj + (cos(angle) * xAxis + sin(angle) * yAxis) * scj.w
+                    float cos = (float) Math.cos(end[aCnt]);
+                    float sin = (float) Math.sin(end[aCnt]);
+                    arcs.writeArc(atomIdx, j, k,
+                            pix + vjx + (cos * xAxisX + sin * yAxisX) * scjw,
+                            piy + vjy + (cos * xAxisY + sin * yAxisY) * scjw,
+                            piz + vjz + (cos * xAxisZ + sin * yAxisZ) * scjw);
                     arcWritten++;
                 }
             }
         }
 
         // write number of arcs
-        arcCounts[atomIdx * maxNeighbors + jIdx] = arcWritten;
+        arcCounts[neighborStart + jIdx] = arcWritten;
 
         // set small circle j visible if at least one arc was created and i < j
         if (arcCnt > 0) {
         //if( arcWritten > 0 ) {
             //if (atomIdx < j) {
-//                smallCirclesVisible[atomIdx * params->maxNumNeighbors + jIdx] = 1;
+                smallCirclesVisible[neighborStart + jIdx] = true;
             //}
         }
         // DO NOT USE THIS!! It will create false, internal arcs!
@@ -828,4 +1315,898 @@ public class CPUContourBuildup {
         //atomicCounterIncrement(threadCount); // DEBUG
     }
     
+    /**
+     * Collects arcs of atoms i and j from the arc hash table in arc order.
+     *
+     * @return number of arcs (stored in s.torusArcs and s.torusAtoms)
+     */
+    private int gatherPairArcs(int i, int j, Scratch s) {
+        int count = 0;
+        for (int it = arcHashes.next(i, j, 0); it >= 0; it = arcHashes.next(i, j, it + 1)) {
+            int slot = arcHashes.slot(i, j, it);
+            if (count == s.torusArcs.length) {
+                s.growTorus(2 * count);
+            }
+            // keep arcs in arc order, slots depend on the insertion order
+            int a = count++;
+            while (a > 0 && s.torusArcs[a - 1] > arcHashes.getArc(slot)) {
+                s.torusArcs[a] = s.torusArcs[a - 1];
+                s.torusAtoms[a] = s.torusAtoms[a - 1];
+                a--;
+            }
+            s.torusArcs[a] = arcHashes.getArc(slot);
+            s.torusAtoms[a] = arcHashes.getThirdAtom(slot);
+        }
+        return count;
+    }
+    
+    @Override
+    public Result computeSurface(int snapshot) {
+        if (tolerance > 0f && lastResult != null && atomCount == molecule.getAtomCount()) {
+            if (!updateNeighbors(snapshot)) {
+                writePerformanceInfo = false;
+                return lastResult;
+            }
+        } else {
+            computeNeighbors(snapshot);
+        }
+        filterSmallCircles();
+        computeArcs();
+        
+        // count tori of atoms (see write.glsl)
+        torusStarts = new int[atomCount + 1];
+        isolatedStarts = new int[atomCount + 1];
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                countTori(from, to);
+            }
+        });
+        for (int i = 0; i < atomCount; i++) {
+            torusStarts[i + 1] += torusStarts[i];
+            isolatedStarts[i + 1] += isolatedStarts[i];
+        }
+        int torusCount = torusStarts[atomCount];
+        int isolatedTorusCount = isolatedStarts[atomCount];
+        if (writePerformanceInfo) {
+            System.out.println("Tori (CPU): " + torusCount);
+            System.out.println("Isolated tori (CPU): " + isolatedTorusCount);
+        }
+        
+        // write triangles and tori
+        final ByteBuffer triangles = Buffers.newDirectByteBuffer(arcCount * Scene.SIZEOF_TRIANGLE);
+        final ByteBuffer tori = Buffers.newDirectByteBuffer(torusCount * Scene.SIZEOF_TORUS);
+        final ByteBuffer edgesCircle = Buffers.newDirectByteBuffer(torusCount * Scene.SIZEOF_VEC4);
+        final ByteBuffer edgesLine = Buffers.newDirectByteBuffer(torusCount * Scene.SIZEOF_VEC4);
+        final ByteBuffer isolatedTori = Buffers.newDirectByteBuffer(isolatedTorusCount * Buffers.SIZEOF_INT);
+        final int[] edges = new int[4 * torusCount];
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                writeTriangles(triangles, from, to);
+                writeTori(tori, edges, edgesCircle, edgesLine, isolatedTori, from, to);
+            }
+        });
+        
+        // surface graph, tracked cavities are labeled from the changes of
+        // the graph
+        CPUGraph.Result graph;
+        if (cavityTracker != null) {
+            int[] labels = cavityTracker.update(arcAtoms, atomArcStarts, arcCount, edges, torusStarts,
+                    atomCount, updated, updatedCount, neighborStarts, neighbors);
+            graph = new CPUGraph(workers).labeledComponents(edges, torusCount, arcCount, atomCount,
+                    labels, cavityTracker.getLabelCount(), cavityTracker.getCavityIds());
+            if (writePerformanceInfo) {
+                System.out.println("Cavities (tracked): " + cavityTracker.getLabelCount()
+                        + ", born: " + cavityTracker.getBornCount()
+                        + ", died: " + cavityTracker.getDiedCount()
+                        + ", merged: " + cavityTracker.getMergedCount()
+                        + ", split: " + cavityTracker.getSplitCount());
+            }
+        } else {
+            graph = new CPUGraph(workers).connectedComponents(edges, torusCount, arcCount, atomCount);
+        }
+        if (writePerformanceInfo) {
+            System.out.println("Labels (CPU): " + graph.getLabelCount());
+        }
+        
+        // clip isolated tori (see isolated.glsl)
+        ByteBuffer sphereIsolatedCounts = Buffers.newDirectByteBuffer(atomCount * Buffers.SIZEOF_INT);
+        ByteBuffer sphereIsolatedVS = Buffers.newDirectByteBuffer(atomCount * Scene.MAX_SPHERE_ISOLATED_TORI * Scene.SIZEOF_VEC4);
+        writeIsolated(graph, tori, isolatedTori, isolatedTorusCount, sphereIsolatedCounts, sphereIsolatedVS);
+        
+        // write spheres and caps (see writeSpheres.glsl)
+        int[] patchCounts = new int[atomCount];
+        int sphereCount = 0;
+        int capCount = 0;
+        for (int c = 0; c < graph.getCircleCount(); c++) {
+            int patch = patchType(graph, c, patchCounts);
+            if (patch == SPHERE) {
+                sphereCount++;
+            } else if (patch == CAP) {
+                capCount++;
+            }
+        }
+        ByteBuffer spheres = Buffers.newDirectByteBuffer(sphereCount * Scene.SIZEOF_POLYGON);
+        ByteBuffer caps = Buffers.newDirectByteBuffer(capCount * Scene.SIZEOF_CAP);
+        Arrays.fill(patchCounts, 0);
+        int sphereIdx = 0;
+        int capIdx = 0;
+        for (int c = 0; c < graph.getCircleCount(); c++) {
+            int patch = patchType(graph, c, patchCounts);
+            if (patch == SPHERE) {
+                writePatch(spheres, sphereIdx * Scene.SIZEOF_POLYGON, graph, c);
+                sphereIdx++;
+            } else if (patch == CAP) {
+                writePatch(caps, capIdx * Scene.SIZEOF_CAP, graph, c);
+                capIdx++;
+            }
+        }
+        if (writePerformanceInfo) {
+            System.out.println("Spheres (CPU): " + sphereCount);
+            System.out.println("Caps (CPU): " + capCount);
+        }
+        
+        // compute cap planes (see caps.glsl)
+        ByteBuffer sphereCapCounts = Buffers.newDirectByteBuffer(atomCount * Buffers.SIZEOF_INT);
+        ByteBuffer sphereCapPlanes = Buffers.newDirectByteBuffer(atomCount * GPUGraph.MAX_SPHERE_POLYGON_COUNT * Scene.SIZEOF_VEC4);
+        writeCapPlanes(graph, edgesCircle, edgesLine, caps, capCount, sphereCapCounts, sphereCapPlanes);
+        
+        ByteBuffer edgesBuffer = Buffers.newDirectByteBuffer(torusCount * Scene.SIZEOF_EDGE);
+        edgesBuffer.asIntBuffer().put(edges, 0, 4 * torusCount);
+        
+        Result result = new Result(triangles, arcCount, tori, edgesBuffer, edgesCircle, edgesLine, torusCount,
+                isolatedTori, isolatedTorusCount, spheres, sphereCount, caps, capCount,
+                sphereIsolatedCounts, sphereIsolatedVS, sphereCapCounts, sphereCapPlanes,
+                toBuffer(graph.getLabels(), graph.getVertexCount()),
+                toBuffer(graph.getCircles(), graph.getCircles().length),
+                toBuffer(graph.getCirclesCount(), atomCount),
+                toBuffer(graph.getCirclesLength(), graph.getCircleCount()),
+                toBuffer(graph.getCirclesStart(), graph.getCircleCount()),
+                graph);
+        if (writePerformanceInfo) {
+            writePerformanceInfo = false;
+            System.out.println("Memory (CPU): " + getMemoryFootprint() / 1024 + " kB, surface: "
+                    + result.getMemoryFootprint() / 1024 + " kB");
+        }
+        lastResult = result;
+        return result;
+    }
+    
+    private void countTori(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int torusCount = 0;
+            int isolatedCount = 0;
+            for (int n = 0; n < neighborCounts[i]; n++) {
+                int j = neighbors[neighborStarts[i] + n];
+                if (i < j && smallCirclesVisible[neighborStarts[i] + n]) {
+                    int count = arcHashes.count(i, j);
+                    if (count < 2) {
+                        torusCount++;
+                        isolatedCount++;
+                    } else {
+                        torusCount += (count + 1) / 2;
+                    }
+                }
+            }
+            torusStarts[i + 1] = torusCount;
+            isolatedStarts[i + 1] = isolatedCount;
+        }
+    }
+    
+    private void writeTriangles(ByteBuffer triangles, int from, int to) {
+        for (int i = from; i < to; i++) {
+            for (int a = atomArcStarts[i]; a < atomArcStarts[i + 1]; a++) {
+                float x = arcs[4 * a];
+                float y = arcs[4 * a + 1];
+                float z = arcs[4 * a + 2];
+                int offset = a * Scene.SIZEOF_TRIANGLE;
+                putVec4(triangles, offset, x, y, z, a + 0.2f);
+                for (int n = 0; n < 3; n++) {
+                    int atom = 4 * arcAtoms[3 * a + n];
+                    putVec4(triangles, offset + (n + 1) * Scene.SIZEOF_VEC4,
+                            atoms[atom] - x, atoms[atom + 1] - y, atoms[atom + 2] - z, 1f);
+                }
+            }
+        }
+    }
+    
+    private void writeTori(ByteBuffer tori, int[] edges, ByteBuffer edgesCircle, ByteBuffer edgesLine,
+            ByteBuffer isolatedTori, int from, int to) {
+        Scratch s = scratch.get();
+        Vector3f pi = new Vector3f();
+        Vector3f pj = new Vector3f();
+        Vector3f ta = new Vector3f();
+        Vector3f tc = new Vector3f();
+        Vector3f P = new Vector3f();
+        Vector3f X = new Vector3f();
+        Vector3f C = new Vector3f();
+        Vector3f tmp = new Vector3f();
+        Vector3f orig = new Vector3f();
+        Vector3f arc1 = new Vector3f();
+        Vector3f arc2 = new Vector3f();
+        Vector3f arcVec1 = new Vector3f();
+        Vector3f arcVec2 = new Vector3f();
+        Vector3f center = new Vector3f();
+        Vector3f v1 = new Vector3f();
+        Vector3f v2 = new Vector3f();
+        for (int i = from; i < to; i++) {
+            int torusIdx = torusStarts[i];
+            int isolatedTorusIdx = isolatedStarts[i];
+            pi.set(atoms[4 * i], atoms[4 * i + 1], atoms[4 * i + 2]);
+            float ri = atoms[4 * i + 3];
+            for (int n = 0; n < neighborCounts[i]; n++) {
+                int j = neighbors[neighborStarts[i] + n];
+                if (i >= j || !smallCirclesVisible[neighborStarts[i] + n]) {
+                    continue;
+                }
+                pj.set(atoms[4 * j], atoms[4 * j + 1], atoms[4 * j + 2]);
+                float rj = atoms[4 * j + 3];
+                int sc = 4 * (neighborStarts[i] + n);
+                float scw = Math.abs(smallCircles[sc + 3]);
+                // torus axis and center
+                ta.set(smallCircles[sc], smallCircles[sc + 1], smallCircles[sc + 2]);
+                tc.add(ta, pi);
+                ta.normalize();
+                tmp.cross(ta, Z_AXIS);
+                tmp.normalize();
+                
+                // compute the tangential point X2 of the spheres
+                P.scaleAdd(scw, tmp, tc);
+                X.sub(P, pi);
+                X.normalize();
+                X.scale(ri);
+                tmp.sub(P, pi);
+                float lpi = tmp.length();
+                tmp.sub(P, pj);
+                float lpj = tmp.length();
+                C.sub(pj, pi);
+                C.scale(lpi / (lpj + lpi));
+                tmp.sub(X, C);
+                float dist = tmp.length();
+                C.add(pi);
+                C.sub(tc);
+                
+                int count = gatherPairArcs(i, j, s);
+                if (count < 2) {
+                    int offset = torusIdx * Scene.SIZEOF_TORUS;
+                    putVec4(tori, offset, tc, scw);
+                    putVec4(tori, offset + Scene.SIZEOF_VEC4, ta, 0f); // ISOLATED
+                    putVec4(tori, offset + 2 * Scene.SIZEOF_VEC4, C, dist);
+                    tori.putInt(offset + 3 * Scene.SIZEOF_VEC4, i);
+                    tori.putInt(offset + 3 * Scene.SIZEOF_VEC4 + 4, j);
+                    putVec4(tori, offset + 4 * Scene.SIZEOF_VEC4, 1f, 2f, 3f, 4f);
+                    // OBB for ray-casting
+                    if (ta.x > 0.9f || ta.x < -0.9f) {
+                        tmp.set(0f, 0f, 1f);
+                    } else {
+                        tmp.set(1f, 0f, 0f);
+                    }
+                    tmp.cross(ta, tmp);
+                    tmp.normalize();
+                    putVec4(tori, offset + 5 * Scene.SIZEOF_VEC4, tmp, probeRadius);
+                    putVec4(tori, offset + 6 * Scene.SIZEOF_VEC4, probeRadius, scw, -scw, scw);
+                    // invalid edge (atoms are kept for SurfaceIntegrator)
+                    edges[4 * torusIdx] = CPUGraph.INVALID_VERTEX;
+                    edges[4 * torusIdx + 1] = CPUGraph.INVALID_VERTEX;
+                    edges[4 * torusIdx + 2] = i;
+                    edges[4 * torusIdx + 3] = j;
+                    isolatedTori.putInt(isolatedTorusIdx * Buffers.SIZEOF_INT, torusIdx);
+                    isolatedTorusIdx++;
+                    torusIdx++;
+                    continue;
+                }
+                
+                // sort arcs by angle around the torus axis
+                arcVector(s.torusArcs[0], tc, orig);
+                for (int a = 0; a < count - 1; a++) {
+                    for (int b = 0; b < count - a - 1; b++) {
+                        arcVector(s.torusArcs[b], tc, arcVec1);
+                        arcVector(s.torusArcs[b + 1], tc, arcVec2);
+                        if (angle(arcVec1, orig, ta) > angle(arcVec2, orig, ta)) {
+                            s.swapTorusArcs(b, b + 1);
+                        }
+                    }
+                }
+                
+                // compute clipping planes, odd arc pairs the last arc with
+                // the first one
+                for (int a = 0; a < count; a++) {
+                    arcPosition(s.torusArcs[a], arc1);
+                    torusPlane(pi, pj, s.torusAtoms[a], arc1, s.torusPlanes, 4 * a);
+                }
+                float totalAngle = 0f;
+                for (int t = 0; t < count; t += 2) {
+                    int e2 = (t + 1) % count;
+                    arcVector(s.torusArcs[t], tc, arcVec1);
+                    arcVector(s.torusArcs[e2], tc, arcVec2);
+                    arcPosition(s.torusArcs[e2], arc2);
+                    float vecAngle = (float) Math.acos(Math.max(-1f, Math.min(1f, arcVec1.dot(arcVec2))));
+                    if (planeDistance(s.torusPlanes, 4 * t, arc2) < 0f) {
+                        totalAngle += TWO_PI - vecAngle; // OR
+                    } else {
+                        totalAngle += vecAngle; // AND
+                    }
+                }
+                int start = (totalAngle > TWO_PI) ? 1 : 0;
+                
+                // write tori
+                for (int t = 0; t < count; t += 2) {
+                    int e1 = (start + t) % count;
+                    int e2 = (start + t + 1) % count;
+                    arcPosition(s.torusArcs[e1], arc1);
+                    arcPosition(s.torusArcs[e2], arc2);
+                    float operation = 1f; // AND
+                    if (planeDistance(s.torusPlanes, 4 * e1, arc2) < 0f) {
+                        operation = -1f; // OR
+                    }
+                    int offset = torusIdx * Scene.SIZEOF_TORUS;
+                    putVec4(tori, offset, tc, scw);
+                    putVec4(tori, offset + Scene.SIZEOF_VEC4, ta, operation);
+                    putVec4(tori, offset + 2 * Scene.SIZEOF_VEC4, C, dist);
+                    putVec4(tori, offset + 3 * Scene.SIZEOF_VEC4, s.torusPlanes, 4 * e1);
+                    putVec4(tori, offset + 4 * Scene.SIZEOF_VEC4, s.torusPlanes, 4 * e2);
+                    // write edge
+                    edges[4 * torusIdx] = s.torusArcs[e1];
+                    edges[4 * torusIdx + 1] = s.torusArcs[e2];
+                    edges[4 * torusIdx + 2] = i;
+                    edges[4 * torusIdx + 3] = j;
+                    // write circle (tc + C = visiblity sphere center)
+                    tmp.add(C, tc);
+                    putVec4(edgesCircle, torusIdx * Scene.SIZEOF_VEC4, tmp, dist);
+                    // write line
+                    center.add(arc1, arc2);
+                    center.scaleAdd(-2f, tc, center);
+                    center.normalize();
+                    center.scale(operation);
+                    arcVector(s.torusArcs[e1], tc, arcVec1);
+                    float cosin = arcVec1.dot(center);
+                    putVec4(edgesLine, torusIdx * Scene.SIZEOF_VEC4, center, cosin);
+                    // box bound clipping planes
+                    v1.sub(pi, tmp);
+                    v2.sub(pj, tmp);
+                    float d1 = v1.length();
+                    float d2 = v2.length();
+                    float x1 = (dist * dist + d1 * d1 - ri * ri) / (2f * d1);
+                    float x2 = (dist * dist + d2 * d2 - rj * rj) / (2f * d2);
+                    if (v1.dot(ta) < 0f) {
+                        float swap = x1;
+                        x1 = x2;
+                        x2 = swap;
+                    }
+                    float y1 = cosin * (scw - probeRadius);
+                    float y2 = (float) Math.sqrt(dist * dist - Math.min(x1 * x1, x2 * x2));
+                    float z = (float) Math.sqrt(y2 * y2 * (1f - cosin * cosin));
+                    if (operation < 0f) {
+                        y1 = cosin * y2;
+                        z = y2;
+                    }
+                    putVec4(tori, offset + 5 * Scene.SIZEOF_VEC4, center, x1);
+                    putVec4(tori, offset + 6 * Scene.SIZEOF_VEC4, x2, y1, y2, z);
+                    torusIdx++;
+                }
+            }
+        }
+    }
+    
+    private void arcPosition(int arc, Vector3f position) {
+        position.set(arcs[4 * arc], arcs[4 * arc + 1], arcs[4 * arc + 2]);
+    }
+    
+    /**
+     * Computes normalize(arc - tc).
+     */
+    private void arcVector(int arc, Vector3f tc, Vector3f v) {
+        v.set(arcs[4 * arc] - tc.x, arcs[4 * arc + 1] - tc.y, arcs[4 * arc + 2] - tc.z);
+        v.normalize();
+    }
+    
+    private static float angle(Vector3f v, Vector3f o, Vector3f normal) {
+        // signum = dot(cross(o, v), normal)
+        float signum = (o.y * v.z - o.z * v.y) * normal.x
+                + (o.z * v.x - o.x * v.z) * normal.y
+                + (o.x * v.y - o.y * v.x) * normal.z;
+        float cosin = o.dot(v);
+        if (signum == 0f) {
+            return Math.min(cosin, 0f);
+        } else if (signum > 0f) {
+            return -0.5f * cosin + 0.5f;
+        } else /* signum < 0 */ {
+            return 0.5f * cosin - 0.5f;
+        }
+    }
+    
+    private void torusPlane(Vector3f pi, Vector3f pj, int k, Vector3f probe, float[] planes, int offset) {
+        float vix = pi.x - probe.x;
+        float viy = pi.y - probe.y;
+        float viz = pi.z - probe.z;
+        float vjx = pj.x - probe.x;
+        float vjy = pj.y - probe.y;
+        float vjz = pj.z - probe.z;
+        // n = normalize(cross(vi, vj))
+        float nx = viy * vjz - viz * vjy;
+        float ny = viz * vjx - vix * vjz;
+        float nz = vix * vjy - viy * vjx;
+        float norm = (float) (1.0 / Math.sqrt(nx * nx + ny * ny + nz * nz));
+        nx *= norm;
+        ny *= norm;
+        nz *= norm;
+        float d = -(nx * probe.x + ny * probe.y + nz * probe.z);
+        float side = nx * atoms[4 * k] + ny * atoms[4 * k + 1] + nz * atoms[4 * k + 2] + d;
+        float sign = (side > 0f) ? -1f : 1f;
+        planes[offset] = sign * nx;
+        planes[offset + 1] = sign * ny;
+        planes[offset + 2] = sign * nz;
+        planes[offset + 3] = sign * d;
+    }
+    
+    private static float planeDistance(float[] planes, int offset, Vector3f p) {
+        return planes[offset] * p.x + planes[offset + 1] * p.y + planes[offset + 2] * p.z + planes[offset + 3];
+    }
+    
+    private void writeIsolated(CPUGraph.Result graph, ByteBuffer tori, ByteBuffer isolatedTori, int isolatedTorusCount,
+            ByteBuffer sphereIsolatedCounts, ByteBuffer sphereIsolatedVS) {
+        int[] circles = graph.getCircles();
+        int[] circlesCount = graph.getCirclesCount();
+        int[] circlesStart = graph.getCirclesStart();
+        int[] labels = graph.getLabels();
+        int overflow = 0;
+        for (int n = 0; n < isolatedTorusCount; n++) {
+            int torusIdx = isolatedTori.getInt(n * Buffers.SIZEOF_INT);
+            int offset = torusIdx * Scene.SIZEOF_TORUS;
+            int ai = tori.getInt(offset + 3 * Scene.SIZEOF_VEC4);
+            int aj = tori.getInt(offset + 3 * Scene.SIZEOF_VEC4 + 4);
+            int atom;
+            if (circlesCount[ai] == 1) {
+                atom = ai;
+            } else if (circlesCount[aj] == 1) {
+                atom = aj;
+            } else {
+                // patches of both atoms have several boundaries, the torus
+                // has no label (labels start at 1)
+                tori.putInt(offset + 3 * Scene.SIZEOF_VEC4, 0);
+                continue;
+            }
+            tori.putInt(offset + 3 * Scene.SIZEOF_VEC4, labels[circles[4 * circlesStart[atom]]]);
+            // write torus visibility sphere to both atoms
+            for (int a : new int[] { ai, aj }) {
+                int vsIdx = sphereIsolatedCounts.getInt(a * Buffers.SIZEOF_INT);
+                if (vsIdx >= Scene.MAX_SPHERE_ISOLATED_TORI) {
+                    overflow++;
+                    continue;
+                }
+                sphereIsolatedCounts.putInt(a * Buffers.SIZEOF_INT, vsIdx + 1);
+                int vs = (a * Scene.MAX_SPHERE_ISOLATED_TORI + vsIdx) * Scene.SIZEOF_VEC4;
+                for (int c = 0; c < 3; c++) {
+                    sphereIsolatedVS.putFloat(vs + 4 * c, tori.getFloat(offset + 4 * c)
+                            + tori.getFloat(offset + 2 * Scene.SIZEOF_VEC4 + 4 * c));
+                }
+                sphereIsolatedVS.putFloat(vs + 12, tori.getFloat(offset + 2 * Scene.SIZEOF_VEC4 + 12));
+            }
+        }
+        if (overflow > 0) {
+            System.err.println("MAX_SPHERE_ISOLATED_TORI exceeded. Skipped: " + overflow);
+        }
+    }
+    
+    private int patchType(CPUGraph.Result graph, int circle, int[] patchCounts) {
+        if (graph.getCirclesLength()[circle] == 0) {
+            return NONE;
+        }
+        int edge = 4 * graph.getCirclesStart()[circle];
+        int label = graph.getLabels()[graph.getCircles()[edge]];
+        if (label != graph.getOuterSurfaceLabel()) {
+            return CAP;
+        }
+        // remove duplicate outer polygons
+        return (patchCounts[graph.getCircles()[edge + 3]]++ == 0) ? SPHERE : NONE;
+    }
+    
+    /**
+     * Writes sphere (position, atom, label, circle start, circle length) or
+     * cap (position, circle start, circle length, 0, 0, atom, label).
+     */
+    private void writePatch(ByteBuffer patches, int offset, CPUGraph.Result graph, int circle) {
+        int start = graph.getCirclesStart()[circle];
+        int length = graph.getCirclesLength()[circle];
+        int label = graph.getLabels()[graph.getCircles()[4 * start]];
+        int atom = graph.getCircles()[4 * start + 3];
+        putVec4(patches, offset, atoms, 4 * atom);
+        offset += Scene.SIZEOF_VEC4;
+        if (label == graph.getOuterSurfaceLabel()) {
+            patches.putInt(offset, atom);
+            patches.putInt(offset + 4, label);
+            patches.putInt(offset + 8, start);
+            patches.putInt(offset + 12, length);
+        } else {
+            patches.putInt(offset, start);
+            patches.putInt(offset + 4, length);
+            patches.putInt(offset + Scene.SIZEOF_VEC4, atom);
+            patches.putInt(offset + Scene.SIZEOF_VEC4 + 4, label);
+        }
+    }
+    
+    private void writeCapPlanes(CPUGraph.Result graph, ByteBuffer edgesCircle, ByteBuffer edgesLine,
+            ByteBuffer caps, int capCount, ByteBuffer sphereCapCounts, ByteBuffer sphereCapPlanes) {
+        int[] circles = graph.getCircles();
+        float[] points = new float[3 * 32];
+        float[] plane = new float[4];
+        int overflow = 0;
+        for (int index = 0; index < capCount; index++) {
+            int offset = index * Scene.SIZEOF_CAP;
+            int circleStart = caps.getInt(offset + Scene.SIZEOF_VEC4);
+            int circleLength = caps.getInt(offset + Scene.SIZEOF_VEC4 + 4);
+            int atomIdx = caps.getInt(offset + 2 * Scene.SIZEOF_VEC4);
+            float ax = atoms[4 * atomIdx];
+            float ay = atoms[4 * atomIdx + 1];
+            float az = atoms[4 * atomIdx + 2];
+            float ar = atoms[4 * atomIdx + 3];
+            if (points.length < 3 * circleLength) {
+                points = new float[3 * circleLength];
+            }
+            for (int c = 0; c < circleLength; c++) {
+                int edge = circles[4 * (circleStart + c) + 2] * Scene.SIZEOF_VEC4;
+                // compute small circle
+                float rx = edgesCircle.getFloat(edge) - ax;
+                float ry = edgesCircle.getFloat(edge + 4) - ay;
+                float rz = edgesCircle.getFloat(edge + 8) - az;
+                float vsw = edgesCircle.getFloat(edge + 12);
+                float dist = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+                // intersection plane
+                float r = (ar * ar + dist * dist - vsw * vsw) / (2f * dist * dist);
+                float vx = rx * r;
+                float vy = ry * r;
+                float vz = rz * r;
+                float cw = (float) Math.sqrt(Math.max(0f, ar * ar - (vx * vx + vy * vy + vz * vz)));
+                // compute line end point
+                float lx = edgesLine.getFloat(edge);
+                float ly = edgesLine.getFloat(edge + 4);
+                float lz = edgesLine.getFloat(edge + 8);
+                float lw = edgesLine.getFloat(edge + 12);
+                // zAxis = cross(relPos / dist, line.xyz)
+                float zx = (ry * lz - rz * ly) / dist;
+                float zy = (rz * lx - rx * lz) / dist;
+                float zz = (rx * ly - ry * lx) / dist;
+                float zw = cw * (float) Math.sqrt(Math.max(0f, 1f - lw * lw));
+                points[3 * c] = (vx + cw * lw * lx + zw * zx) / ar;
+                points[3 * c + 1] = (vy + cw * lw * ly + zw * zy) / ar;
+                points[3 * c + 2] = (vz + cw * lw * lz + zw * zz) / ar;
+            }
+            
+            // compute smallest enclosing cap plane
+            minSphericalCircle(points, circleLength, plane);
+            plane[3] = -ar * plane[3];
+            putVec4(caps, offset + Scene.SIZEOF_VEC4, plane, 0);
+            
+            // add new cap plane
+            int capPlaneIdx = sphereCapCounts.getInt(atomIdx * Buffers.SIZEOF_INT);
+            if (capPlaneIdx >= GPUGraph.MAX_SPHERE_POLYGON_COUNT) {
+                overflow++;
+                continue;
+            }
+            sphereCapCounts.putInt(atomIdx * Buffers.SIZEOF_INT, capPlaneIdx + 1);
+            putVec4(sphereCapPlanes, (atomIdx * GPUGraph.MAX_SPHERE_POLYGON_COUNT + capPlaneIdx) * Scene.SIZEOF_VEC4, plane, 0);
+        }
+        if (overflow > 0) {
+            System.err.println("MAX_SPHERE_POLYGON_COUNT exceeded. Skipped: " + overflow);
+        }
+    }
+    
+    private static void minSphericalCircle(float[] points, int count, float[] c) {
+        sphericalCircle(points, 0, Math.min(1, count - 1), c);
+        for (int i = 2; i < count; i++) {
+            if (!sphericalCircleContains(c, points, i)) {
+                minSphericalCircleWithPoint(points, i, i, c);
+            }
+        }
+    }
+    
+    /**
+     * Computes the minimum spherical circle enclosing first count points,
+     * which passes through point q.
+     */
+    private static void minSphericalCircleWithPoint(float[] points, int count, int q, float[] c) {
+        sphericalCircle(points, 0, q, c);
+        for (int i = 1; i < count; i++) {
+            if (!sphericalCircleContains(c, points, i)) {
+                minSphericalCircleWithTwoPoints(points, i, i, q, c);
+            }
+        }
+    }
+    
+    /**
+     * Computes the minimum spherical circle enclosing first count points,
+     * which passes through points q1 and q2.
+     */
+    private static void minSphericalCircleWithTwoPoints(float[] points, int count, int q1, int q2, float[] c) {
+        sphericalCircle(points, q1, q2, c);
+        for (int i = 0; i < count; i++) {
+            if (!sphericalCircleContains(c, points, i)) {
+                sphericalCircle(points, q1, q2, i, c);
+            }
+        }
+    }
+    
+    private static void sphericalCircle(float[] points, int p0, int p1, float[] c) {
+        // normal
+        float nx = points[3 * p0] + points[3 * p1];
+        float ny = points[3 * p0 + 1] + points[3 * p1 + 1];
+        float nz = points[3 * p0 + 2] + points[3 * p1 + 2];
+        float norm = (float) (1.0 / Math.sqrt(nx * nx + ny * ny + nz * nz));
+        c[0] = nx * norm;
+        c[1] = ny * norm;
+        c[2] = nz * norm;
+        // radius
+        c[3] = c[0] * points[3 * p0] + c[1] * points[3 * p0 + 1] + c[2] * points[3 * p0 + 2];
+    }
+    
+    private static void sphericalCircle(float[] points, int p0, int p1, int p2, float[] c) {
+        float ux = points[3 * p1] - points[3 * p0];
+        float uy = points[3 * p1 + 1] - points[3 * p0 + 1];
+        float uz = points[3 * p1 + 2] - points[3 * p0 + 2];
+        float vx = points[3 * p2] - points[3 * p0];
+        float vy = points[3 * p2 + 1] - points[3 * p0 + 1];
+        float vz = points[3 * p2 + 2] - points[3 * p0 + 2];
+        // circle plane
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        float norm = (float) (1.0 / Math.sqrt(nx * nx + ny * ny + nz * nz));
+        c[0] = nx * norm;
+        c[1] = ny * norm;
+        c[2] = nz * norm;
+        // radius
+        c[3] = c[0] * points[3 * p0] + c[1] * points[3 * p0 + 1] + c[2] * points[3 * p0 + 2];
+        if (c[3] < 0f) {
+            // make the normal face the same direction as input points
+            for (int i = 0; i < 4; i++) {
+                c[i] = -c[i];
+            }
+        }
+    }
+    
+    private static boolean sphericalCircleContains(float[] c, float[] points, int p) {
+        return c[0] * points[3 * p] + c[1] * points[3 * p + 1] + c[2] * points[3 * p + 2] >= c[3];
+    }
+    
+    /**
+     * Finds probes of the last surface, which clip triangles of other probes
+     * (see singularity.glsl). Probes of the outer surface are not clipped
+     * by probes of cavities and cavities with an area under the threshold
+     * do not clip at all.
+     *
+     * @param graph surface graph of the last surface (labels of probes)
+     * @param areas areas of labels (label l at l - 1, missing labels have
+     * no area)
+     * @param areaThreshold minimum area of a clipping cavity
+     * @param maxNumNeighbors stride of neighbor probes, further neighbors
+     * are counted, but not written
+     * @return neighbor probes (x, y, z, 1) of every probe
+     */
+    public ProbeNeighbors computeProbeNeighbors(CPUGraph.Result graph, final float[] areas,
+            final float areaThreshold, final int maxNumNeighbors) {
+        final int[] labels = graph.getLabels();
+        final int surfaceLabel = graph.getOuterSurfaceLabel();
+        final NeighborGrid grid = new NeighborGrid(0f, probeRadius);
+        grid.build(arcs, 4, arcCount);
+        
+        final ByteBuffer counts = Buffers.newDirectByteBuffer(arcCount * Buffers.SIZEOF_INT);
+        final ByteBuffer probes = Buffers.newDirectByteBuffer(arcCount * maxNumNeighbors * Scene.SIZEOF_VEC4);
+        final int[] maxCounts = new int[1];
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                int maxCount = 0;
+                for (int p = from; p < to; p++) {
+                    int count = writeProbeNeighbors(grid, p, labels, surfaceLabel, areas, areaThreshold,
+                            probes, maxNumNeighbors);
+                    counts.putInt(p * Buffers.SIZEOF_INT, Math.min(count, maxNumNeighbors));
+                    maxCount = Math.max(maxCount, count);
+                }
+                synchronized (maxCounts) {
+                    maxCounts[0] = Math.max(maxCounts[0], maxCount);
+                }
+            }
+        }, arcCount);
+        
+        return new ProbeNeighbors(counts, probes, maxCounts[0]);
+    }
+    
+    private int writeProbeNeighbors(NeighborGrid grid, int p, int[] labels, int surfaceLabel,
+            float[] areas, float areaThreshold, ByteBuffer probes, int maxNumNeighbors) {
+        float x = arcs[4 * p];
+        float y = arcs[4 * p + 1];
+        float z = arcs[4 * p + 2];
+        int label = labels[p];
+        float neighborDist = 2f * probeRadius;
+        int cx = grid.cellX(x);
+        int cy = grid.cellY(y);
+        int cz = grid.cellZ(z);
+        int count = 0;
+        for (int gz = Math.max(cz - 1, 0); gz <= Math.min(cz + 1, grid.getSizeZ() - 1); gz++) {
+            for (int gy = Math.max(cy - 1, 0); gy <= Math.min(cy + 1, grid.getSizeY() - 1); gy++) {
+                for (int gx = Math.max(cx - 1, 0); gx <= Math.min(cx + 1, grid.getSizeX() - 1); gx++) {
+                    int cell = grid.cellIndex(gx, gy, gz);
+                    for (int c = grid.getCellStart(cell); c < grid.getCellEnd(cell); c++) {
+                        int q = grid.getAtom(c);
+                        if (q == p) {
+                            continue;
+                        }
+                        float dx = arcs[4 * q] - x;
+                        float dy = arcs[4 * q + 1] - y;
+                        float dz = arcs[4 * q + 2] - z;
+                        if (dx * dx + dy * dy + dz * dz >= neighborDist * neighborDist) {
+                            continue;
+                        }
+                        // cavities should not clip surface
+                        int label2 = labels[q];
+                        if (label == surfaceLabel && label2 != surfaceLabel) {
+                            continue;
+                        }
+                        // hidden cavities should not clip other cavities
+                        float area = (label2 >= 1 && label2 <= areas.length) ? areas[label2 - 1] : 0f;
+                        if (area < areaThreshold) {
+                            continue;
+                        }
+                        if (count < maxNumNeighbors) {
+                            putVec4(probes, (p * maxNumNeighbors + count) * Scene.SIZEOF_VEC4,
+                                    arcs[4 * q], arcs[4 * q + 1], arcs[4 * q + 2], 1f);
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    private static void putVec4(ByteBuffer buffer, int offset, float x, float y, float z, float w) {
+        buffer.putFloat(offset, x);
+        buffer.putFloat(offset + 4, y);
+        buffer.putFloat(offset + 8, z);
+        buffer.putFloat(offset + 12, w);
+    }
+    
+    private static void putVec4(ByteBuffer buffer, int offset, Vector3f v, float w) {
+        putVec4(buffer, offset, v.x, v.y, v.z, w);
+    }
+    
+    private static void putVec4(ByteBuffer buffer, int offset, float[] data, int index) {
+        putVec4(buffer, offset, data[index], data[index + 1], data[index + 2], data[index + 3]);
+    }
+    
+    private static ByteBuffer toBuffer(int[] data, int length) {
+        ByteBuffer buffer = Buffers.newDirectByteBuffer(length * Buffers.SIZEOF_INT);
+        buffer.asIntBuffer().put(data, 0, length);
+        return buffer;
+    }
+    
+    /**
+     * Per-thread scratch space of the kernels.
+     */
+    private static class Scratch {
+        
+        // neighbor candidates
+        int[] candidates;
+        // arcs of a small circle and new arcs created by the current neighbor
+        int capacity;
+        float[] start;
+        float[] end;
+        int[] startkIndex;
+        int[] endkIndex;
+        boolean[] arcValid;
+        float[] tmpStart;
+        float[] tmpEnd;
+        int[] tmpStartkIndex;
+        int[] tmpEndkIndex;
+        // arcs written by the worker
+        float[] arcs = new float[4 * 256];
+        int[] arcAtoms = new int[3 * 256];
+        int arcCount;
+        // arcs of a torus
+        int[] torusArcs = new int[16];
+        int[] torusAtoms = new int[16];
+        float[] torusPlanes = new float[4 * 16];
+        // thread using the scratch
+        final Thread owner = Thread.currentThread();
+        
+        public Scratch() {
+            candidates = new int[64];
+            capacity = 0;
+            grow(64);
+        }
+        
+        public final void grow(int minCapacity) {
+            capacity = Math.max(minCapacity, 2 * capacity);
+            start = Arrays.copyOf(start != null ? start : new float[0], capacity);
+            end = Arrays.copyOf(end != null ? end : new float[0], capacity);
+            startkIndex = Arrays.copyOf(startkIndex != null ? startkIndex : new int[0], capacity);
+            endkIndex = Arrays.copyOf(endkIndex != null ? endkIndex : new int[0], capacity);
+            arcValid = Arrays.copyOf(arcValid != null ? arcValid : new boolean[0], capacity);
+            tmpStart = new float[capacity];
+            tmpEnd = new float[capacity];
+            tmpStartkIndex = new int[capacity];
+            tmpEndkIndex = new int[capacity];
+        }
+        
+        public long getMemoryFootprint() {
+            return Buffers.SIZEOF_INT * (long) (candidates.length + startkIndex.length + endkIndex.length
+                    + tmpStartkIndex.length + tmpEndkIndex.length + arcAtoms.length + torusArcs.length + torusAtoms.length)
+                    + Buffers.SIZEOF_FLOAT * (long) (start.length + end.length + tmpStart.length + tmpEnd.length
+                    + arcs.length + torusPlanes.length)
+                    + arcValid.length;
+        }
+        
+        public void growTorus(int capacity) {
+            torusArcs = Arrays.copyOf(torusArcs, capacity);
+            torusAtoms = Arrays.copyOf(torusAtoms, capacity);
+            torusPlanes = Arrays.copyOf(torusPlanes, 4 * capacity);
+        }
+        
+        public void swapTorusArcs(int a, int b) {
+            int tmp = torusArcs[a];
+            torusArcs[a] = torusArcs[b];
+            torusArcs[b] = tmp;
+            tmp = torusAtoms[a];
+            torusAtoms[a] = torusAtoms[b];
+            torusAtoms[b] = tmp;
+        }
+        
+        public void writeArc(int i, int j, int k, float x, float y, float z) {
+            if (4 * arcCount == arcs.length) {
+                arcs = Arrays.copyOf(arcs, 2 * arcs.length);
+                arcAtoms = Arrays.copyOf(arcAtoms, 2 * arcAtoms.length);
+            }
+            arcs[4 * arcCount] = x;
+            arcs[4 * arcCount + 1] = y;
+            arcs[4 * arcCount + 2] = z;
+            arcs[4 * arcCount + 3] = k + 0.2f;
+            arcAtoms[3 * arcCount] = i;
+            arcAtoms[3 * arcCount + 1] = j;
+            arcAtoms[3 * arcCount + 2] = k;
+            arcCount++;
+        }
+    
+    }
+    
+    /**
+     * Neighbor probes of probes in the layout of the singularity shader.
+     */
+    public static class ProbeNeighbors {
+        
+        private final ByteBuffer counts;
+        private final ByteBuffer probes;
+        private final int maxCount;
+
+        public ProbeNeighbors(ByteBuffer counts, ByteBuffer probes, int maxCount) {
+            this.counts = counts;
+            this.probes = probes;
+            this.maxCount = maxCount;
+        }
+
+        /**
+         * @return number of written neighbors of every probe
+         */
+        public ByteBuffer getCounts() {
+            return counts;
+        }
+
+        /**
+         * @return neighbor probes, neighbors of probe p start at
+         * p * maxNumNeighbors
+         */
+        public ByteBuffer getProbes() {
+            return probes;
+        }
+
+        /**
+         * @return maximal number of neighbors of a probe (including the ones
+         * over the stride)
+         */
+        public int getMaxCount() {
+            return maxCount;
+        }
+        
+    }
+    
 }
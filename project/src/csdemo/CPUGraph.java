@@ -0,0 +1,403 @@
+package csdemo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CPU counterpart of GPUGraph. Labels connected components of the surface
+ * graph (vertices are probe triangles, edges are tori) and splits edges
+ * of every sphere into closed circles (see adjacency.glsl, components.glsl
+ * and circles.glsl). Unlike GPUGraph, the number of labels and circles is
+ * not limited and stages are split among worker threads.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class CPUGraph {
+
+    public static final int INVALID_VERTEX = 0xffffffff;
+
+    // minimum number of vertices, edges or spheres of a worker
+    private static final int GRAIN_SIZE = 1024;
+
+    // workers shared with the caller
+    private final WorkerPool workers;
+
+    public CPUGraph() {
+        this(new WorkerPool());
+    }
+
+    /**
+     * @param workers pool of workers (owned by the caller)
+     */
+    public CPUGraph(WorkerPool workers) {
+        this.workers = workers;
+    }
+
+    public boolean isParallel() {
+        return workers.isParallel();
+    }
+
+    /**
+     * Computes connected components and sphere circles. There is no limit
+     * on the number of labels, circles of a sphere or edges of a circle.
+     * Components are labeled from 1 in the order of their lowest vertex,
+     * additional circles of spheres are numbered in the order of spheres,
+     * so results are the same in the sequential and in the parallel mode.
+     *
+     * @param edges edges (v0, v1, torus sphere 0, torus sphere 1) of tori,
+     * edges of isolated tori have invalid vertices
+     * @param torusCount number of tori
+     * @param vertexCount number of vertices (triangles)
+     * @param sphereCount number of spheres (atoms)
+     * @return components and circles
+     */
+    public Result connectedComponents(final int[] edges, final int torusCount, final int vertexCount, final int sphereCount) {
+        // union-find of vertices, roots are the lowest vertices of components
+        final AtomicIntegerArray parents = new AtomicIntegerArray(vertexCount);
+        final int[] labels = new int[vertexCount];
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    parents.set(i, i);
+                }
+            }
+        }, vertexCount);
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    int v0 = edges[4 * i];
+                    int v1 = edges[4 * i + 1];
+                    if (v0 != INVALID_VERTEX && v1 != INVALID_VERTEX) {
+                        union(parents, v0, v1);
+                    }
+                }
+            }
+        }, torusCount);
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    labels[i] = find(parents, i);
+                }
+            }
+        }, vertexCount);
+
+        // label roots (labels start at 1)
+        final int[] rootLabels = new int[vertexCount];
+        int labelCount = 0;
+        for (int i = 0; i < vertexCount; i++) {
+            if (labels[i] == i) {
+                rootLabels[i] = ++labelCount;
+            }
+        }
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    labels[i] = rootLabels[labels[i]];
+                }
+            }
+        }, vertexCount);
+
+        return circles(edges, torusCount, vertexCount, sphereCount, labels, labelCount, null);
+    }
+
+    /**
+     * Computes sphere circles of components labeled by the caller, e.g.,
+     * by CavityTracker.
+     *
+     * @param edges edges (v0, v1, torus sphere 0, torus sphere 1) of tori,
+     * edges of isolated tori have invalid vertices
+     * @param torusCount number of tori
+     * @param vertexCount number of vertices (triangles)
+     * @param sphereCount number of spheres (atoms)
+     * @param labels label of every vertex (labels start at 1)
+     * @param labelCount number of labels
+     * @param cavityIds tracked cavity ID of every label (index is label - 1)
+     * @return components and circles
+     */
+    public Result labeledComponents(int[] edges, int torusCount, int vertexCount, int sphereCount,
+            int[] labels, int labelCount, int[] cavityIds) {
+        return circles(edges, torusCount, vertexCount, sphereCount, labels, labelCount, cavityIds);
+    }
+
+    private Result circles(final int[] edges, final int torusCount, final int vertexCount, final int sphereCount,
+            int[] labels, int labelCount, int[] cavityIds) {
+        // surface labels: largest label followed by label sizes
+        int[] surfaceLabels = new int[labelCount + 1];
+        for (int i = 0; i < vertexCount; i++) {
+            surfaceLabels[labels[i]]++;
+        }
+        int largest = 1;
+        for (int label = 2; label <= labelCount; label++) {
+            if (surfaceLabels[label] > surfaceLabels[largest]) {
+                largest = label;
+            }
+        }
+        surfaceLabels[0] = largest;
+
+        // edges of spheres
+        final int[] sphereStarts = new int[sphereCount + 1];
+        for (int i = 0; i < torusCount; i++) {
+            if (edges[4 * i] != INVALID_VERTEX && edges[4 * i + 1] != INVALID_VERTEX) {
+                sphereStarts[edges[4 * i + 2] + 1]++;
+                sphereStarts[edges[4 * i + 3] + 1]++;
+            }
+        }
+        for (int i = 0; i < sphereCount; i++) {
+            sphereStarts[i + 1] += sphereStarts[i];
+        }
+        final int[] circles = new int[4 * sphereStarts[sphereCount]];
+        int[] fill = Arrays.copyOf(sphereStarts, sphereCount);
+        for (int i = 0; i < torusCount; i++) {
+            int v0 = edges[4 * i];
+            int v1 = edges[4 * i + 1];
+            if (v0 != INVALID_VERTEX && v1 != INVALID_VERTEX) {
+                for (int s = 2; s < 4; s++) {
+                    int sphere = edges[4 * i + s];
+                    int offset = 4 * fill[sphere]++;
+                    circles[offset] = v0;
+                    circles[offset + 1] = v1;
+                    circles[offset + 2] = i;
+                    circles[offset + 3] = sphere;
+                }
+            }
+        }
+
+        // chain edges of every sphere into circles, circle starts are marked
+        final int[] circlesCount = new int[sphereCount];
+        final boolean[] circleStarts = new boolean[sphereStarts[sphereCount]];
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int sphere = from; sphere < to; sphere++) {
+                    circlesCount[sphere] = findCircles(circles, circleStarts,
+                            sphereStarts[sphere], sphereStarts[sphere + 1]);
+                }
+            }
+        }, sphereCount);
+
+        // first circle of a sphere has the sphere index, other circles are
+        // appended after the spheres
+        final int[] firstCircles = new int[sphereCount];
+        int circleCount = sphereCount;
+        for (int sphere = 0; sphere < sphereCount; sphere++) {
+            firstCircles[sphere] = circleCount;
+            circleCount += Math.max(circlesCount[sphere] - 1, 0);
+        }
+        final int[] circlesStart = new int[circleCount];
+        final int[] circlesLength = new int[circleCount];
+        run(new WorkerPool.Range() {
+            @Override
+            public void compute(int from, int to) {
+                for (int sphere = from; sphere < to; sphere++) {
+                    int offset = sphereStarts[sphere];
+                    int end = sphereStarts[sphere + 1];
+                    int circle = sphere;
+                    int next = firstCircles[sphere];
+                    for (int i = offset; i < end; i++) {
+                        if (circleStarts[i] && i > offset) {
+                            circle = next++;
+                        }
+                        if (circleStarts[i]) {
+                            circlesStart[circle] = i;
+                        }
+                        circlesLength[circle]++;
+                    }
+                }
+            }
+        }, sphereCount);
+
+        return new Result(vertexCount, labels, surfaceLabels, labelCount, cavityIds, circleCount,
+                circles, circlesCount, circlesLength, circlesStart);
+    }
+
+    /**
+     * Chains edges [offset, end) of a sphere into closed circles (see
+     * circles.glsl), edges are reordered and reoriented in place.
+     *
+     * @param circleStarts marks first edges of circles
+     * @return number of circles
+     */
+    private static int findCircles(int[] circles, boolean[] circleStarts, int offset, int end) {
+        int length = end - offset;
+        if (length == 0) {
+            return 0;
+        }
+        int count = 1;
+        circleStarts[offset] = true;
+        int current = circles[4 * offset + 1];
+        for (int j = 0; j < length - 1; j++) {
+            int k;
+            for (k = j + 1; k < length; k++) {
+                int v0 = circles[4 * (offset + k)];
+                int v1 = circles[4 * (offset + k) + 1];
+                if (current == v0) {
+                    current = v1;
+                    break;
+                } else if (current == v1) {
+                    circles[4 * (offset + k)] = v1;
+                    circles[4 * (offset + k) + 1] = v0;
+                    current = v0;
+                    break;
+                }
+            }
+            if (k == length) {
+                // start another circle for sphere
+                circleStarts[offset + j + 1] = true;
+                current = circles[4 * (offset + j + 1) + 1];
+                count++;
+            }
+            if (k < length && k != j + 1) {
+                // swap edges
+                swapEdges(circles, offset + j + 1, offset + k);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Links roots of both vertices, the lower root becomes the parent, so
+     * the root of a component is its lowest vertex.
+     */
+    private static void union(AtomicIntegerArray parents, int v0, int v1) {
+        while (true) {
+            int r0 = find(parents, v0);
+            int r1 = find(parents, v1);
+            if (r0 == r1) {
+                return;
+            }
+            int high = Math.max(r0, r1);
+            int low = Math.min(r0, r1);
+            if (parents.compareAndSet(high, high, low)) {
+                return;
+            }
+        }
+    }
+
+    private static int find(AtomicIntegerArray parents, int vertex) {
+        int parent = parents.get(vertex);
+        while (parent != vertex) {
+            // path halving
+            int grandparent = parents.get(parent);
+            parents.compareAndSet(vertex, parent, grandparent);
+            vertex = grandparent;
+            parent = parents.get(vertex);
+        }
+        return vertex;
+    }
+
+    private void run(WorkerPool.Range range, int count) {
+        workers.run(range, count, GRAIN_SIZE);
+    }
+
+    private static void swapEdges(int[] circles, int a, int b) {
+        for (int i = 0; i < 4; i++) {
+            int tmp = circles[4 * a + i];
+            circles[4 * a + i] = circles[4 * b + i];
+            circles[4 * b + i] = tmp;
+        }
+    }
+
+    public static class Result {
+
+        // vertices
+        private final int vertexCount;
+        private final int[] labels;
+        private final int[] surfaceLabels;
+        private final int labelCount;
+        // null unless cavities are tracked
+        private final int[] cavityIds;
+        // circles
+        private final int circleCount;
+        private final int[] circles;
+        private final int[] circlesCount;
+        private final int[] circlesLength;
+        private final int[] circlesStart;
+
+        public Result(int vertexCount, int[] labels, int[] surfaceLabels, int labelCount, int[] cavityIds,
+                int circleCount, int[] circles, int[] circlesCount, int[] circlesLength, int[] circlesStart) {
+            this.vertexCount = vertexCount;
+            this.labels = labels;
+            this.surfaceLabels = surfaceLabels;
+            this.labelCount = labelCount;
+            this.cavityIds = cavityIds;
+            this.circleCount = circleCount;
+            this.circles = circles;
+            this.circlesCount = circlesCount;
+            this.circlesLength = circlesLength;
+            this.circlesStart = circlesStart;
+        }
+
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        /**
+         * @return label of every vertex
+         */
+        public int[] getLabels() {
+            return labels;
+        }
+
+        /**
+         * @return largest label followed by sizes of all labels
+         */
+        public int[] getSurfaceLabels() {
+            return surfaceLabels;
+        }
+
+        public int getOuterSurfaceLabel() {
+            return surfaceLabels[0];
+        }
+
+        public int getLabelCount() {
+            return labelCount;
+        }
+
+        /**
+         * @return tracked cavity ID of every label (index is label - 1), null
+         * if cavities are not tracked (see CavityTracker)
+         */
+        public int[] getCavityIds() {
+            return cavityIds;
+        }
+
+        public int getCircleCount() {
+            return circleCount;
+        }
+
+        /**
+         * @return circle edges (v0, v1, torus, sphere), circles are closed
+         * sequences of edges
+         */
+        public int[] getCircles() {
+            return circles;
+        }
+
+        /**
+         * @return number of circles of every sphere
+         */
+        public int[] getCirclesCount() {
+            return circlesCount;
+        }
+
+        /**
+         * @return number of edges of every circle
+         */
+        public int[] getCirclesLength() {
+            return circlesLength;
+        }
+
+        /**
+         * @return first edge of every circle
+         */
+        public int[] getCirclesStart() {
+            return circlesStart;
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package csdemo;
+
+/**
+ * CPU counterpart of VolumetricAO. Splats volumes of atoms into a density
+ * volume (see volume.glsl). Atoms are split into one range per worker,
+ * every worker splats into its own private volume, volumes are added at
+ * the end, so there is no contention on voxels of dense regions. Atoms
+ * are either splatted into the voxel they lie in (as volume.glsl) or
+ * distributed trilinearly among the 8 nearest voxel centers.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class CPUVolumetricAO {
+
+    // minimum number of atoms of a worker
+    private static final int GRAIN_SIZE = 4096;
+
+    // workers shared with the caller
+    private final WorkerPool workers;
+
+    private boolean trilinear = false;
+
+    public CPUVolumetricAO() {
+        this(new WorkerPool());
+    }
+
+    /**
+     * @param workers pool of workers (owned by the caller)
+     */
+    public CPUVolumetricAO(WorkerPool workers) {
+        this.workers = workers;
+    }
+
+    public boolean isTrilinear() {
+        return trilinear;
+    }
+
+    /**
+     * @param trilinear distribute volumes of atoms among the 8 nearest
+     * voxels (otherwise the whole volume goes to the voxel of the atom)
+     */
+    public void setTrilinear(boolean trilinear) {
+        this.trilinear = trilinear;
+    }
+
+    /**
+     * Computes the density volume.
+     *
+     * @param atoms atoms (x, y, z, r) in the volume (0 to volumeSize *
+     * voxelSize), atoms outside the volume are skipped (trilinear
+     * splatting clamps them to the border)
+     * @param atomVolumes volumes of atoms
+     * @param atomCount number of atoms
+     * @param voxelSize size of voxel
+     * @param volumeSize number of voxels along every axis
+     * @return densities of voxels (x changes fastest, as in 3D textures)
+     */
+    public float[] computeVolume(final float[] atoms, final float[] atomVolumes, int atomCount,
+            final float voxelSize, final int volumeSize) {
+        if (volumeSize < (trilinear ? 2 : 1)) {
+            throw new IllegalArgumentException("Invalid volume size: " + volumeSize);
+        }
+        final int voxelCount = volumeSize * volumeSize * volumeSize;
+        return workers.reduce(new WorkerPool.Reduction<float[]>() {
+            @Override
+            public float[] compute(int from, int to) {
+                float[] volume = new float[voxelCount];
+                splat(atoms, atomVolumes, from, to, voxelSize, volumeSize, volume);
+                return volume;
+            }
+
+            @Override
+            public float[] combine(float[] result, float[] partial) {
+                for (int v = 0; v < voxelCount; v++) {
+                    result[v] += partial[v];
+                }
+                return result;
+            }
+        }, atomCount, GRAIN_SIZE);
+    }
+
+    private void splat(float[] atoms, float[] atomVolumes, int from, int to,
+            float voxelSize, int volumeSize, float[] volume) {
+        float invVoxelSize = 1f / voxelSize;
+        float invVoxelSize3 = invVoxelSize * invVoxelSize * invVoxelSize;
+        int size2 = volumeSize * volumeSize;
+        for (int i = from; i < to; i++) {
+            float density = atomVolumes[i] * invVoxelSize3;
+            float x = atoms[4 * i] * invVoxelSize;
+            float y = atoms[4 * i + 1] * invVoxelSize;
+            float z = atoms[4 * i + 2] * invVoxelSize;
+            if (!trilinear) {
+                int vx = (int) Math.floor(x);
+                int vy = (int) Math.floor(y);
+                int vz = (int) Math.floor(z);
+                if (vx >= 0 && vy >= 0 && vz >= 0 && vx < volumeSize && vy < volumeSize && vz < volumeSize) {
+                    volume[vx + volumeSize * vy + size2 * vz] += density;
+                }
+                continue;
+            }
+            // position relative to voxel centers
+            x = clamp(x - 0.5f, volumeSize);
+            y = clamp(y - 0.5f, volumeSize);
+            z = clamp(z - 0.5f, volumeSize);
+            int x0 = Math.min((int) x, volumeSize - 2);
+            int y0 = Math.min((int) y, volumeSize - 2);
+            int z0 = Math.min((int) z, volumeSize - 2);
+            float fx = x - x0;
+            float fy = y - y0;
+            float fz = z - z0;
+            int v = x0 + volumeSize * y0 + size2 * z0;
+            float d0 = density * (1f - fz);
+            float d1 = density * fz;
+            volume[v] += d0 * (1f - fy) * (1f - fx);
+            volume[v + 1] += d0 * (1f - fy) * fx;
+            volume[v + volumeSize] += d0 * fy * (1f - fx);
+            volume[v + volumeSize + 1] += d0 * fy * fx;
+            volume[v + size2] += d1 * (1f - fy) * (1f - fx);
+            volume[v + size2 + 1] += d1 * (1f - fy) * fx;
+            volume[v + size2 + volumeSize] += d1 * fy * (1f - fx);
+            volume[v + size2 + volumeSize + 1] += d1 * fy * fx;
+        }
+    }
+
+    private static float clamp(float x, int volumeSize) {
+        return Math.max(0f, Math.min(x, volumeSize - 1));
+    }
+
+}
@@ -0,0 +1,912 @@
+package csdemo;
+
+import java.util.Arrays;
+
+/**
+ * Tracks cavities (connected components of the surface graph, see CPUGraph)
+ * of CPUContourBuildup across snapshots and labels the surface graph
+ * instead of CPUGraph. Vertices (probe triangles) are stored per atom, so
+ * vertices of atoms, which were not recomputed by an incremental update
+ * (see CPUContourBuildup.setTolerance), keep their cavities and only the
+ * changed part of the graph is processed:
+ * <ul>
+ * <li>vertices of recomputed atoms are removed and added again, edges of
+ * tori, which touch them or recomputed atoms, are removed and added again
+ * (other edges are the same in both snapshots);</li>
+ * <li>added edges merge cavities (union-find);</li>
+ * <li>remaining vertices of removed edges are searched for in a small
+ * neighborhood, vertices, which were not found, are searched for at once
+ * from both sides, so only the smaller side of a split cavity is
+ * visited.</li>
+ * </ul>
+ * Every cavity keeps its ID while it exists, the ID of merged cavities is
+ * the ID of the larger one and the larger part of a split cavity keeps its
+ * ID. A cavity, whose vertices were all recomputed, keeps its ID, if one of
+ * its triangles (atoms) is found in the new cavity. Labels are numbered
+ * from 1 in the order of their lowest vertex as in CPUGraph, IDs of labels
+ * are returned by getCavityIds.
+ *
+ * Without an incremental update, all vertices are recomputed, so the update
+ * is a full labeling (sequential) followed by matching of triangles.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class CavityTracker {
+
+    private static final int INVALID_VERTEX = CPUGraph.INVALID_VERTEX;
+
+    // atoms of triangles are packed to 21 bits for matching
+    private static final int ATOM_BITS = 21;
+    private static final int MAX_ATOM_COUNT = 1 << ATOM_BITS;
+
+    // vertices visited by the search around remaining vertices of removed
+    // edges
+    private static final int LOCAL_SEARCH_VERTICES = 256;
+
+    // previous snapshot (arrays of CPUContourBuildup)
+    private int prevAtomCount;
+    private int prevVertexCount;
+    private int[] prevArcAtoms;
+    private int[] prevArcStarts;
+    private int[] prevEdges;
+    private int[] prevTorusStarts;
+    private int[] prevLabels;
+    private int prevLabelCount;
+    private int[] prevIds;
+    private int[] prevSizes;
+
+    // current snapshot
+    private int[] arcAtoms;
+    private int[] arcStarts;
+    private int[] edges;
+    private int[] torusStarts;
+    private boolean[] updated;
+    private int[] labels;
+    private int labelCount;
+    private int[] cavityIds = new int[0];
+    private int nextId = 0;
+
+    // cavities (union-find), handles 1..prevLabelCount are labels of the
+    // previous snapshot, fresh handles are cavities of new vertices
+    private int[] parents = new int[16];
+    private int[] sizes = new int[16];
+    private int[] ids = new int[16];
+    private boolean[] fresh = new boolean[16];
+    private int handleCount;
+
+    // vertices of removed edges (of the previous snapshot), parts of the
+    // graph connected by removed edges (union-find)
+    private int[] removedVertices = new int[16];
+    private int removedVertexCount;
+    private int[] removedParents = new int[0];
+    private int[] removedStamps = new int[0];
+    private int removedStamp = 0;
+    // parts of the graph connected by added edges (union-find)
+    private int[] addedParents = new int[0];
+    private int[] addedStamps = new int[0];
+    private int addedStamp = 0;
+
+    // searches (visited vertices and atoms are marked)
+    private int[] marks = new int[0];
+    private int markCounter = 0;
+    private int[] atomMarks = new int[0];
+    private int[] pairMarks = new int[0];
+    private int atomMarkCounter = 0;
+    private int[] queueA = new int[64];
+    private int[] queueB = new int[64];
+    private int[] adjacent = new int[8];
+    private int searchLimit;
+
+    // statistics of the last update
+    private int addedEdgeCount;
+    private int removedEdgeCount;
+    private int visitedVertexCount;
+    private int bornCount;
+    private int diedCount;
+    private int mergedCount;
+    private int splitCount;
+
+    /**
+     * Labels vertices of the next snapshot. Arrays are kept until the next
+     * update, so they must not be modified by the caller.
+     *
+     * @param arcAtoms atoms i &lt; j &lt; k of every vertex (triangle), vertices
+     * of atom i are in arcStarts[i]..arcStarts[i + 1]
+     * @param arcStarts first vertex of every atom
+     * @param vertexCount number of vertices
+     * @param edges edges (v0, v1, torus sphere 0, torus sphere 1) of tori,
+     * tori of atom i are in torusStarts[i]..torusStarts[i + 1], edges of
+     * isolated tori have invalid vertices
+     * @param torusStarts first torus of every atom
+     * @param atomCount number of atoms
+     * @param updated atoms recomputed since the previous snapshot
+     * @param updatedCount number of recomputed atoms
+     * @param neighborStarts neighbors of atom i are in
+     * neighborStarts[i]..neighborStarts[i + 1]
+     * @param neighbors neighbors of atoms
+     * @return label of every vertex (labels start at 1)
+     */
+    public int[] update(int[] arcAtoms, int[] arcStarts, int vertexCount, int[] edges, int[] torusStarts,
+            int atomCount, boolean[] updated, int updatedCount, int[] neighborStarts, int[] neighbors) {
+        addedEdgeCount = 0;
+        removedEdgeCount = 0;
+        visitedVertexCount = 0;
+        bornCount = 0;
+        diedCount = 0;
+        mergedCount = 0;
+        splitCount = 0;
+        this.arcAtoms = arcAtoms;
+        this.arcStarts = arcStarts;
+        this.edges = edges;
+        this.torusStarts = torusStarts;
+        this.updated = updated;
+        labels = new int[vertexCount];
+        removedVertexCount = 0;
+        if (++removedStamp == Integer.MAX_VALUE) {
+            Arrays.fill(removedStamps, 0);
+            removedStamp = 1;
+        }
+        if (++addedStamp == Integer.MAX_VALUE) {
+            Arrays.fill(addedStamps, 0);
+            addedStamp = 1;
+        }
+        if (addedParents.length < vertexCount) {
+            addedParents = new int[Math.max(vertexCount, 2 * addedParents.length)];
+            addedStamps = new int[addedParents.length];
+        }
+        if (removedParents.length < prevVertexCount) {
+            removedParents = new int[prevVertexCount];
+            removedStamps = new int[prevVertexCount];
+        }
+        if (marks.length < vertexCount) {
+            marks = new int[Math.max(vertexCount, 2 * marks.length)];
+        }
+        if (atomMarks.length < atomCount) {
+            atomMarks = new int[atomCount];
+            pairMarks = new int[atomCount];
+        }
+        boolean incremental = prevLabels != null && prevAtomCount == atomCount && updatedCount < atomCount;
+
+        // cavities of the previous snapshot keep vertices of atoms, which
+        // were not recomputed
+        handleCount = 1;
+        for (int label = 1; label <= prevLabelCount; label++) {
+            newHandle(prevIds[label - 1], incremental ? prevSizes[label - 1] : 0, false);
+        }
+        if (incremental) {
+            for (int i = 0; i < atomCount; i++) {
+                if (updated[i]) {
+                    for (int a = prevArcStarts[i]; a < prevArcStarts[i + 1]; a++) {
+                        sizes[prevLabels[a]]--;
+                    }
+                } else {
+                    int from = prevArcStarts[i];
+                    System.arraycopy(prevLabels, from, labels, arcStarts[i], prevArcStarts[i + 1] - from);
+                }
+            }
+        }
+
+        // triangles of removed cavities are matched with new vertices
+        KeyTable removed = null;
+        int removedCavityCount = 0;
+        for (int label = 1; label <= prevLabelCount; label++) {
+            if (sizes[label] == 0) {
+                removedCavityCount++;
+            }
+        }
+        if (removedCavityCount > 0 && atomCount <= MAX_ATOM_COUNT && prevAtomCount <= MAX_ATOM_COUNT) {
+            int removedCount = 0;
+            for (int i = 0; i < prevAtomCount; i++) {
+                if (!incremental || updated[i]) {
+                    for (int a = prevArcStarts[i]; a < prevArcStarts[i + 1]; a++) {
+                        if (sizes[prevLabels[a]] == 0) {
+                            removedCount++;
+                        }
+                    }
+                }
+            }
+            removed = new KeyTable(removedCount);
+            for (int i = 0; i < prevAtomCount; i++) {
+                if (!incremental || updated[i]) {
+                    for (int a = prevArcStarts[i]; a < prevArcStarts[i + 1]; a++) {
+                        if (sizes[prevLabels[a]] == 0) {
+                            removed.put(key(prevArcAtoms, a), prevLabels[a]);
+                        }
+                    }
+                }
+            }
+        }
+
+        // new vertices are single vertex cavities
+        for (int i = 0; i < atomCount; i++) {
+            if (!incremental || updated[i]) {
+                for (int a = arcStarts[i]; a < arcStarts[i + 1]; a++) {
+                    labels[a] = newHandle(-1, 1, true);
+                }
+            }
+        }
+
+        // difference of edges, tori of recomputed atoms and tori of their
+        // neighbors, which touch recomputed vertices, have changed
+        if (incremental) {
+            int mark = nextAtomMark();
+            for (int i = 0; i < atomCount; i++) {
+                if (updated[i]) {
+                    atomMarks[i] = mark;
+                    for (int n = neighborStarts[i]; n < neighborStarts[i + 1]; n++) {
+                        atomMarks[neighbors[n]] = mark;
+                    }
+                }
+            }
+            for (int i = 0; i < atomCount; i++) {
+                if (atomMarks[i] == mark) {
+                    compareTori(i);
+                }
+            }
+        } else {
+            for (int t = 0; t < torusStarts[atomCount]; t++) {
+                addEdge(edges[4 * t], edges[4 * t + 1]);
+            }
+        }
+
+        // remaining vertices of a part connected by removed edges have to
+        // stay connected, then all previous paths are replaced
+        // (targets connected by added edges are checked once)
+        long[] order = new long[removedVertexCount];
+        int targetCount = 0;
+        for (int r = 0; r < removedVertexCount; r++) {
+            int prevVertex = removedVertices[r];
+            int atom = prevArcAtoms[3 * prevVertex];
+            if (!updated[atom]) {
+                int vertex = prevVertex - prevArcStarts[atom] + arcStarts[atom];
+                order[targetCount++] = ((long) findRemoved(prevVertex) << 32) | findAdded(vertex);
+            }
+        }
+        Arrays.sort(order, 0, targetCount);
+        int[] group = new int[targetCount];
+        int from = 0;
+        while (from < targetCount) {
+            int part = (int) (order[from] >>> 32);
+            int to = from;
+            int count = 0;
+            while (to < targetCount && (int) (order[to] >>> 32) == part) {
+                if (to == from || order[to] != order[to - 1]) {
+                    group[count++] = (int) order[to];
+                }
+                to++;
+            }
+            if (count > 1) {
+                checkConnected(group, count);
+            }
+            from = to;
+        }
+
+        // new cavities of vertices of removed cavities keep their IDs
+        boolean[] revived = new boolean[prevLabelCount + 1];
+        if (removed != null) {
+            for (int i = 0; i < atomCount; i++) {
+                if (incremental && !updated[i]) {
+                    continue;
+                }
+                for (int a = arcStarts[i]; a < arcStarts[i + 1]; a++) {
+                    int root = find(labels[a]);
+                    if (!fresh[root] || ids[root] >= 0) {
+                        continue;
+                    }
+                    int label = removed.get(key(arcAtoms, a));
+                    if (label > 0 && sizes[label] == 0 && !revived[label]) {
+                        ids[root] = ids[label];
+                        revived[label] = true;
+                    }
+                }
+            }
+        }
+        for (int label = 1; label <= prevLabelCount; label++) {
+            if (sizes[label] == 0 && !revived[label] && parents[label] == label) {
+                diedCount++;
+            }
+        }
+
+        // label cavities in the order of their lowest vertex
+        int[] handleLabels = new int[handleCount];
+        int[] roots = new int[Math.min(handleCount, vertexCount + 1)];
+        int[] labelSizes = new int[roots.length];
+        labelCount = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            int root = find(labels[v]);
+            if (handleLabels[root] == 0) {
+                roots[labelCount] = root;
+                handleLabels[root] = ++labelCount;
+            }
+            labels[v] = handleLabels[root];
+            labelSizes[labels[v] - 1]++;
+        }
+        cavityIds = new int[labelCount];
+        for (int l = 0; l < labelCount; l++) {
+            int root = roots[l];
+            if (ids[root] < 0) {
+                ids[root] = nextId++;
+                bornCount++;
+            }
+            cavityIds[l] = ids[root];
+        }
+        prevAtomCount = atomCount;
+        prevVertexCount = vertexCount;
+        prevArcAtoms = arcAtoms;
+        prevArcStarts = arcStarts;
+        prevEdges = edges;
+        prevTorusStarts = torusStarts;
+        prevLabels = labels;
+        prevLabelCount = labelCount;
+        prevIds = cavityIds;
+        prevSizes = labelSizes;
+        this.updated = null;
+        return labels;
+    }
+
+    /**
+     * Compares tori of atom i in both snapshots. All edges of a torus
+     * are removed and added again, if the other atom of the torus or an
+     * atom of its vertices was recomputed.
+     */
+    private void compareTori(int i) {
+        int mark = nextAtomMark();
+        boolean changed = updated[i];
+        for (int t = prevTorusStarts[i]; t < prevTorusStarts[i + 1]; t++) {
+            if (changed || updated[prevEdges[4 * t + 3]] || isUpdated(prevArcAtoms, prevEdges[4 * t])
+                    || isUpdated(prevArcAtoms, prevEdges[4 * t + 1])) {
+                pairMarks[prevEdges[4 * t + 3]] = mark;
+            }
+        }
+        for (int t = torusStarts[i]; t < torusStarts[i + 1]; t++) {
+            if (changed || updated[edges[4 * t + 3]] || isUpdated(arcAtoms, edges[4 * t])
+                    || isUpdated(arcAtoms, edges[4 * t + 1])) {
+                pairMarks[edges[4 * t + 3]] = mark;
+            }
+        }
+        for (int t = prevTorusStarts[i]; t < prevTorusStarts[i + 1]; t++) {
+            if (pairMarks[prevEdges[4 * t + 3]] == mark) {
+                removeEdge(prevEdges[4 * t], prevEdges[4 * t + 1]);
+            }
+        }
+        for (int t = torusStarts[i]; t < torusStarts[i + 1]; t++) {
+            if (pairMarks[edges[4 * t + 3]] == mark) {
+                addEdge(edges[4 * t], edges[4 * t + 1]);
+            }
+        }
+    }
+
+    private boolean isUpdated(int[] vertexAtoms, int vertex) {
+        return vertex != INVALID_VERTEX && updated[vertexAtoms[3 * vertex]];
+    }
+
+    private void addEdge(int v0, int v1) {
+        if (v0 == INVALID_VERTEX || v1 == INVALID_VERTEX || v0 == v1) {
+            return;
+        }
+        addedEdgeCount++;
+        union(labels[v0], labels[v1]);
+        int r0 = findAdded(v0);
+        int r1 = findAdded(v1);
+        addedParents[Math.max(r0, r1)] = Math.min(r0, r1);
+    }
+
+    /**
+     * @return root of the part connected by added edges (the vertex, if it
+     * has no added edges)
+     */
+    private int findAdded(int vertex) {
+        if (addedStamps[vertex] != addedStamp) {
+            addedStamps[vertex] = addedStamp;
+            addedParents[vertex] = vertex;
+            return vertex;
+        }
+        while (addedParents[vertex] != vertex) {
+            addedParents[vertex] = addedParents[addedParents[vertex]];
+            vertex = addedParents[vertex];
+        }
+        return vertex;
+    }
+
+    /**
+     * Links vertices of a removed edge (of the previous snapshot).
+     */
+    private void removeEdge(int v0, int v1) {
+        if (v0 == INVALID_VERTEX || v1 == INVALID_VERTEX || v0 == v1) {
+            return;
+        }
+        removedEdgeCount++;
+        int r0 = findRemoved(addRemoved(v0));
+        int r1 = findRemoved(addRemoved(v1));
+        removedParents[Math.max(r0, r1)] = Math.min(r0, r1);
+    }
+
+    private int addRemoved(int prevVertex) {
+        if (removedStamps[prevVertex] != removedStamp) {
+            removedStamps[prevVertex] = removedStamp;
+            removedParents[prevVertex] = prevVertex;
+            if (removedVertexCount == removedVertices.length) {
+                removedVertices = Arrays.copyOf(removedVertices, 2 * removedVertexCount);
+            }
+            removedVertices[removedVertexCount++] = prevVertex;
+        }
+        return prevVertex;
+    }
+
+    private int findRemoved(int prevVertex) {
+        while (removedParents[prevVertex] != prevVertex) {
+            removedParents[prevVertex] = removedParents[removedParents[prevVertex]];
+            prevVertex = removedParents[prevVertex];
+        }
+        return prevVertex;
+    }
+
+    /**
+     * Checks, whether remaining vertices (targets) of a part connected by
+     * removed edges are connected, and splits their cavity, if they are
+     * not. Targets found by the search around another target are connected
+     * with it, targets of different searches are checked together.
+     */
+    private void checkConnected(int[] group, int count) {
+        int cavity = find(labels[group[0]]);
+        // searches have consecutive marks after the mark of targets
+        if (markCounter > Integer.MAX_VALUE - count - 2) {
+            Arrays.fill(marks, 0);
+            markCounter = 0;
+        }
+        int targetMark = nextMark();
+        for (int t = 0; t < count; t++) {
+            marks[group[t]] = targetMark;
+        }
+        int[] reps = new int[count];
+        int[] repParents = new int[count];
+        int repCount = 0;
+        int remaining = count;
+        for (int t = 0; t < count; t++) {
+            if (marks[group[t]] != targetMark) {
+                // found by a previous search
+                continue;
+            }
+            remaining--;
+            int rep = repCount++;
+            reps[rep] = group[t];
+            repParents[rep] = rep;
+            int mark = nextMark();
+            int head = 0;
+            int tail = 0;
+            queueA = push(queueA, tail++, group[t]);
+            marks[group[t]] = mark;
+            // the search stops at the region of a previous search, targets
+            // beyond it are found by their own searches
+            boolean joined = false;
+            while (head < tail && tail < LOCAL_SEARCH_VERTICES && remaining > 0 && !joined) {
+                int vertex = queueA[head++];
+                int adjacentCount = adjacent(vertex);
+                for (int n = 0; n < adjacentCount; n++) {
+                    int next = adjacent[n];
+                    int nextMark = marks[next];
+                    if (nextMark == mark) {
+                        continue;
+                    }
+                    if (nextMark == targetMark) {
+                        remaining--;
+                    } else if (nextMark > targetMark && nextMark < mark) {
+                        // visited by the search of another target
+                        int a = findRep(repParents, nextMark - targetMark - 1);
+                        int b = findRep(repParents, rep);
+                        repParents[Math.max(a, b)] = Math.min(a, b);
+                        joined = true;
+                    }
+                    marks[next] = mark;
+                    queueA = push(queueA, tail++, next);
+                }
+            }
+            visitedVertexCount += tail;
+        }
+
+        // targets, which were not connected by the searches
+        int disconnectedCount = 0;
+        for (int r = 0; r < repCount; r++) {
+            if (findRep(repParents, r) == r) {
+                reps[disconnectedCount++] = reps[r];
+            }
+        }
+        if (disconnectedCount > 1 && !split(cavity, reps, disconnectedCount)) {
+            relabel(cavity, reps, disconnectedCount);
+        }
+    }
+
+    private static int findRep(int[] repParents, int rep) {
+        while (repParents[rep] != rep) {
+            rep = repParents[rep];
+        }
+        return rep;
+    }
+
+    /**
+     * Splits cavity of vertices, which were connected in the previous
+     * snapshot, into connected parts. Every vertex is checked against
+     * a previous vertex of the same cavity, every part of the cavity has
+     * one of the vertices, so the parts are the components.
+     *
+     * @return false if the search limit (size of the cavity) was exceeded
+     */
+    private boolean split(int cavity, int[] vertices, int count) {
+        searchLimit = sizes[cavity];
+        for (int j = 1; j < count; j++) {
+            for (int i = j - 1; i >= 0; i--) {
+                if (find(labels[vertices[i]]) == find(labels[vertices[j]])) {
+                    int connected = separate(vertices[i], vertices[j]);
+                    if (connected < 0) {
+                        return false;
+                    } else if (connected > 0) {
+                        break;
+                    }
+                    // vertices are in different cavities now
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches from both vertices at once until the searches meet or one
+     * of them visits its whole component, which becomes a new cavity. The
+     * cost is proportional to the smaller component (or to the distance of
+     * the vertices).
+     *
+     * @return 1 if vertices are connected, 0 if they were separated, -1 if
+     * the search limit was exceeded
+     */
+    private int separate(int a, int b) {
+        int markA = nextMark();
+        int markB = nextMark();
+        int headA = 0;
+        int tailA = 0;
+        int headB = 0;
+        int tailB = 0;
+        queueA = push(queueA, tailA++, a);
+        queueB = push(queueB, tailB++, b);
+        marks[a] = markA;
+        marks[b] = markB;
+        int connected = -1;
+        search:
+        while (tailA + tailB <= searchLimit) {
+            if (headA == tailA) {
+                splitOff(queueA, tailA);
+                connected = 0;
+                break;
+            }
+            int adjacentCount = adjacent(queueA[headA++]);
+            for (int n = 0; n < adjacentCount; n++) {
+                int next = adjacent[n];
+                if (marks[next] == markB) {
+                    connected = 1;
+                    break search;
+                } else if (marks[next] != markA) {
+                    marks[next] = markA;
+                    queueA = push(queueA, tailA++, next);
+                }
+            }
+
+            if (headB == tailB) {
+                splitOff(queueB, tailB);
+                connected = 0;
+                break;
+            }
+            adjacentCount = adjacent(queueB[headB++]);
+            for (int n = 0; n < adjacentCount; n++) {
+                int next = adjacent[n];
+                if (marks[next] == markA) {
+                    connected = 1;
+                    break search;
+                } else if (marks[next] != markB) {
+                    marks[next] = markB;
+                    queueB = push(queueB, tailB++, next);
+                }
+            }
+        }
+        visitedVertexCount += tailA + tailB;
+        searchLimit -= tailA + tailB;
+        return connected;
+    }
+
+    /**
+     * Moves vertices (a whole component) to a new cavity.
+     */
+    private void splitOff(int[] vertices, int count) {
+        int cavity = find(labels[vertices[0]]);
+        int part = newHandle(-1, count, false);
+        for (int i = 0; i < count; i++) {
+            labels[vertices[i]] = part;
+        }
+        sizes[cavity] -= count;
+        if (ids[cavity] >= 0) {
+            splitCount++;
+        }
+    }
+
+    /**
+     * Relabels components of the vertices by BFS, the largest component
+     * keeps the cavity, other components become new cavities (parts split
+     * off before are relabeled as well).
+     */
+    private void relabel(int cavity, int[] vertices, int count) {
+        int mark = nextMark();
+        int[] parts = new int[count];
+        int[] partSizes = new int[count];
+        int partCount = 0;
+        int largest = 0;
+        for (int i = 0; i < count; i++) {
+            if (marks[vertices[i]] == mark) {
+                continue;
+            }
+            int part = newHandle(-1, 0, false);
+            int head = 0;
+            int tail = 0;
+            queueA = push(queueA, tail++, vertices[i]);
+            marks[vertices[i]] = mark;
+            while (head < tail) {
+                int vertex = queueA[head++];
+                labels[vertex] = part;
+                int adjacentCount = adjacent(vertex);
+                for (int n = 0; n < adjacentCount; n++) {
+                    int next = adjacent[n];
+                    if (marks[next] != mark) {
+                        marks[next] = mark;
+                        queueA = push(queueA, tail++, next);
+                    }
+                }
+            }
+            visitedVertexCount += tail;
+            sizes[part] = tail;
+            parts[partCount] = part;
+            partSizes[partCount] = tail;
+            if (tail > partSizes[largest]) {
+                largest = partCount;
+            }
+            partCount++;
+        }
+
+        // the largest part continues the cavity
+        parents[parts[largest]] = cavity;
+        sizes[cavity] = partSizes[largest];
+        if (ids[cavity] >= 0) {
+            splitCount += partCount - 1;
+        }
+    }
+
+    /**
+     * Finds vertices adjacent to the vertex on tori of its atoms, tori of
+     * atoms i &lt; j &lt; k are in tori of atoms i (i, j and i, k) and j (j, k).
+     *
+     * @return number of adjacent vertices (stored in adjacent)
+     */
+    private int adjacent(int vertex) {
+        int i = arcAtoms[3 * vertex];
+        int j = arcAtoms[3 * vertex + 1];
+        int k = arcAtoms[3 * vertex + 2];
+        int count = adjacent(vertex, i, j, k, 0);
+        return adjacent(vertex, j, k, k, count);
+    }
+
+    private int adjacent(int vertex, int atom, int j, int k, int count) {
+        for (int t = torusStarts[atom]; t < torusStarts[atom + 1]; t++) {
+            int other = edges[4 * t + 3];
+            if (other != j && other != k) {
+                continue;
+            }
+            int next;
+            if (edges[4 * t] == vertex) {
+                next = edges[4 * t + 1];
+            } else if (edges[4 * t + 1] == vertex) {
+                next = edges[4 * t];
+            } else {
+                continue;
+            }
+            if (count == adjacent.length) {
+                adjacent = Arrays.copyOf(adjacent, 2 * count);
+            }
+            adjacent[count++] = next;
+        }
+        return count;
+    }
+
+    private int newHandle(int id, int size, boolean fresh) {
+        if (handleCount == parents.length) {
+            int capacity = 2 * handleCount;
+            parents = Arrays.copyOf(parents, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            this.fresh = Arrays.copyOf(this.fresh, capacity);
+        }
+        int handle = handleCount++;
+        parents[handle] = handle;
+        sizes[handle] = size;
+        ids[handle] = id;
+        this.fresh[handle] = fresh;
+        return handle;
+    }
+
+    private int find(int handle) {
+        while (parents[handle] != handle) {
+            // path halving
+            parents[handle] = parents[parents[handle]];
+            handle = parents[handle];
+        }
+        return handle;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b) {
+            return;
+        }
+        // the tracked (or the larger) cavity survives
+        int survivor = a;
+        int other = b;
+        if ((ids[a] < 0 && ids[b] >= 0) || ((ids[a] < 0) == (ids[b] < 0) && (sizes[b] > sizes[a]
+                || (sizes[b] == sizes[a] && ids[b] < ids[a])))) {
+            survivor = b;
+            other = a;
+        }
+        if (ids[other] >= 0) {
+            mergedCount++;
+            diedCount++;
+        }
+        parents[other] = survivor;
+        sizes[survivor] += sizes[other];
+        fresh[survivor] &= fresh[other];
+    }
+
+    private int nextMark() {
+        if (++markCounter == Integer.MAX_VALUE) {
+            Arrays.fill(marks, 0);
+            markCounter = 1;
+        }
+        return markCounter;
+    }
+
+    private int nextAtomMark() {
+        if (++atomMarkCounter == Integer.MAX_VALUE) {
+            Arrays.fill(atomMarks, 0);
+            Arrays.fill(pairMarks, 0);
+            atomMarkCounter = 1;
+        }
+        return atomMarkCounter;
+    }
+
+    private static int[] push(int[] queue, int index, int vertex) {
+        if (index == queue.length) {
+            queue = Arrays.copyOf(queue, 2 * queue.length);
+        }
+        queue[index] = vertex;
+        return queue;
+    }
+
+    private static long key(int[] vertexAtoms, int vertex) {
+        return ((long) vertexAtoms[3 * vertex] << (2 * ATOM_BITS))
+                | ((long) vertexAtoms[3 * vertex + 1] << ATOM_BITS)
+                | vertexAtoms[3 * vertex + 2];
+    }
+
+    /**
+     * @return number of labels of the last snapshot
+     */
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * @return cavity ID of every label of the last snapshot (index is
+     * label - 1)
+     */
+    public int[] getCavityIds() {
+        return cavityIds;
+    }
+
+    public int getAddedEdgeCount() {
+        return addedEdgeCount;
+    }
+
+    public int getRemovedEdgeCount() {
+        return removedEdgeCount;
+    }
+
+    /**
+     * @return number of vertices visited by searches for split cavities
+     * in the last update
+     */
+    public int getVisitedVertexCount() {
+        return visitedVertexCount;
+    }
+
+    public int getBornCount() {
+        return bornCount;
+    }
+
+    public int getDiedCount() {
+        return diedCount;
+    }
+
+    public int getMergedCount() {
+        return mergedCount;
+    }
+
+    public int getSplitCount() {
+        return splitCount;
+    }
+
+    /**
+     * Forgets all cavities, the next update starts from scratch.
+     */
+    public void reset() {
+        prevLabels = null;
+        prevArcAtoms = null;
+        prevArcStarts = null;
+        prevEdges = null;
+        prevTorusStarts = null;
+        prevIds = null;
+        prevSizes = null;
+        prevLabelCount = 0;
+        prevVertexCount = 0;
+        prevAtomCount = 0;
+        cavityIds = new int[0];
+        labelCount = 0;
+    }
+
+    /**
+     * Table of triangle keys and their labels (open addressing).
+     */
+    private static class KeyTable {
+
+        private final long[] keys;
+        private final int[] values;
+        private final int mask;
+
+        KeyTable(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2 * capacity, 16) - 1) << 1;
+            keys = new long[size];
+            values = new int[size];
+            mask = size - 1;
+            Arrays.fill(keys, -1L);
+        }
+
+        /**
+         * Stores the value, if the key is not in the table yet.
+         */
+        void put(long key, int value) {
+            int index = index(key);
+            while (keys[index] != -1L) {
+                if (keys[index] == key) {
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+        }
+
+        /**
+         * @return value of the key, 0 if the key is not in the table
+         */
+        int get(long key) {
+            int index = index(key);
+            while (keys[index] != -1L) {
+                if (keys[index] == key) {
+                    return values[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return 0;
+        }
+
+        private int index(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & mask;
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+package csdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Molecular surface computation by the contour-buildup algorithm. Results
+ * are stored in direct buffers using the layouts of the GPU pipeline
+ * (see Scene.SIZEOF_TRIANGLE, Scene.SIZEOF_TORUS, Scene.SIZEOF_POLYGON,
+ * Scene.SIZEOF_CAP and Scene.SIZEOF_EDGE), so they can be uploaded to
+ * the renderer as they are. Neighbor probes for the singularity handling
+ * depend on cavity areas, so they are computed separately (see
+ * CPUContourBuildup.computeProbeNeighbors).
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public interface ContourBuildupEngine {
+
+    /**
+     * Computes the surface of a molecule snapshot.
+     *
+     * @param snapshot snapshot index
+     * @return surface primitives
+     */
+    Result computeSurface(int snapshot);
+
+    /**
+     * @return size of all working arrays of the engine in bytes
+     */
+    long getMemoryFootprint();
+
+    /**
+     * Releases resources (e.g., worker threads) of the engine.
+     */
+    void dispose();
+
+    public static class Result {
+
+        // triangles (one per arc/probe)
+        private final ByteBuffer triangles;
+        private final int triangleCount;
+        // tori and their surface graph edges
+        private final ByteBuffer tori;
+        private final ByteBuffer edges;
+        private final ByteBuffer edgesCircle;
+        private final ByteBuffer edgesLine;
+        private final int torusCount;
+        private final ByteBuffer isolatedTori;
+        private final int isolatedTorusCount;
+        // spherical patches
+        private final ByteBuffer spheres;
+        private final int sphereCount;
+        private final ByteBuffer caps;
+        private final int capCount;
+        // per atom clipping data (see isolated.glsl and caps.glsl)
+        private final ByteBuffer sphereIsolatedCounts;
+        private final ByteBuffer sphereIsolatedVS;
+        private final ByteBuffer sphereCapCounts;
+        private final ByteBuffer sphereCapPlanes;
+        // surface graph
+        private final ByteBuffer labels;
+        private final ByteBuffer circles;
+        private final ByteBuffer circlesCount;
+        private final ByteBuffer circlesLength;
+        private final ByteBuffer circlesStart;
+        private final CPUGraph.Result graph;
+
+        public Result(ByteBuffer triangles, int triangleCount,
+                ByteBuffer tori, ByteBuffer edges, ByteBuffer edgesCircle, ByteBuffer edgesLine, int torusCount,
+                ByteBuffer isolatedTori, int isolatedTorusCount,
+                ByteBuffer spheres, int sphereCount, ByteBuffer caps, int capCount,
+                ByteBuffer sphereIsolatedCounts, ByteBuffer sphereIsolatedVS,
+                ByteBuffer sphereCapCounts, ByteBuffer sphereCapPlanes,
+                ByteBuffer labels, ByteBuffer circles, ByteBuffer circlesCount,
+                ByteBuffer circlesLength, ByteBuffer circlesStart, CPUGraph.Result graph) {
+            this.triangles = triangles;
+            this.triangleCount = triangleCount;
+            this.tori = tori;
+            this.edges = edges;
+            this.edgesCircle = edgesCircle;
+            this.edgesLine = edgesLine;
+            this.torusCount = torusCount;
+            this.isolatedTori = isolatedTori;
+            this.isolatedTorusCount = isolatedTorusCount;
+            this.spheres = spheres;
+            this.sphereCount = sphereCount;
+            this.caps = caps;
+            this.capCount = capCount;
+            this.sphereIsolatedCounts = sphereIsolatedCounts;
+            this.sphereIsolatedVS = sphereIsolatedVS;
+            this.sphereCapCounts = sphereCapCounts;
+            this.sphereCapPlanes = sphereCapPlanes;
+            this.labels = labels;
+            this.circles = circles;
+            this.circlesCount = circlesCount;
+            this.circlesLength = circlesLength;
+            this.circlesStart = circlesStart;
+            this.graph = graph;
+        }
+
+        public ByteBuffer getTriangles() {
+            return triangles;
+        }
+
+        public int getTriangleCount() {
+            return triangleCount;
+        }
+
+        public ByteBuffer getTori() {
+            return tori;
+        }
+
+        public ByteBuffer getEdges() {
+            return edges;
+        }
+
+        public ByteBuffer getEdgesCircle() {
+            return edgesCircle;
+        }
+
+        public ByteBuffer getEdgesLine() {
+            return edgesLine;
+        }
+
+        public int getTorusCount() {
+            return torusCount;
+        }
+
+        public ByteBuffer getIsolatedTori() {
+            return isolatedTori;
+        }
+
+        public int getIsolatedTorusCount() {
+            return isolatedTorusCount;
+        }
+
+        public ByteBuffer getSpheres() {
+            return spheres;
+        }
+
+        public int getSphereCount() {
+            return sphereCount;
+        }
+
+        public ByteBuffer getCaps() {
+            return caps;
+        }
+
+        public int getCapCount() {
+            return capCount;
+        }
+
+        public ByteBuffer getSphereIsolatedCounts() {
+            return sphereIsolatedCounts;
+        }
+
+        public ByteBuffer getSphereIsolatedVS() {
+            return sphereIsolatedVS;
+        }
+
+        public ByteBuffer getSphereCapCounts() {
+            return sphereCapCounts;
+        }
+
+        public ByteBuffer getSphereCapPlanes() {
+            return sphereCapPlanes;
+        }
+
+        public ByteBuffer getLabels() {
+            return labels;
+        }
+
+        public ByteBuffer getCircles() {
+            return circles;
+        }
+
+        public ByteBuffer getCirclesCount() {
+            return circlesCount;
+        }
+
+        public ByteBuffer getCirclesLength() {
+            return circlesLength;
+        }
+
+        public ByteBuffer getCirclesStart() {
+            return circlesStart;
+        }
+
+        public CPUGraph.Result getGraph() {
+            return graph;
+        }
+
+        /**
+         * @return size of all buffers in bytes
+         */
+        public long getMemoryFootprint() {
+            ByteBuffer[] buffers = {
+                triangles, tori, edges, edgesCircle, edgesLine, isolatedTori, spheres, caps,
+                sphereIsolatedCounts, sphereIsolatedVS, sphereCapCounts, sphereCapPlanes,
+                labels, circles, circlesCount, circlesLength, circlesStart
+            };
+            long size = 0L;
+            for (ByteBuffer buffer : buffers) {
+                size += buffer.capacity();
+            }
+            return size;
+        }
+
+        public int getOuterSurfaceLabel() {
+            return graph.getOuterSurfaceLabel();
+        }
+
+        public int getLabelCount() {
+            return graph.getLabelCount();
+        }
+
+        public int getCircleCount() {
+            return graph.getCircleCount();
+        }
+
+    }
+
+}
@@ -150,7 +150,7 @@ public class Debug {
     }
     
     public void writeNeighbors(GL4 gl, int neighborsBuffer, int neighborCountsBuffer, int sphereCount,
-            String filename) throws IOException {
+            int maxNumNeighbors, String filename) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(debugDir, filename)))) {
             // read counts
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, neighborCountsBuffer);
@@ -167,7 +167,7 @@ public class Debug {
                     writer.append(String.format("%4d (%2d): ", i, counts[i]));
                     neighborIndices.clear();
                     for (int j = 0; j < counts[i]; j++) {
-                        neighborIndices.add(neighbors.get(Scene.MAX_NEIGHBORS * i + j));
+                        neighborIndices.add(neighbors.get(maxNumNeighbors * i + j));
                     }
                     for (Integer index : neighborIndices) {
                         writer.append(String.format("%6d", index));
@@ -179,7 +179,7 @@ public class Debug {
         }
     }
     
-    public void writeArcs(GL4 gl, int neighborsCountBuffer, int atomCount, int arcsCountBuffer) throws IOException {
+    public void writeArcs(GL4 gl, int neighborsCountBuffer, int atomCount, int maxNumNeighbors, int arcsCountBuffer) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(debugDir, "arcs.txt")))) {
             // read counts
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, neighborsCountBuffer);
@@ -194,7 +194,7 @@ public class Debug {
                 int totalArcs = 0;
                 List<Integer> counts = new ArrayList<>();
                 for (int j = 0; j < neighborCounts[i]; j++) {
-                    int count = arcsCounts.get(i * Scene.MAX_NEIGHBORS + j);
+                    int count = arcsCounts.get(i * maxNumNeighbors + j);
                     counts.add(count);
                     totalArcs += count;
                 }
@@ -269,26 +269,27 @@ public class Debug {
         }
     }
     
-    public void writeArcHashes(GL4 gl, int arcsBuffer, int arcHashesBuffer, int atomCount) throws IOException {
+    public void writeArcHashes(GL4 gl, int arcsBuffer, int arcHashesBuffer, int atomCount,
+            int arcCapacity, int hashCapacity) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(debugDir, "hashes.txt")))) {
             // read arcs
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcsBuffer);
             ByteBuffer data = gl.glMapBuffer(GL_SHADER_STORAGE_BUFFER, GL_READ_ONLY);
-            float arcs[] = new float[Scene.MAX_TOTAL_ARCS * 4];
+            float arcs[] = new float[arcCapacity * 4];
             data.asFloatBuffer().get(arcs);
             gl.glUnmapBuffer(GL_SHADER_STORAGE_BUFFER);
             // write hashes
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcHashesBuffer);
             int stride = Scene.SIZEOF_HASH;
             ByteBuffer hashes = gl.glMapBuffer(GL_SHADER_STORAGE_BUFFER, GL_READ_ONLY);
-            for (int i = 0; i < Scene.MAX_TOTAL_ARC_HASHES; i++) {
+            for (int i = 0; i < hashCapacity; i++) {
                 int key = hashes.getInt(i * stride);
                 if (key != Scene.INVALID_KEY) {
-                    char primary = ((key & 0xf0000000) == 0) ? 'p' : 's';
-                    int ai = (key & 0x0fffffff) / atomCount;
-                    int aj = (key & 0x0fffffff) % atomCount;
-                    int atomk = hashes.getInt(i * stride + 4);
-                    int index = hashes.getInt(i * stride + 8);
+                    char primary = ((key & 0x80000000) == 0) ? 'p' : 's';
+                    int ai = key & 0x7fffffff;
+                    int aj = hashes.getInt(i * stride + 4);
+                    int atomk = hashes.getInt(i * stride + 8);
+                    int index = hashes.getInt(i * stride + 12);
                     writer.append(String.format("[%4d, %4d] (%c): %4d, %8d", ai, aj, primary, atomk, index));
                     float x = arcs[4 * index];
                     float y = arcs[4 * index + 1];
@@ -21,7 +21,7 @@ public class Drug extends Molecule {
             center.set(0f, 0f, 0f);
         }
         
-        float[] positions = snapshots.get(snapshot);
+        float[] positions = getAtomPositions(snapshot);
         for (int i = 0; i < atoms.size(); i++) {
             center.x += positions[3 * i];
             center.y += positions[3 * i + 1];
@@ -50,4 +50,26 @@ public class Dynamics {
         return molecule.getSnapshotCount();
     }
     
+    /**
+     * Notifies dynamics about the displayed snapshot, so snapshots loaded
+     * on demand can be prefetched.
+     */
+    public void setCurrentSnapshot(int snapshot) {
+        // all snapshots are in memory
+    }
+    
+    /**
+     * @param speed playback speed in snapshots per second
+     */
+    public void setSpeed(float speed) {
+        // all snapshots are in memory
+    }
+    
+    /**
+     * Releases resources (e.g., open files) of the dynamics.
+     */
+    public void dispose() {
+        // nothing to release
+    }
+    
 }
@@ -0,0 +1,358 @@
+package csdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser of text files with fixed-width columns (GRO, PDB). Lines are
+ * scanned in the raw bytes of the input, numbers are parsed in place and
+ * strings (names of atoms and residues) are shared through a symbol table,
+ * so parsing a line allocates nothing but new symbols. Columns are
+ * 0-based ranges [from, to) clipped to the current line.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class FixedColumnParser {
+
+    // exact powers of ten in float (up to 10^10)
+    private static final float[] POW10 = {
+        1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+    // largest integer represented exactly in float
+    private static final long MAX_EXACT = 1L << 24;
+
+    private final ByteBuffer data;
+    private final SymbolTable symbols;
+
+    // current line
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private int next = 0;
+
+    public FixedColumnParser(ByteBuffer data) {
+        this(data, new SymbolTable());
+    }
+
+    /**
+     * @param data text (ASCII)
+     * @param symbols symbol table (can be shared by parsers of a series of
+     * files, used from a single thread)
+     */
+    public FixedColumnParser(ByteBuffer data, SymbolTable symbols) {
+        this.data = data;
+        this.symbols = symbols;
+        this.next = data.position();
+    }
+
+    /**
+     * Maps file into memory.
+     */
+    public static ByteBuffer read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+    }
+
+    /**
+     * Reads stream fully and closes it.
+     */
+    public static ByteBuffer read(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+            byte[] buffer = new byte[1 << 16];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return false if there are no more lines
+     */
+    public boolean nextLine() {
+        int limit = data.limit();
+        if (next >= limit) {
+            return false;
+        }
+        lineStart = next;
+        int i = next;
+        while (i < limit && data.get(i) != '\n') {
+            i++;
+        }
+        next = i + 1;
+        lineEnd = (i > lineStart && data.get(i - 1) == '\r') ? i - 1 : i;
+        return true;
+    }
+
+    /**
+     * @return offset of the current line in the input
+     */
+    public int getLineOffset() {
+        return lineStart;
+    }
+
+    /**
+     * Moves before the line at the given offset, the line is read by the
+     * next call of nextLine.
+     */
+    public void seek(int offset) {
+        next = offset;
+        lineStart = offset;
+        lineEnd = offset;
+    }
+
+    public int getLineLength() {
+        return lineEnd - lineStart;
+    }
+
+    /**
+     * @return current line as a string (e.g., for error messages)
+     */
+    public String getLine() {
+        return getText(0, getLineLength());
+    }
+
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > getLineLength()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data.get(lineStart + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the column is empty or blank
+     */
+    public boolean isBlank(int from, int to) {
+        int start = trimStart(from, to);
+        return start >= trimEnd(start, to);
+    }
+
+    public int getInt(int from, int to) {
+        int start = trimStart(from, to);
+        int end = trimEnd(start, to);
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data.get(i) == '-' || data.get(i) == '+')) {
+            negative = data.get(i) == '-';
+            i++;
+        }
+        if (i >= end) {
+            throw new NumberFormatException("Invalid integer \"" + getText(from, to) + "\"");
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = data.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid integer \"" + getText(from, to) + "\"");
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses decimal number. Numbers with at most 7 significant digits
+     * (coordinates of GRO and PDB files) are parsed in place, the result
+     * is the same as of Float.parseFloat.
+     */
+    public float getFloat(int from, int to) {
+        int start = trimStart(from, to);
+        int end = trimEnd(start, to);
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data.get(i) == '-' || data.get(i) == '+')) {
+            negative = data.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0L;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < end; i++) {
+            byte b = data.get(i);
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || mantissa >= MAX_EXACT) {
+                // exponent, invalid or too long number
+                return Float.parseFloat(getText(from, to).trim());
+            }
+            mantissa = 10L * mantissa + digit;
+            digits++;
+            if (fraction >= 0) {
+                fraction++;
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid number \"" + getText(from, to) + "\"");
+        }
+        fraction = Math.max(fraction, 0);
+        if (mantissa > MAX_EXACT || fraction >= POW10.length) {
+            return Float.parseFloat(getText(from, to).trim());
+        }
+
+        // quotient of exact floats is rounded correctly
+        float value = (float) mantissa / POW10[fraction];
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return trimmed column shared through the symbol table
+     */
+    public String getSymbol(int from, int to) {
+        int start = trimStart(from, to);
+        int end = trimEnd(start, to);
+        return symbols.get(data, start, end);
+    }
+
+    /**
+     * @return trimmed column truncated to length characters shared through
+     * the symbol table
+     */
+    public String getSymbol(int from, int to, int length) {
+        int start = trimStart(from, to);
+        int end = trimEnd(start, to);
+        return symbols.get(data, start, Math.min(end, start + length));
+    }
+
+    private String getText(int from, int to) {
+        int start = lineStart + Math.min(from, getLineLength());
+        int end = lineStart + Math.min(to, getLineLength());
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = data.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private int trimStart(int from, int to) {
+        int start = lineStart + Math.min(from, getLineLength());
+        int end = lineStart + Math.min(to, getLineLength());
+        while (start < end && isSpace(data.get(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @param start trimmed start of the column
+     */
+    private int trimEnd(int start, int to) {
+        int end = Math.max(start, lineStart + Math.min(to, getLineLength()));
+        while (end > start && isSpace(data.get(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Table of strings indexed by their bytes (open addressing). It is not
+     * thread-safe.
+     */
+    public static class SymbolTable {
+
+        private String[] symbols = new String[256];
+        private int size = 0;
+
+        /**
+         * @return string of bytes [start, end) of the buffer
+         */
+        public String get(ByteBuffer data, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + (data.get(i) & 0xff);
+            }
+            int mask = symbols.length - 1;
+            int slot = mix(hash) & mask;
+            while (symbols[slot] != null) {
+                String symbol = symbols[slot];
+                if (symbol.hashCode() == hash && equals(symbol, data, start, end)) {
+                    return symbol;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) (data.get(start + i) & 0xff);
+            }
+            String symbol = new String(chars);
+            symbols[slot] = symbol;
+            if (++size > symbols.length / 2) {
+                rehash();
+            }
+            return symbol;
+        }
+
+        /**
+         * @return the shared instance of the string
+         */
+        public String get(String string) {
+            ByteBuffer data = ByteBuffer.wrap(string.getBytes(StandardCharsets.ISO_8859_1));
+            return get(data, 0, data.limit());
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void rehash() {
+            String[] old = symbols;
+            symbols = new String[2 * old.length];
+            int mask = symbols.length - 1;
+            for (String symbol : old) {
+                if (symbol != null) {
+                    int slot = mix(symbol.hashCode()) & mask;
+                    while (symbols[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    symbols[slot] = symbol;
+                }
+            }
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equals(String symbol, ByteBuffer data, int start, int end) {
+            if (symbol.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < symbol.length(); i++) {
+                if (symbol.charAt(i) != (data.get(start + i) & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -9,6 +9,9 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  *
@@ -45,11 +48,17 @@ public class GPUGraph {
     private static final int SIZEOF_VERTEX = 2 * Buffers.SIZEOF_INT;
     private static final int SIZEOF_CIRCLE = 4 * Buffers.SIZEOF_INT;
     
-    private static final int MAX_VERTEX_COUNT = Scene.MAX_TRIANGLES;
-    public static final int MAX_LABEL_COUNT = 1024;
-    private static final int MAX_CIRCLE_COUNT = Scene.MAX_TORI;
-    private static final int MAX_CIRCLE_EDGE_COUNT = 64;
-    public static final int MAX_SPHERE_POLYGON_COUNT = 16;
+    public static final int MAX_LABEL_COUNT = 1024; // see components.glsl
+    private static final int MAX_CIRCLE_EDGE_COUNT = 64; // see adjacency.glsl, circles.glsl
+    public static final int MAX_SPHERE_POLYGON_COUNT = 16; // see circles.glsl
+    
+    // capacities of buffers (see resize)
+    private int sphereCapacity;
+    private int vertexCapacity;
+    private int circleCapacity;
+    
+    // limits reported as exceeded
+    private final Set<String> exceededLimits = new HashSet<>();
     
     // buffer indices for shaders
     private static final int EDGES_BUFFER_INDEX = 0;
@@ -69,13 +78,30 @@ public class GPUGraph {
 
     private boolean writePerformanceInfo = false;
     
+    // compute graph on CPU (no limit on the number of labels)
+    private boolean cpuGraph = false;
+    private final WorkerPool workers;
+    private CPUGraph cpu = null;
+    private CPUGraph.Result cpuResult = null;
+    
     // Last result
     private Result result;
     
     // Debugging
     private final Debug debug = Debug.getInstance();
     
-    public void init(GL4 gl, int sphereCount) {
+    /**
+     * @param workers pool of workers of the CPU graph (owned by the caller)
+     */
+    public GPUGraph(WorkerPool workers) {
+        this.workers = workers;
+    }
+    
+    /**
+     * @param sphereCount maximum number of spheres (atoms)
+     * @param vertexCount maximum number of vertices (triangles)
+     */
+    public void init(GL4 gl, int sphereCount, int vertexCount) {
         // loading resources (shaders, data)
         try {
             adjacencyProgram = Utils.loadComputeProgram(gl, "/resources/shaders/graph/adjacency.glsl");
@@ -98,47 +124,11 @@ public class GPUGraph {
         circlesStartBuffer = buffers[7];
         polygonsBuffer = buffers[8];
         
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, countersBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, adjacencyBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_VERTEX_COUNT * SIZEOF_ROW, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, verticesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_VERTEX_COUNT * SIZEOF_VERTEX, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, labelsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (1 + MAX_LABEL_COUNT) * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_CIRCLE_COUNT * MAX_CIRCLE_EDGE_COUNT * SIZEOF_CIRCLE, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesCountBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCount * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesLengthBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_CIRCLE_COUNT * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesStartBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_CIRCLE_COUNT * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, polygonsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCount * MAX_SPHERE_POLYGON_COUNT * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        // Report memory usage
-        int[] value = new int[1];
-        int totalSize = 0;
-        for (int buffer : buffers) {
-            gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
-            gl.glGetBufferParameteriv(GL_SHADER_STORAGE_BUFFER, GL_BUFFER_SIZE, value, 0);
-            totalSize += value[0];
-        }
-        System.out.println(String.format("Memory usage (Graph): %.3f MB", totalSize / 1024.0 / 1024.0));
-        
         Utils.bindShaderStorageBlock(gl, adjacencyProgram, "Edges", EDGES_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, adjacencyProgram, "Adjacency", ADJACENCY_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, adjacencyProgram, "Circles", CIRCLES_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, adjacencyProgram, "CirclesLength", CIRCLES_LENGTH_BUFFER_INDEX);
+        Utils.bindShaderStorageBlock(gl, adjacencyProgram, "Counts", COUNTS_BUFFER_INDEX);
         
         Utils.bindShaderStorageBlock(gl, componentsProgram, "Adjacency", ADJACENCY_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, componentsProgram, "Verts", VERTICES_BUFFER_INDEX);
@@ -162,36 +152,115 @@ public class GPUGraph {
         circlesStartTex = textures[4];
         polygonsTex = textures[5];
         
+        resize(gl, sphereCount, vertexCount);
+        
+        // timer query
+        int[] queries = new int[3];
+        gl.glGenQueries(3, queries, 0);
+        
+        adjacencyElapsedQuery = queries[0];
+        componentsElapsedQuery = queries[1];
+        circlesElapsedQuery = queries[2];
+    }
+    
+    /**
+     * Reallocates buffers for the given numbers of spheres and vertices.
+     */
+    public void resize(GL4 gl, int sphereCount, int vertexCount) {
+        sphereCapacity = sphereCount;
+        vertexCapacity = vertexCount;
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, countersBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, 3 * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, adjacencyBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, vertexCount * SIZEOF_ROW, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, verticesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, vertexCount * SIZEOF_VERTEX, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, labelsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (1 + MAX_LABEL_COUNT) * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        // circles of every sphere start at sphere * MAX_CIRCLE_EDGE_COUNT
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCount * MAX_CIRCLE_EDGE_COUNT * SIZEOF_CIRCLE, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesCountBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCount * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, polygonsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCount * MAX_SPHERE_POLYGON_COUNT * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        // every sphere has its first circle, few spheres have more
+        resizeCircles(gl, 2 * sphereCount);
+        
         gl.glBindTexture(GL_TEXTURE_BUFFER, circlesTex);
         gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32UI, circlesBuffer);
         
         gl.glBindTexture(GL_TEXTURE_BUFFER, circlesCountTex);
         gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, circlesCountBuffer);
         
-        gl.glBindTexture(GL_TEXTURE_BUFFER, circlesLengthTex);
-        gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, circlesLengthBuffer);
-        
-        gl.glBindTexture(GL_TEXTURE_BUFFER, circlesStartTex);
-        gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, circlesStartBuffer);
-        
         gl.glBindTexture(GL_TEXTURE_BUFFER, polygonsTex);
         gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, polygonsBuffer);
         
-        /*gl.glBindTexture(GL_TEXTURE_BUFFER, labelsTex);
-        gl.glTexBufferRange(GL_TEXTURE_BUFFER, GL_R32UI, labelsBuffer,
-                Buffers.SIZEOF_INT, MAX_LABEL_COUNT * Buffers.SIZEOF_INT);*/
+        // Report memory usage
+        int[] buffers = new int[] { countersBuffer, adjacencyBuffer, verticesBuffer, labelsBuffer, circlesBuffer,
+            circlesCountBuffer, circlesLengthBuffer, circlesStartBuffer, polygonsBuffer };
+        int[] value = new int[1];
+        int totalSize = 0;
+        for (int buffer : buffers) {
+            gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+            gl.glGetBufferParameteriv(GL_SHADER_STORAGE_BUFFER, GL_BUFFER_SIZE, value, 0);
+            totalSize += value[0];
+        }
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        System.out.println(String.format("Memory usage (Graph): %.3f MB", totalSize / 1024.0 / 1024.0));
+    }
+    
+    private void resizeCircles(GL4 gl, int circleCount) {
+        circleCapacity = circleCount;
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesLengthBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, circleCount * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
         
-        // timer query
-        int[] queries = new int[3];
-        gl.glGenQueries(3, queries, 0);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesStartBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, circleCount * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
         
-        adjacencyElapsedQuery = queries[0];
-        componentsElapsedQuery = queries[1];
-        circlesElapsedQuery = queries[2];
+        gl.glBindTexture(GL_TEXTURE_BUFFER, circlesLengthTex);
+        gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, circlesLengthBuffer);
+        
+        gl.glBindTexture(GL_TEXTURE_BUFFER, circlesStartTex);
+        gl.glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, circlesStartBuffer);
+    }
+    
+    public boolean isCpuGraph() {
+        return cpuGraph;
+    }
+    
+    /**
+     * @param cpuGraph compute graph on CPU (see CPUGraph), results are
+     * uploaded to the buffers of the GPU version
+     */
+    public void setCpuGraph(boolean cpuGraph) {
+        this.cpuGraph = cpuGraph;
+    }
+    
+    /**
+     * @return result of the last graph computed on CPU (e.g., labels over
+     * MAX_LABEL_COUNT)
+     */
+    public CPUGraph.Result getCpuResult() {
+        return cpuResult;
     }
     
     public Result connectedComponents(GL4 gl, int toriBuffer, int edgesBuffer, int torusCount,
             int outVerticesBuffer, int vertexCount, int sphereCount) {
+        if (cpuGraph) {
+            return connectedComponentsCPU(gl, edgesBuffer, torusCount, outVerticesBuffer, vertexCount, sphereCount);
+        }
+        
         // bind buffers
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, EDGES_BUFFER_INDEX, edgesBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, ADJACENCY_BUFFER_INDEX, adjacencyBuffer);
@@ -200,9 +269,12 @@ public class GPUGraph {
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, VERTICES_BUFFER_INDEX, verticesBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, VERTICES_LABEL_BUFFER_INDEX, outVerticesBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, LABELS_BUFFER_INDEX, labelsBuffer);
+        gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, COUNTS_BUFFER_INDEX, countersBuffer);
         
         gl.glUseProgram(adjacencyProgram);
         
+        Utils.clearCounter(gl, countersBuffer, 8); // edgeOverflowCount
+        
         // clear adjacency matrix
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, adjacencyBuffer);
         gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_RGBA32UI, GL_RGBA_INTEGER, GL_UNSIGNED_INT, IntBuffer.wrap(new int[] { 0, 0, 0, 0 }));
@@ -224,18 +296,6 @@ public class GPUGraph {
         gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_BUFFER_UPDATE_BARRIER_BIT);
         gl.glEndQuery(GL_TIME_ELAPSED);
         
-        int lengths[] = new int[MAX_CIRCLE_COUNT];
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, circlesLengthBuffer);
-        IntBuffer lengthsData = gl.glMapBuffer(GL_SHADER_STORAGE_BUFFER, GL_READ_ONLY).asIntBuffer();
-        lengthsData.get(lengths);
-        gl.glUnmapBuffer(GL_SHADER_STORAGE_BUFFER);
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
-        for (int i = 0; i < lengths.length; i++) {
-            if (lengths[i] >= 32) {
-                int brk = 1;
-            }
-        }
-        
         gl.glUseProgram(componentsProgram);
         
         // clear vertices
@@ -264,9 +324,11 @@ public class GPUGraph {
         SURFACE_LABEL_DATA.rewind();
         
         int labelCount = 0;
-        while (labelCount < surfaceLabels.length && surfaceLabels[labelCount + 1] > 0) {
+        while (labelCount < MAX_LABEL_COUNT && surfaceLabels[labelCount + 1] > 0) {
             labelCount++;
         }
+        // further labels are not counted (see components.glsl), CPU graph has no limit
+        Utils.reportLimit(exceededLimits, "Labels", MAX_LABEL_COUNT, labelCount == MAX_LABEL_COUNT);
         
         gl.glUseProgram(circlesProgram);
         
@@ -276,9 +338,11 @@ public class GPUGraph {
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, POLYGONS_BUFFER_INDEX, polygonsBuffer);
         
         Utils.setCounter(gl, countersBuffer, 0, sphereCount); // totalCircleCount
+        Utils.clearCounter(gl, countersBuffer, 4); // polygonOverflowCount
         Utils.setUniform(gl, circlesProgram, "circleCount", sphereCount);
         Utils.setUniform(gl, circlesProgram, "maxSphereEdges", MAX_CIRCLE_EDGE_COUNT);
         Utils.setUniform(gl, circlesProgram, "maxSpherePolygons", MAX_SPHERE_POLYGON_COUNT);
+        Utils.setUniform(gl, circlesProgram, "maxCircleCount", circleCapacity);
         
         gl.glBeginQuery(GL_TIME_ELAPSED, circlesElapsedQuery);
         gl.glDispatchCompute((torusCount + 63) / 64, 1, 1); // circles program
@@ -286,6 +350,18 @@ public class GPUGraph {
         gl.glEndQuery(GL_TIME_ELAPSED);
         
         int circleCount = Utils.getCounter(gl, countersBuffer);
+        if (circleCount > circleCapacity) {
+            // circles are sorted in place, the whole graph is computed again
+            System.err.println("Warning: Circles over capacity (" + circleCount + " > " + circleCapacity + "), growing buffers");
+            resizeCircles(gl, circleCount + circleCount / 4);
+            return connectedComponents(gl, toriBuffer, edgesBuffer, torusCount, outVerticesBuffer, vertexCount, sphereCount);
+        }
+        // further circles of a sphere are merged into the last one (see circles.glsl)
+        int polygonOverflowCount = Utils.getCounter(gl, countersBuffer, 4);
+        Utils.reportLimit(exceededLimits, "Polygons of sphere", MAX_SPHERE_POLYGON_COUNT, polygonOverflowCount > 0);
+        // edges over the limit are not stored (see adjacency.glsl)
+        int edgeOverflowCount = Utils.getCounter(gl, countersBuffer, 8);
+        Utils.reportLimit(exceededLimits, "Edges of sphere", MAX_CIRCLE_EDGE_COUNT, edgeOverflowCount > 0);
         
         if (writePerformanceInfo) {
             writePerformanceInfo = false;
@@ -306,6 +382,8 @@ public class GPUGraph {
             System.out.println("Time elapsed (circles): " + circlesElapsed / 1000000.0 + " ms");
             int sgElapsed = adjacencyElapsed + componentsElapsed + circlesElapsed;
             System.out.println("Time elapsed (SG): " + sgElapsed / 1000000.0 + " ms");
+            // compare with CPU reference
+            verify(gl, edgesBuffer, torusCount, vertexCount, sphereCount, labelCount, circleCount);
         }
         
         result = new Result(vertexCount, labelsTex, surfaceLabels, labelCount,
@@ -314,6 +392,152 @@ public class GPUGraph {
         return result;
     }
     
+    /**
+     * Computes graph on CPU and uploads results to buffers of the GPU
+     * version (see upload and getCpuResult for complete results).
+     */
+    private Result connectedComponentsCPU(GL4 gl, int edgesBuffer, int torusCount,
+            int outVerticesBuffer, int vertexCount, int sphereCount) {
+        int[] edges = readEdges(gl, edgesBuffer, torusCount);
+        
+        long start = System.nanoTime();
+        CPUGraph.Result cr = getCPUGraph().connectedComponents(edges, torusCount, vertexCount, sphereCount);
+        long elapsed = System.nanoTime() - start;
+        
+        upload(gl, cr, outVerticesBuffer, vertexCount, sphereCount);
+        
+        if (writePerformanceInfo) {
+            writePerformanceInfo = false;
+            System.out.println("New circles: " + (cr.getCircleCount() - sphereCount));
+            System.out.println("Surface label: " + cr.getOuterSurfaceLabel());
+            System.out.println("Time elapsed (SG, CPU): " + elapsed / 1000000.0 + " ms");
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Uploads graph computed on CPU (e.g., by CPUContourBuildup) to buffers
+     * of the GPU version. Labels over MAX_LABEL_COUNT are not stored in the
+     * labels buffer and circles over limits of buffers are skipped.
+     *
+     * @param outVerticesBuffer buffer of labels of vertices (triangles)
+     */
+    public Result upload(GL4 gl, CPUGraph.Result cr, int outVerticesBuffer, int vertexCount, int sphereCount) {
+        cpuResult = cr;
+        
+        // labels
+        upload(gl, outVerticesBuffer, cr.getLabels(), vertexCount);
+        int[] labels = cr.getSurfaceLabels();
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, labelsBuffer);
+        gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, IntBuffer.wrap(new int[] { 0 }));
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        upload(gl, labelsBuffer, labels, Math.min(labels.length, MAX_LABEL_COUNT + 1));
+        
+        // circles of every sphere start at sphere * MAX_CIRCLE_EDGE_COUNT
+        // (see adjacency.glsl)
+        int[] circles = cr.getCircles();
+        int[] circlesStart = cr.getCirclesStart();
+        int[] circlesLength = cr.getCirclesLength();
+        int[] circlesCount = cr.getCirclesCount();
+        int circleCount = cr.getCircleCount();
+        if (circleCount > circleCapacity) {
+            resizeCircles(gl, circleCount + circleCount / 4);
+        }
+        int[] outCircles = new int[4 * sphereCount * MAX_CIRCLE_EDGE_COUNT];
+        int[] outStart = new int[circleCount];
+        int[] outLength = new int[circleCount];
+        int[] outCount = new int[sphereCount];
+        int[] polygons = new int[sphereCount * MAX_SPHERE_POLYGON_COUNT];
+        int skipped = 0;
+        int extra = sphereCount;
+        for (int sphere = 0; sphere < sphereCount; sphere++) {
+            int count = circlesCount[sphere];
+            int sphereStart = (count > 0) ? circlesStart[sphere] : 0;
+            // only written circles are counted, their polygon slots are compacted
+            int written = 0;
+            for (int i = 0; i < count; i++) {
+                int circle = (i == 0) ? sphere : extra++;
+                int offset = circlesStart[circle] - sphereStart;
+                int length = circlesLength[circle];
+                if (circle >= circleCount || written >= MAX_SPHERE_POLYGON_COUNT
+                        || offset + length > MAX_CIRCLE_EDGE_COUNT) {
+                    skipped++;
+                    continue;
+                }
+                int outOffset = sphere * MAX_CIRCLE_EDGE_COUNT + offset;
+                System.arraycopy(circles, 4 * circlesStart[circle], outCircles, 4 * outOffset, 4 * length);
+                outStart[circle] = outOffset;
+                outLength[circle] = length;
+                polygons[sphere * MAX_SPHERE_POLYGON_COUNT + written] = circle;
+                written++;
+            }
+            outCount[sphere] = written;
+        }
+        if (skipped > 0) {
+            System.err.println("Warning: Circles over GPU limits skipped: " + skipped);
+        }
+        upload(gl, circlesBuffer, outCircles, outCircles.length);
+        upload(gl, circlesStartBuffer, outStart, circleCount);
+        upload(gl, circlesLengthBuffer, outLength, circleCount);
+        upload(gl, circlesCountBuffer, outCount, sphereCount);
+        upload(gl, polygonsBuffer, polygons, polygons.length);
+        
+        result = new Result(vertexCount, labelsTex, labels, cr.getLabelCount(),
+                circleCount, circlesTex, circlesCountTex, circlesLengthTex, circlesStartTex);
+        
+        return result;
+    }
+    
+    /**
+     * Compares results of the GPU version with the CPU reference. Labels
+     * are compared by sizes of components, since the order of labels on GPU
+     * is not defined.
+     */
+    private void verify(GL4 gl, int edgesBuffer, int torusCount, int vertexCount, int sphereCount,
+            int labelCount, int circleCount) {
+        int[] edges = readEdges(gl, edgesBuffer, torusCount);
+        long start = System.nanoTime();
+        CPUGraph.Result cr = getCPUGraph().connectedComponents(edges, torusCount, vertexCount, sphereCount);
+        long elapsed = System.nanoTime() - start;
+        cpuResult = cr;
+        System.out.println("Time elapsed (SG, CPU): " + elapsed / 1000000.0 + " ms");
+        
+        int[] gpuSizes = Arrays.copyOfRange(surfaceLabels, 1, labelCount + 1);
+        int[] cpuSizes = Arrays.copyOfRange(cr.getSurfaceLabels(), 1, cr.getLabelCount() + 1);
+        Arrays.sort(gpuSizes);
+        Arrays.sort(cpuSizes);
+        if (!Arrays.equals(gpuSizes, cpuSizes)) {
+            System.err.println("Warning: Labels differ (GPU: " + labelCount + ", CPU: " + cr.getLabelCount() + ")");
+        }
+        if (circleCount != cr.getCircleCount()) {
+            System.err.println("Warning: Circles differ (GPU: " + circleCount + ", CPU: " + cr.getCircleCount() + ")");
+        }
+    }
+    
+    private CPUGraph getCPUGraph() {
+        if (cpu == null) {
+            cpu = new CPUGraph(workers);
+        }
+        return cpu;
+    }
+    
+    private static int[] readEdges(GL4 gl, int edgesBuffer, int torusCount) {
+        IntBuffer data = Buffers.newDirectIntBuffer(4 * torusCount);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, edgesBuffer);
+        gl.glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, 4 * torusCount * Buffers.SIZEOF_INT, data);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        int[] edges = new int[4 * torusCount];
+        data.get(edges);
+        return edges;
+    }
+    
+    private static void upload(GL4 gl, int buffer, int[] data, int count) {
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, count * Buffers.SIZEOF_INT, Buffers.newDirectIntBuffer(data, 0, count));
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+    
     public void writeResults(GL4 gl) {
         try {
             writeAdjacency(gl, result.getVertexCount());
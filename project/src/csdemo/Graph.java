@@ -7,9 +7,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -20,20 +19,18 @@ public class Graph {
     
     public void connectedComponents(GL4 gl, int toriBuffer, int edgesBuffer, int torusCount,
             int verticesBuffer, int vertexCount, int sphereCount) {
-        boolean[][] adjacency = new boolean[vertexCount][vertexCount];
         int[][] edges = new int[torusCount][2];
         int[][] spheres = new int[torusCount][2];
+        boolean[] valid = new boolean[torusCount];
         
         // map surface edges buffer
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, edgesBuffer);
         IntBuffer edgesData = gl.glMapBuffer(GL_SHADER_STORAGE_BUFFER, GL_READ_ONLY).asIntBuffer();
-        // fill adjacency matrix
         for (int i = 0; i < torusCount; i++) {
             int v0 = edgesData.get(4 * i);
             int v1 = edgesData.get(4 * i + 1);
             if (v0 != -1 && v1 != -1) {
-                adjacency[v0][v1] = true;
-                adjacency[v1][v0] = true;
+                valid[i] = true;
                 // store edges
                 edges[i][0] = v0;
                 edges[i][1] = v1;
@@ -45,69 +42,13 @@ public class Graph {
         // unmap edges buffer
         gl.glUnmapBuffer(GL_SHADER_STORAGE_BUFFER);
         
-        // create CSR representation of the adjacency matrix
-        int count = 0;
+        // create CSR representation of the graph
         int[] rows = new int[vertexCount + 1];
-        rows[0] = count;
-        for (int i = 0; i < vertexCount; i++) {
-            for (int j = 0; j < vertexCount; j++) {
-                if (adjacency[i][j]) {
-                    count++;
-                }
-            }
-            rows[i + 1] = count;
-        }
-        
-        int index = 0;
-        int[] columns = new int[count];
-        for (int i = 0; i < vertexCount; i++) {
-            for (int j = 0; j < vertexCount; j++) {
-                if (adjacency[i][j]) {
-                    columns[index] = j;
-                    index++;
-                }
-            }
-        }
+        int[] columns = createCSR(vertexCount, edges, valid, rows);
         
-        Deque<Integer> vertices = new ArrayDeque<>();
         List<Integer> sizes = new ArrayList<>();
-        boolean[] visited = new boolean[vertexCount];
         int[] labels = new int[vertexCount];
-        
-        int label = 1;
-        int startVertex;
-        do {
-            // find start vertex
-            startVertex = -1;
-            for (int i = 0; i < vertexCount; i++) {
-                if (!visited[i]) {
-                    startVertex = i;
-                    break;
-                }
-            }
-            if (startVertex < 0) {
-                break;
-            }
-            // label one connected component using BFS
-            int size = 0;
-            vertices.add(startVertex);
-            while (!vertices.isEmpty()) {
-                int vertex = vertices.poll();
-                if (visited[vertex]) {
-                    continue;
-                }
-                visited[vertex] = true;
-                labels[vertex] = label;
-                int start = rows[vertex];
-                int end = rows[vertex + 1];
-                for (int i = start; i < end; i++) {
-                    vertices.add(columns[i]);
-                }
-                size++;
-            }
-            sizes.add(size);
-            label++;
-        } while (startVertex >= 0);
+        labelComponents(rows, columns, labels, sizes);
         
         // find largest connceted component
         int largest = 0;
@@ -138,6 +79,97 @@ public class Graph {
         }
     }
     
+    /**
+     * Creates CSR representation of the graph given by edges, neighbors of
+     * a vertex are sorted and unique (as if read from an adjacency matrix).
+     * 
+     * @param rows start of neighbors of every vertex (vertexCount + 1)
+     * @return neighbors of vertices
+     */
+    public static int[] createCSR(int vertexCount, int[][] edges, boolean[] valid, int[] rows) {
+        // count vertex degrees
+        int[] degrees = new int[vertexCount + 1];
+        for (int i = 0; i < edges.length; i++) {
+            if (valid[i]) {
+                degrees[edges[i][0] + 1]++;
+                if (edges[i][1] != edges[i][0]) {
+                    degrees[edges[i][1] + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < vertexCount; i++) {
+            degrees[i + 1] += degrees[i];
+        }
+        
+        int[] fill = Arrays.copyOf(degrees, vertexCount);
+        int[] neighbors = new int[degrees[vertexCount]];
+        for (int i = 0; i < edges.length; i++) {
+            if (valid[i]) {
+                int v0 = edges[i][0];
+                int v1 = edges[i][1];
+                neighbors[fill[v0]++] = v1;
+                if (v1 != v0) {
+                    neighbors[fill[v1]++] = v0;
+                }
+            }
+        }
+        
+        // sort neighbors and remove parallel edges
+        int count = 0;
+        for (int i = 0; i < vertexCount; i++) {
+            int start = degrees[i];
+            int end = degrees[i + 1];
+            Arrays.sort(neighbors, start, end);
+            rows[i] = count;
+            for (int j = start; j < end; j++) {
+                if (j == start || neighbors[j] != neighbors[j - 1]) {
+                    neighbors[count++] = neighbors[j];
+                }
+            }
+        }
+        rows[vertexCount] = count;
+        return Arrays.copyOf(neighbors, count);
+    }
+    
+    /**
+     * Labels connected components by BFS, components are labeled from 1 in
+     * the order of their lowest vertex.
+     * 
+     * @param labels label of every vertex
+     * @param sizes number of vertices of every component
+     * @return number of components
+     */
+    public static int labelComponents(int[] rows, int[] columns, int[] labels, List<Integer> sizes) {
+        int vertexCount = rows.length - 1;
+        int[] queue = new int[vertexCount];
+        Arrays.fill(labels, 0, vertexCount, 0);
+        
+        int label = 1;
+        for (int startVertex = 0; startVertex < vertexCount; startVertex++) {
+            if (labels[startVertex] != 0) {
+                continue;
+            }
+            // label one connected component using BFS
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = startVertex;
+            labels[startVertex] = label;
+            while (head < tail) {
+                int vertex = queue[head++];
+                for (int i = rows[vertex]; i < rows[vertex + 1]; i++) {
+                    int neighbor = columns[i];
+                    if (labels[neighbor] == 0) {
+                        labels[neighbor] = label;
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+            sizes.add(tail);
+            label++;
+        }
+        return label - 1;
+    }
+    
     private void sphereCircles(GL4 gl, int[][] edges, int[][] spheres, int sphereCount, int toriBuffer, int torusCount) {
         List<List<Integer>> circles = new ArrayList<>();
         for (int i = 0; i < sphereCount; i++) {
@@ -9,6 +9,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -41,11 +42,41 @@ public class GromacsStructureLoader {
     // temporary container for atom positions of currently loaded snapshot
     private List<Atom> atomPositions;
     private Map<Integer, List<Atom>> drugPositions;
+    // number of trajectory decoding threads
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    // store snapshots quantized (see QuantizedSnapshotStore)
+    private boolean compactSnapshots = false;
+    // map snapshots from a binary cache (see MappedTrajectory)
+    private boolean trajectoryCache = false;
     // temporary cotainer for residues
     //private ArrayList<Residue> residues;
     //number of last atoms residue sequence
     //private Integer lastResidueSeqNum = null;
     
+    public int getThreadCount() {
+        return threadCount;
+    }
+    
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+    
+    public boolean isCompactSnapshots() {
+        return compactSnapshots;
+    }
+    
+    public void setCompactSnapshots(boolean compactSnapshots) {
+        this.compactSnapshots = compactSnapshots;
+    }
+    
+    public boolean isTrajectoryCache() {
+        return trajectoryCache;
+    }
+    
+    public void setTrajectoryCache(boolean trajectoryCache) {
+        this.trajectoryCache = trajectoryCache;
+    }
+    
     private void resetValues(File structureSource) {
         if (structure == null) {
             structure = new Dynamics();
@@ -67,21 +98,19 @@ public class GromacsStructureLoader {
         //final List<List<Atom>> structuresToRet = new ArrayList<>();
         resetValues(sourceFile);
         try {
-            BufferedReader inReader = determineInputReader(sourceFile); // new BufferedReader(new FileReader(sourceFile));
-            String actualLine = null;
+            FixedColumnParser parser = new FixedColumnParser(determineInputBuffer(sourceFile));
 
             for (int i = 0; i < 2; i++) {
-                if ((actualLine = inReader.readLine()) == null) {
+                if (!parser.nextLine()) {
                     throw new Exception("No data in input file");
                 }
             }
-            int numberOfAtoms = Integer.parseInt(actualLine);
+            int numberOfAtoms = parser.getInt(0, parser.getLineLength());
             for (int i = 0; i < numberOfAtoms; i++) {
-                actualLine = inReader.readLine();
-                if (actualLine == null) {
+                if (!parser.nextLine()) {
                     throw new Exception("bad data format in input file");
                 }
-                this.processGroAtomLine(actualLine);
+                this.processGroAtomLine(parser);
             }
 
             //structure.addSource(new File(sourceFile.getAbsolutePath()));
@@ -100,19 +129,17 @@ public class GromacsStructureLoader {
         }
     }
 
-    private void processGroAtomLine(String line) {
-        String atomIdStr = line.substring(15, 20).trim();
-        int atomId = Integer.parseInt(atomIdStr);
+    private void processGroAtomLine(FixedColumnParser line) {
+        int atomId = line.getInt(15, 20);
 
-        String atomName = line.substring(10, 15).trim();
-        String atomElement = String.valueOf(atomName.charAt(0));
+        String atomName = line.getSymbol(10, 15);
+        String atomElement = line.getSymbol(10, 15, 1);
 
-        String residueSeqStr = line.substring(0, 5).trim();
-        int residueSeq = Integer.parseInt(residueSeqStr);
+        int residueSeq = line.getInt(0, 5);
 
-        String residueIdentifier = line.substring(5, 10).trim();
-        if (residueIdentifier.toUpperCase().equals("NA+")
-                || residueIdentifier.toUpperCase().equals("CL-")
+        String residueIdentifier = line.getSymbol(5, 10);
+        if (residueIdentifier.equalsIgnoreCase("NA+")
+                || residueIdentifier.equalsIgnoreCase("CL-")
                 || residueIdentifier.equals("SOL")
                 || residueIdentifier.equals("NA")
                 || residueIdentifier.equals("CL")) {
@@ -128,19 +155,14 @@ public class GromacsStructureLoader {
         } else if (residueIdentifier.length() == 4
                 && (residueIdentifier.startsWith("N") || residueIdentifier.startsWith("C"))) {
             // remove C or N prefix
-            residueIdentifier = residueIdentifier.substring(1);
+            residueIdentifier = line.getSymbols().get(residueIdentifier.substring(1));
         } else if (residueIdentifier.length() == 4) {
-            residueIdentifier = residueIdentifier.substring(0, 3);
+            residueIdentifier = line.getSymbol(5, 10, 3);
         }
 
-        String coordXStr = line.substring(20, 28).trim();
-        float coordX = Float.parseFloat(coordXStr) * 10;
-
-        String coordYStr = line.substring(28, 36).trim();
-        float coordY = Float.parseFloat(coordYStr) * 10;
-
-        String coordZStr = line.substring(36, 44).trim();
-        float coordZ = Float.parseFloat(coordZStr) * 10;
+        float coordX = line.getFloat(20, 28) * 10;
+        float coordY = line.getFloat(28, 36) * 10;
+        float coordZ = line.getFloat(36, 44) * 10;
 
         Atom atom = new Atom();
         //atom.setSerialNumber(atomId);
@@ -194,16 +216,22 @@ public class GromacsStructureLoader {
         }
     }
 
+    // xjurc: PacificVIS video
+    private static final Set<Integer> SKIP = new HashSet<>(Arrays.asList(new Integer[] {
+        6, /* 11, 12, */ 31, 32, 38, 46, 47, 50, 56, 72, 84, 88, /* 90, */ 91 /* ,97 */ }));
+    
     public void parseTrajectoryFile(File trajectoryFile, Dynamics structure, int start, int end) throws Exception {
         parseTrajectoryFile(trajectoryFile, structure, start, end, null);
     }
 
     public void parseTrajectoryFile(File trajectoryFile, Dynamics structure, int start, int end, File targetDirectory) throws Exception {
+        if (XtcFrameIndex.isSeekable(trajectoryFile)) {
+            parseMappedTrajectoryFile(trajectoryFile, structure, start, end);
+            return;
+        }
+        
         DataInputStream dis;
 
-        // xjurc: PacificVIS video
-        Set<Integer> skip = new HashSet<>();
-        skip.addAll(Arrays.asList(new Integer[] { 6, /* 11, 12, */ 31, 32, 38, 46, 47, 50, 56, 72, 84, 88, /* 90, */ 91 /* ,97 */ }));
         try {
             dis = new DataInputStream(new BufferedInputStream(determineInputStream(trajectoryFile)));
 
@@ -211,7 +239,10 @@ public class GromacsStructureLoader {
             int counter = 0;
             while (counter < end || end == -1) {
                 if (Thread.interrupted()) {
-                    return;
+                    // keep the caller from using (or caching) partial dynamics
+                    Thread.currentThread().interrupt();
+                    dis.close();
+                    throw new InterruptedException("Loading interrupted");
                 }
 
                 try {
@@ -235,7 +266,7 @@ public class GromacsStructureLoader {
                         }
                     }
 
-                    if (counter >= start && !skip.contains(counter + 3 - start)) {
+                    if (counter >= start && !SKIP.contains(counter + 3 - start)) {
                         xtc3dfcoords(trajectoryFile, dis, structure, counter, targetDirectory);
                     } else {
                         xtc3dfcoords(trajectoryFile, dis, null, counter, targetDirectory);
@@ -263,7 +294,97 @@ public class GromacsStructureLoader {
         }
     }
 
+    private void parseMappedTrajectoryFile(File trajectoryFile, final Dynamics structure, int start, int end) throws Exception {
+        readMappedTrajectoryFile(trajectoryFile, start, end, new ParallelXtcReader.FrameListener() {
+            @Override
+            public void frameDecoded(int frame, float[] positions) {
+                addSnapshot(structure, positions);
+                if ((frame + 1) % 100 == 0) {
+                    System.out.println("Loaded " + (frame + 1) + " snapshots");
+                }
+            }
+        });
+    }
+    
+    private void readMappedTrajectoryFile(File trajectoryFile, int start, int end, ParallelXtcReader.FrameListener listener) throws Exception {
+        try (ParallelXtcReader reader = new ParallelXtcReader(trajectoryFile, threadCount)) {
+            int last = (end == -1) ? reader.getFrameCount() : Math.min(end, reader.getFrameCount());
+            int[] frames = new int[Math.max(0, last - start)];
+            int frameCount = 0;
+            for (int counter = start; counter < last; counter++) {
+                if (SKIP.contains(counter + 3 - start)) {
+                    System.out.println("Skipping frame: " + (counter + 2));
+                } else {
+                    frames[frameCount++] = counter;
+                }
+            }
+            
+            reader.read(Arrays.copyOf(frames, frameCount), listener);
+            
+            if (reader.getDecodedFrameCount() > 0) {
+                System.out.println("Decoded " + reader.getDecodedFrameCount() + " frames ("
+                        + reader.getFramesPerSecond() + " frames/s)");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw ex;
+        } catch (IOException ex) {
+            throw new Exception("Failed to parse Trajectory", ex);
+        }
+    }
+    
+    /**
+     * Loads a single frame of an uncompressed trajectory without reading
+     * preceding frames.
+     */
+    public void parseTrajectoryFrame(File trajectoryFile, Dynamics structure, int frame) throws Exception {
+        if (!XtcFrameIndex.isSeekable(trajectoryFile)) {
+            parseTrajectoryFile(trajectoryFile, structure, frame, frame + 1);
+            return;
+        }
+        
+        try (XtcReader reader = new XtcReader(trajectoryFile)) {
+            float[] positions = new float[3 * reader.getAtomCount(frame)];
+            reader.readFrame(frame, positions);
+            addSnapshot(structure, positions);
+        } catch (IOException ex) {
+            throw new Exception("Failed to parse Trajectory", ex);
+        }
+    }
+    
+    private static void addSnapshot(Dynamics structure, float[] positions) {
+        addSnapshot(structure.getMolecule(), positions);
+        for (Drug drug : structure.getDrugs()) {
+            addSnapshot(drug, positions);
+        }
+    }
+    
+    private static void addSnapshot(Molecule molecule, float[] positions) {
+        float[] snapshot = new float[3 * molecule.getAtomCount()];
+        gather(molecule, positions, snapshot);
+        molecule.addSnapshot(snapshot);
+    }
+    
+    /**
+     * Gathers positions of atoms of the molecule from positions of all
+     * atoms of a frame.
+     */
+    private static void gather(Molecule molecule, float[] positions, float[] snapshot) {
+        List<Atom> atoms = molecule.getAtoms();
+        for (int i = 0; i < atoms.size(); i++) {
+            int id = atoms.get(i).id - 1;
+            snapshot[3 * i] = positions[3 * id];
+            snapshot[3 * i + 1] = positions[3 * id + 1];
+            snapshot[3 * i + 2] = positions[3 * id + 2];
+        }
+    }
+
     public int getNumberOfSnapshots(File trajectory) throws Exception {
+        XtcFrameIndex index = XtcFrameIndex.get(trajectory);
+        if (index != null) {
+            return index.getFrameCount();
+        }
+        
         int numberOfSnapshots = 0;
 
         //for (File trajFile : sourceFiles) {
@@ -316,9 +437,122 @@ public class GromacsStructureLoader {
 //    }
     
     public Dynamics loadDynamics(File topology, File trajectory, int start, int end) throws Exception {
+        if (trajectoryCache) {
+            return loadCachedDynamics(topology, trajectory, start, end);
+        }
         return loadStructureSync(topology, new File[] { trajectory }, start, end);
     }
     
+    /**
+     * Loads topology and maps snapshots from the binary cache of the
+     * trajectory. The cache is created (or recreated, if the trajectory
+     * changed) on the first load.
+     */
+    public Dynamics loadCachedDynamics(File topology, File trajectory, int start, int end) throws Exception {
+        structure = new Dynamics();
+        final Dynamics topologyStructure = parseTopologyFile(topology);
+        File cache = MappedTrajectory.getCacheFile(trajectory, start, end);
+        
+        try {
+            int frameCount = getCachedFrameCount(trajectory, start, end);
+            MappedTrajectory mapped = MappedTrajectory.open(cache, trajectory, start, end, frameCount, topologyStructure);
+            if (mapped == null) {
+                writeTrajectoryCache(cache, trajectory, start, end, frameCount, topologyStructure);
+                mapped = MappedTrajectory.open(cache, trajectory, start, end, frameCount, topologyStructure);
+                if (mapped == null) {
+                    throw new IOException("Invalid trajectory cache " + cache);
+                }
+            }
+            mapped.attach(topologyStructure);
+            return topologyStructure;
+        } catch (IOException ex) {
+            throw new Exception("Failed to parse Trajectory", ex);
+        }
+    }
+    
+    /**
+     * @return number of frames of the trajectory stored in its cache or -1,
+     * if the trajectory is compressed and has no frame index
+     */
+    private static int getCachedFrameCount(File trajectory, int start, int end) throws IOException {
+        XtcFrameIndex index = XtcFrameIndex.get(trajectory);
+        if (index == null) {
+            return -1;
+        }
+        
+        int last = (end == -1) ? index.getFrameCount() : Math.min(end, index.getFrameCount());
+        int frameCount = 0;
+        for (int counter = start; counter < last; counter++) {
+            if (!SKIP.contains(counter + 3 - start)) {
+                frameCount++;
+            }
+        }
+        return frameCount;
+    }
+    
+    private void writeTrajectoryCache(File cache, File trajectory, int start, int end, int frameCount, Dynamics topology) throws Exception {
+        long time = System.nanoTime();
+        
+        if (!XtcFrameIndex.isSeekable(trajectory)) {
+            // compressed trajectory is loaded into memory first
+            parseTrajectoryFile(trajectory, topology, start, end);
+            MappedTrajectory.create(cache, trajectory, start, end, topology);
+            clearSnapshots(topology.getMolecule());
+            for (Drug drug : topology.getDrugs()) {
+                clearSnapshots(drug);
+            }
+        } else {
+            writeMappedTrajectoryCache(cache, trajectory, start, end, frameCount, topology);
+        }
+        
+        System.out.println("Cached " + cache.getName() + " in " + (System.nanoTime() - time) / 1000000 + " ms");
+    }
+    
+    private static void clearSnapshots(Molecule molecule) {
+        List<float[]> snapshots = molecule.getSnapshots();
+        snapshots.subList(1, snapshots.size()).clear();
+    }
+    
+    private void writeMappedTrajectoryCache(File cache, File trajectory, int start, int end, int frameCount, Dynamics topology) throws Exception {
+        final List<Molecule> molecules = new ArrayList<>();
+        molecules.add(topology.getMolecule());
+        molecules.addAll(topology.getDrugs());
+        try (final MappedTrajectory.Writer writer = new MappedTrajectory.Writer(cache, trajectory, start, end, frameCount, topology)) {
+            final float[][] snapshot = new float[molecules.size()][];
+            for (int m = 0; m < molecules.size(); m++) {
+                snapshot[m] = new float[3 * molecules.get(m).getAtomCount()];
+            }
+            readMappedTrajectoryFile(trajectory, start, end, new ParallelXtcReader.FrameListener() {
+                @Override
+                public void frameDecoded(int frame, float[] positions) throws Exception {
+                    for (int m = 0; m < molecules.size(); m++) {
+                        gather(molecules.get(m), positions, snapshot[m]);
+                    }
+                    writer.add(snapshot);
+                }
+            });
+            writer.commit();
+        }
+    }
+    
+    /**
+     * Loads topology and opens trajectory for streaming, snapshots are
+     * held in memory up to budget bytes.
+     */
+    public Dynamics streamDynamics(File topology, File trajectory, int start, int end, long budget) throws Exception {
+        if (!XtcFrameIndex.isSeekable(trajectory)) {
+            throw new IllegalArgumentException("Compressed trajectory " + trajectory.getName() + " cannot be streamed");
+        }
+        
+        structure = new Dynamics();
+        Dynamics topologyStructure = parseTopologyFile(topology);
+        try {
+            return new StreamingDynamics(topologyStructure, trajectory, start, end, budget, threadCount);
+        } catch (IOException ex) {
+            throw new Exception("Failed to parse Trajectory", ex);
+        }
+    }
+    
     public Dynamics loadStructureSync(File topologyFile, File[] trajectoryFiles, int start, int end) throws Exception {
         final Dynamics structures;
 
@@ -329,6 +563,9 @@ public class GromacsStructureLoader {
             //structure.setSource(Arrays.asList(trajectoryFiles));
 
             Dynamics conStructures = parseTopologyFile(topologyFile);
+            if (compactSnapshots) {
+                conStructures.getMolecule().compactSnapshots();
+            }
 
             if (trajectoryFiles != null) {
                 for (File accFile : trajectoryFiles) {
@@ -589,7 +826,7 @@ public class GromacsStructureLoader {
                 Molecule molecule = structure.getMolecule();
                 for (Atom atom : molecule.getAtoms()) {
                     Atom pos = new Atom(atom);
-                    atom.setPosition(atompostitions.get(atom.id - 1));
+                    pos.setPosition(atompostitions.get(atom.id - 1));
                     snapshot.add(pos);
                 }
                 molecule.addSnapshot(snapshot);
@@ -598,7 +835,7 @@ public class GromacsStructureLoader {
                     snapshot.clear();
                     for (Atom atom : drug.getAtoms()) {
                         Atom pos = new Atom(atom);
-                        atom.setPosition(atompostitions.get(atom.id - 1));
+                        pos.setPosition(atompostitions.get(atom.id - 1));
                         snapshot.add(pos);
                     }
                     drug.addSnapshot(snapshot);
@@ -754,6 +991,17 @@ public class GromacsStructureLoader {
         return in;
     }
     
+    /**
+     * @return contents of the file (mapped, if it is not compressed)
+     */
+    public static ByteBuffer determineInputBuffer(File file) throws IOException {
+        String path = file.getAbsolutePath().toLowerCase();
+        if (path.endsWith(".gz") || path.endsWith(".zip")) {
+            return FixedColumnParser.read(determineInputStream(file));
+        }
+        return FixedColumnParser.read(file);
+    }
+    
     public static InputStream determineInputStream(File file) throws IOException {
         if (file.getAbsolutePath().toLowerCase().endsWith(".gz")) { //if it is GZ, we need GZipInputStream
             return new GZIPInputStream(new FileInputStream(file));
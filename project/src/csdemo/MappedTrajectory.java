@@ -0,0 +1,394 @@
+package csdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.vecmath.Point3f;
+
+/**
+ * Binary cache of a trajectory read through memory mapped buffers. The
+ * trajectory is converted once into a flat file (header and float32
+ * positions in frame-major order, i.e., molecule and drug atoms of one
+ * snapshot are stored together), later loads only map the file, so the
+ * snapshots are neither decoded nor held on the Java heap. The cache is
+ * validated by size and modification time of the source, by the loaded
+ * range of frames and by the number of frames expected from the frame
+ * index of the source. The topology (snapshot 0) is kept in memory.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class MappedTrajectory {
+
+    public static final String CACHE_EXTENSION = ".traj";
+
+    private static final int MAGIC = 0x5452434A; // TRCJ
+    private static final int VERSION = 2;
+
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    // magic, version, source size, source modification time, start, end,
+    // number of frames, number of molecules
+    private static final int HEADER_SIZE = 2 * 4 + 2 * 8 + 4 * 4;
+    // atom count, bounds (min, max)
+    private static final int MOLECULE_HEADER_SIZE = 4 + 6 * 4;
+    // offset of snapshot count from the end of the header
+    private static final int SNAPSHOT_COUNT_SIZE = 4;
+
+    private final int[] atomCounts;
+    private final int[] atomOffsets;
+    private final float[][] bounds;
+    private final int frameSize;
+    private final int snapshotCount;
+
+    // windows of whole frames
+    private final FloatBuffer[] windows;
+    private final int framesPerWindow;
+
+    private MappedTrajectory(int[] atomCounts, float[][] bounds, int snapshotCount,
+            FileChannel channel, long dataOffset) throws IOException {
+        this.atomCounts = atomCounts;
+        this.atomOffsets = new int[atomCounts.length];
+        int offset = 0;
+        for (int m = 0; m < atomCounts.length; m++) {
+            atomOffsets[m] = offset;
+            offset += 3 * atomCounts[m];
+        }
+        this.bounds = bounds;
+        this.frameSize = offset;
+        this.snapshotCount = snapshotCount;
+
+        long frameBytes = 4L * Math.max(1, frameSize);
+        this.framesPerWindow = (int) Math.max(1L, WINDOW_SIZE / frameBytes);
+        int frameCount = snapshotCount - 1;
+        this.windows = new FloatBuffer[(frameCount + framesPerWindow - 1) / framesPerWindow];
+        for (int w = 0; w < windows.length; w++) {
+            long start = dataOffset + w * framesPerWindow * frameBytes;
+            long size = Math.min(framesPerWindow, frameCount - w * framesPerWindow) * frameBytes;
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            windows[w] = window.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    /**
+     * @param trajectory source of the cache
+     * @param start first frame
+     * @param end frame after the last frame or -1 for all frames
+     */
+    public static File getCacheFile(File trajectory, int start, int end) {
+        return new File(trajectory.getPath() + "." + start + "-" + (end == -1 ? "end" : end) + CACHE_EXTENSION);
+    }
+
+    /**
+     * Maps cache file.
+     *
+     * @param cache cache file
+     * @param source source of the cache
+     * @param start first frame
+     * @param end frame after the last frame or -1 for all frames
+     * @param frameCount number of frames expected in the cache (from the
+     * frame index of the source) or -1, if unknown
+     * @param topology dynamics holding the topology snapshot
+     * @return mapped trajectory or null, if the cache does not exist or
+     * does not match the source and the topology
+     */
+    public static MappedTrajectory open(File cache, File source, int start, int end, int frameCount, Dynamics topology) throws IOException {
+        if (!cache.isFile()) {
+            return null;
+        }
+
+        List<Molecule> molecules = getMolecules(topology);
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r")) {
+            FileChannel channel = file.getChannel();
+            long headerSize = getHeaderSize(molecules.size());
+            if (channel.size() < headerSize) {
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate((int) headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0L);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != source.length() || header.getLong() != source.lastModified()
+                    || header.getInt() != start || header.getInt() != end
+                    || header.getInt() != frameCount || header.getInt() != molecules.size()) {
+                return null;
+            }
+
+            int[] atomCounts = new int[molecules.size()];
+            float[][] bounds = new float[molecules.size()][6];
+            long frameSize = 0L;
+            for (int m = 0; m < molecules.size(); m++) {
+                atomCounts[m] = header.getInt();
+                if (atomCounts[m] != molecules.get(m).getAtomCount()) {
+                    return null;
+                }
+                for (int c = 0; c < 6; c++) {
+                    bounds[m][c] = header.getFloat();
+                }
+                frameSize += 3 * atomCounts[m];
+            }
+            int snapshotCount = header.getInt();
+            if (snapshotCount < 1 || channel.size() != headerSize + 4L * frameSize * (snapshotCount - 1)) {
+                return null;
+            }
+            if (frameCount != -1 && snapshotCount - 1 != frameCount) {
+                return null;
+            }
+
+            // mapping stays valid after the channel is closed
+            return new MappedTrajectory(atomCounts, bounds, snapshotCount, channel, headerSize);
+        }
+    }
+
+    /**
+     * Writes snapshots (except the topology) of dynamics held in memory,
+     * e.g., loaded from a series of PDB files, into the cache file.
+     */
+    public static void create(File cache, File source, int start, int end, Dynamics dynamics) throws IOException {
+        List<Molecule> molecules = getMolecules(dynamics);
+        try (Writer writer = new Writer(cache, source, start, end, -1, dynamics)) {
+            float[][] snapshot = new float[molecules.size()][];
+            for (int s = 1; s < dynamics.getSnapshotCount(); s++) {
+                for (int m = 0; m < molecules.size(); m++) {
+                    snapshot[m] = molecules.get(m).getAtomPositions(s);
+                }
+                writer.add(snapshot);
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * Sets snapshot sources of the molecule and drugs of the dynamics to
+     * the mapped trajectory.
+     */
+    public void attach(Dynamics dynamics) {
+        List<Molecule> molecules = getMolecules(dynamics);
+        for (int m = 0; m < molecules.size(); m++) {
+            Molecule molecule = molecules.get(m);
+            molecule.setSnapshotSource(new Source(molecule.getSnapshots().get(0), m));
+        }
+    }
+
+    public int getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * @return size of mapped snapshots in bytes
+     */
+    public long getMappedSize() {
+        return 4L * frameSize * (snapshotCount - 1);
+    }
+
+    private void read(int snapshot, int molecule, float[] positions) {
+        int frame = snapshot - 1;
+        FloatBuffer window = windows[frame / framesPerWindow].duplicate();
+        window.position((frame % framesPerWindow) * frameSize + atomOffsets[molecule]);
+        window.get(positions, 0, 3 * atomCounts[molecule]);
+    }
+
+    private static List<Molecule> getMolecules(Dynamics dynamics) {
+        List<Molecule> molecules = new ArrayList<>();
+        molecules.add(dynamics.getMolecule());
+        molecules.addAll(dynamics.getDrugs());
+        return molecules;
+    }
+
+    private static long getHeaderSize(int moleculeCount) {
+        return HEADER_SIZE + moleculeCount * MOLECULE_HEADER_SIZE + SNAPSHOT_COUNT_SIZE;
+    }
+
+    private class Source extends BufferedSnapshotSource {
+
+        private final int molecule;
+
+        // translation of snapshots
+        private float tx = 0f;
+        private float ty = 0f;
+        private float tz = 0f;
+
+        Source(float[] topology, int molecule) {
+            super(topology);
+            this.molecule = molecule;
+        }
+
+        @Override
+        protected synchronized void decode(int snapshot, float[] positions) {
+            read(snapshot, molecule, positions);
+            if (tx != 0f || ty != 0f || tz != 0f) {
+                for (int i = 0; i < atomCount; i++) {
+                    positions[3 * i] += tx;
+                    positions[3 * i + 1] += ty;
+                    positions[3 * i + 2] += tz;
+                }
+            }
+        }
+
+        @Override
+        public int getSnapshotCount() {
+            return snapshotCount;
+        }
+
+        @Override
+        public synchronized void updateBounds(Point3f min, Point3f max) {
+            if (snapshotCount < 2) {
+                return;
+            }
+            float[] b = bounds[molecule];
+            min.x = Math.min(min.x, b[0] + tx);
+            min.y = Math.min(min.y, b[1] + ty);
+            min.z = Math.min(min.z, b[2] + tz);
+            max.x = Math.max(max.x, b[3] + tx);
+            max.y = Math.max(max.y, b[4] + ty);
+            max.z = Math.max(max.z, b[5] + tz);
+        }
+
+        @Override
+        public synchronized void translate(float x, float y, float z) {
+            tx += x;
+            ty += y;
+            tz += z;
+            invalidateBuffers();
+        }
+
+    }
+
+    /**
+     * Sequential writer of the cache file. Snapshots are written into a
+     * temporary file, which replaces the cache file on commit, so an
+     * interrupted conversion (closed without commit) does not leave a
+     * partial cache.
+     */
+    public static class Writer implements AutoCloseable {
+
+        private final File cache;
+        private final File temporary;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+
+        private final int[] atomCounts;
+        private final float[][] bounds;
+        private final int frameCount;
+        private final ByteBuffer frame;
+        private int snapshotCount = 1;
+        private boolean committed = false;
+
+        /**
+         * @param cache cache file
+         * @param source source of the cache
+         * @param start first frame
+         * @param end frame after the last frame or -1 for all frames
+         * @param frameCount number of frames to be written or -1, if unknown
+         * @param topology dynamics holding the topology snapshot
+         */
+        public Writer(File cache, File source, int start, int end, int frameCount, Dynamics topology) throws IOException {
+            List<Molecule> molecules = getMolecules(topology);
+            this.cache = cache;
+            this.temporary = new File(cache.getPath() + ".tmp");
+            this.frameCount = frameCount;
+            this.file = new RandomAccessFile(temporary, "rw");
+            this.channel = file.getChannel();
+            channel.truncate(0L);
+
+            this.atomCounts = new int[molecules.size()];
+            this.bounds = new float[molecules.size()][];
+            int frameSize = 0;
+            for (int m = 0; m < molecules.size(); m++) {
+                atomCounts[m] = molecules.get(m).getAtomCount();
+                bounds[m] = new float[] {
+                    Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY
+                };
+                frameSize += 3 * atomCounts[m];
+            }
+            this.frame = ByteBuffer.allocateDirect(4 * frameSize).order(ByteOrder.LITTLE_ENDIAN);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.putLong(source.length()).putLong(source.lastModified());
+            header.putInt(start).putInt(end).putInt(frameCount).putInt(molecules.size());
+            header.flip();
+            channel.write(header);
+            // bounds and snapshot count are written on commit
+            channel.position(getHeaderSize(molecules.size()));
+        }
+
+        /**
+         * @param snapshot positions of the molecule and drugs
+         */
+        public void add(float[][] snapshot) throws IOException {
+            frame.clear();
+            for (int m = 0; m < atomCounts.length; m++) {
+                float[] positions = snapshot[m];
+                if (positions.length != 3 * atomCounts[m]) {
+                    throw new IllegalArgumentException("Snapshot does not match topology");
+                }
+                float[] b = bounds[m];
+                for (int i = 0; i < atomCounts[m]; i++) {
+                    for (int c = 0; c < 3; c++) {
+                        float value = positions[3 * i + c];
+                        b[c] = Math.min(b[c], value);
+                        b[c + 3] = Math.max(b[c + 3], value);
+                        frame.putFloat(value);
+                    }
+                }
+            }
+            frame.flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            snapshotCount++;
+        }
+
+        public int getSnapshotCount() {
+            return snapshotCount;
+        }
+
+        /**
+         * Completes the header and replaces the cache file.
+         */
+        public void commit() throws IOException {
+            if (frameCount != -1 && snapshotCount - 1 != frameCount) {
+                throw new IOException("Incomplete cache " + cache + ": " + (snapshotCount - 1)
+                        + " of " + frameCount + " frames");
+            }
+            ByteBuffer header = ByteBuffer.allocate((int) getHeaderSize(atomCounts.length) - HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int m = 0; m < atomCounts.length; m++) {
+                header.putInt(atomCounts[m]);
+                for (float value : bounds[m]) {
+                    header.putFloat(value);
+                }
+            }
+            header.putInt(snapshotCount);
+            header.flip();
+            channel.write(header, HEADER_SIZE);
+            file.close();
+
+            if (cache.exists() && !cache.delete()) {
+                throw new IOException("Failed to replace cache " + cache);
+            }
+            if (!temporary.renameTo(cache)) {
+                throw new IOException("Failed to write cache " + cache);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                file.close();
+                temporary.delete();
+            }
+        }
+
+    }
+
+}
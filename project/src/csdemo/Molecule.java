@@ -1,8 +1,14 @@
 package csdemo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import javax.vecmath.Vector3f;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.vecmath.Point3f;
 
 /**
  *
@@ -12,10 +18,18 @@ public class Molecule {
     
     private static final float TOLERANCE_MIN = 0.4f;
     private static final float TOLERANCE_MAX = 0.56f;
+    // residues with more atoms are searched for bonds in a grid
+    private static final int BOND_GRID_THRESHOLD = 64;
+    // number of atoms of residues processed by a task
+    private static final int BOND_TASK_SIZE = 4096;
     
     protected List<Atom> atoms = new ArrayList<>();
     protected List<float[]> snapshots = new ArrayList<>();
     protected List<Bond> bonds = new ArrayList<>();
+    // snapshots loaded on demand or stored compactly, snapshots then hold
+    // only the topology
+    private SnapshotSource source;
+    private QuantizedSnapshotStore compactStore;
     
     public Molecule() {
         // empty molecule
@@ -35,6 +49,22 @@ public class Molecule {
         addSnapshotPositions(atoms);
     }
     
+    /**
+     * Adds snapshot of a molecule with topology.
+     * 
+     * @param positions positions (x, y, z) of all atoms
+     */
+    public void addSnapshot(float[] positions) {
+        if (positions.length != 3 * atoms.size()) {
+            throw new IllegalArgumentException("Snapshot does not match topology");
+        }
+        if (compactStore != null) {
+            compactStore.add(positions);
+        } else {
+            snapshots.add(positions);
+        }
+    }
+    
     private void addSnapshotPositions(List<Atom> atoms) {
         float[] snapshot = new float[3 * atoms.size()];
         for (int i = 0; i < atoms.size(); i++) {
@@ -43,7 +73,39 @@ public class Molecule {
             snapshot[3 * i + 1] = atom.y;
             snapshot[3 * i + 2] = atom.z;
         }
-        snapshots.add(snapshot);
+        if (compactStore != null) {
+            compactStore.add(snapshot);
+        } else {
+            snapshots.add(snapshot);
+        }
+    }
+    
+    /**
+     * Stores snapshots (except the topology) quantized to 16 bits per
+     * coordinate (see QuantizedSnapshotStore). Snapshots already in memory
+     * are converted, later snapshots are quantized as they are added.
+     */
+    public void compactSnapshots() {
+        if (compactStore != null) {
+            return;
+        }
+        if (snapshots.isEmpty()) {
+            throw new IllegalStateException("Topology has to be loaded first");
+        }
+        if (source != null) {
+            throw new IllegalStateException("Snapshots are not held in memory");
+        }
+        
+        compactStore = new QuantizedSnapshotStore(snapshots.get(0));
+        for (int i = 1; i < snapshots.size(); i++) {
+            compactStore.add(snapshots.get(i));
+        }
+        snapshots.subList(1, snapshots.size()).clear();
+        source = compactStore;
+    }
+    
+    public boolean isCompact() {
+        return compactStore != null;
     }
     
     public void computeBonds() {
@@ -59,42 +121,194 @@ public class Molecule {
         // add last fake residue
         residues.add(atoms.size());
         
-        for (int i = 0; i < residues.size() - 1; i++) {
-            Integer residueStart = residues.get(i);
-            Integer residueEnd = residues.get(i + 1);
-            computeBondsInResidue(residueStart, residueEnd);
+        // covalent radii and positions of atoms
+        final float[] radii = new float[atoms.size()];
+        final float[] positions = new float[3 * atoms.size()];
+        for (int i = 0; i < atoms.size(); i++) {
+            Atom atom = atoms.get(i);
+            Float radius = Utils.getCovalentRadiusOrNull(atom.type);
+            // atoms of unknown type are not bonded
+            radii[i] = (radius != null) ? radius : Float.NaN;
+            positions[3 * i] = atom.x;
+            positions[3 * i + 1] = atom.y;
+            positions[3 * i + 2] = atom.z;
+        }
+        
+        // residues are split into tasks of about BOND_TASK_SIZE atoms
+        final List<int[]> tasks = new ArrayList<>();
+        int taskStart = 0;
+        for (int i = 1; i < residues.size(); i++) {
+            if (residues.get(i) - residues.get(taskStart) >= BOND_TASK_SIZE || i == residues.size() - 1) {
+                int[] task = new int[i - taskStart + 1];
+                for (int r = taskStart; r <= i; r++) {
+                    task[r - taskStart] = residues.get(r);
+                }
+                tasks.add(task);
+                taskStart = i;
+            }
+        }
+        
+        List<List<Bond>> taskBonds = new ArrayList<>();
+        int threadCount = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        if (threadCount <= 1) {
+            for (int[] task : tasks) {
+                taskBonds.add(computeBondsInResidues(task, positions, radii));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                List<Future<List<Bond>>> results = new ArrayList<>();
+                for (final int[] task : tasks) {
+                    results.add(executor.submit(new Callable<List<Bond>>() {
+                        @Override
+                        public List<Bond> call() {
+                            return computeBondsInResidues(task, positions, radii);
+                        }
+                    }));
+                }
+                for (Future<List<Bond>> result : results) {
+                    taskBonds.add(result.get());
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new IllegalStateException("Failed to compute bonds", ex);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        // bonds are in the order of residues
+        for (List<Bond> b : taskBonds) {
+            bonds.addAll(b);
         }
         
         computeBondsBetweenResidues(residues);
     }
     
-    private void computeBondsInResidue(int start, int end) {
-        Atom firstAtom, secondAtom;
-        Vector3f posFirst, posSecond;
-
+    /**
+     * @param residues starts of residues followed by the end of the last
+     * residue
+     */
+    private static List<Bond> computeBondsInResidues(int[] residues, float[] positions, float[] radii) {
+        List<Bond> residueBonds = new ArrayList<>();
+        int[] neighbors = new int[16];
+        for (int r = 0; r < residues.length - 1; r++) {
+            int start = residues[r];
+            int end = residues[r + 1];
+            if (end - start <= BOND_GRID_THRESHOLD) {
+                computeBondsInResidue(start, end, positions, radii, residueBonds);
+            } else {
+                neighbors = computeBondsInResidueGrid(start, end, positions, radii, residueBonds, neighbors);
+            }
+        }
+        return residueBonds;
+    }
+    
+    private static void computeBondsInResidue(int start, int end, float[] positions, float[] radii, List<Bond> bonds) {
         for (int i = start; i < end - 1; i++) {
-            // gets first atom for bond
-            firstAtom = atoms.get(i);
             for (int j = i + 1; j < end; j++) {
-                // gets second atom for bond
-                secondAtom = atoms.get(j);
-                // if bond between the atoms doesn't already exists, it is added according to the computation result
-                if (true /*i < j*/) {
-                    // gets position of atoms
-                    posFirst = firstAtom;
-                    posSecond = secondAtom;
-                    // computes the length of bond between first and second atom
-                    float x = posFirst.x - posSecond.x;
-                    float y = posFirst.y - posSecond.y;
-                    float z = posFirst.z - posSecond.z;
-                    float mag = x * x + y * y + z * z;
-                    float tolerance = Utils.getCovalentRadius(firstAtom.type) + Utils.getCovalentRadius(secondAtom.type) + TOLERANCE_MAX;
-                    if (mag > (TOLERANCE_MIN * TOLERANCE_MIN) && mag < (tolerance * tolerance)) {
-                        bonds.add(new Bond(i, j));
+                if (isBonded(i, j, positions, radii)) {
+                    bonds.add(new Bond(i, j));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Finds bonds of a large residue in a uniform grid with cells not
+     * smaller than the longest possible bond. Bonds are added in the same
+     * order as by computeBondsInResidue.
+     * 
+     * @return buffer for neighbors (possibly enlarged)
+     */
+    private static int[] computeBondsInResidueGrid(int start, int end, float[] positions, float[] radii,
+            List<Bond> bonds, int[] neighbors) {
+        int count = end - start;
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        float maxRadius = 0f;
+        for (int i = start; i < end; i++) {
+            minX = Math.min(minX, positions[3 * i]);
+            minY = Math.min(minY, positions[3 * i + 1]);
+            minZ = Math.min(minZ, positions[3 * i + 2]);
+            maxX = Math.max(maxX, positions[3 * i]);
+            maxY = Math.max(maxY, positions[3 * i + 1]);
+            maxZ = Math.max(maxZ, positions[3 * i + 2]);
+            if (radii[i] > maxRadius) {
+                maxRadius = radii[i];
+            }
+        }
+        
+        // cells are enlarged for sparse residues, so there are at most
+        // about as many cells as atoms
+        float cellSize = 2f * maxRadius + TOLERANCE_MAX;
+        float volume = (maxX - minX) * (maxY - minY) * (maxZ - minZ);
+        cellSize = Math.max(cellSize, (float) Math.cbrt(volume / count));
+        int dimX = (int) ((maxX - minX) / cellSize) + 1;
+        int dimY = (int) ((maxY - minY) / cellSize) + 1;
+        int dimZ = (int) ((maxZ - minZ) / cellSize) + 1;
+        while ((long) dimX * dimY * dimZ > 8L * count) {
+            cellSize *= 2f;
+            dimX = (int) ((maxX - minX) / cellSize) + 1;
+            dimY = (int) ((maxY - minY) / cellSize) + 1;
+            dimZ = (int) ((maxZ - minZ) / cellSize) + 1;
+        }
+        
+        // atoms sorted by cells (counting sort)
+        int[] cells = new int[count];
+        int[] cellStarts = new int[dimX * dimY * dimZ + 1];
+        for (int i = 0; i < count; i++) {
+            int cx = (int) ((positions[3 * (start + i)] - minX) / cellSize);
+            int cy = (int) ((positions[3 * (start + i) + 1] - minY) / cellSize);
+            int cz = (int) ((positions[3 * (start + i) + 2] - minZ) / cellSize);
+            cells[i] = (cz * dimY + cy) * dimX + cx;
+            cellStarts[cells[i] + 1]++;
+        }
+        for (int c = 0; c < cellStarts.length - 1; c++) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        int[] cellAtoms = new int[count];
+        int[] fill = Arrays.copyOf(cellStarts, cellStarts.length - 1);
+        for (int i = 0; i < count; i++) {
+            cellAtoms[fill[cells[i]]++] = start + i;
+        }
+        
+        for (int i = start; i < end; i++) {
+            int cell = cells[i - start];
+            int cx = cell % dimX;
+            int cy = (cell / dimX) % dimY;
+            int cz = cell / (dimX * dimY);
+            int neighborCount = 0;
+            for (int z = Math.max(cz - 1, 0); z <= Math.min(cz + 1, dimZ - 1); z++) {
+                for (int y = Math.max(cy - 1, 0); y <= Math.min(cy + 1, dimY - 1); y++) {
+                    for (int x = Math.max(cx - 1, 0); x <= Math.min(cx + 1, dimX - 1); x++) {
+                        int c = (z * dimY + y) * dimX + x;
+                        for (int k = cellStarts[c]; k < cellStarts[c + 1]; k++) {
+                            int j = cellAtoms[k];
+                            if (j > i && isBonded(i, j, positions, radii)) {
+                                if (neighborCount == neighbors.length) {
+                                    neighbors = Arrays.copyOf(neighbors, 2 * neighbors.length);
+                                }
+                                neighbors[neighborCount++] = j;
+                            }
+                        }
                     }
                 }
             }
+            Arrays.sort(neighbors, 0, neighborCount);
+            for (int n = 0; n < neighborCount; n++) {
+                bonds.add(new Bond(i, neighbors[n]));
+            }
         }
+        return neighbors;
+    }
+    
+    private static boolean isBonded(int i, int j, float[] positions, float[] radii) {
+        // computes the length of bond between first and second atom
+        float x = positions[3 * i] - positions[3 * j];
+        float y = positions[3 * i + 1] - positions[3 * j + 1];
+        float z = positions[3 * i + 2] - positions[3 * j + 2];
+        float mag = x * x + y * y + z * z;
+        float tolerance = radii[i] + radii[j] + TOLERANCE_MAX;
+        return mag > (TOLERANCE_MIN * TOLERANCE_MIN) && mag < (tolerance * tolerance);
     }
     
     private void computeBondsBetweenResidues(List<Integer> residues) {
@@ -157,15 +371,73 @@ public class Molecule {
     }
     
     public float[] getAtomPositions(int snapshot) {
+        if (source != null) {
+            return source.getAtomPositions(snapshot);
+        }
         return snapshots.get(snapshot);
     }
     
     public int getSnapshotCount() {
+        if (source != null) {
+            return source.getSnapshotCount();
+        }
         return snapshots.size();
     }
     
+    /**
+     * @return snapshots held in memory (only the topology, if snapshots
+     * are loaded on demand)
+     */
     public List<float[]> getSnapshots() {
         return snapshots;
     }
     
+    public void setSnapshotSource(SnapshotSource source) {
+        this.source = source;
+        this.compactStore = null;
+    }
+    
+    /**
+     * Extends bounds by snapshots of the snapshot source, snapshots held
+     * in memory are not included.
+     */
+    public void updateSourceBounds(Point3f min, Point3f max) {
+        if (source != null) {
+            source.updateBounds(min, max);
+        }
+    }
+    
+    /**
+     * Translates snapshots of the snapshot source, snapshots held in memory
+     * are not translated.
+     */
+    public void translateSource(float x, float y, float z) {
+        if (source != null) {
+            source.translate(x, y, z);
+        }
+    }
+    
+    /**
+     * Provider of snapshots, which are not held in memory as they are (see
+     * StreamingDynamics and QuantizedSnapshotStore).
+     */
+    public interface SnapshotSource {
+        
+        float[] getAtomPositions(int snapshot);
+        
+        int getSnapshotCount();
+        
+        /**
+         * Extends bounds by positions of all snapshots known without
+         * loading them.
+         */
+        void updateBounds(Point3f min, Point3f max);
+        
+        /**
+         * Translates all snapshots except the topology.
+         */
+        void translate(float x, float y, float z);
+        
+    }
+    
 }
@@ -0,0 +1,152 @@
+package csdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reader of PDB files with several models (MODEL and ENDMDL records, e.g.,
+ * NMR ensembles). The topology is built from the first model, the other
+ * models are read as positions only, either in order or at random (e.g.,
+ * by streamed playback, see StreamingDynamics). Files are mapped, only
+ * offsets of models are kept in memory. A file without MODEL records is
+ * a single model. Every read parses its own view of the data, so models
+ * can be read by several threads at once.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class MultiModelPdbReader {
+
+    private final ByteBuffer data;
+
+    // offsets of MODEL records (or of the file, if there are none)
+    private final int[] offsets;
+    private final boolean models;
+    private final List<Atom> topology;
+
+    // next model read by nextModel
+    private int next = 0;
+
+    public MultiModelPdbReader(ByteBuffer data) {
+        this.data = data;
+        FixedColumnParser parser = new FixedColumnParser(data.duplicate());
+
+        int[] modelOffsets = new int[16];
+        int modelCount = 0;
+        while (parser.nextLine()) {
+            if (parser.startsWith("MODEL")) {
+                if (modelCount == modelOffsets.length) {
+                    modelOffsets = Arrays.copyOf(modelOffsets, 2 * modelOffsets.length);
+                }
+                modelOffsets[modelCount++] = parser.getLineOffset();
+            }
+        }
+        this.models = modelCount > 0;
+        if (modelCount == 0) {
+            modelOffsets[modelCount++] = data.position();
+        }
+        this.offsets = Arrays.copyOf(modelOffsets, modelCount);
+
+        ByteBuffer first = data.duplicate();
+        first.position(offsets[0]);
+        this.topology = Utils.loadAtoms(first, new FixedColumnParser.SymbolTable());
+    }
+
+    public static MultiModelPdbReader open(File file) throws IOException {
+        return new MultiModelPdbReader(FixedColumnParser.read(file));
+    }
+
+    public static MultiModelPdbReader openResource(String name) throws IOException {
+        InputStream is = MultiModelPdbReader.class.getResourceAsStream(name);
+        if (is == null) {
+            throw new IOException("Resource " + name + " not found");
+        }
+        return new MultiModelPdbReader(FixedColumnParser.read(is));
+    }
+
+    /**
+     * @return atoms of the first model
+     */
+    public List<Atom> getTopology() {
+        return topology;
+    }
+
+    public int getAtomCount() {
+        return topology.size();
+    }
+
+    public int getModelCount() {
+        return offsets.length;
+    }
+
+    /**
+     * Reads positions of the next model, the first call reads the first
+     * model.
+     *
+     * @return false if there are no more models
+     */
+    public boolean nextModel(float[] positions) {
+        int model;
+        synchronized (this) {
+            if (next >= offsets.length) {
+                return false;
+            }
+            model = next++;
+        }
+        parseModel(model, positions);
+        return true;
+    }
+
+    /**
+     * Reads positions of the given model and continues with the following
+     * model on the next call of nextModel.
+     *
+     * @param model model index (0..n-1)
+     * @param positions positions (x, y, z) of all atoms
+     */
+    public void readModel(int model, float[] positions) {
+        parseModel(model, positions);
+        synchronized (this) {
+            next = model + 1;
+        }
+    }
+
+    private void parseModel(int model, float[] positions) {
+        if (positions.length != 3 * topology.size()) {
+            throw new IllegalArgumentException("Snapshot does not match topology");
+        }
+
+        FixedColumnParser parser = new FixedColumnParser(data.duplicate());
+        parser.seek(offsets[model]);
+        if (models) {
+            // skip MODEL record
+            parser.nextLine();
+        }
+        int count = 0;
+        while (parser.nextLine() && !parser.startsWith("ENDMDL") && !parser.startsWith("MODEL")) {
+            if (parser.startsWith("ATOM")) {
+                if (count < topology.size()) {
+                    positions[3 * count] = parser.getFloat(30, 38);
+                    positions[3 * count + 1] = parser.getFloat(38, 46);
+                    positions[3 * count + 2] = parser.getFloat(46, 54);
+                }
+                count++;
+            }
+        }
+        if (count != topology.size()) {
+            throw new IllegalArgumentException("Model " + (model + 1) + " has " + count
+                    + " atoms instead of " + topology.size());
+        }
+    }
+
+    /**
+     * Rewinds to the first model.
+     */
+    public synchronized void reset() {
+        next = 0;
+    }
+
+}
@@ -0,0 +1,137 @@
+package csdemo;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over atom centers for the CPU neighbor search. It mirrors
+ * hash.glsl and neighbors.glsl, but stores the cells in a compact counting-sort
+ * layout (cell offsets + atom indices), so there is no MAX_CELL_ATOMS limit.
+ *
+ * The cell size is chosen so that all neighbors of an atom lie in the 3x3x3
+ * block of cells around it.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class NeighborGrid {
+
+    private final float cellSize;
+
+    private float minX;
+    private float minY;
+    private float minZ;
+    private int sizeX;
+    private int sizeY;
+    private int sizeZ;
+
+    private int[] cellStarts = new int[0];
+    private int[] cellAtoms = new int[0];
+
+    public NeighborGrid(float maxRadius, float probeRadius) {
+        // two extended spheres intersect only if their centers are closer than this
+        this.cellSize = 2f * (maxRadius + probeRadius);
+    }
+
+    /**
+     * Sorts atoms into grid cells.
+     *
+     * @param positions atom positions
+     * @param stride number of floats per atom (3 for xyz, 4 for xyzr)
+     * @param count number of atoms
+     */
+    public void build(float[] positions, int stride, int count) {
+        float maxX, maxY, maxZ;
+        minX = minY = minZ = Float.MAX_VALUE;
+        maxX = maxY = maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int offset = stride * i;
+            minX = Math.min(minX, positions[offset]);
+            minY = Math.min(minY, positions[offset + 1]);
+            minZ = Math.min(minZ, positions[offset + 2]);
+            maxX = Math.max(maxX, positions[offset]);
+            maxY = Math.max(maxY, positions[offset + 1]);
+            maxZ = Math.max(maxZ, positions[offset + 2]);
+        }
+        if (count == 0) {
+            minX = minY = minZ = 0f;
+            maxX = maxY = maxZ = 0f;
+        }
+
+        sizeX = (int) ((maxX - minX) / cellSize) + 1;
+        sizeY = (int) ((maxY - minY) / cellSize) + 1;
+        sizeZ = (int) ((maxZ - minZ) / cellSize) + 1;
+
+        int cellCount = sizeX * sizeY * sizeZ;
+        if (cellStarts.length < cellCount + 1) {
+            cellStarts = new int[cellCount + 1];
+        } else {
+            Arrays.fill(cellStarts, 0, cellCount + 1, 0);
+        }
+        if (cellAtoms.length < count) {
+            cellAtoms = new int[count];
+        }
+
+        // count atoms in cells
+        for (int i = 0; i < count; i++) {
+            int offset = stride * i;
+            int cell = cellIndex(cellX(positions[offset]), cellY(positions[offset + 1]), cellZ(positions[offset + 2]));
+            cellStarts[cell + 1]++;
+        }
+        // prefix sum
+        for (int c = 0; c < cellCount; c++) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        // fill cells (atoms stay sorted by index within a cell)
+        int[] fill = new int[cellCount];
+        for (int i = 0; i < count; i++) {
+            int offset = stride * i;
+            int cell = cellIndex(cellX(positions[offset]), cellY(positions[offset + 1]), cellZ(positions[offset + 2]));
+            cellAtoms[cellStarts[cell] + fill[cell]] = i;
+            fill[cell]++;
+        }
+    }
+
+    public int cellX(float x) {
+        return Math.min(sizeX - 1, Math.max(0, (int) ((x - minX) / cellSize)));
+    }
+
+    public int cellY(float y) {
+        return Math.min(sizeY - 1, Math.max(0, (int) ((y - minY) / cellSize)));
+    }
+
+    public int cellZ(float z) {
+        return Math.min(sizeZ - 1, Math.max(0, (int) ((z - minZ) / cellSize)));
+    }
+
+    public int cellIndex(int x, int y, int z) {
+        return (z * sizeY + y) * sizeX + x;
+    }
+
+    public int getCellStart(int cell) {
+        return cellStarts[cell];
+    }
+
+    public int getCellEnd(int cell) {
+        return cellStarts[cell + 1];
+    }
+
+    public int getAtom(int index) {
+        return cellAtoms[index];
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+}
@@ -0,0 +1,199 @@
+package csdemo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pipelined XTC trajectory reader. A reader thread slices frames out of
+ * the mapped file, worker threads decode them and the calling thread
+ * receives decoded frames in order. At most queueSize frames are in
+ * flight, so a slow consumer stops the reader.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class ParallelXtcReader implements Closeable {
+
+    private final XtcReader reader;
+    private final int threadCount;
+    private final int queueSize;
+
+    // statistics
+    private int decodedFrames = 0;
+    private long decodeTime = 0L;
+
+    public ParallelXtcReader(File trajectory, int threadCount) throws IOException {
+        this(trajectory, threadCount, 4 * threadCount);
+    }
+
+    /**
+     * @param trajectory uncompressed XTC trajectory
+     * @param threadCount number of decoding threads
+     * @param queueSize maximum number of frames in flight
+     */
+    public ParallelXtcReader(File trajectory, int threadCount, int queueSize) throws IOException {
+        if (threadCount < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Invalid thread count or queue size");
+        }
+        this.reader = new XtcReader(trajectory);
+        this.threadCount = threadCount;
+        this.queueSize = queueSize;
+    }
+
+    public int getFrameCount() {
+        return reader.getFrameCount();
+    }
+
+    /**
+     * Decodes frames and passes them to the listener in the given order.
+     * The listener is called from the calling thread, positions are valid
+     * only during the call.
+     *
+     * @param frames frame indices
+     * @param listener consumer of decoded frames
+     */
+    public void read(final int[] frames, FrameListener listener) throws Exception {
+        long time = System.nanoTime();
+
+        final Semaphore inFlight = new Semaphore(queueSize);
+        final BlockingQueue<Task> input = new ArrayBlockingQueue<>(queueSize + threadCount);
+        final BlockingQueue<Task> output = new ArrayBlockingQueue<>(queueSize + 1);
+        final ConcurrentLinkedQueue<float[]> buffers = new ConcurrentLinkedQueue<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+        try {
+            // reader
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < frames.length; i++) {
+                            inFlight.acquire();
+                            input.put(new Task(i, frames[i], reader.getFrameData(frames[i])));
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Exception ex) {
+                        Task error = new Task(-1, -1, null);
+                        error.error = ex;
+                        output.offer(error);
+                    }
+                    try {
+                        for (int i = 0; i < threadCount; i++) {
+                            input.put(Task.END);
+                        }
+                    } catch (InterruptedException ex) {
+                        // cancelled
+                    }
+                }
+            });
+
+            // decoders
+            for (int t = 0; t < threadCount; t++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        XtcDecoder decoder = new XtcDecoder();
+                        try {
+                            for (Task task = input.take(); task != Task.END; task = input.take()) {
+                                try {
+                                    int length = 3 * XtcDecoder.getAtomCount(task.data);
+                                    float[] positions = buffers.poll();
+                                    if (positions == null || positions.length < length) {
+                                        positions = new float[length];
+                                    }
+                                    decoder.decode(task.data, positions);
+                                    task.positions = positions;
+                                } catch (Exception ex) {
+                                    task.error = ex;
+                                }
+                                task.data = null;
+                                output.put(task);
+                            }
+                        } catch (InterruptedException ex) {
+                            // cancelled
+                        }
+                    }
+                });
+            }
+
+            // ordered collector
+            Map<Integer, Task> pending = new HashMap<>();
+            for (int next = 0; next < frames.length; next++) {
+                Task task = pending.remove(next);
+                while (task == null) {
+                    Task decoded = output.take();
+                    if (decoded.error != null) {
+                        throw decoded.error;
+                    }
+                    if (decoded.sequence == next) {
+                        task = decoded;
+                    } else {
+                        pending.put(decoded.sequence, decoded);
+                    }
+                }
+                listener.frameDecoded(task.frame, task.positions);
+                buffers.offer(task.positions);
+                inFlight.release();
+                decodedFrames++;
+            }
+        } finally {
+            executor.shutdownNow();
+            decodeTime += System.nanoTime() - time;
+        }
+    }
+
+    public int getDecodedFrameCount() {
+        return decodedFrames;
+    }
+
+    /**
+     * @return decode throughput of all frames read so far
+     */
+    public float getFramesPerSecond() {
+        return decodeTime > 0L ? decodedFrames * 1e9f / decodeTime : 0f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    public interface FrameListener {
+
+        /**
+         * @param frame frame index
+         * @param positions positions (x, y, z) of all atoms of the frame
+         */
+        void frameDecoded(int frame, float[] positions) throws Exception;
+
+    }
+
+    private static class Task {
+
+        static final Task END = new Task(-1, -1, null);
+
+        final int sequence;
+        final int frame;
+        ByteBuffer data;
+        float[] positions;
+        Exception error;
+
+        Task(int sequence, int frame, ByteBuffer data) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.data = data;
+        }
+
+    }
+
+}
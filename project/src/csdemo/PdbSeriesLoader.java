@@ -0,0 +1,201 @@
+package csdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loader of dynamics stored as a series of PDB files (one snapshot per
+ * file). The topology is built from the first file only, positions of the
+ * other files are parsed concurrently straight into snapshot arrays, the
+ * number of ATOM records of every file has to match the topology. Models
+ * of a single file are loaded as snapshots (see MultiModelPdbReader), or
+ * streamed, so only snapshots around the current one are held in memory.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class PdbSeriesLoader {
+
+    // number of parsing threads
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    // store snapshots quantized (see QuantizedSnapshotStore)
+    private boolean compactSnapshots = false;
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public boolean isCompactSnapshots() {
+        return compactSnapshots;
+    }
+
+    public void setCompactSnapshots(boolean compactSnapshots) {
+        this.compactSnapshots = compactSnapshots;
+    }
+
+    public Dynamics load(File[] files) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        for (final File file : files) {
+            inputs.add(new Input(file.getName()) {
+                @Override
+                ByteBuffer read() throws IOException {
+                    return FixedColumnParser.read(file);
+                }
+            });
+        }
+        return load(inputs);
+    }
+
+    /**
+     * Streams models of a single file (see StreamingDynamics).
+     *
+     * @param budget maximum size of resident snapshots in bytes
+     */
+    public Dynamics stream(File file, long budget) throws IOException {
+        return new StreamingDynamics(MultiModelPdbReader.open(file), budget, threadCount);
+    }
+
+    /**
+     * Loads snapshots name.start.pdb to name.end.pdb from resources.
+     */
+    public Dynamics loadFromResource(String name, int start, int end) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        for (int i = start; i <= end; i++) {
+            final String resource = name + "." + i + ".pdb";
+            inputs.add(new Input(resource) {
+                @Override
+                ByteBuffer read() throws IOException {
+                    InputStream is = PdbSeriesLoader.class.getResourceAsStream(resource);
+                    if (is == null) {
+                        throw new IOException("Resource " + resource + " not found");
+                    }
+                    return FixedColumnParser.read(is);
+                }
+            });
+        }
+        return load(inputs);
+    }
+
+    private Dynamics load(List<Input> inputs) throws IOException {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No snapshots to load");
+        }
+
+        if (inputs.size() == 1) {
+            return loadModels(new MultiModelPdbReader(inputs.get(0).read()));
+        }
+
+        List<Atom> topology = Utils.loadAtoms(inputs.get(0).read(), new FixedColumnParser.SymbolTable());
+        Dynamics dynamics = new Dynamics(Collections.singletonList(topology));
+        Molecule molecule = dynamics.getMolecule();
+        if (compactSnapshots) {
+            molecule.compactSnapshots();
+        }
+
+        final int atomCount = topology.size();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, inputs.size() - 1)));
+        try {
+            List<Future<float[]>> snapshots = new ArrayList<>();
+            for (final Input input : inputs.subList(1, inputs.size())) {
+                snapshots.add(executor.submit(new Callable<float[]>() {
+                    @Override
+                    public float[] call() throws IOException {
+                        float[] positions = new float[3 * atomCount];
+                        int count = readPositions(input.read(), positions);
+                        if (count != atomCount) {
+                            throw new IllegalArgumentException("Snapshot " + input.name + " has "
+                                    + count + " atoms instead of " + atomCount);
+                        }
+                        return positions;
+                    }
+                }));
+            }
+            // snapshots are added in order as they are parsed
+            for (Future<float[]> snapshot : snapshots) {
+                molecule.addSnapshot(snapshot.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Loading interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to load snapshot", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return dynamics;
+    }
+
+    /**
+     * Loads models of a single file as snapshots.
+     */
+    private Dynamics loadModels(MultiModelPdbReader reader) {
+        Dynamics dynamics = new Dynamics(Collections.singletonList(reader.getTopology()));
+        Molecule molecule = dynamics.getMolecule();
+        if (compactSnapshots) {
+            molecule.compactSnapshots();
+        }
+
+        float[] positions = new float[3 * reader.getAtomCount()];
+        // the first model is the topology
+        reader.nextModel(positions);
+        while (reader.nextModel(positions)) {
+            molecule.addSnapshot(compactSnapshots ? positions : positions.clone());
+        }
+        return dynamics;
+    }
+
+    /**
+     * Parses positions of ATOM records, records exceeding the size of the
+     * array are only counted.
+     *
+     * @return number of ATOM records
+     */
+    public static int readPositions(ByteBuffer data, float[] positions) {
+        FixedColumnParser line = new FixedColumnParser(data);
+        int count = 0;
+        while (line.nextLine()) {
+            if (line.startsWith("ATOM")) {
+                if (3 * count + 2 < positions.length) {
+                    positions[3 * count] = line.getFloat(30, 38);
+                    positions[3 * count + 1] = line.getFloat(38, 46);
+                    positions[3 * count + 2] = line.getFloat(46, 54);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static abstract class Input {
+
+        final String name;
+
+        Input(String name) {
+            this.name = name;
+        }
+
+        abstract ByteBuffer read() throws IOException;
+
+    }
+
+}
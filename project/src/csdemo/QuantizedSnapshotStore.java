@@ -0,0 +1,119 @@
+package csdemo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.vecmath.Point3f;
+
+/**
+ * Compact storage of molecule snapshots. Positions of a snapshot are
+ * stored as 16-bit fixed-point offsets in the bounding box of the
+ * snapshot (error is at most 1/131070 of the box size, i.e., ~0.001 A
+ * for a 100 A box, below the precision of XTC trajectories). The
+ * topology snapshot is kept in full precision, other snapshots are
+ * dequantized on access (see BufferedSnapshotSource).
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class QuantizedSnapshotStore extends BufferedSnapshotSource {
+
+    private static final int LEVELS = 65535;
+
+    // quantized snapshots (1..n), box origin and scale (x, y, z)
+    private final List<short[]> snapshots = new ArrayList<>();
+    private float[] origins = new float[48];
+    private float[] scales = new float[48];
+
+    /**
+     * @param topology positions of the topology snapshot (snapshot 0)
+     */
+    public QuantizedSnapshotStore(float[] topology) {
+        super(topology);
+    }
+
+    public synchronized void add(float[] positions) {
+        if (positions.length != 3 * atomCount) {
+            throw new IllegalArgumentException("Snapshot does not match topology");
+        }
+
+        int index = snapshots.size();
+        if (3 * index + 3 > origins.length) {
+            origins = Arrays.copyOf(origins, 2 * origins.length);
+            scales = Arrays.copyOf(scales, 2 * scales.length);
+        }
+
+        // bounding box
+        for (int c = 0; c < 3; c++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < atomCount; i++) {
+                min = Math.min(min, positions[3 * i + c]);
+                max = Math.max(max, positions[3 * i + c]);
+            }
+            origins[3 * index + c] = min;
+            scales[3 * index + c] = (max > min) ? (max - min) / LEVELS : 0f;
+        }
+
+        short[] quantized = new short[3 * atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            for (int c = 0; c < 3; c++) {
+                float scale = scales[3 * index + c];
+                int q = (scale > 0f) ? Math.round((positions[3 * i + c] - origins[3 * index + c]) / scale) : 0;
+                quantized[3 * i + c] = (short) (Math.min(q, LEVELS) - 32768);
+            }
+        }
+        snapshots.add(quantized);
+    }
+
+    @Override
+    protected synchronized void decode(int snapshot, float[] positions) {
+        short[] quantized = snapshots.get(snapshot - 1);
+        int index = snapshot - 1;
+        float ox = origins[3 * index];
+        float oy = origins[3 * index + 1];
+        float oz = origins[3 * index + 2];
+        float sx = scales[3 * index];
+        float sy = scales[3 * index + 1];
+        float sz = scales[3 * index + 2];
+        for (int i = 0; i < atomCount; i++) {
+            positions[3 * i] = ox + (quantized[3 * i] + 32768) * sx;
+            positions[3 * i + 1] = oy + (quantized[3 * i + 1] + 32768) * sy;
+            positions[3 * i + 2] = oz + (quantized[3 * i + 2] + 32768) * sz;
+        }
+    }
+
+    @Override
+    public synchronized int getSnapshotCount() {
+        return 1 + snapshots.size();
+    }
+
+    @Override
+    public synchronized void updateBounds(Point3f min, Point3f max) {
+        for (int index = 0; index < snapshots.size(); index++) {
+            min.x = Math.min(min.x, origins[3 * index]);
+            min.y = Math.min(min.y, origins[3 * index + 1]);
+            min.z = Math.min(min.z, origins[3 * index + 2]);
+            max.x = Math.max(max.x, origins[3 * index] + LEVELS * scales[3 * index]);
+            max.y = Math.max(max.y, origins[3 * index + 1] + LEVELS * scales[3 * index + 1]);
+            max.z = Math.max(max.z, origins[3 * index + 2] + LEVELS * scales[3 * index + 2]);
+        }
+    }
+
+    @Override
+    public synchronized void translate(float x, float y, float z) {
+        for (int index = 0; index < snapshots.size(); index++) {
+            origins[3 * index] += x;
+            origins[3 * index + 1] += y;
+            origins[3 * index + 2] += z;
+        }
+        invalidateBuffers();
+    }
+
+    /**
+     * @return size of quantized snapshots and buffers in bytes
+     */
+    public synchronized long getMemoryFootprint() {
+        return 2L * 3L * atomCount * snapshots.size() + 4L * (origins.length + scales.length) + getBuffersFootprint();
+    }
+
+}
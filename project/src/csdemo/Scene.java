@@ -3,9 +3,12 @@ package csdemo;
 import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.util.gl2.GLUT;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import com.jogamp.opengl.DebugGL4bc;
 import com.jogamp.opengl.GL2;
 import com.jogamp.opengl.GL4;
@@ -18,7 +21,10 @@ import com.jogamp.opengl.GLDebugListener;
 import com.jogamp.opengl.GLDebugMessage;
 import com.jogamp.opengl.glu.GLU;
 import java.awt.Color;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 import javax.vecmath.Vector4f;
@@ -93,6 +99,7 @@ public class Scene implements GLEventListener {
     private int sphereCapCountsBuffer;
     private int sphereCapPlanesBuffer;
     private int countersBuffer;
+    private int limitsBuffer;
     
     private int atomsTex;
     private int gridCountsTex;
@@ -147,13 +154,10 @@ public class Scene implements GLEventListener {
     public static final int GRID_SIZE = 16;
     public static final int CELL_COUNT = GRID_SIZE * GRID_SIZE * GRID_SIZE;
     public static final int MAX_CELL_ATOMS = 64;
-    public static final int MAX_ATOMS = 16384;
-    public static final int MAX_PROBES = 32768; // 65536
-    public static final int MAX_NEIGHBORS = 128;
+    public static final int MAX_NEIGHBORS = 256; // neighbors of atom are a work group of arcs.cl
     public static final int MAX_ARCS = 32;
     public static final int MAX_SPHERE_ISOLATED_TORI = 8;
-    public static final int MAX_TOTAL_ARCS = 32771; // 257, 521, 1031, 2053, 4099, 8209, 16787, 32771, 65537
-    public static final int MAX_TOTAL_ARC_HASHES = 196613; // 98317, 196613
+    public static final long STREAMING_BUDGET = 256L * 1024L * 1024L; // bytes of resident snapshots of streamed dynamics
     
     public static final int SIZEOF_VEC4 = 4 * Buffers.SIZEOF_FLOAT;
     public static final int SIZEOF_HASH = 4 * Buffers.SIZEOF_INT;
@@ -164,9 +168,14 @@ public class Scene implements GLEventListener {
     public static final int SIZEOF_CAP = 2 * SIZEOF_VEC4 + 4 * Buffers.SIZEOF_INT; // padding (see writeSpheres.glsl)
     public static final int SIZEOF_EDGE = 4 * Buffers.SIZEOF_INT;
     
-    public static final int MAX_TRIANGLES = 16384;
-    public static final int MAX_TORI = 32768;
-    public static final int MAX_ISOLATED_TORI = 256;
+    // initial capacities of buffers, primitives per atom are about 1.5
+    // triangles, 2.3 tori, 0.7 spheres and 0.2 caps (buffers grow on overflow)
+    private static final int MIN_ATOM_CAPACITY = 1024;
+    private static final int TRIANGLES_PER_ATOM = 2;
+    private static final int TORI_PER_ATOM = 3;
+    private static final int MIN_ISOLATED_TORI = 256;
+    private static final int ARC_HASHES_PER_TRIANGLE = 12; // 3 hashes of every arc, 1/4 of slots used
+    private static final int MIN_NEIGHBORS = 32; // initial stride of neighbors of atom and probe
     
     public static final int MAX_ABUFFER_WIDTH = 1024;
     public static final int MAX_ABUFFER_HEIGHT = 1024;
@@ -193,6 +202,30 @@ public class Scene implements GLEventListener {
     private Dynamics dynamics;
     private boolean uploaded = false;
     
+    // capacities of buffers sized from the loaded molecule (see allocateBuffers)
+    private int atomCapacity;
+    private int triangleCapacity;
+    private int torusCapacity;
+    private int isolatedTorusCapacity;
+    private int sphereCapacity;
+    private int capCapacity;
+    private int arcHashCapacity;
+    private int neighborCapacity;
+    private int probeNeighborCapacity;
+    
+    // maximal counts over limits of shaders, written by atomicMax (see allocateBuffers)
+    private static final int LIMIT_CELL_ATOMS = 0;
+    private static final int LIMIT_NEIGHBORS = 1;
+    private static final int LIMIT_SPHERE_ISOLATED_TORI = 2;
+    private static final int LIMIT_SPHERE_CAPS = 3;
+    private static final int LIMIT_CELL_PROBES = 4;
+    private static final int LIMIT_PROBE_NEIGHBORS = 5;
+    private static final int LIMIT_COUNT = 6;
+    private final IntBuffer limits = Buffers.newDirectIntBuffer(LIMIT_COUNT);
+    
+    // limits of shaders reported as exceeded
+    private final Set<String> exceededLimits = new HashSet<>();
+    
     private int snapshot;
     private float t;
     private long lastUpdateTime;
@@ -203,10 +236,12 @@ public class Scene implements GLEventListener {
     private boolean displayWholeMolecule = false;
     
     private int atomicCountersBuffer;
+    private int[] glBuffers;
     
     // indices for common buffers
     private static final int COUNTERS_BUFFER_INDEX = 6;
     private static final int DEBUG_BUFFER_INDEX = 7;
+    private static final int LIMITS_BUFFER_INDEX = 8;
     // indices for contour-buildup shaders
     private static final int SPHERES_BUFFER_INDEX = 0;
     private static final int GRID_COUNTS_BUFFER_INDEX = 1;
@@ -247,6 +282,7 @@ public class Scene implements GLEventListener {
     // rendering
     private FloatBuffer atomsPos;
     private int sphereCount;
+    private int capCount;
     private int triangleCount;
     private int torusCount;
     private int isolatedTorusCount;
@@ -258,6 +294,8 @@ public class Scene implements GLEventListener {
     private float opacity = 0.5f;
     private boolean running = false;
     private float speed = 2.0f;
+    private boolean compactSnapshots = false;
+    private boolean trajectoryCache = false;
     private int width;
     private int height;
     private Color sphereColor = Color.RED;
@@ -309,15 +347,25 @@ public class Scene implements GLEventListener {
 
     // spherical polygon
     private final Polygon polygon = new Polygon();
+    // workers of all CPU stages (disposed with the scene)
+    private final WorkerPool workers = new WorkerPool(Runtime.getRuntime().availableProcessors());
     // GPU graph
-    private final GPUGraph gpuGraph = new GPUGraph();
+    private final GPUGraph gpuGraph = new GPUGraph(workers);
     private GPUGraph.Result gr = null;
     // Volumetric AO
-    private final VolumetricAO volumetricAO = new VolumetricAO();
+    private final VolumetricAO volumetricAO = new VolumetricAO(workers);
     private int aoVolumeTex = -1;
     // Cavity area estimation
-    private final Area area = new Area();
+    private final Area area = new Area(workers);
     private Area.Result ar;
+    // Contour-buildup on CPU
+    private boolean cpuSurface = false;
+    private CPUContourBuildup cpuContourBuildup;
+    private ContourBuildupEngine.Result cpuSurfaceResult;
+    private int cpuSurfaceSnapshot;
+    private SurfaceIntegrator surfaceIntegrator;
+    // Cavity tracking (CPU surface only)
+    private boolean trackCavities = false;
     // Array profiling
     private final GPUPerformance array = new GPUPerformance();
     private final CLPerformance clArray = new CLPerformance();
@@ -426,8 +474,74 @@ public class Scene implements GLEventListener {
         this.tunnelAOThreshold = tunnelAOThreshold;
     }
     
+    /**
+     * @param compactSnapshots store snapshots of loaded dynamics quantized
+     */
+    public void setCompactSnapshots(boolean compactSnapshots) {
+        this.compactSnapshots = compactSnapshots;
+    }
+    
+    /**
+     * @param trajectoryCache map snapshots of loaded dynamics from a binary
+     * cache of the trajectory (created on the first load)
+     */
+    public void setTrajectoryCache(boolean trajectoryCache) {
+        this.trajectoryCache = trajectoryCache;
+    }
+    
+    /**
+     * @param cpuSurfaceGraph compute surface graph on CPU (no limit on the
+     * number of cavities)
+     */
+    public void setCpuSurfaceGraph(boolean cpuSurfaceGraph) {
+        gpuGraph.setCpuGraph(cpuSurfaceGraph);
+        updateSurfaceGraph = true;
+    }
+    
+    /**
+     * @param cpuArea compute cavity areas on CPU (no limit on the number
+     * of cavities)
+     */
+    public void setCpuArea(boolean cpuArea) {
+        area.setCpuArea(cpuArea);
+        ar = null;
+    }
+    
+    /**
+     * @param cpuSurface compute the surface on CPU (see CPUContourBuildup)
+     * and upload its primitives and neighbor probes instead of running the
+     * contour-buildup and singularity shaders, positions of snapshots are
+     * not interpolated
+     */
+    public void setCpuSurface(boolean cpuSurface) {
+        this.cpuSurface = cpuSurface;
+        update = true;
+        updateSurfaceGraph = true;
+        ar = null;
+    }
+    
+    /**
+     * @param trackCavities track cavities across snapshots in the CPU surface
+     * mode (see CavityTracker), cavities keep their IDs while they persist
+     */
+    public void setTrackCavities(boolean trackCavities) {
+        this.trackCavities = trackCavities;
+        if (cpuContourBuildup != null) {
+            cpuContourBuildup.setTrackCavities(trackCavities);
+        }
+    }
+    
+    public void setCpuAmbientOcclusion(boolean cpuAO, boolean trilinear) {
+        volumetricAO.setCpuVolume(cpuAO);
+        volumetricAO.setTrilinear(trilinear);
+        aoVolumeTex = -1;
+    }
+    
     public void setSpeed(float speed) {
         this.speed = speed;
+        if (dynamics != null) {
+            dynamics.setSpeed(speed);
+        }
     }
 
     public void setDynamicsInterpolation(Interpolation interpolation) {
@@ -627,7 +741,7 @@ public class Scene implements GLEventListener {
         }
         
         // statistics
-//        CPUContourBuildup cpucb = new CPUContourBuildup(dynamics.getMolecule(), 128, 1.4f);
+//        CPUContourBuildup cpucb = new CPUContourBuildup(dynamics.getMolecule(), 1.4f);
 //        cpucb.computeNeighbors();
 //        cpucb.filterSmallCircles();
 //        cpucb.computeArcs();
@@ -716,11 +830,12 @@ public class Scene implements GLEventListener {
         AABB bb = preprocessAtoms(dynamics.getMolecule());
         updateBoundingBox(bb);
         
-        atomsPos = Buffers.newDirectFloatBuffer(MAX_ATOMS * 4);
+        estimateCapacities(atomCount);
         
         // Create buffers
-        int buffers[] = new int[34];
-        gl.glGenBuffers(34, buffers, 0);
+        int buffers[] = new int[35];
+        gl.glGenBuffers(35, buffers, 0);
+        glBuffers = buffers;
         // contour-buildup
         atomsBuffer = buffers[0];
         gridCountsBuffer = buffers[1];
@@ -765,6 +880,7 @@ public class Scene implements GLEventListener {
         sphereCapPlanesBuffer = buffers[31];
         // counters
         countersBuffer = buffers[32];
+        limitsBuffer = buffers[34];
         
         // quad array buffer
         FloatBuffer quad = FloatBuffer.allocate(16);
@@ -776,73 +892,15 @@ public class Scene implements GLEventListener {
         gl.glBindBuffer(GL_ARRAY_BUFFER, quadArrayBuffer);
         gl.glBufferData(GL_ARRAY_BUFFER, 4 * SIZEOF_VEC4, quad, GL_STATIC_DRAW);
         
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomsPos.capacity() * Buffers.SIZEOF_FLOAT, atomsPos, GL_DYNAMIC_DRAW);
-        
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, gridCountsBuffer);
         gl.glBufferData(GL_SHADER_STORAGE_BUFFER, CELL_COUNT * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
         
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, gridIndicesBuffer);
         gl.glBufferData(GL_SHADER_STORAGE_BUFFER, CELL_COUNT * MAX_CELL_ATOMS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
         
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, neighborsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * MAX_NEIGHBORS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, neighborCountsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, smallCirclesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * MAX_NEIGHBORS * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, smallCirclesVisibleBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * MAX_NEIGHBORS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcsBuffer);
-        //gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atoms.size() * MAX_NEIGHBORS * MAX_ARCS * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TOTAL_ARCS * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcCountsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * MAX_NEIGHBORS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcHashesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TOTAL_ARC_HASHES * SIZEOF_HASH, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, probeNeighborCountsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_PROBES * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, probeNeighborProbesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_PROBES * MAX_NEIGHBORS * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
         gl.glBindBuffer(GL_ARRAY_BUFFER, smallCirclesArrayBuffer);
         gl.glBufferData(GL_ARRAY_BUFFER, 32000 * 13 * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
         
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsVisibleBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, spheresArrayBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (3 * MAX_ATOMS / 2) * SIZEOF_POLYGON, null, GL_STREAM_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, capsArrayBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (MAX_ATOMS / 2) * SIZEOF_CAP, null, GL_STREAM_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, trianglesArrayBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TRIANGLES * SIZEOF_TRIANGLE, null, GL_STREAM_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, toriArrayBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TORI * SIZEOF_TORUS, null, GL_STREAM_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TORI * SIZEOF_EDGE, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceVerticesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TRIANGLES * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesCircleBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TORI * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesLineBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_TORI * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, debugBuffer);
         gl.glBufferData(GL_SHADER_STORAGE_BUFFER, 1024 * Buffers.SIZEOF_INT, null, GL_DYNAMIC_READ);
         
@@ -852,57 +910,27 @@ public class Scene implements GLEventListener {
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, fragmentsIndexBuffer);
         gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (MAX_ABUFFER_PIXELS + 1) * Buffers.SIZEOF_INT, null, GL_DYNAMIC_READ);
         
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, isolatedToriBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ISOLATED_TORI * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, polygonsPlanesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, (3 * MAX_ATOMS / 2) * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereIsolatedCountsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereIsolatedVSBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * MAX_SPHERE_ISOLATED_TORI * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereCapCountsBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
-        
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereCapPlanesBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, MAX_ATOMS * GPUGraph.MAX_SPHERE_POLYGON_COUNT * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
-        
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, countersBuffer);
         gl.glBufferData(GL_SHADER_STORAGE_BUFFER, 16 * Buffers.SIZEOF_INT, null, GL_DYNAMIC_READ);
         
-        // Report memory usage
-        int[] value = new int[1];
-        int cbSize = 0;
-        int aBufferSize = 0;
-        int arcsBufferSize = 0;
-        for (int buffer : buffers) {
-            gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
-            gl.glGetBufferParameteriv(GL_SHADER_STORAGE_BUFFER, GL_BUFFER_SIZE, value, 0);
-            if (buffer == fragmentsBuffer || buffer == fragmentsIndexBuffer) {
-                aBufferSize += value[0];
-            } else {
-                cbSize += value[0];
-            }
-            if (buffer == arcsBuffer || buffer == arcCountsBuffer || buffer == arcHashesBuffer) {
-                arcsBufferSize += value[0];
-            }
-            //System.out.println(String.format("Memory usage (buffer %d): %.3f MB", buffer, value[0] / 1024.0 / 1024.0));
-        }
-        System.out.println(String.format("Memory usage (Arcs): %.3f MB", arcsBufferSize / 1024.0 / 1024.0));
-        System.out.println(String.format("Memory usage (CB): %.3f MB", cbSize / 1024.0 / 1024.0));
-        System.out.println(String.format("Memory usage (A-Buffer): %.3f MB", aBufferSize / 1024.0 / 1024.0));
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, limitsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, LIMIT_COUNT * Buffers.SIZEOF_INT, null, GL_DYNAMIC_READ);
+        
+        // buffers of atoms and primitives
+        allocateBuffers(gl);
+        
+        reportMemoryUsage(gl);
         
         // Bind buffer indices to programs
         Utils.bindShaderStorageBlock(gl, hashProgram, "Spheres", SPHERES_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, hashProgram, "Counts", GRID_COUNTS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, hashProgram, "Indices", GRID_INDICES_BUFFER_INDEX);
+        Utils.bindShaderStorageBlock(gl, hashProgram, "Limits", LIMITS_BUFFER_INDEX);
         // bind neighbors buffers
         Utils.bindShaderStorageBlock(gl, neighborsProgram, "Neighbors", NEIGHBORS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, neighborsProgram, "NeighborCounts", NEIGHBOR_COUNTS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, neighborsProgram, "SmallCircles", SMALL_CIRCLES_BUFFER_INDEX);
+        Utils.bindShaderStorageBlock(gl, neighborsProgram, "Limits", LIMITS_BUFFER_INDEX);
         // bind remove covered buffers
         Utils.bindShaderStorageBlock(gl, removeProgram, "NeighborCounts", NEIGHBOR_COUNTS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, removeProgram, "SmallCircles", SMALL_CIRCLES_BUFFER_INDEX);
@@ -916,6 +944,7 @@ public class Scene implements GLEventListener {
         // bind singularity buffers
         Utils.bindShaderStorageBlock(gl, singularityProgram, "NeighborCounts", PROBE_NEIGHBOR_COUNTS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, singularityProgram, "NeighborProbes", PROBE_NEIGHBOR_PROBES_BUFFER_INDEX);
+        Utils.bindShaderStorageBlock(gl, singularityProgram, "Limits", LIMITS_BUFFER_INDEX);
         // bind write primitives buffers
         Utils.bindShaderStorageBlock(gl, writeProgram, "Triangles", TRIANGLES_ARRAY_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, writeProgram, "Tori", TORI_ARRAY_BUFFER_INDEX);
@@ -935,10 +964,12 @@ public class Scene implements GLEventListener {
         Utils.bindShaderStorageBlock(gl, isolatedProgram, "PolygonsPlanes", POLYGONS_PLANES_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, isolatedProgram, "SphereIsolatedCounts", SPHERE_ISOLATED_COUNTS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, isolatedProgram, "SphereIsolatedVisSphere", SPHERE_ISOLATED_VS_BUFFER_INDEX);
+        Utils.bindShaderStorageBlock(gl, isolatedProgram, "Limits", LIMITS_BUFFER_INDEX);
         // bind cavity caps buffers
         Utils.bindShaderStorageBlock(gl, capsProgram, "Caps", CAPS_ARRAY_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, capsProgram, "SphereCapCounts", SPHERE_CAP_COUNTS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, capsProgram, "SphereCapPlanes", SPHERE_CAP_PLANES_BUFFER_INDEX);
+        Utils.bindShaderStorageBlock(gl, capsProgram, "Limits", LIMITS_BUFFER_INDEX);
         Utils.bindShaderStorageBlock(gl, capsProgram, "Debug", DEBUG_BUFFER_INDEX);
         // bind sphere ray-tracing buffers
         Utils.bindShaderStorageBlock(gl, sphereProgram, "ABuffer", FRAGMENTS_BUFFER_INDEX);
@@ -1027,36 +1058,7 @@ public class Scene implements GLEventListener {
         sphereCapCountsTex = textures[19];
         sphereCapPlanesTex = textures[20];
         
-        Utils.bindTextureBuffer(gl, atomsTex, GL_RGBA32F, atomsBuffer);
-        
-        Utils.bindTextureBuffer(gl, gridCountsTex, GL_R32UI, gridCountsBuffer);
-        Utils.bindTextureBuffer(gl, gridIndicesTex, GL_R32UI, gridIndicesBuffer);
-        
-        Utils.bindTextureBuffer(gl, neighborsTex, GL_R32UI, neighborsBuffer);
-        Utils.bindTextureBuffer(gl, neighborCountsTex, GL_R32UI, neighborCountsBuffer);
-        
-        Utils.bindTextureBuffer(gl, smallCirclesTex, GL_RGBA32F, smallCirclesBuffer);
-        Utils.bindTextureBuffer(gl, smallCirclesVisibleTex, GL_R32UI, smallCirclesVisibleBuffer);
-        
-        Utils.bindTextureBuffer(gl, arcsTex, GL_RGBA32F, arcsBuffer);
-        Utils.bindTextureBuffer(gl, arcCountsTex, GL_R32UI, arcCountsBuffer);
-        Utils.bindTextureBuffer(gl, arcHashesTex, GL_RGBA32UI, arcHashesBuffer);
-        
-        Utils.bindTextureBuffer(gl, probeNeighborCountsTex, GL_R32UI, probeNeighborCountsBuffer);
-        Utils.bindTextureBuffer(gl, probeNeighborProbesTex, GL_RGBA32F, probeNeighborProbesBuffer);
-        
-        Utils.bindTextureBuffer(gl, surfaceEdgesTex, GL_RGBA32UI, surfaceEdgesBuffer);
-        Utils.bindTextureBuffer(gl, surfaceVerticesTex, GL_R32UI, surfaceVerticesBuffer);
-        Utils.bindTextureBuffer(gl, surfaceEdgesCircleTex, GL_RGBA32F, surfaceEdgesCircleBuffer);
-        Utils.bindTextureBuffer(gl, surfaceEdgesLineTex, GL_RGBA32F, surfaceEdgesLineBuffer);
-        
-        Utils.bindTextureBuffer(gl, polygonsPlanesTex, GL_RGBA32F, polygonsPlanesBuffer);
-        
-        Utils.bindTextureBuffer(gl, sphereIsolatedCountsTex, GL_R32UI, sphereIsolatedCountsBuffer);
-        Utils.bindTextureBuffer(gl, sphereIsolatedVSTex, GL_RGBA32F, sphereIsolatedVSBuffer);
-        
-        Utils.bindTextureBuffer(gl, sphereCapCountsTex, GL_R32UI, sphereCapCountsBuffer);
-        Utils.bindTextureBuffer(gl, sphereCapPlanesTex, GL_RGBA32F, sphereCapPlanesBuffer);
+        bindTextureBuffers(gl);
         
         int atomicCounterBufferIndex = 0;
         gl.glBindBuffer(GL_ATOMIC_COUNTER_BUFFER, atomicCountersBuffer);
@@ -1083,9 +1085,9 @@ public class Scene implements GLEventListener {
         // init spherical polygon
         polygon.init(gl, FRAGMENTS_BUFFER_INDEX, FRAGMENTS_INDEX_BUFFER_INDEX);
         // init GPU graph
-        gpuGraph.init(gl, MAX_ATOMS);
+        gpuGraph.init(gl, atomCapacity, triangleCapacity);
         // init volumetric AO
-        volumetricAO.init(gl);
+        volumetricAO.init(gl, atomCapacity);
         // init area estimation
         area.init(gl);
         
@@ -1148,8 +1150,365 @@ public class Scene implements GLEventListener {
         eye.z = center.z + 1f;
     }
 
+    /**
+     * Estimates capacities of buffers from the number of atoms.
+     */
+    private void estimateCapacities(int atomCount) {
+        atomCapacity = Math.max(atomCount, MIN_ATOM_CAPACITY);
+        triangleCapacity = TRIANGLES_PER_ATOM * atomCapacity;
+        torusCapacity = TORI_PER_ATOM * atomCapacity;
+        isolatedTorusCapacity = Math.max(atomCapacity / 32, MIN_ISOLATED_TORI);
+        sphereCapacity = 3 * atomCapacity / 2;
+        capCapacity = atomCapacity / 2;
+        arcHashCapacity = ArcHashTable.nextPrime(ARC_HASHES_PER_TRIANGLE * triangleCapacity);
+        neighborCapacity = MIN_NEIGHBORS;
+        probeNeighborCapacity = MIN_NEIGHBORS;
+    }
+    
+    /**
+     * Allocates buffers of atoms and primitives according to capacities.
+     */
+    private void allocateBuffers(GL4 gl) {
+        atomsPos = Buffers.newDirectFloatBuffer(4 * atomCapacity);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, 4 * atomCapacity * Buffers.SIZEOF_FLOAT, null, GL_DYNAMIC_DRAW);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, neighborsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * neighborCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, neighborCountsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, smallCirclesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * neighborCapacity * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, smallCirclesVisibleBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * neighborCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, triangleCapacity * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcCountsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * neighborCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcHashesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, arcHashCapacity * SIZEOF_HASH, null, GL_DYNAMIC_COPY);
+        
+        // probes are the triangles
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, probeNeighborCountsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, triangleCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, probeNeighborProbesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, triangleCapacity * probeNeighborCapacity * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsVisibleBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, spheresArrayBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCapacity * SIZEOF_POLYGON, null, GL_STREAM_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, capsArrayBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, capCapacity * SIZEOF_CAP, null, GL_STREAM_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, trianglesArrayBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, triangleCapacity * SIZEOF_TRIANGLE, null, GL_STREAM_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, toriArrayBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, torusCapacity * SIZEOF_TORUS, null, GL_STREAM_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, torusCapacity * SIZEOF_EDGE, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceVerticesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, triangleCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesCircleBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, torusCapacity * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesLineBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, torusCapacity * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, isolatedToriBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, isolatedTorusCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, polygonsPlanesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, sphereCapacity * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereIsolatedCountsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereIsolatedVSBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * MAX_SPHERE_ISOLATED_TORI * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereCapCountsBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * Buffers.SIZEOF_INT, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereCapPlanesBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * GPUGraph.MAX_SPHERE_POLYGON_COUNT * SIZEOF_VEC4, null, GL_DYNAMIC_COPY);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+    
+    /**
+     * Binds buffers to texture buffers, has to be repeated after buffers
+     * are reallocated.
+     */
+    private void bindTextureBuffers(GL4 gl) {
+        Utils.bindTextureBuffer(gl, atomsTex, GL_RGBA32F, atomsBuffer);
+        
+        Utils.bindTextureBuffer(gl, gridCountsTex, GL_R32UI, gridCountsBuffer);
+        Utils.bindTextureBuffer(gl, gridIndicesTex, GL_R32UI, gridIndicesBuffer);
+        
+        Utils.bindTextureBuffer(gl, neighborsTex, GL_R32UI, neighborsBuffer);
+        Utils.bindTextureBuffer(gl, neighborCountsTex, GL_R32UI, neighborCountsBuffer);
+        
+        Utils.bindTextureBuffer(gl, smallCirclesTex, GL_RGBA32F, smallCirclesBuffer);
+        Utils.bindTextureBuffer(gl, smallCirclesVisibleTex, GL_R32UI, smallCirclesVisibleBuffer);
+        
+        Utils.bindTextureBuffer(gl, arcsTex, GL_RGBA32F, arcsBuffer);
+        Utils.bindTextureBuffer(gl, arcCountsTex, GL_R32UI, arcCountsBuffer);
+        Utils.bindTextureBuffer(gl, arcHashesTex, GL_RGBA32UI, arcHashesBuffer);
+        
+        Utils.bindTextureBuffer(gl, probeNeighborCountsTex, GL_R32UI, probeNeighborCountsBuffer);
+        Utils.bindTextureBuffer(gl, probeNeighborProbesTex, GL_RGBA32F, probeNeighborProbesBuffer);
+        
+        Utils.bindTextureBuffer(gl, surfaceEdgesTex, GL_RGBA32UI, surfaceEdgesBuffer);
+        Utils.bindTextureBuffer(gl, surfaceVerticesTex, GL_R32UI, surfaceVerticesBuffer);
+        Utils.bindTextureBuffer(gl, surfaceEdgesCircleTex, GL_RGBA32F, surfaceEdgesCircleBuffer);
+        Utils.bindTextureBuffer(gl, surfaceEdgesLineTex, GL_RGBA32F, surfaceEdgesLineBuffer);
+        
+        Utils.bindTextureBuffer(gl, polygonsPlanesTex, GL_RGBA32F, polygonsPlanesBuffer);
+        
+        Utils.bindTextureBuffer(gl, sphereIsolatedCountsTex, GL_R32UI, sphereIsolatedCountsBuffer);
+        Utils.bindTextureBuffer(gl, sphereIsolatedVSTex, GL_RGBA32F, sphereIsolatedVSBuffer);
+        
+        Utils.bindTextureBuffer(gl, sphereCapCountsTex, GL_R32UI, sphereCapCountsBuffer);
+        Utils.bindTextureBuffer(gl, sphereCapPlanesTex, GL_RGBA32F, sphereCapPlanesBuffer);
+    }
+    
+    /**
+     * Reallocates buffers according to capacities, the surface is computed
+     * again in the next frame.
+     */
+    private void resizeBuffers(GL4 gl) {
+        allocateBuffers(gl);
+        bindTextureBuffers(gl);
+        gpuGraph.resize(gl, atomCapacity, triangleCapacity);
+        volumetricAO.resize(gl, atomCapacity);
+        clArcs.updateBuffers(gl, atomsBuffer, neighborsBuffer, neighborCountsBuffer, smallCirclesBuffer,
+                arcsBuffer, arcCountsBuffer, arcHashesBuffer, smallCirclesVisibleBuffer);
+        reportMemoryUsage(gl);
+        
+        uploaded = false;
+        update = true;
+        gr = null;
+        ar = null;
+        aoVolumeTex = -1;
+    }
+    
+    /**
+     * Sizes buffers for the current molecule, if it was replaced.
+     */
+    private void fitBuffers(GL4 gl) {
+        if (Math.max(atomCount, MIN_ATOM_CAPACITY) != atomCapacity) {
+            estimateCapacities(atomCount);
+            resizeBuffers(gl);
+        }
+    }
+    
+    private static int grow(int capacity, int count) {
+        return Math.max(count + count / 4, capacity + capacity / 2);
+    }
+    
+    /**
+     * Grows a stride of neighbors to a multiple of 32 (stride of atom is
+     * the local work size of arcs.cl).
+     */
+    private static int growStride(int stride, int count) {
+        return (grow(stride, count) + 31) / 32 * 32;
+    }
+    
+    /**
+     * Computes the surface on CPU and uploads its primitives to buffers of
+     * the contour-buildup shaders.
+     *
+     * @return false if buffers had to grow (the surface is computed again
+     * in the next frame)
+     */
+    private boolean computeSurfaceCPU(GL4 gl) {
+        CPUContourBuildup engine = getCPUContourBuildup();
+        if (writePerformanceInfo) {
+            engine.writePerformanceInfo();
+        }
+        long start = System.nanoTime();
+        ContourBuildupEngine.Result surface = engine.computeSurface(snapshot);
+        long elapsed = System.nanoTime() - start;
+        cpuSurfaceResult = surface;
+        cpuSurfaceSnapshot = snapshot;
+        
+        if (surface.getTriangleCount() > triangleCapacity || surface.getTorusCount() > torusCapacity
+                || surface.getIsolatedTorusCount() > isolatedTorusCapacity
+                || surface.getSphereCount() > sphereCapacity || surface.getCapCount() > capCapacity) {
+            triangleCapacity = Math.max(triangleCapacity, surface.getTriangleCount());
+            torusCapacity = Math.max(torusCapacity, surface.getTorusCount());
+            isolatedTorusCapacity = Math.max(isolatedTorusCapacity, surface.getIsolatedTorusCount());
+            sphereCapacity = Math.max(sphereCapacity, surface.getSphereCount());
+            capCapacity = Math.max(capCapacity, surface.getCapCount());
+            resizeBuffers(gl);
+            return false;
+        }
+        
+        triangleCount = surface.getTriangleCount();
+        torusCount = surface.getTorusCount();
+        isolatedTorusCount = surface.getIsolatedTorusCount();
+        sphereCount = surface.getSphereCount();
+        capCount = surface.getCapCount();
+        
+        // atoms of the surface and probes
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsBuffer);
+        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, 4 * atomCount * Buffers.SIZEOF_FLOAT,
+                Buffers.newDirectFloatBuffer(engine.getAtoms(), 0, 4 * atomCount));
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcsBuffer);
+        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, 4 * triangleCount * Buffers.SIZEOF_FLOAT,
+                Buffers.newDirectFloatBuffer(engine.getProbes(), 0, 4 * triangleCount));
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        
+        upload(gl, trianglesArrayBuffer, surface.getTriangles());
+        upload(gl, toriArrayBuffer, surface.getTori());
+        upload(gl, surfaceEdgesBuffer, surface.getEdges());
+        upload(gl, surfaceEdgesCircleBuffer, surface.getEdgesCircle());
+        upload(gl, surfaceEdgesLineBuffer, surface.getEdgesLine());
+        upload(gl, isolatedToriBuffer, surface.getIsolatedTori());
+        upload(gl, spheresArrayBuffer, surface.getSpheres());
+        upload(gl, capsArrayBuffer, surface.getCaps());
+        upload(gl, sphereIsolatedCountsBuffer, surface.getSphereIsolatedCounts());
+        upload(gl, sphereIsolatedVSBuffer, surface.getSphereIsolatedVS());
+        upload(gl, sphereCapCountsBuffer, surface.getSphereCapCounts());
+        upload(gl, sphereCapPlanesBuffer, surface.getSphereCapPlanes());
+        
+        // labels of triangles and circles
+        gr = gpuGraph.upload(gl, surface.getGraph(), surfaceVerticesBuffer, triangleCount, atomCount);
+        ar = null;
+        
+        if (writePerformanceInfo) {
+            System.out.println("Time elapsed (CB, CPU): " + elapsed / 1000000.0 + " ms");
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Computes neighbor probes of the CPU surface and uploads them to buffers
+     * of the singularity shader.
+     *
+     * @return false if buffers had to grow (the surface is computed again
+     * in the next frame)
+     */
+    private boolean computeSingularityCPU(GL4 gl) {
+        float[] areas;
+        if (area.isCpuArea()) {
+            areas = area.getCpuResult().getAreas();
+        } else {
+            FloatBuffer data = Buffers.newDirectFloatBuffer(GPUGraph.MAX_LABEL_COUNT);
+            gl.glBindTexture(GL_TEXTURE_1D, ar.getAreasTexture());
+            gl.glGetTexImage(GL_TEXTURE_1D, 0, GL_RED, GL_FLOAT, data);
+            gl.glBindTexture(GL_TEXTURE_1D, 0);
+            areas = new float[GPUGraph.MAX_LABEL_COUNT];
+            data.get(areas);
+        }
+        
+        long start = System.nanoTime();
+        CPUContourBuildup.ProbeNeighbors neighbors = cpuContourBuildup.computeProbeNeighbors(
+                cpuSurfaceResult.getGraph(), areas, threshold, probeNeighborCapacity);
+        long elapsed = System.nanoTime() - start;
+        
+        if (neighbors.getMaxCount() > probeNeighborCapacity) {
+            System.err.println("Warning: Probe neighbors over capacity: " + neighbors.getMaxCount()
+                    + " (" + probeNeighborCapacity + ")");
+            probeNeighborCapacity = growStride(probeNeighborCapacity, neighbors.getMaxCount());
+            resizeBuffers(gl);
+            return false;
+        }
+        
+        upload(gl, probeNeighborCountsBuffer, neighbors.getCounts());
+        upload(gl, probeNeighborProbesBuffer, neighbors.getProbes());
+        
+        if (writePerformanceInfo) {
+            System.out.println("Time elapsed (singularity, CPU): " + elapsed / 1000000.0 + " ms");
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads maximal counts over limits of shaders.
+     */
+    private void readLimits(GL4 gl) {
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, limitsBuffer);
+        gl.glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, LIMIT_COUNT * Buffers.SIZEOF_INT, limits);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+    
+    private CPUContourBuildup getCPUContourBuildup() {
+        if (cpuContourBuildup != null && (cpuContourBuildup.getMolecule() != dynamics.getMolecule()
+                || cpuContourBuildup.getProbeRadius() != probeRadius)) {
+            cpuContourBuildup.dispose();
+            cpuContourBuildup = null;
+        }
+        if (cpuContourBuildup == null) {
+            cpuContourBuildup = new CPUContourBuildup(dynamics.getMolecule(), probeRadius, workers);
+            cpuContourBuildup.setTrackCavities(trackCavities);
+        }
+        return cpuContourBuildup;
+    }
+    
+    private SurfaceIntegrator getSurfaceIntegrator() {
+        if (surfaceIntegrator == null) {
+            surfaceIntegrator = new SurfaceIntegrator(workers);
+        }
+        return surfaceIntegrator;
+    }
+    
+    private static void upload(GL4 gl, int buffer, ByteBuffer data) {
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, data.capacity(), data);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+    
+    private void reportMemoryUsage(GL4 gl) {
+        int[] value = new int[1];
+        int cbSize = 0;
+        int aBufferSize = 0;
+        int arcsBufferSize = 0;
+        for (int buffer : glBuffers) {
+            gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+            gl.glGetBufferParameteriv(GL_SHADER_STORAGE_BUFFER, GL_BUFFER_SIZE, value, 0);
+            if (buffer == fragmentsBuffer || buffer == fragmentsIndexBuffer) {
+                aBufferSize += value[0];
+            } else {
+                cbSize += value[0];
+            }
+            if (buffer == arcsBuffer || buffer == arcCountsBuffer || buffer == arcHashesBuffer) {
+                arcsBufferSize += value[0];
+            }
+            //System.out.println(String.format("Memory usage (buffer %d): %.3f MB", buffer, value[0] / 1024.0 / 1024.0));
+        }
+        System.out.println(String.format("Memory usage (Arcs): %.3f MB", arcsBufferSize / 1024.0 / 1024.0));
+        System.out.println(String.format("Memory usage (CB): %.3f MB", cbSize / 1024.0 / 1024.0));
+        System.out.println(String.format("Memory usage (A-Buffer): %.3f MB", aBufferSize / 1024.0 / 1024.0));
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+    
     @Override
     public void dispose(GLAutoDrawable glad) {
+        if (cpuContourBuildup != null) {
+            cpuContourBuildup.dispose();
+        }
+        if (dynamics != null) {
+            dynamics.dispose();
+        }
+        workers.dispose();
     }
 
     @Override
@@ -1159,6 +1518,7 @@ public class Scene implements GLEventListener {
         GL4bc gl = new DebugGL4bc(glad.getGL().getGL4bc());
         
         if (!uploaded) {
+            fitBuffers(gl);
             updateAtomPositions(gl);
             volumetricAO.updateVolumes(gl, dynamics.getMolecule().getAtoms());
             uploaded = true;
@@ -1188,7 +1548,22 @@ public class Scene implements GLEventListener {
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, SMALL_CIRCLES_BUFFER_INDEX, smallCirclesBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, SMALL_CIRCLES_VISIBLE_BUFFER_INDEX, smallCirclesVisibleBuffer);
         
+        // compute the surface on CPU or by the contour-buildup shaders
+        if (cpuSurface && (autoupdate || update || gr == null)) {
+            if (!computeSurfaceCPU(gl)) {
+                return;
+            }
+        }
+        boolean gpuUpdate = !cpuSurface && (autoupdate || update);
+        
         if (autoupdate || update) {
+            gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, limitsBuffer);
+            gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, IntBuffer.wrap(new int[] { 0 }));
+            gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        }
+        gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, LIMITS_BUFFER_INDEX, limitsBuffer);
+        
+        if (gpuUpdate) {
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, gridCountsBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, IntBuffer.wrap(new int[] { 0 }));
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
@@ -1199,8 +1574,9 @@ public class Scene implements GLEventListener {
         Utils.setUniform(gl, hashProgram, "maxNumSpheres", MAX_CELL_ATOMS);
         Utils.setUniform(gl, hashProgram, "gridSize", GRID_SIZE);
         Utils.setUniform(gl, hashProgram, "cellSize", cellSize);
+        Utils.setUniform(gl, hashProgram, "limitIndex", LIMIT_CELL_ATOMS);
         gl.glBeginQuery(GL_TIME_ELAPSED, hashElapsedQuery);
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glDispatchCompute((atomCount + 63) / 64, 1, 1);
             gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
         }
@@ -1226,10 +1602,11 @@ public class Scene implements GLEventListener {
         Utils.setUniform(gl, neighborsProgram, "cellSize", cellSize);
         Utils.setUniform(gl, neighborsProgram, "sphereCount", atomCount);
         Utils.setUniform(gl, neighborsProgram, "maxNumSpheres", MAX_CELL_ATOMS);
-        Utils.setUniform(gl, neighborsProgram, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, neighborsProgram, "maxNumNeighbors", neighborCapacity);
+        Utils.setUniform(gl, neighborsProgram, "limitIndex", LIMIT_NEIGHBORS);
         Utils.setUniform(gl, neighborsProgram, "probeRadius", probeRadius);
         gl.glBeginQuery(GL_TIME_ELAPSED, neighborsElapsedQuery);
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glDispatchCompute((atomCount + 63) / 64, 1, 1);
             gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
         }
@@ -1255,11 +1632,11 @@ public class Scene implements GLEventListener {
         Utils.setSampler(gl, removeProgram, "smallCirclesTex", 3);
         
         Utils.setUniform(gl, removeProgram, "atomsCount", atomCount);
-        Utils.setUniform(gl, removeProgram, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, removeProgram, "maxNumNeighbors", neighborCapacity);
         Utils.setUniform(gl, removeProgram, "probeRadius", probeRadius);
         gl.glBeginQuery(GL_TIME_ELAPSED, removeElapsedQuery);
-        if (autoupdate || update) {
-            gl.glDispatchCompute((MAX_NEIGHBORS + 63) / 64, (atomCount + 1) / 2, 1);
+        if (gpuUpdate) {
+            gl.glDispatchCompute((neighborCapacity + 63) / 64, (atomCount + 1) / 2, 1);
             gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
         }
         gl.glEndQuery(GL_TIME_ELAPSED);
@@ -1280,7 +1657,7 @@ public class Scene implements GLEventListener {
         gl.glActiveTexture(GL_TEXTURE3);
         gl.glBindTexture(GL_TEXTURE_BUFFER, smallCirclesTex);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             // DEBUG
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, arcsBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_RGBA32F, GL_RGBA, GL_FLOAT, FloatBuffer.wrap(new float[] { 1f, 2f, 3f, 4f }));
@@ -1309,30 +1686,60 @@ public class Scene implements GLEventListener {
         
         Utils.setUniform(gl, arcsProgram, "atomsCount", atomCount);
         Utils.setUniform(gl, arcsProgram, "probeRadius", probeRadius);
-        Utils.setUniform(gl, arcsProgram, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, arcsProgram, "maxNumNeighbors", neighborCapacity);
         //Utils.setUniform(gl, arcsProgram, "maxNumArcs", MAX_ARCS);
-        Utils.setUniform(gl, arcsProgram, "maxNumTotalArcHashes", MAX_TOTAL_ARC_HASHES);
+        Utils.setUniform(gl, arcsProgram, "maxNumTotalArcHashes", arcHashCapacity);
         Utils.setUniform(gl, arcsProgram, "maxHashIterations", MAX_HASH_ITERATIONS);
         gl.glBeginQuery(GL_TIME_ELAPSED, arcsElapsedQuery);
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             //gl.glDispatchCompute((MAX_NEIGHBORS + 31) / 32, (atoms.size() + 7) / 8, 1); // arcs program
             //gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
             //triangleCount = Utils.getCounter(gl, countersBuffer, 12);
             //System.out.println("Before CLArcs");
-            triangleCount = clArcs.computeArcs(gl, atomCount, MAX_NEIGHBORS, MAX_TOTAL_ARC_HASHES, MAX_HASH_ITERATIONS, probeRadius);
+            triangleCount = clArcs.computeArcs(gl, atomCount, neighborCapacity, triangleCapacity, arcHashCapacity, MAX_HASH_ITERATIONS, probeRadius);
             //System.out.println("After CLArcs");
             
             // debugging
-            //Debug.checkArcsOverflow(gl, clArcs, neighborCountsBuffer, atomCount, MAX_NEIGHBORS, arcCountsBuffer, 16);
+            //Debug.checkArcsOverflow(gl, clArcs, neighborCountsBuffer, atomCount, neighborCapacity, arcCountsBuffer, 16);
         }
         gl.glEndQuery(GL_TIME_ELAPSED);
         
+        if (gpuUpdate) {
+            // limits of hash and neighbors (the GL pipeline was finished by computeArcs)
+            readLimits(gl);
+            Utils.reportLimit(exceededLimits, "Atoms of grid cell", MAX_CELL_ATOMS,
+                    limits.get(LIMIT_CELL_ATOMS) > MAX_CELL_ATOMS);
+            // grow buffers and compute the surface again in the next frame
+            int neighborCount = limits.get(LIMIT_NEIGHBORS);
+            if (neighborCount > neighborCapacity && neighborCapacity < MAX_NEIGHBORS) {
+                System.err.println("Warning: Neighbors over capacity: " + neighborCount + " (" + neighborCapacity + ")");
+                neighborCapacity = Math.min(growStride(neighborCapacity, neighborCount), MAX_NEIGHBORS);
+                resizeBuffers(gl);
+                return;
+            }
+            Utils.reportLimit(exceededLimits, "Neighbors of atom", MAX_NEIGHBORS, neighborCount > MAX_NEIGHBORS);
+            if (triangleCount > triangleCapacity) {
+                System.err.println("Warning: Triangles over capacity: " + triangleCount + " (" + triangleCapacity + ")");
+                triangleCapacity = grow(triangleCapacity, triangleCount);
+                arcHashCapacity = ArcHashTable.nextPrime(ARC_HASHES_PER_TRIANGLE * triangleCapacity);
+                resizeBuffers(gl);
+                return;
+            }
+            if (clArcs.getHashErrorCount() > 0) {
+                System.err.println("Warning: Arc hash errors: " + clArcs.getHashErrorCount());
+                arcHashCapacity = ArcHashTable.nextPrime(grow(arcHashCapacity, arcHashCapacity));
+                resizeBuffers(gl);
+                return;
+            }
+            Utils.reportLimit(exceededLimits, "Arcs of small circle", MAX_ARCS, clArcs.getArcOverflowCount() > 0);
+        }
+        
         if (writeResults) {
             try {
                 debug.writeGrid("grid.txt", gl, gridCountsBuffer, gridIndicesBuffer);
-                debug.writeNeighbors(gl, neighborsBuffer, neighborCountsBuffer, atomCount, "neighbors.txt");
-                debug.writeArcs(gl, neighborCountsBuffer, atomCount, arcCountsBuffer);
-                debug.writeArcHashes(gl, arcsBuffer, arcHashesBuffer, atomCount);
+                debug.writeNeighbors(gl, neighborsBuffer, neighborCountsBuffer, atomCount, neighborCapacity, "neighbors.txt");
+                debug.writeArcs(gl, neighborCountsBuffer, atomCount, neighborCapacity, arcCountsBuffer);
+                debug.writeArcHashes(gl, arcsBuffer, arcHashesBuffer, atomCount, triangleCapacity, arcHashCapacity);
             } catch (IOException e) {
                 e.printStackTrace(System.err);
             }
@@ -1365,7 +1772,7 @@ public class Scene implements GLEventListener {
         gl.glActiveTexture(GL_TEXTURE7);
         gl.glBindTexture(GL_TEXTURE_BUFFER, arcHashesTex);
 
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, surfaceEdgesBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_RGBA32UI, GL_RGBA_INTEGER, GL_UNSIGNED_INT,
                     IntBuffer.wrap(new int[] { INVALID_INDEX, INVALID_INDEX, 0, 0 }));
@@ -1391,13 +1798,16 @@ public class Scene implements GLEventListener {
         Utils.setSampler(gl, writeProgram, "arcHashesTex", 7);
         
         Utils.setUniform(gl, writeProgram, "atomsCount", atomCount);
-        Utils.setUniform(gl, writeProgram, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, writeProgram, "maxNumNeighbors", neighborCapacity);
         //Utils.setUniform(gl, writeProgram, "maxNumArcs", MAX_ARCS);
-        Utils.setUniform(gl, writeProgram, "maxNumTotalArcHashes", MAX_TOTAL_ARC_HASHES);
+        Utils.setUniform(gl, writeProgram, "maxNumTotalArcHashes", arcHashCapacity);
         Utils.setUniform(gl, writeProgram, "maxHashIterations", MAX_HASH_ITERATIONS);
+        Utils.setUniform(gl, writeProgram, "maxNumTriangles", triangleCapacity);
+        Utils.setUniform(gl, writeProgram, "maxNumTori", torusCapacity);
+        Utils.setUniform(gl, writeProgram, "maxNumIsolatedTori", isolatedTorusCapacity);
         Utils.setUniform(gl, writeProgram, "probeRadius", probeRadius);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glDispatchCompute((atomCount + 63) / 64, 1, 1); // writeProgram
             gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT);
             torusCount = Utils.getCounter(gl, countersBuffer, 0);
@@ -1410,12 +1820,25 @@ public class Scene implements GLEventListener {
                 int maxTorusTriangleCount = Utils.getCounter(gl, countersBuffer, 12);
                 System.out.println("Max torus triangle count: " + maxTorusTriangleCount);
             }
+            if (torusCount > torusCapacity || isolatedTorusCount > isolatedTorusCapacity) {
+                System.err.println("Warning: Tori over capacity: " + torusCount + " (" + torusCapacity + "), isolated "
+                        + isolatedTorusCount + " (" + isolatedTorusCapacity + ")");
+                gl.glEndQuery(GL_TIME_ELAPSED);
+                if (torusCount > torusCapacity) {
+                    torusCapacity = grow(torusCapacity, torusCount);
+                }
+                if (isolatedTorusCount > isolatedTorusCapacity) {
+                    isolatedTorusCapacity = grow(isolatedTorusCapacity, isolatedTorusCount);
+                }
+                resizeBuffers(gl);
+                return;
+            }
         }
         
         gl.glEndQuery(GL_TIME_ELAPSED);
         
         // compute surface graph
-        if (gr == null || autoupdate || updateSurfaceGraph) {
+        if (!cpuSurface && (gr == null || autoupdate || updateSurfaceGraph)) {
             updateSurfaceGraph = false;
             /*Graph graph = new Graph();
             graph.connectedComponents(gl, toriArrayBuffer, surfaceEdgesBuffer, torusCount,
@@ -1432,7 +1855,9 @@ public class Scene implements GLEventListener {
         
         // compute cavity area
         if (ar == null || autoupdate) {
-            ar = area.computeArea(gl, trianglesArrayBuffer, triangleCount, surfaceVerticesTex, gr.getLabelCount());
+            int[] cavityIds = (cpuSurface && cpuSurfaceResult != null) ? cpuSurfaceResult.getGraph().getCavityIds() : null;
+            ar = area.computeArea(gl, trianglesArrayBuffer, triangleCount, surfaceVerticesTex, gr.getLabelCount(),
+                    cavityIds);
         }
         
         gl.glBeginQuery(GL_TIME_ELAPSED, miscsElapsedQuery);
@@ -1440,7 +1865,7 @@ public class Scene implements GLEventListener {
         // handle surface of isolated tori
         gl.glUseProgram(isolatedProgram);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, polygonsPlanesBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_RGBA32F, GL_RGBA, GL_FLOAT,
                     FloatBuffer.wrap(new float[] { 0f, 0f, 0f, 0f }));
@@ -1479,8 +1904,9 @@ public class Scene implements GLEventListener {
         
         Utils.setUniform(gl, isolatedProgram, "torusCount", isolatedTorusCount);
         Utils.setUniform(gl, isolatedProgram, "maxSphereIsolatedTori", MAX_SPHERE_ISOLATED_TORI);
+        Utils.setUniform(gl, isolatedProgram, "limitIndex", LIMIT_SPHERE_ISOLATED_TORI);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glDispatchCompute((isolatedTorusCount + 63) / 64, 1, 1); // isolatedProgram
             gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
         }
@@ -1520,9 +1946,10 @@ public class Scene implements GLEventListener {
         //Utils.setUniform(gl, writeSpheresProgram, "atomCount", atoms.size());
         Utils.setUniform(gl, writeSpheresProgram, "circleCount", gr.getCircleCount());
         Utils.setUniform(gl, writeSpheresProgram, "outerLabel", gr.getOuterSurfaceLabel());
+        Utils.setUniform(gl, writeSpheresProgram, "maxSphereCount", sphereCapacity);
+        Utils.setUniform(gl, writeSpheresProgram, "maxCapCount", capCapacity);
         
-        int capCount = 0;
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereCapCountsBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT,
                     IntBuffer.wrap(new int[] { 0 }));
@@ -1532,6 +1959,19 @@ public class Scene implements GLEventListener {
             gl.glMemoryBarrier(GL_BUFFER_UPDATE_BARRIER_BIT | GL_SHADER_STORAGE_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT);
             sphereCount = Utils.getCounter(gl, countersBuffer, 0);
             capCount = Utils.getCounter(gl, countersBuffer, 4);
+            if (sphereCount > sphereCapacity || capCount > capCapacity) {
+                System.err.println("Warning: Spheres over capacity: " + sphereCount + " (" + sphereCapacity + "), caps "
+                        + capCount + " (" + capCapacity + ")");
+                gl.glEndQuery(GL_TIME_ELAPSED);
+                if (sphereCount > sphereCapacity) {
+                    sphereCapacity = grow(sphereCapacity, sphereCount);
+                }
+                if (capCount > capCapacity) {
+                    capCapacity = grow(capCapacity, capCount);
+                }
+                resizeBuffers(gl);
+                return;
+            }
         }
         
         // cavities handling
@@ -1558,9 +1998,10 @@ public class Scene implements GLEventListener {
         
         Utils.setUniform(gl, capsProgram, "capCount", capCount);
         Utils.setUniform(gl, capsProgram, "maxSphereCapCount", GPUGraph.MAX_SPHERE_POLYGON_COUNT);
+        Utils.setUniform(gl, capsProgram, "limitIndex", LIMIT_SPHERE_CAPS);
         //Utils.setUniform(gl, capsProgram, "probeRadius", probeRadius);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, sphereCapCountsBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT,
                     IntBuffer.wrap(new int[] { 0 }));
@@ -1575,9 +2016,17 @@ public class Scene implements GLEventListener {
         gl.glBeginQuery(GL_TIME_ELAPSED, singularityElapsedQuery);
         
         // singularity handling
+        if (cpuSurface && (autoupdate || update)) {
+            update = false;
+            if (!computeSingularityCPU(gl)) {
+                gl.glEndQuery(GL_TIME_ELAPSED);
+                return;
+            }
+        }
+        
         gl.glUseProgram(hashProgram);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, gridCountsBuffer);
             gl.glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, IntBuffer.wrap(new int[] { 0 }));
             gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
@@ -1594,7 +2043,8 @@ public class Scene implements GLEventListener {
         Utils.setUniform(gl, hashProgram, "maxNumSpheres", MAX_CELL_ATOMS);
         Utils.setUniform(gl, hashProgram, "gridSize", GRID_SIZE);
         Utils.setUniform(gl, hashProgram, "cellSize", cellSize);
-        if (autoupdate || update) {
+        Utils.setUniform(gl, hashProgram, "limitIndex", LIMIT_CELL_PROBES);
+        if (gpuUpdate) {
             gl.glDispatchCompute((triangleCount + 63) / 64, 1, 1);
             gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
         }
@@ -1622,15 +2072,33 @@ public class Scene implements GLEventListener {
         Utils.setUniform(gl, singularityProgram, "cellSize", cellSize);
         Utils.setUniform(gl, singularityProgram, "probeCount", triangleCount);
         Utils.setUniform(gl, singularityProgram, "maxNumSpheres", MAX_CELL_ATOMS);
-        Utils.setUniform(gl, singularityProgram, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, singularityProgram, "maxNumNeighbors", probeNeighborCapacity);
+        Utils.setUniform(gl, singularityProgram, "limitIndex", LIMIT_PROBE_NEIGHBORS);
         Utils.setUniform(gl, singularityProgram, "probeRadius", probeRadius);
         Utils.setUniform(gl, singularityProgram, "surfaceLabel", gr.getOuterSurfaceLabel());
         Utils.setUniform(gl, singularityProgram, "areaThreshold", threshold);
         
-        if (autoupdate || update) {
+        if (gpuUpdate) {
             update = false;
             gl.glDispatchCompute((triangleCount + 63) / 64, 1, 1); // singularity program
-            gl.glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+            gl.glMemoryBarrier(GL_BUFFER_UPDATE_BARRIER_BIT | GL_SHADER_STORAGE_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+            // limits of the remaining shaders
+            readLimits(gl);
+            Utils.reportLimit(exceededLimits, "Isolated tori of sphere", MAX_SPHERE_ISOLATED_TORI,
+                    limits.get(LIMIT_SPHERE_ISOLATED_TORI) > MAX_SPHERE_ISOLATED_TORI);
+            Utils.reportLimit(exceededLimits, "Caps of sphere", GPUGraph.MAX_SPHERE_POLYGON_COUNT,
+                    limits.get(LIMIT_SPHERE_CAPS) > GPUGraph.MAX_SPHERE_POLYGON_COUNT);
+            Utils.reportLimit(exceededLimits, "Probes of grid cell", MAX_CELL_ATOMS,
+                    limits.get(LIMIT_CELL_PROBES) > MAX_CELL_ATOMS);
+            int probeNeighborCount = limits.get(LIMIT_PROBE_NEIGHBORS);
+            if (probeNeighborCount > probeNeighborCapacity) {
+                System.err.println("Warning: Probe neighbors over capacity: " + probeNeighborCount
+                        + " (" + probeNeighborCapacity + ")");
+                gl.glEndQuery(GL_TIME_ELAPSED);
+                probeNeighborCapacity = growStride(probeNeighborCapacity, probeNeighborCount);
+                resizeBuffers(gl);
+                return;
+            }
         }
         
         gl.glEndQuery(GL_TIME_ELAPSED);
@@ -1818,8 +2286,8 @@ public class Scene implements GLEventListener {
         gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
         
         if (PERFORMANCE_TESTS_ENABLED) {
-            array.profileArray(gl, atomCount * MAX_NEIGHBORS);
-            clArray.run(gl, atomCount * MAX_NEIGHBORS);
+            array.profileArray(gl, atomCount * neighborCapacity);
+            clArray.run(gl, atomCount * neighborCapacity);
         }
         
         // wait for the query to complete
@@ -1899,6 +2367,12 @@ public class Scene implements GLEventListener {
                 gpuGraph.writeResults(gl);
                 area.writeResults(gl);
                 volumetricAO.writeResults(gl);
+                if (cpuSurface && cpuSurfaceResult != null) {
+                    writeSurfaceIntegrals();
+                }
+                if (area.isCpuArea() && area.getCpuResult() != null) {
+                    writeAreas();
+                }
             } catch (IOException e) {
                 e.printStackTrace(System.err);
             }
@@ -1907,6 +2381,28 @@ public class Scene implements GLEventListener {
         //System.out.println("End display(...)");
     }
     
+    /**
+     * Writes areas and volumes of surfaces of the last surface computed
+     * on CPU.
+     */
+    private void writeSurfaceIntegrals() throws IOException {
+        SurfaceIntegrator.Result integrals = getSurfaceIntegrator().integrate(cpuContourBuildup, cpuSurfaceResult);
+        try (Writer writer = new BufferedWriter(new FileWriter(new File(debug.getDebugDir(), "surface.csv")))) {
+            SurfaceIntegrator.Result.writeHeader(writer);
+            integrals.write(writer, cpuSurfaceSnapshot);
+        }
+    }
+    
+    /**
+     * Writes areas of all labels of the last CPU area computation.
+     */
+    private void writeAreas() throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(new File(debug.getDebugDir(), "areas.csv")))) {
+            writer.write("snapshot,label,cavity,area\n");
+            area.writeCpuAreas(writer, snapshot);
+        }
+    }
+    
     private void renderPolygons(GL4bc gl, int program, GPUGraph.Result gr, Area.Result ar, int aoVolumeTex, int count,
             Vector3f view, Vector3f up, Vector3f right, int[] viewport) {
         gl.glUseProgram(program);
@@ -1971,7 +2467,7 @@ public class Scene implements GLEventListener {
         Utils.setUniform(gl, program, "viewport", 0f, 0f, 2f / viewport[2], 2f / viewport[3]);
         Utils.setUniform(gl, program, "window", viewport[2], viewport[3]);
         // other properties
-        Utils.setUniform(gl, program, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, program, "maxNumNeighbors", neighborCapacity);
         Utils.setUniform(gl, program, "probeRadius", probeRadius);
         Utils.setUniform(gl, program, "sas", surfaceType == Surface.SAS ? 1 : 0); // SAS/SES
         // cavity clipping
@@ -2064,7 +2560,7 @@ public class Scene implements GLEventListener {
         Utils.setUniform(gl, program, "viewport", 0f, 0f, 2f / viewport[2], 2f / viewport[3]);
         Utils.setUniform(gl, program, "window", viewport[2], viewport[3]);
         // other properties
-        Utils.setUniform(gl, program, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, program, "maxNumNeighbors", neighborCapacity);
         Utils.setUniform(gl, program, "probeRadius", probeRadius);
         Utils.setUniform(gl, program, "sas", surfaceType == Surface.SAS ? 1 : 0); // SAS/SES
         // cavity clipping
@@ -2157,7 +2653,7 @@ public class Scene implements GLEventListener {
         }
         Utils.setUniform(gl, program, "viewport", 0f, 0f, 2f / viewport[2], 2f / viewport[3]);
         Utils.setUniform(gl, program, "window", viewport[2], viewport[3]);
-        Utils.setUniform(gl, program, "maxNumNeighbors", MAX_NEIGHBORS);
+        Utils.setUniform(gl, program, "maxNumNeighbors", probeNeighborCapacity);
         Utils.setUniform(gl, program, "probeRadius", probeRadius);
         Utils.setUniform(gl, program, "surfaceLabel", gr.getOuterSurfaceLabel());
         Utils.setUniform(gl, program, "clipSurface", clipSurface);
@@ -2618,7 +3114,7 @@ public class Scene implements GLEventListener {
     
     public void loadDynamics(File[] files) {
         try {
-            dynamics = new Dynamics(Utils.loadDynamics(files));
+            replaceDynamics(createPdbLoader().load(files));
             atomCount = dynamics.getMolecule().getAtomCount();
             System.out.println("Atoms: " + atomCount);
             System.out.println("Snapshots: " + dynamics.getSnapshotCount());
@@ -2633,9 +3129,33 @@ public class Scene implements GLEventListener {
         }
     }
     
+    /**
+     * Releases the previous dynamics (e.g., threads and the reader of a
+     * streamed trajectory) and replaces it with the loaded dynamics.
+     */
+    private void replaceDynamics(Dynamics loaded) {
+        if (dynamics != null) {
+            dynamics.dispose();
+        }
+        dynamics = loaded;
+    }
+    
+    private PdbSeriesLoader createPdbLoader() {
+        PdbSeriesLoader loader = new PdbSeriesLoader();
+        loader.setCompactSnapshots(compactSnapshots);
+        return loader;
+    }
+    
+    private GromacsStructureLoader createGromacsLoader() {
+        GromacsStructureLoader loader = new GromacsStructureLoader();
+        loader.setCompactSnapshots(compactSnapshots);
+        loader.setTrajectoryCache(trajectoryCache);
+        return loader;
+    }
+    
     public void loadDynamicsFromGROMACS(File topology, File trajectory) {
         try {
-            dynamics = new GromacsStructureLoader().loadDynamics(topology, trajectory, 0, -1);
+            replaceDynamics(createGromacsLoader().loadDynamics(topology, trajectory, 0, -1));
             atomCount = dynamics.getMolecule().getAtomCount();
             System.out.println("Atoms: " + atomCount);
             System.out.println("Snapshots: " + dynamics.getSnapshotCount());
@@ -2656,7 +3176,7 @@ public class Scene implements GLEventListener {
     
     public void loadDynamicsFromGROMACS(File topology, File trajectory, int start, int end) {
         try {
-            dynamics = new GromacsStructureLoader().loadDynamics(topology, trajectory, start, end);
+            replaceDynamics(createGromacsLoader().loadDynamics(topology, trajectory, start, end));
             atomCount = dynamics.getMolecule().getAtomCount();
             System.out.println("Atoms: " + atomCount);
             System.out.println("Snapshots: " + dynamics.getSnapshotCount());
@@ -2671,9 +3191,53 @@ public class Scene implements GLEventListener {
         }
     }
     
+    /**
+     * Streams dynamics from an uncompressed trajectory, only snapshots
+     * around the current snapshot are held in memory.
+     */
+    public void streamDynamicsFromGROMACS(File topology, File trajectory, int start, int end) {
+        try {
+            replaceDynamics(createGromacsLoader().streamDynamics(topology, trajectory, start, end, STREAMING_BUDGET));
+            dynamics.setSpeed(speed);
+            atomCount = dynamics.getMolecule().getAtomCount();
+            System.out.println("Atoms: " + atomCount);
+            System.out.println("Snapshots: " + dynamics.getSnapshotCount());
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        
+        preprocessMolecule(dynamics.getMolecule());
+        
+        if (dynamicsListener != null) {
+            dynamicsListener.dynamicsLoaded(dynamics);
+        }
+    }
+    
+    /**
+     * Streams models of a PDB file, only snapshots around the current
+     * snapshot are held in memory.
+     */
+    public void streamDynamics(File file) {
+        try {
+            replaceDynamics(createPdbLoader().stream(file, STREAMING_BUDGET));
+            dynamics.setSpeed(speed);
+            atomCount = dynamics.getMolecule().getAtomCount();
+            System.out.println("Atoms: " + atomCount);
+            System.out.println("Snapshots: " + dynamics.getSnapshotCount());
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+        
+        preprocessMolecule(dynamics.getMolecule());
+        
+        if (dynamicsListener != null) {
+            dynamicsListener.dynamicsLoaded(dynamics);
+        }
+    }
+    
     public void loadDynamicsFromResource(String name, int start, int end) {
         try {
-            dynamics = new Dynamics(Utils.loadDynamicsFromResource(name, start, end));
+            replaceDynamics(createPdbLoader().loadFromResource(name, start, end));
             atomCount = dynamics.getMolecule().getAtomCount();
             System.out.println("Atoms: " + atomCount);
             System.out.println("Snapshots: " + dynamics.getSnapshotCount());
@@ -2713,6 +3277,7 @@ public class Scene implements GLEventListener {
                 max.z = Math.max(max.z, snapshot[3 * i + 2]);
             }
         }
+        dynamics.updateSourceBounds(min, max);
         
         Point3f center = new Point3f();
         center.add(max, min);
@@ -2732,6 +3297,7 @@ public class Scene implements GLEventListener {
                 snapshot[3 * i + 2] = snapshot[3 * i + 2] - min.z + 4.0f;
             }
         }
+        dynamics.translateSource(4.0f - min.x, 4.0f - min.y, 4.0f - min.z);
         
         return new AABB(min, max);
     }
@@ -2842,6 +3408,7 @@ public class Scene implements GLEventListener {
     public void setDynamicsSnapshot(int snapshot) {
         lastUpdateTime = System.currentTimeMillis();
         this.snapshot = Math.min(snapshot, dynamics.getSnapshotCount() - 1);
+        dynamics.setCurrentSnapshot(this.snapshot);
         uploaded = false;
     }
     
@@ -2869,6 +3436,7 @@ public class Scene implements GLEventListener {
             int snapshotDiff = (int) (diff * speed / 1000L);
             if (snapshotDiff > 0) {
                 snapshot = (snapshot + snapshotDiff) % dynamics.getSnapshotCount();
+                dynamics.setCurrentSnapshot(snapshot);
                 diff = diff - (long) (snapshotDiff * 1000L / speed);
                 lastUpdateTime = time;
                 // notify
@@ -2898,7 +3466,7 @@ public class Scene implements GLEventListener {
         
         // update atoms buffer
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsBuffer);
-        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, atomsPos.capacity() * Buffers.SIZEOF_FLOAT, atomsPos);
+        gl.glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, 4 * molecule.getAtomCount() * Buffers.SIZEOF_FLOAT, atomsPos);
         gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
     }
     
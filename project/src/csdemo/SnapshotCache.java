@@ -0,0 +1,323 @@
+package csdemo;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of decoded snapshots bounded by a byte budget. Snapshots are
+ * loaded synchronously on a miss, neighbors of the accessed snapshots can
+ * be prefetched by background workers. Prefetch requests of an older
+ * access are dropped, so scrubbing does not queue stale work. A miss of a
+ * snapshot, which is being loaded, waits for the load instead of loading
+ * the snapshot again, a queued prefetch of the snapshot is cancelled.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class SnapshotCache {
+
+    private final Loader loader;
+    private final long budget;
+
+    // resident snapshots in access order
+    private final LinkedHashMap<Integer, float[][]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0L;
+
+    private final ExecutorService workers;
+    // loads in flight (queued or running)
+    private final ConcurrentHashMap<Integer, Load> loading = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicInteger epoch = new AtomicInteger();
+
+    // statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+
+    /**
+     * @param loader loader of snapshots
+     * @param budget maximum size of resident snapshots in bytes (the last
+     * loaded snapshot is kept even if it exceeds the budget)
+     * @param threadCount number of prefetch workers
+     */
+    public SnapshotCache(Loader loader, long budget, int threadCount) {
+        this.loader = loader;
+        this.budget = budget;
+        this.workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Snapshot prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns snapshot, loads it if it is not resident.
+     */
+    public float[][] get(int snapshot) throws IOException {
+        float[][] value;
+        synchronized (entries) {
+            value = entries.get(snapshot);
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+
+        misses.incrementAndGet();
+        while (true) {
+            Load load = new Load(snapshot, -1, epoch.get());
+            Load inFlight = loading.putIfAbsent(snapshot, load);
+            if (inFlight == null) {
+                load.run();
+            } else if (inFlight.cancelQueued()) {
+                // prefetch has not started yet, load it here
+                continue;
+            } else {
+                load = inFlight;
+            }
+
+            try {
+                value = load.get();
+            } catch (CancellationException ex) {
+                value = null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Loading interrupted", ex);
+            } catch (ExecutionException ex) {
+                if (load == inFlight) {
+                    // failed prefetch, load it here
+                    continue;
+                }
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Failed to load snapshot " + snapshot, cause);
+            }
+            if (value != null) {
+                return value;
+            }
+            // dropped prefetch, snapshot already stored or the cache was
+            // cleared while loading (then it is loaded again)
+            synchronized (entries) {
+                value = entries.get(snapshot);
+            }
+            if (value != null) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Schedules loading of snapshots, which are not resident, in the given
+     * order. Requests of previous calls, which have not started yet, are
+     * dropped.
+     */
+    public void prefetch(int[] snapshots) {
+        int current = generation.incrementAndGet();
+        int currentEpoch = epoch.get();
+        for (int snapshot : snapshots) {
+            if (contains(snapshot)) {
+                continue;
+            }
+            Load load = new Load(snapshot, current, currentEpoch);
+            if (loading.putIfAbsent(snapshot, load) == null) {
+                workers.execute(load);
+            }
+        }
+    }
+
+    public boolean contains(int snapshot) {
+        synchronized (entries) {
+            return entries.containsKey(snapshot);
+        }
+    }
+
+    /**
+     * Stores snapshot unless the cache was cleared since expectedEpoch,
+     * snapshots loaded before clearing are dropped.
+     *
+     * @return true if the snapshot was stored
+     */
+    private boolean put(int snapshot, float[][] value, int expectedEpoch) {
+        synchronized (entries) {
+            if (epoch.get() != expectedEpoch) {
+                return false;
+            }
+            float[][] previous = entries.put(snapshot, value);
+            if (previous != null) {
+                size -= sizeOf(previous);
+            }
+            size += sizeOf(value);
+
+            // evict least recently used snapshots
+            Iterator<Map.Entry<Integer, float[][]>> it = entries.entrySet().iterator();
+            while (size > budget && entries.size() > 1) {
+                Map.Entry<Integer, float[][]> eldest = it.next();
+                if (eldest.getKey() == snapshot) {
+                    continue;
+                }
+                size -= sizeOf(eldest.getValue());
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    private static long sizeOf(float[][] value) {
+        long size = 0L;
+        for (float[] array : value) {
+            size += 4L * array.length;
+        }
+        return size;
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        synchronized (entries) {
+            epoch.incrementAndGet();
+            entries.clear();
+            size = 0L;
+        }
+    }
+
+    public void dispose() {
+        for (Runnable load : workers.shutdownNow()) {
+            // wakes up accesses waiting for queued prefetches
+            ((Load) load).cancel(false);
+        }
+        clear();
+    }
+
+    public int getResidentCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return size of resident snapshots in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of snapshots loaded by prefetch workers
+     */
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    /**
+     * Load of a snapshot, which is stored into the cache. The result is the
+     * stored snapshot or null, if the snapshot was not loaded (dropped
+     * prefetch, resident snapshot) or not stored (cleared cache).
+     */
+    private class Load extends FutureTask<float[][]> {
+
+        private final int snapshot;
+        private final boolean prefetch;
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        /**
+         * @param prefetchGeneration generation of the prefetch request or -1
+         * for an access
+         */
+        Load(final int snapshot, final int prefetchGeneration, final int expectedEpoch) {
+            super(new Callable<float[][]>() {
+                @Override
+                public float[][] call() throws IOException {
+                    if ((prefetchGeneration != -1 && generation.get() != prefetchGeneration) || contains(snapshot)) {
+                        return null;
+                    }
+                    float[][] value = loader.load(snapshot);
+                    if (!put(snapshot, value, expectedEpoch)) {
+                        return null;
+                    }
+                    if (prefetchGeneration != -1) {
+                        prefetches.incrementAndGet();
+                    }
+                    return value;
+                }
+            });
+            this.snapshot = snapshot;
+            this.prefetch = prefetchGeneration != -1;
+        }
+
+        @Override
+        public void run() {
+            if (started.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+        /**
+         * Cancels prefetch, which has not started yet.
+         *
+         * @return true if the prefetch was cancelled
+         */
+        public boolean cancelQueued() {
+            if (prefetch && started.compareAndSet(false, true)) {
+                cancel(false);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void done() {
+            loading.remove(snapshot, this);
+        }
+
+    }
+
+    public interface Loader {
+
+        /**
+         * Loads snapshot, can be called concurrently.
+         *
+         * @return positions of the snapshot (one or more arrays)
+         */
+        float[][] load(int snapshot) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,287 @@
+package csdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import javax.vecmath.Point3f;
+
+/**
+ * Dynamics streamed from an XTC trajectory or from models of a PDB file
+ * (see MultiModelPdbReader). Decoded snapshots are held in a SnapshotCache
+ * bounded by a byte budget. After every change of the
+ * current snapshot, snapshots ahead in the play direction (the number
+ * follows the playback speed) and neighbors on both sides are prefetched,
+ * so playback as well as scrubbing rarely decode on the render thread.
+ * Snapshot 0 is the topology, snapshot k &gt; 0 is trajectory frame
+ * start + k - 1 or model k.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class StreamingDynamics extends Dynamics {
+
+    // playback time (in seconds) prefetched ahead of the current snapshot
+    private static final float PREFETCH_TIME = 1f;
+    // neighbors prefetched on both sides of the current snapshot
+    private static final int PREFETCH_RADIUS = 2;
+
+    // source of snapshots (either reader or models)
+    private final XtcReader reader;
+    private final MultiModelPdbReader models;
+    private final int start;
+    private final int frameCount;
+
+    private final SnapshotCache cache;
+    private final ThreadLocal<XtcDecoder> decoder = new ThreadLocal<XtcDecoder>() {
+        @Override
+        protected XtcDecoder initialValue() {
+            return new XtcDecoder();
+        }
+    };
+    private final ThreadLocal<float[]> frame = new ThreadLocal<>();
+
+    // playback state
+    private volatile int current = 0;
+    private volatile int direction = 1;
+    private volatile float speed = 2f;
+
+    // translation of molecule snapshots
+    private volatile float tx = 0f;
+    private volatile float ty = 0f;
+    private volatile float tz = 0f;
+
+    /**
+     * @param topology dynamics holding the topology snapshot
+     * @param trajectory uncompressed XTC trajectory
+     * @param start first frame
+     * @param end frame after the last frame or -1 for all frames
+     * @param budget maximum size of resident snapshots in bytes
+     * @param threadCount number of prefetch threads
+     */
+    public StreamingDynamics(Dynamics topology, File trajectory, int start, int end, long budget, int threadCount) throws IOException {
+        super(topology.getMolecule(), topology.getDrugs());
+
+        this.reader = new XtcReader(trajectory);
+        this.models = null;
+        int last = (end == -1) ? reader.getFrameCount() : Math.min(end, reader.getFrameCount());
+        this.start = start;
+        this.frameCount = Math.max(0, last - start);
+
+        this.cache = createCache(budget, threadCount);
+        setSnapshotSources();
+    }
+
+    /**
+     * @param models reader of models, the first model is the topology
+     * @param budget maximum size of resident snapshots in bytes
+     * @param threadCount number of prefetch threads
+     */
+    public StreamingDynamics(MultiModelPdbReader models, long budget, int threadCount) {
+        super(Collections.singletonList(models.getTopology()));
+
+        this.reader = null;
+        this.models = models;
+        // snapshot k is model k (model 0 is the topology)
+        this.start = 1;
+        this.frameCount = models.getModelCount() - 1;
+
+        this.cache = createCache(budget, threadCount);
+        setSnapshotSources();
+    }
+
+    private SnapshotCache createCache(long budget, int threadCount) {
+        return new SnapshotCache(new SnapshotCache.Loader() {
+            @Override
+            public float[][] load(int snapshot) throws IOException {
+                return StreamingDynamics.this.load(snapshot);
+            }
+        }, budget, threadCount);
+    }
+
+    private void setSnapshotSources() {
+        getMolecule().setSnapshotSource(new Source(getMolecule(), -1));
+        List<Drug> drugs = getDrugs();
+        for (int d = 0; d < drugs.size(); d++) {
+            drugs.get(d).setSnapshotSource(new Source(drugs.get(d), d));
+        }
+    }
+
+    @Override
+    public void setCurrentSnapshot(int snapshot) {
+        int previous = current;
+        if (snapshot == previous) {
+            return;
+        }
+        // wrap around from the last to the first snapshot is forward
+        int diff = snapshot - previous;
+        if (Math.abs(diff) > frameCount / 2) {
+            diff = -diff;
+        }
+        direction = (diff >= 0) ? 1 : -1;
+        current = snapshot;
+        prefetch(snapshot, direction);
+    }
+
+    @Override
+    public void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    @Override
+    public void dispose() {
+        cache.dispose();
+        if (reader == null) {
+            return;
+        }
+        synchronized (reader) {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to close trajectory", ex);
+            }
+        }
+    }
+
+    /**
+     * @return cache of snapshots (e.g., to read its counters)
+     */
+    public SnapshotCache getCache() {
+        return cache;
+    }
+
+    private float[] getAtomPositions(int snapshot, int drug, Molecule molecule) {
+        if (snapshot == 0) {
+            return molecule.getSnapshots().get(0);
+        }
+        if (snapshot < 0 || snapshot > frameCount) {
+            throw new IndexOutOfBoundsException("Snapshot " + snapshot + " out of range 0.." + frameCount);
+        }
+
+        try {
+            return cache.get(snapshot)[drug + 1];
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to read trajectory", ex);
+        }
+    }
+
+    private void prefetch(int snapshot, int dir) {
+        if (frameCount == 0) {
+            return;
+        }
+        int ahead = (int) Math.ceil(Math.abs(speed) * PREFETCH_TIME) + 1;
+        ahead = Math.min(Math.max(ahead, PREFETCH_RADIUS), frameCount - 1);
+        int behind = Math.min(PREFETCH_RADIUS, frameCount - 1 - ahead);
+
+        int[] snapshots = new int[ahead + behind];
+        int count = 0;
+        for (int k = 1; k <= ahead; k++) {
+            snapshots[count++] = wrap(snapshot + dir * k);
+        }
+        for (int k = 1; k <= behind; k++) {
+            snapshots[count++] = wrap(snapshot - dir * k);
+        }
+        cache.prefetch(snapshots);
+    }
+
+    /**
+     * @return trajectory snapshot index (1..frameCount)
+     */
+    private int wrap(int snapshot) {
+        int index = (snapshot - 1) % frameCount;
+        if (index < 0) {
+            index += frameCount;
+        }
+        return index + 1;
+    }
+
+    private float[][] load(int snapshot) throws IOException {
+        if (models != null) {
+            return loadModel(snapshot);
+        }
+        ByteBuffer data;
+        synchronized (reader) {
+            data = reader.getFrameData(start + snapshot - 1);
+        }
+        int atomCount = XtcDecoder.getAtomCount(data);
+        float[] positions = frame.get();
+        if (positions == null || positions.length < 3 * atomCount) {
+            positions = new float[3 * atomCount];
+            frame.set(positions);
+        }
+        decoder.get().decode(data, positions);
+
+        List<Drug> drugs = getDrugs();
+        float[][] s = new float[1 + drugs.size()][];
+        s[0] = gather(getMolecule(), positions, tx, ty, tz);
+        for (int d = 0; d < drugs.size(); d++) {
+            s[d + 1] = gather(drugs.get(d), positions, 0f, 0f, 0f);
+        }
+        return s;
+    }
+
+    private float[][] loadModel(int snapshot) {
+        // atoms of models are in the order of the topology
+        float[] positions = new float[3 * models.getAtomCount()];
+        models.readModel(start + snapshot - 1, positions);
+        float x = tx, y = ty, z = tz;
+        for (int i = 0; i < positions.length; i += 3) {
+            positions[i] += x;
+            positions[i + 1] += y;
+            positions[i + 2] += z;
+        }
+        return new float[][] { positions };
+    }
+
+    private static float[] gather(Molecule molecule, float[] frame, float tx, float ty, float tz) {
+        List<Atom> atoms = molecule.getAtoms();
+        float[] positions = new float[3 * atoms.size()];
+        for (int i = 0; i < atoms.size(); i++) {
+            int id = atoms.get(i).id - 1;
+            positions[3 * i] = frame[3 * id] + tx;
+            positions[3 * i + 1] = frame[3 * id + 1] + ty;
+            positions[3 * i + 2] = frame[3 * id + 2] + tz;
+        }
+        return positions;
+    }
+
+    private class Source implements Molecule.SnapshotSource {
+
+        private final Molecule molecule;
+        private final int drug;
+
+        Source(Molecule molecule, int drug) {
+            this.molecule = molecule;
+            this.drug = drug;
+        }
+
+        @Override
+        public float[] getAtomPositions(int snapshot) {
+            return StreamingDynamics.this.getAtomPositions(snapshot, drug, molecule);
+        }
+
+        @Override
+        public int getSnapshotCount() {
+            return 1 + frameCount;
+        }
+
+        @Override
+        public void updateBounds(Point3f min, Point3f max) {
+            // bounds of snapshots are not known until they are loaded
+        }
+
+        @Override
+        public void translate(float x, float y, float z) {
+            if (drug >= 0) {
+                // drug snapshots are not translated
+                return;
+            }
+            tx += x;
+            ty += y;
+            tz += z;
+            cache.clear();
+        }
+
+    }
+
+}
@@ -0,0 +1,1182 @@
+package csdemo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analytic area and volume of the solvent excluded surface per label
+ * (connected surface, see CPUGraph). All three types of patches are
+ * integrated: concave spherical triangles of probes, toroidal (saddle)
+ * patches and convex spherical patches of atoms. Areas of convex patches
+ * follow from the Gauss-Bonnet theorem applied to their boundary arcs,
+ * volumes from the divergence theorem (V = 1/3 * integral of x.n over the
+ * closed surface). The volume of the outer surface is the volume enclosed
+ * by the molecular surface, the volume of a cavity is its empty space.
+ * Patches of each type are processed in parallel, every worker sums into
+ * its own per label arrays, arrays are added at the end.
+ *
+ * Intersections of probes (the singular surface) are only removed from
+ * self-intersecting tori. Surfaces without triangles (e.g., free rings of
+ * two atoms) have no label and are skipped.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class SurfaceIntegrator {
+
+    private static final double PI = Math.PI;
+    private static final double TWO_PI = 2.0 * Math.PI;
+
+    // sums of labels
+    private static final int CONCAVE = 0;
+    private static final int TOROIDAL = 1;
+    private static final int CONVEX = 2;
+    private static final int FLUX = 3;
+    // vector area (integral of n)
+    private static final int NORMAL = 4;
+    // sum and number of probe positions
+    private static final int CENTER = 7;
+    private static final int PROBES = 10;
+    private static final int CHANNEL_COUNT = 11;
+
+    // minimum number of primitives of a worker
+    private static final int GRAIN_SIZE = 1024;
+
+    // workers shared with the caller
+    private final WorkerPool workers;
+
+    // surface (positions relative to the origin)
+    private double[] atoms;
+    private int atomCount;
+    private double probeRadius;
+    private ByteBuffer triangles;
+    private int[] triangleAtoms;
+    private int[] edges;
+    private int[] labels;
+    private int labelCount;
+    private double originX;
+    private double originY;
+    private double originZ;
+
+    // sweep angles of tori
+    private double[] sweeps;
+    private boolean[] sweepsCCW;
+    // arcs of convex patches (arc 2 * t of torus t lies on atom i, arc
+    // 2 * t + 1 on atom j)
+    private int[] atomArcStarts;
+    private int[] atomArcs;
+    private boolean[] visited;
+    // arc leaving vertex on its atom (3 per vertex, see triangleAtoms)
+    private int[] outgoing;
+    // labels of free tori (2 per torus, resolved by patches of atoms)
+    private int[] ringLabels;
+
+    private final AtomicInteger openLoops = new AtomicInteger();
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public SurfaceIntegrator() {
+        this(new WorkerPool());
+    }
+
+    /**
+     * @param workers pool of workers (owned by the caller)
+     */
+    public SurfaceIntegrator(WorkerPool workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Integrates the last surface of the engine.
+     */
+    public Result integrate(CPUContourBuildup engine, ContourBuildupEngine.Result surface) {
+        int torusCount = surface.getTorusCount();
+        int[] edgeData = new int[4 * torusCount];
+        IntBuffer edgeBuffer = surface.getEdges().duplicate().order(surface.getEdges().order()).asIntBuffer();
+        edgeBuffer.get(edgeData);
+        CPUGraph.Result graph = surface.getGraph();
+        Result result = integrate(engine.getAtoms(), engine.getAtomCount(), engine.getProbeRadius(),
+                surface.getTriangles(), engine.getTriangleAtoms(), surface.getTriangleCount(),
+                edgeData, torusCount, graph.getLabels(), graph.getLabelCount());
+        if (graph.getCavityIds() == null) {
+            return result;
+        }
+        return new Result(result.concaveAreas, result.toroidalAreas, result.convexAreas, result.volumes,
+                graph.getCavityIds());
+    }
+
+    /**
+     * Integrates areas and volumes of surfaces.
+     *
+     * @param atoms atoms (x, y, z, r)
+     * @param atomCount number of atoms
+     * @param probeRadius probe radius
+     * @param triangles triangles (probe position, vectors to atoms, see
+     * Scene.SIZEOF_TRIANGLE)
+     * @param triangleAtoms atoms (i, j, k) of triangles
+     * @param triangleCount number of triangles
+     * @param edges tori (triangle, triangle, atom i, atom j, free tori have
+     * invalid triangles, see CPUGraph.INVALID_VERTEX)
+     * @param torusCount number of tori
+     * @param labels labels of triangles (labels start at 1)
+     * @param labelCount number of labels
+     * @return areas and volumes of labels
+     */
+    public Result integrate(float[] atoms, int atomCount, float probeRadius,
+            ByteBuffer triangles, int[] triangleAtoms, int triangleCount,
+            int[] edges, final int torusCount, int[] labels, int labelCount) {
+        this.atomCount = atomCount;
+        this.probeRadius = probeRadius;
+        this.triangles = triangles;
+        this.triangleAtoms = triangleAtoms;
+        this.edges = edges;
+        this.labels = labels;
+        this.labelCount = labelCount;
+
+        // move the origin to the center of atoms to keep fluxes accurate
+        originX = 0.0;
+        originY = 0.0;
+        originZ = 0.0;
+        for (int i = 0; i < atomCount; i++) {
+            originX += atoms[4 * i];
+            originY += atoms[4 * i + 1];
+            originZ += atoms[4 * i + 2];
+        }
+        if (atomCount > 0) {
+            originX /= atomCount;
+            originY /= atomCount;
+            originZ /= atomCount;
+        }
+        if (this.atoms == null || this.atoms.length < 4 * atomCount) {
+            this.atoms = new double[4 * atomCount];
+        }
+        for (int i = 0; i < atomCount; i++) {
+            this.atoms[4 * i] = atoms[4 * i] - originX;
+            this.atoms[4 * i + 1] = atoms[4 * i + 1] - originY;
+            this.atoms[4 * i + 2] = atoms[4 * i + 2] - originZ;
+            this.atoms[4 * i + 3] = atoms[4 * i + 3];
+        }
+
+        // arcs of atoms
+        if (atomArcStarts == null || atomArcStarts.length < atomCount + 1) {
+            atomArcStarts = new int[atomCount + 1];
+        }
+        Arrays.fill(atomArcStarts, 0, atomCount + 1, 0);
+        for (int t = 0; t < torusCount; t++) {
+            atomArcStarts[edges[4 * t + 2] + 1]++;
+            atomArcStarts[edges[4 * t + 3] + 1]++;
+        }
+        for (int i = 0; i < atomCount; i++) {
+            atomArcStarts[i + 1] += atomArcStarts[i];
+        }
+        if (atomArcs == null || atomArcs.length < 2 * torusCount) {
+            atomArcs = new int[2 * torusCount];
+            visited = new boolean[2 * torusCount];
+            ringLabels = new int[2 * torusCount];
+            sweeps = new double[torusCount];
+            sweepsCCW = new boolean[torusCount];
+        }
+        int[] fill = Arrays.copyOf(atomArcStarts, atomCount);
+        for (int t = 0; t < torusCount; t++) {
+            atomArcs[fill[edges[4 * t + 2]]++] = 2 * t;
+            atomArcs[fill[edges[4 * t + 3]]++] = 2 * t + 1;
+        }
+        Arrays.fill(visited, 0, 2 * torusCount, false);
+        Arrays.fill(ringLabels, 0, 2 * torusCount, 0);
+        if (outgoing == null || outgoing.length < 3 * triangleCount) {
+            outgoing = new int[3 * triangleCount];
+        }
+        Arrays.fill(outgoing, 0, 3 * triangleCount, -1);
+        openLoops.set(0);
+
+        double[] sums = new double[CHANNEL_COUNT * labelCount];
+        add(sums, sum(triangleCount, new Range() {
+            @Override
+            public void compute(int from, int to, double[] sums) {
+                integrateTriangles(from, to, sums);
+            }
+        }));
+        add(sums, sum(torusCount, new Range() {
+            @Override
+            public void compute(int from, int to, double[] sums) {
+                integrateTori(from, to, sums);
+            }
+        }));
+        add(sums, sum(atomCount, new Range() {
+            @Override
+            public void compute(int from, int to, double[] sums) {
+                integratePatches(from, to, sums);
+            }
+        }));
+        add(sums, sum(torusCount, new Range() {
+            @Override
+            public void compute(int from, int to, double[] sums) {
+                integrateFreeTori(from, to, sums);
+            }
+        }));
+
+        if (openLoops.get() > 0) {
+            System.err.println("Warning: Open boundaries of patches skipped: " + openLoops.get());
+        }
+
+        float[] concaveAreas = new float[labelCount];
+        float[] toroidalAreas = new float[labelCount];
+        float[] convexAreas = new float[labelCount];
+        float[] volumes = new float[labelCount];
+        for (int l = 0; l < labelCount; l++) {
+            int offset = CHANNEL_COUNT * l;
+            concaveAreas[l] = (float) sums[offset + CONCAVE];
+            toroidalAreas[l] = (float) sums[offset + TOROIDAL];
+            convexAreas[l] = (float) sums[offset + CONVEX];
+            // the flux of a closed surface does not depend on the origin,
+            // probe intersections leave small gaps, so the flux is taken
+            // around the center of the surface
+            double flux = sums[offset + FLUX];
+            double probes = sums[offset + PROBES];
+            if (probes > 0.0) {
+                for (int c = 0; c < 3; c++) {
+                    flux -= sums[offset + CENTER + c] / probes * sums[offset + NORMAL + c];
+                }
+            }
+            volumes[l] = (float) (Math.abs(flux) / 3.0);
+        }
+
+        // release the surface
+        this.triangles = null;
+        this.triangleAtoms = null;
+        this.edges = null;
+        this.labels = null;
+
+        return new Result(concaveAreas, toroidalAreas, convexAreas, volumes);
+    }
+
+    private double[] sum(int count, final Range range) {
+        final int length = CHANNEL_COUNT * labelCount;
+        return workers.reduce(new WorkerPool.Reduction<double[]>() {
+            @Override
+            public double[] compute(int from, int to) {
+                double[] sums = new double[length];
+                range.compute(from, to, sums);
+                return sums;
+            }
+
+            @Override
+            public double[] combine(double[] result, double[] partial) {
+                add(result, partial);
+                return result;
+            }
+        }, count, GRAIN_SIZE);
+    }
+
+    private static void add(double[] sums, double[] partial) {
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] += partial[i];
+        }
+    }
+
+    private boolean isLabel(int label) {
+        return label >= 1 && label <= labelCount;
+    }
+
+    //
+    // Concave spherical triangles
+    //
+
+    private void integrateTriangles(int from, int to, double[] sums) {
+        double[] w = new double[9];
+        double[] p = new double[3];
+        double r2 = probeRadius * probeRadius;
+        for (int v = from; v < to; v++) {
+            int label = labels[v];
+            if (!isLabel(label)) {
+                continue;
+            }
+            probePosition(v, p);
+            int offset = v * Scene.SIZEOF_TRIANGLE;
+            for (int n = 0; n < 3; n++) {
+                int vec = offset + (n + 1) * Scene.SIZEOF_VEC4;
+                w[3 * n] = triangles.getFloat(vec);
+                w[3 * n + 1] = triangles.getFloat(vec + 4);
+                w[3 * n + 2] = triangles.getFloat(vec + 8);
+                normalize(w, 3 * n);
+            }
+            // spherical excess (Van Oosterom and Strackee)
+            double det = w[0] * (w[4] * w[8] - w[5] * w[7])
+                    + w[1] * (w[5] * w[6] - w[3] * w[8])
+                    + w[2] * (w[3] * w[7] - w[4] * w[6]);
+            double excess = 2.0 * Math.atan2(Math.abs(det),
+                    1.0 + dot(w, 0, w, 3) + dot(w, 3, w, 6) + dot(w, 6, w, 0));
+            // vector area of the unit triangle
+            double sign = (det < 0.0) ? -0.5 : 0.5;
+            double wx = 0.0;
+            double wy = 0.0;
+            double wz = 0.0;
+            for (int n = 0; n < 3; n++) {
+                int a = 3 * n;
+                int b = 3 * ((n + 1) % 3);
+                double cx = w[a + 1] * w[b + 2] - w[a + 2] * w[b + 1];
+                double cy = w[a + 2] * w[b] - w[a] * w[b + 2];
+                double cz = w[a] * w[b + 1] - w[a + 1] * w[b];
+                double sin = Math.sqrt(cx * cx + cy * cy + cz * cz);
+                if (sin > 0.0) {
+                    double scale = Math.atan2(sin, dot(w, a, w, b)) / sin;
+                    wx += scale * cx;
+                    wy += scale * cy;
+                    wz += scale * cz;
+                }
+            }
+            double area = r2 * excess;
+            // normal points to the probe: x.n = -p.w - rp
+            double flux = -r2 * sign * (p[0] * wx + p[1] * wy + p[2] * wz) - probeRadius * area;
+            int sum = CHANNEL_COUNT * (label - 1);
+            sums[sum + CONCAVE] += area;
+            sums[sum + FLUX] += flux;
+            sums[sum + NORMAL] -= r2 * sign * wx;
+            sums[sum + NORMAL + 1] -= r2 * sign * wy;
+            sums[sum + NORMAL + 2] -= r2 * sign * wz;
+            sums[sum + CENTER] += p[0];
+            sums[sum + CENTER + 1] += p[1];
+            sums[sum + CENTER + 2] += p[2];
+            sums[sum + PROBES] += 1.0;
+        }
+    }
+
+    //
+    // Toroidal patches
+    //
+
+    private void integrateTori(int from, int to, double[] sums) {
+        Torus torus = new Torus();
+        double[] p1 = new double[3];
+        double[] p2 = new double[3];
+        for (int t = from; t < to; t++) {
+            int v1 = edges[4 * t];
+            int v2 = edges[4 * t + 1];
+            if (v1 == CPUGraph.INVALID_VERTEX || v2 == CPUGraph.INVALID_VERTEX) {
+                continue;
+            }
+            int i = edges[4 * t + 2];
+            int j = edges[4 * t + 3];
+            torus.setAxis(i, j);
+            probePosition(v1, p1);
+            probePosition(v2, p2);
+
+            // the probe rolls away from the third atoms of triangles
+            double[] e1 = torus.radial(p1, new double[3]);
+            double[] e2 = torus.radial(p2, new double[3]);
+            double d1 = rollDirection(torus, p1, e1, thirdAtom(v1, i, j));
+            double d2 = -rollDirection(torus, p2, e2, thirdAtom(v2, i, j));
+            boolean ccw = ((Math.abs(d1) >= Math.abs(d2)) ? d1 : d2) > 0.0;
+            double angle = Math.atan2(torus.axisDot(cross(e1, e2)), dot(e1, 0, e2, 0));
+            double sweep = ccw ? angle : -angle;
+            if (sweep <= 0.0) {
+                sweep += TWO_PI;
+            }
+            sweeps[t] = sweep;
+            sweepsCCW[t] = ccw;
+
+            // arcs of atoms leave the triangles with the surface on the left
+            setOutgoing(ccw ? v2 : v1, i, 2 * t);
+            setOutgoing(ccw ? v1 : v2, j, 2 * t + 1);
+
+            int label = labels[v1];
+            if (isLabel(label)) {
+                torus.integrate(p1, e1, ccw, sweep);
+                torus.add(sums, CHANNEL_COUNT * (label - 1));
+            }
+        }
+    }
+
+    private void integrateFreeTori(int from, int to, double[] sums) {
+        Torus torus = new Torus();
+        double[] p = new double[3];
+        double[] e = new double[3];
+        for (int t = from; t < to; t++) {
+            if (edges[4 * t] != CPUGraph.INVALID_VERTEX && edges[4 * t + 1] != CPUGraph.INVALID_VERTEX) {
+                continue;
+            }
+            int label = isLabel(ringLabels[2 * t]) ? ringLabels[2 * t] : ringLabels[2 * t + 1];
+            if (!isLabel(label)) {
+                continue;
+            }
+            torus.setAxis(edges[4 * t + 2], edges[4 * t + 3]);
+            torus.probe(p, e);
+            torus.integrate(p, e, true, TWO_PI);
+            torus.add(sums, CHANNEL_COUNT * (label - 1));
+        }
+    }
+
+    private double rollDirection(Torus torus, double[] p, double[] e, int k) {
+        double[] tangent = torus.tangent(e);
+        return (p[0] - atoms[4 * k]) * tangent[0]
+                + (p[1] - atoms[4 * k + 1]) * tangent[1]
+                + (p[2] - atoms[4 * k + 2]) * tangent[2];
+    }
+
+    private int thirdAtom(int v, int i, int j) {
+        for (int n = 0; n < 3; n++) {
+            int k = triangleAtoms[3 * v + n];
+            if (k != i && k != j) {
+                return k;
+            }
+        }
+        return triangleAtoms[3 * v];
+    }
+
+    private void setOutgoing(int v, int atom, int arc) {
+        for (int n = 0; n < 3; n++) {
+            if (triangleAtoms[3 * v + n] == atom) {
+                outgoing[3 * v + n] = arc;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Torus of a pair of atoms: axis, center and radius of the circle of
+     * probe positions.
+     */
+    private class Torus {
+
+        private int i;
+        private int j;
+        private final double[] axis = new double[3];
+        private final double[] center = new double[3];
+        private double radius;
+
+        // results of integrate
+        private double area;
+        private double flux;
+        private final double[] normal = new double[3];
+
+        void setAxis(int i, int j) {
+            this.i = i;
+            this.j = j;
+            axis[0] = atoms[4 * j] - atoms[4 * i];
+            axis[1] = atoms[4 * j + 1] - atoms[4 * i + 1];
+            axis[2] = atoms[4 * j + 2] - atoms[4 * i + 2];
+            double d = Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+            axis[0] /= d;
+            axis[1] /= d;
+            axis[2] /= d;
+            // intersection circle of expanded spheres
+            double ri = atoms[4 * i + 3] + probeRadius;
+            double rj = atoms[4 * j + 3] + probeRadius;
+            double x = (d * d + ri * ri - rj * rj) / (2.0 * d);
+            radius = Math.sqrt(Math.max(0.0, ri * ri - x * x));
+            for (int c = 0; c < 3; c++) {
+                center[c] = atoms[4 * i + c] + x * axis[c];
+            }
+        }
+
+        /**
+         * @return unit vector from the axis to the probe position
+         */
+        double[] radial(double[] p, double[] e) {
+            for (int c = 0; c < 3; c++) {
+                e[c] = p[c] - center[c];
+            }
+            double along = axisDot(e);
+            for (int c = 0; c < 3; c++) {
+                e[c] -= along * axis[c];
+            }
+            normalize(e, 0);
+            return e;
+        }
+
+        /**
+         * @return direction of counter-clockwise rotation around the axis
+         */
+        double[] tangent(double[] e) {
+            return cross(axis, e);
+        }
+
+        double axisDot(double[] v) {
+            return axis[0] * v[0] + axis[1] * v[1] + axis[2] * v[2];
+        }
+
+        /**
+         * Computes an arbitrary probe position.
+         */
+        void probe(double[] p, double[] e) {
+            perpendicular(axis, e);
+            for (int c = 0; c < 3; c++) {
+                p[c] = center[c] + radius * e[c];
+            }
+        }
+
+        /**
+         * Integrates the saddle swept by the probe from position p (radial
+         * direction e) by the given angle.
+         */
+        void integrate(double[] p, double[] e, boolean ccw, double sweep) {
+            // angles of contact points from the direction to the axis
+            double lo = contactAngle(p, e, i);
+            double hi = contactAngle(p, e, j);
+            if (lo > hi) {
+                double swap = lo;
+                lo = hi;
+                hi = swap;
+            }
+            double rp = probeRadius;
+            double[] integrals = new double[3];
+            arcIntegrals(lo, hi, integrals);
+            if (radius < rp) {
+                // remove the self-intersecting part beyond the axis
+                double clip = Math.acos(radius / rp);
+                double a = Math.max(lo, -clip);
+                double b = Math.min(hi, clip);
+                if (a < b) {
+                    double[] inner = new double[3];
+                    arcIntegrals(a, b, inner);
+                    for (int n = 0; n < 3; n++) {
+                        integrals[n] -= inner[n];
+                    }
+                }
+            }
+            // integral of radial directions over the sweep
+            double[] tangent = tangent(e);
+            double sin = Math.sin(sweep);
+            double cos = 1.0 - Math.cos(sweep);
+            double sign = ccw ? 1.0 : -1.0;
+            double[] radial = new double[3];
+            for (int c = 0; c < 3; c++) {
+                radial[c] = sin * e[c] + sign * cos * tangent[c];
+            }
+            double ce = center[0] * radial[0] + center[1] * radial[1] + center[2] * radial[2];
+            double ct = axisDot(center);
+            area = rp * sweep * integrals[0];
+            // normal points to the probe: x.n = -p.w - rp
+            double pw = rp * (-ce * integrals[1] + ct * sweep * integrals[2] - radius * sweep * integrals[1]);
+            flux = -pw - rp * area;
+            for (int c = 0; c < 3; c++) {
+                normal[c] = -rp * (-radial[c] * integrals[1] + axis[c] * sweep * integrals[2]);
+            }
+        }
+
+        void add(double[] sums, int sum) {
+            sums[sum + TOROIDAL] += area;
+            sums[sum + FLUX] += flux;
+            sums[sum + NORMAL] += normal[0];
+            sums[sum + NORMAL + 1] += normal[1];
+            sums[sum + NORMAL + 2] += normal[2];
+        }
+
+        private double contactAngle(double[] p, double[] e, int atom) {
+            double wx = atoms[4 * atom] - p[0];
+            double wy = atoms[4 * atom + 1] - p[1];
+            double wz = atoms[4 * atom + 2] - p[2];
+            double wt = wx * axis[0] + wy * axis[1] + wz * axis[2];
+            double wu = -(wx * e[0] + wy * e[1] + wz * e[2]);
+            return Math.atan2(wt, wu);
+        }
+
+        /**
+         * Integrals of rho, rho * cos and rho * sin over the arc of the
+         * probe, rho = R - rp * cos is the distance from the axis.
+         */
+        private void arcIntegrals(double a, double b, double[] integrals) {
+            double rp = probeRadius;
+            double sinA = Math.sin(a);
+            double sinB = Math.sin(b);
+            double cosA = Math.cos(a);
+            double cosB = Math.cos(b);
+            integrals[0] = radius * (b - a) - rp * (sinB - sinA);
+            integrals[1] = radius * (sinB - sinA) - rp * (0.5 * (b - a) + 0.25 * (Math.sin(2.0 * b) - Math.sin(2.0 * a)));
+            integrals[2] = radius * (cosA - cosB) - rp * 0.5 * (sinB * sinB - sinA * sinA);
+        }
+
+    }
+
+    //
+    // Convex spherical patches
+    //
+
+    private void integratePatches(int from, int to, double[] sums) {
+        Scratch s = scratch.get();
+        for (int atom = from; atom < to; atom++) {
+            int arcCount = atomArcStarts[atom + 1] - atomArcStarts[atom];
+            if (arcCount == 0) {
+                // buried or free atom
+                continue;
+            }
+            s.grow(arcCount);
+            int loopCount = findLoops(atom, s);
+            if (loopCount == 0) {
+                continue;
+            }
+
+            // loops bounding the same patch
+            for (int l = 0; l < loopCount; l++) {
+                s.parents[l] = l;
+            }
+            if (loopCount > 1) {
+                for (int c = 0; c < loopCount; c++) {
+                    for (int x = 0; x < loopCount; x++) {
+                        s.inside[c * loopCount + x] = (c != x) && isLeftOf(s, c, x);
+                    }
+                }
+                for (int a = 0; a < loopCount; a++) {
+                    for (int b = a + 1; b < loopCount; b++) {
+                        if (isSamePatch(s, loopCount, a, b)) {
+                            union(s.parents, a, b);
+                        }
+                    }
+                }
+            }
+
+            double r = atoms[4 * atom + 3];
+            for (int root = 0; root < loopCount; root++) {
+                if (find(s.parents, root) != root) {
+                    continue;
+                }
+                int label = 0;
+                int count = 0;
+                double omega = 0.0;
+                double vx = 0.0;
+                double vy = 0.0;
+                double vz = 0.0;
+                for (int l = 0; l < loopCount; l++) {
+                    if (find(s.parents, l) == root) {
+                        if (isLabel(s.loopLabels[l])) {
+                            label = s.loopLabels[l];
+                        }
+                        count++;
+                        omega += s.loopOmegas[l];
+                        vx += s.loopVectors[3 * l];
+                        vy += s.loopVectors[3 * l + 1];
+                        vz += s.loopVectors[3 * l + 2];
+                    }
+                }
+                if (!isLabel(label)) {
+                    continue;
+                }
+                // label free tori of the patch
+                for (int l = 0; l < loopCount; l++) {
+                    if (find(s.parents, l) == root && s.loopLengths[l] == 1) {
+                        int arc = s.order[s.loopStarts[l]];
+                        if (isFree(arc >> 1)) {
+                            ringLabels[arc] = label;
+                        }
+                    }
+                }
+                // Gauss-Bonnet for a patch with several boundaries
+                double area = r * r * (omega - 4.0 * PI * (count - 1));
+                // normal points out of the atom: x.n = a.n + r
+                double flux = r * r * (atoms[4 * atom] * vx + atoms[4 * atom + 1] * vy + atoms[4 * atom + 2] * vz)
+                        + r * area;
+                int sum = CHANNEL_COUNT * (label - 1);
+                sums[sum + CONVEX] += area;
+                sums[sum + FLUX] += flux;
+                sums[sum + NORMAL] += r * r * vx;
+                sums[sum + NORMAL + 1] += r * r * vy;
+                sums[sum + NORMAL + 2] += r * r * vz;
+            }
+        }
+    }
+
+    /**
+     * Chains arcs of the atom into closed loops with the patch on the left
+     * and computes their geometry.
+     *
+     * @return number of closed loops
+     */
+    private int findLoops(int atom, Scratch s) {
+        int loopCount = 0;
+        int length = 0;
+        for (int n = atomArcStarts[atom]; n < atomArcStarts[atom + 1]; n++) {
+            int first = atomArcs[n];
+            if (visited[first]) {
+                continue;
+            }
+            int start = length;
+            int arc = first;
+            boolean closed = false;
+            while (!visited[arc]) {
+                visited[arc] = true;
+                s.order[length] = arc;
+                arcGeometry(arc, atom, s.arcs, ARC_SIZE * length);
+                length++;
+                int next = nextArc(arc, atom);
+                if (next == first) {
+                    closed = true;
+                    break;
+                }
+                if (next < 0) {
+                    break;
+                }
+                arc = next;
+            }
+            if (!closed) {
+                openLoops.incrementAndGet();
+                length = start;
+                continue;
+            }
+            s.loopStarts[loopCount] = start;
+            s.loopLengths[loopCount] = length - start;
+            int t = first >> 1;
+            s.loopLabels[loopCount] = isFree(t) ? 0 : labels[edges[4 * t]];
+            loopGeometry(s, loopCount);
+            loopCount++;
+        }
+        return loopCount;
+    }
+
+    private boolean isFree(int t) {
+        return edges[4 * t] == CPUGraph.INVALID_VERTEX || edges[4 * t + 1] == CPUGraph.INVALID_VERTEX;
+    }
+
+    private int endVertex(int arc) {
+        int t = arc >> 1;
+        boolean ccw = sweepsCCW[t];
+        if ((arc & 1) == 0) {
+            return edges[4 * t + (ccw ? 0 : 1)];
+        } else {
+            return edges[4 * t + (ccw ? 1 : 0)];
+        }
+    }
+
+    private int startVertex(int arc) {
+        int t = arc >> 1;
+        boolean ccw = sweepsCCW[t];
+        if ((arc & 1) == 0) {
+            return edges[4 * t + (ccw ? 1 : 0)];
+        } else {
+            return edges[4 * t + (ccw ? 0 : 1)];
+        }
+    }
+
+    private int nextArc(int arc, int atom) {
+        if (isFree(arc >> 1)) {
+            return arc;
+        }
+        int v = endVertex(arc);
+        for (int n = 0; n < 3; n++) {
+            if (triangleAtoms[3 * v + n] == atom) {
+                return outgoing[3 * v + n];
+            }
+        }
+        return -1;
+    }
+
+    // arc on the unit sphere of an atom: axis (3), cos, sin, start (3),
+    // end (3), start direction in the plane of the circle (3), angle
+    private static final int ARC_SIZE = 15;
+    private static final int AXIS = 0;
+    private static final int COS = 3;
+    private static final int SIN = 4;
+    private static final int START = 5;
+    private static final int END = 8;
+    private static final int PLANE = 11;
+    private static final int ANGLE = 14;
+
+    /**
+     * Computes the arc of the atom. The arc turns clockwise around the
+     * axis pointing to the other atom of the torus, so the buried part of
+     * the atom lies on the right.
+     */
+    private void arcGeometry(int arc, int atom, double[] g, int offset) {
+        int t = arc >> 1;
+        int other = edges[4 * t + 2 + (1 - (arc & 1))];
+        for (int c = 0; c < 3; c++) {
+            g[offset + AXIS + c] = atoms[4 * other + c] - atoms[4 * atom + c];
+        }
+        double d = normalize(g, offset + AXIS);
+        double[] p = new double[3];
+        if (isFree(t)) {
+            double ra = atoms[4 * atom + 3] + probeRadius;
+            double ro = atoms[4 * other + 3] + probeRadius;
+            double cos = (d * d + ra * ra - ro * ro) / (2.0 * d * ra);
+            g[offset + COS] = cos;
+            g[offset + SIN] = Math.sqrt(Math.max(0.0, 1.0 - cos * cos));
+            perpendicular(g, offset + AXIS, g, offset + PLANE);
+            for (int c = 0; c < 3; c++) {
+                g[offset + START + c] = cos * g[offset + AXIS + c] + g[offset + SIN] * g[offset + PLANE + c];
+                g[offset + END + c] = g[offset + START + c];
+            }
+            g[offset + ANGLE] = -TWO_PI;
+            return;
+        }
+        contactDirection(startVertex(arc), atom, p);
+        System.arraycopy(p, 0, g, offset + START, 3);
+        contactDirection(endVertex(arc), atom, p);
+        System.arraycopy(p, 0, g, offset + END, 3);
+        double cos = dot(g, offset + START, g, offset + AXIS);
+        g[offset + COS] = cos;
+        for (int c = 0; c < 3; c++) {
+            g[offset + PLANE + c] = g[offset + START + c] - cos * g[offset + AXIS + c];
+        }
+        g[offset + SIN] = normalize(g, offset + PLANE);
+        g[offset + ANGLE] = -sweeps[t];
+    }
+
+    private void contactDirection(int v, int atom, double[] p) {
+        probePosition(v, p);
+        for (int c = 0; c < 3; c++) {
+            p[c] -= atoms[4 * atom + c];
+        }
+        normalize(p, 0);
+    }
+
+    /**
+     * Computes the area on the left of the loop (Gauss-Bonnet) and its
+     * vector area (1/2 * integral of x cross dx) on the unit sphere.
+     */
+    private void loopGeometry(Scratch s, int loop) {
+        double[] g = s.arcs;
+        int start = s.loopStarts[loop];
+        int length = s.loopLengths[loop];
+        double omega = TWO_PI;
+        double vx = 0.0;
+        double vy = 0.0;
+        double vz = 0.0;
+        for (int n = 0; n < length; n++) {
+            int a = ARC_SIZE * (start + n);
+            double cos = g[a + COS];
+            double sin = g[a + SIN];
+            double angle = g[a + ANGLE];
+            // geodesic curvature
+            omega -= cos * angle;
+            // vector area
+            double dx = g[a + END] - g[a + START];
+            double dy = g[a + END + 1] - g[a + START + 1];
+            double dz = g[a + END + 2] - g[a + START + 2];
+            double mx = g[a + AXIS];
+            double my = g[a + AXIS + 1];
+            double mz = g[a + AXIS + 2];
+            vx += 0.5 * (sin * sin * angle * mx + cos * (my * dz - mz * dy));
+            vy += 0.5 * (sin * sin * angle * my + cos * (mz * dx - mx * dz));
+            vz += 0.5 * (sin * sin * angle * mz + cos * (mx * dy - my * dx));
+            // turning angle at the end of the arc
+            if (length > 1) {
+                int b = ARC_SIZE * (start + (n + 1) % length);
+                omega -= turningAngle(g, a, b);
+            }
+        }
+        s.loopOmegas[loop] = omega;
+        s.loopVectors[3 * loop] = vx;
+        s.loopVectors[3 * loop + 1] = vy;
+        s.loopVectors[3 * loop + 2] = vz;
+    }
+
+    private static double turningAngle(double[] g, int a, int b) {
+        double[] p = { g[a + END], g[a + END + 1], g[a + END + 2] };
+        // tangents of clockwise arcs: -cross(axis, p)
+        double[] in = tangent(g, a, p);
+        double[] out = tangent(g, b, p);
+        double[] turn = cross(in, out);
+        return Math.atan2(turn[0] * p[0] + turn[1] * p[1] + turn[2] * p[2],
+                in[0] * out[0] + in[1] * out[1] + in[2] * out[2]);
+    }
+
+    private static double[] tangent(double[] g, int a, double[] p) {
+        double sign = (g[a + ANGLE] < 0.0) ? -1.0 : 1.0;
+        double[] t = {
+            sign * (g[a + AXIS + 1] * p[2] - g[a + AXIS + 2] * p[1]),
+            sign * (g[a + AXIS + 2] * p[0] - g[a + AXIS] * p[2]),
+            sign * (g[a + AXIS] * p[1] - g[a + AXIS + 1] * p[0])
+        };
+        normalize(t, 0);
+        return t;
+    }
+
+    /**
+     * Tests if loop x lies on the left of loop c. A geodesic from a point
+     * of x to a point just left of c crosses c an even number of times.
+     */
+    private static boolean isLeftOf(Scratch s, int c, int x) {
+        double[] g = s.arcs;
+        int start = s.loopStarts[c];
+        int length = s.loopLengths[c];
+
+        // point on the left of the longest arc of c
+        int longest = ARC_SIZE * start;
+        for (int n = 1; n < length; n++) {
+            int a = ARC_SIZE * (start + n);
+            if (Math.abs(g[a + ANGLE]) * g[a + SIN] > Math.abs(g[longest + ANGLE]) * g[longest + SIN]) {
+                longest = a;
+            }
+        }
+        double[] mid = new double[3];
+        arcPoint(g, longest, 0.5 * g[longest + ANGLE], mid);
+        double[] left = cross(mid, tangent(g, longest, mid));
+        double[] target = new double[3];
+        for (int k = 0; k < 3; k++) {
+            target[k] = mid[k] + 1e-4 * left[k];
+        }
+        normalize(target, 0);
+
+        int q = ARC_SIZE * s.loopStarts[x] + START;
+        double[] point = { g[q], g[q + 1], g[q + 2] };
+        double[] normal = cross(point, target);
+        if (normalize(normal, 0) < 1e-9) {
+            return dot(point, 0, target, 0) > 0.0;
+        }
+
+        int crossings = 0;
+        double[] hit = new double[3];
+        for (int n = 0; n < length; n++) {
+            int a = ARC_SIZE * (start + n);
+            double cos = g[a + COS];
+            double sin = g[a + SIN];
+            // cos * (m.n) + sin * (cos(t) * alpha + sin(t) * beta) = 0
+            double[] e2 = cross(g, a + AXIS, g, a + PLANE);
+            double alpha = dot(g, a + PLANE, normal, 0);
+            double beta = dot(e2, 0, normal, 0);
+            double amplitude = sin * Math.sqrt(alpha * alpha + beta * beta);
+            if (amplitude < 1e-12) {
+                continue;
+            }
+            double rhs = -cos * dot(g, a + AXIS, normal, 0) / amplitude;
+            if (rhs <= -1.0 || rhs >= 1.0) {
+                continue;
+            }
+            double phase = Math.atan2(beta, alpha);
+            double delta = Math.acos(rhs);
+            for (double t : new double[] { phase + delta, phase - delta }) {
+                // position along the arc
+                double u = t % TWO_PI;
+                if (u < 0.0) {
+                    u += TWO_PI;
+                }
+                double angle = g[a + ANGLE];
+                double along = (angle >= 0.0) ? u : (u == 0.0 ? 0.0 : TWO_PI - u);
+                if (along >= Math.abs(angle)) {
+                    continue;
+                }
+                arcPoint(g, a, (angle >= 0.0) ? along : -along, hit);
+                // inside the geodesic segment
+                double[] h1 = cross(point, hit);
+                double[] h2 = cross(hit, target);
+                if (dot(h1, 0, normal, 0) >= 0.0 && dot(h2, 0, normal, 0) >= 0.0) {
+                    crossings++;
+                }
+            }
+        }
+        return (crossings & 1) == 0;
+    }
+
+    private static void arcPoint(double[] g, int a, double angle, double[] p) {
+        double[] e2 = cross(g, a + AXIS, g, a + PLANE);
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        for (int k = 0; k < 3; k++) {
+            p[k] = g[a + COS] * g[a + AXIS + k] + g[a + SIN] * (cos * g[a + PLANE + k] + sin * e2[k]);
+        }
+    }
+
+    /**
+     * Loops bound the same patch, if each lies on the left of the other and
+     * no other loop separates them.
+     */
+    private static boolean isSamePatch(Scratch s, int loopCount, int a, int b) {
+        if (!s.inside[a * loopCount + b] || !s.inside[b * loopCount + a]) {
+            return false;
+        }
+        for (int c = 0; c < loopCount; c++) {
+            if (c != a && c != b && s.inside[c * loopCount + a] != s.inside[c * loopCount + b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int find(int[] parents, int x) {
+        while (parents[x] != x) {
+            x = parents[x];
+        }
+        return x;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int ra = find(parents, a);
+        int rb = find(parents, b);
+        if (ra != rb) {
+            parents[Math.max(ra, rb)] = Math.min(ra, rb);
+        }
+    }
+
+    //
+    // Vector math
+    //
+
+    private void probePosition(int v, double[] p) {
+        int offset = v * Scene.SIZEOF_TRIANGLE;
+        p[0] = triangles.getFloat(offset) - originX;
+        p[1] = triangles.getFloat(offset + 4) - originY;
+        p[2] = triangles.getFloat(offset + 8) - originZ;
+    }
+
+    private static double dot(double[] a, int i, double[] b, int j) {
+        return a[i] * b[j] + a[i + 1] * b[j + 1] + a[i + 2] * b[j + 2];
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return cross(a, 0, b, 0);
+    }
+
+    private static double[] cross(double[] a, int i, double[] b, int j) {
+        return new double[] {
+            a[i + 1] * b[j + 2] - a[i + 2] * b[j + 1],
+            a[i + 2] * b[j] - a[i] * b[j + 2],
+            a[i] * b[j + 1] - a[i + 1] * b[j]
+        };
+    }
+
+    /**
+     * @return length of the vector before normalization
+     */
+    private static double normalize(double[] v, int i) {
+        double length = Math.sqrt(v[i] * v[i] + v[i + 1] * v[i + 1] + v[i + 2] * v[i + 2]);
+        if (length > 0.0) {
+            v[i] /= length;
+            v[i + 1] /= length;
+            v[i + 2] /= length;
+        }
+        return length;
+    }
+
+    private static void perpendicular(double[] v, double[] p) {
+        perpendicular(v, 0, p, 0);
+    }
+
+    private static void perpendicular(double[] v, int i, double[] p, int j) {
+        double[] other = (Math.abs(v[i]) > 0.9) ? new double[] { 0.0, 0.0, 1.0 } : new double[] { 1.0, 0.0, 0.0 };
+        double[] c = cross(v, i, other, 0);
+        normalize(c, 0);
+        System.arraycopy(c, 0, p, j, 3);
+    }
+
+    private interface Range {
+
+        void compute(int from, int to, double[] sums);
+
+    }
+
+    private static class Scratch {
+
+        // arcs of loops
+        int[] order = new int[0];
+        double[] arcs = new double[0];
+        // loops
+        int[] loopStarts = new int[0];
+        int[] loopLengths = new int[0];
+        int[] loopLabels = new int[0];
+        double[] loopOmegas = new double[0];
+        double[] loopVectors = new double[0];
+        int[] parents = new int[0];
+        boolean[] inside = new boolean[0];
+
+        void grow(int arcCount) {
+            if (order.length < arcCount) {
+                int capacity = Math.max(arcCount, 2 * order.length);
+                order = new int[capacity];
+                arcs = new double[ARC_SIZE * capacity];
+                loopStarts = new int[capacity];
+                loopLengths = new int[capacity];
+                loopLabels = new int[capacity];
+                loopOmegas = new double[capacity];
+                loopVectors = new double[3 * capacity];
+                parents = new int[capacity];
+                inside = new boolean[capacity * capacity];
+            }
+        }
+
+    }
+
+    public static class Result {
+
+        private final float[] concaveAreas;
+        private final float[] toroidalAreas;
+        private final float[] convexAreas;
+        private final float[] volumes;
+        // null unless cavities are tracked
+        private final int[] cavityIds;
+
+        public Result(float[] concaveAreas, float[] toroidalAreas, float[] convexAreas, float[] volumes) {
+            this(concaveAreas, toroidalAreas, convexAreas, volumes, null);
+        }
+
+        /**
+         * @param cavityIds tracked cavity ID of every label (index is
+         * label - 1, see CPUGraph.Result.getCavityIds)
+         */
+        public Result(float[] concaveAreas, float[] toroidalAreas, float[] convexAreas, float[] volumes,
+                int[] cavityIds) {
+            this.concaveAreas = concaveAreas;
+            this.toroidalAreas = toroidalAreas;
+            this.convexAreas = convexAreas;
+            this.volumes = volumes;
+            this.cavityIds = cavityIds;
+        }
+
+        public int getLabelCount() {
+            return volumes.length;
+        }
+
+        /**
+         * @return area of the label (labels start at 1)
+         */
+        public float getArea(int label) {
+            return concaveAreas[label - 1] + toroidalAreas[label - 1] + convexAreas[label - 1];
+        }
+
+        public float getVolume(int label) {
+            return volumes[label - 1];
+        }
+
+        /**
+         * @return areas of concave spherical triangles (index is label - 1)
+         */
+        public float[] getConcaveAreas() {
+            return concaveAreas;
+        }
+
+        public float[] getToroidalAreas() {
+            return toroidalAreas;
+        }
+
+        public float[] getConvexAreas() {
+            return convexAreas;
+        }
+
+        public float[] getVolumes() {
+            return volumes;
+        }
+
+        /**
+         * @return tracked cavity ID of the label, -1 if cavities are not
+         * tracked
+         */
+        public int getCavityId(int label) {
+            return (cavityIds != null) ? cavityIds[label - 1] : -1;
+        }
+
+        public static void writeHeader(Writer writer) throws IOException {
+            writer.write("snapshot,label,cavity,area,concave,toroidal,convex,volume\n");
+        }
+
+        /**
+         * Writes one line per label (see writeHeader), cavity is the tracked
+         * cavity ID of the label (-1 if cavities are not tracked).
+         */
+        public void write(Writer writer, int snapshot) throws IOException {
+            for (int label = 1; label <= getLabelCount(); label++) {
+                writer.write(String.format(Locale.ROOT, "%d,%d,%d,%f,%f,%f,%f,%f\n", snapshot, label,
+                        getCavityId(label), getArea(label), concaveAreas[label - 1], toroidalAreas[label - 1],
+                        convexAreas[label - 1], volumes[label - 1]));
+            }
+        }
+
+    }
+
+}
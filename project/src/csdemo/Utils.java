@@ -8,10 +8,10 @@ import com.jogamp.opengl.util.gl2.GLUT;
 import java.awt.Color;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
@@ -183,52 +183,61 @@ public class Utils {
     }
     
     public static List<Atom> loadAtoms(File file) throws IOException {
-        return loadAtoms(new FileInputStream(file));
+        return loadAtoms(FixedColumnParser.read(file), new FixedColumnParser.SymbolTable());
     }
     
     public static List<Atom> loadAtomsFromResource(String name) throws IOException {
+        return loadAtomsFromResource(name, new FixedColumnParser.SymbolTable());
+    }
+    
+    private static List<Atom> loadAtomsFromResource(String name, FixedColumnParser.SymbolTable symbols) throws IOException {
         InputStream is = Utils.class.getResourceAsStream(name);
-        return loadAtoms(is);
+        if (is == null) {
+            throw new IOException("Resource " + name + " not found");
+        }
+        return loadAtoms(FixedColumnParser.read(is), symbols);
     }
     
-    private static List<Atom> loadAtoms(InputStream is) throws IOException {
+    /**
+     * Loads atoms of the first model.
+     */
+    public static List<Atom> loadAtoms(ByteBuffer data, FixedColumnParser.SymbolTable symbols) {
         // load atom coordinates
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is)))
-        {
-            List<Atom> atoms = new ArrayList<>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("ATOM")) {
-                    String id = line.substring(6, 11).trim();
-                    String name = line.substring(12, 16).trim();
-                    String residue = line.substring(17, 20).trim();
-                    String residueId = line.substring(22, 26).trim();
-                    Atom atom = new Atom();
-                    atom.id = Integer.parseInt(id);
-                    atom.residueId = Integer.parseInt(residueId);
-                    atom.x = Float.parseFloat(line.substring(30, 38));
-                    atom.y = Float.parseFloat(line.substring(38, 46));
-                    atom.z = Float.parseFloat(line.substring(46, 54));
-                    String code = line.substring(76, 78).trim();
-                    if (code == null || code.isEmpty()) {
-                        code = name.substring(0, 1);
-                    }
-                    atom.name = name;
-                    atom.type = code;
-                    atom.r = radii.get(code);
-                    if (residue.equals("HIE") || residue.equals("HID") || residue.equals("HIP")) {
-                        residue = "HIS";
-                    }
-                    Float v = volumes.get(residue).get(name);
-                    if (v == null) {
-                        v = 0f;
-                    }
-                    atom.v = v;
-                    atoms.add(atom);
+        FixedColumnParser line = new FixedColumnParser(data, symbols);
+        List<Atom> atoms = new ArrayList<>();
+        while (line.nextLine()) {
+            if (line.startsWith("ENDMDL")) {
+                // only the first model (see MultiModelPdbReader)
+                break;
+            }
+            if (line.startsWith("ATOM")) {
+                String name = line.getSymbol(12, 16);
+                String residue = line.getSymbol(17, 20);
+                Atom atom = new Atom();
+                atom.id = line.getInt(6, 11);
+                atom.residueId = line.getInt(22, 26);
+                atom.x = line.getFloat(30, 38);
+                atom.y = line.getFloat(38, 46);
+                atom.z = line.getFloat(46, 54);
+                String code = line.getSymbol(76, 78);
+                if (code.isEmpty()) {
+                    code = line.getSymbol(12, 16, 1);
+                }
+                atom.name = name;
+                atom.type = code;
+                atom.r = radii.get(code);
+                if (residue.equals("HIE") || residue.equals("HID") || residue.equals("HIP")) {
+                    residue = "HIS";
+                }
+                Float v = volumes.get(residue).get(name);
+                if (v == null) {
+                    v = 0f;
                 }
+                atom.v = v;
+                atoms.add(atom);
             }
-            return atoms;
         }
+        return atoms;
     }
     
     public static float getAtomRadius(String code) {
@@ -247,8 +256,9 @@ public class Utils {
     public static List<List<Atom>> loadDynamics(File[] files) throws IOException {
         int atomCount = 0;
         List<List<Atom>> dynamics = new ArrayList<>();
+        FixedColumnParser.SymbolTable symbols = new FixedColumnParser.SymbolTable();
         for (File file : files) {
-            List<Atom> snapshot = loadAtoms(file);
+            List<Atom> snapshot = loadAtoms(FixedColumnParser.read(file), symbols);
             dynamics.add(snapshot);
             // check atom count among snapshots
             if (atomCount == 0) {
@@ -263,8 +273,9 @@ public class Utils {
     public static List<List<Atom>> loadDynamicsFromResource(String name, int start, int end)
             throws IOException {
         List<List<Atom>> dynamics = new ArrayList<>();
+        FixedColumnParser.SymbolTable symbols = new FixedColumnParser.SymbolTable();
         for (int i = start; i <= end; i++) {
-            List<Atom> snapshot = loadAtomsFromResource(name + "." + i + ".pdb");
+            List<Atom> snapshot = loadAtomsFromResource(name + "." + i + ".pdb", symbols);
             dynamics.add(snapshot);
         }
         return dynamics;
@@ -338,6 +349,13 @@ public class Utils {
         return covalentRadii.get(atomType);
     }
     
+    /**
+     * @return covalent radius or null, if the atom type is unknown
+     */
+    public static Float getCovalentRadiusOrNull(String atomType) {
+        return covalentRadii.get(atomType);
+    }
+    
     public static void bindShaderStorageBlock(GL4 gl, int program, String name, int index) {
         int blockIndex = gl.glGetProgramResourceIndex(program, GL_SHADER_STORAGE_BLOCK, name.getBytes(), 0);
         if (blockIndex != GL_INVALID_INDEX) {
@@ -378,6 +396,22 @@ public class Utils {
         return COUNTER_DATA.get(0);
     }
     
+    /**
+     * Reports a limit baked into shaders as exceeded, the error is printed
+     * once until the limit is not exceeded again.
+     *
+     * @param exceededLimits names of limits reported as exceeded
+     * @return exceeded
+     */
+    public static boolean reportLimit(Set<String> exceededLimits, String name, int limit, boolean exceeded) {
+        if (!exceeded) {
+            exceededLimits.remove(name);
+        } else if (exceededLimits.add(name)) {
+            System.err.println("Error: " + name + " over the limit of " + limit + ", the surface is incomplete");
+        }
+        return exceeded;
+    }
+    
     public static void clearCounter(GL4 gl, int buffer) {
         setCounter(gl, buffer, 0, 0);
     }
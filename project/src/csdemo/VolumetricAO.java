@@ -33,6 +33,12 @@ public class VolumetricAO {
     private float voxelSize;
     private FloatBuffer atomsVolume;
     
+    // CPU splatting (no atomics)
+    private final WorkerPool workers;
+    private CPUVolumetricAO cpuVolumetricAO;
+    private boolean cpu = false;
+    private boolean trilinear = false;
+    
     // buffer indices for shaders
     private static final int ATOMS_BUFFER_INDEX = 0;
     private static final int ATOMS_VOLUME_BUFFER_INDEX = 1;
@@ -40,6 +46,13 @@ public class VolumetricAO {
     // Debugging
     private final Debug debug = Debug.getInstance();
     
+    /**
+     * @param workers pool of workers of CPU splatting (owned by the caller)
+     */
+    public VolumetricAO(WorkerPool workers) {
+        this.workers = workers;
+    }
+    
     public float getLambda() {
         return 0.5f * voxelSize;
     }
@@ -48,7 +61,38 @@ public class VolumetricAO {
         return voxelSize;
     }
     
-    public void init(GL4 gl) {
+    public boolean isCpuVolume() {
+        return cpu;
+    }
+    
+    /**
+     * Splats volumes of atoms on the CPU instead of the compute shader.
+     */
+    public void setCpuVolume(boolean cpu) {
+        this.cpu = cpu;
+    }
+    
+    public boolean isTrilinear() {
+        return trilinear;
+    }
+    
+    /**
+     * Distributes volumes of atoms trilinearly among the 8 nearest voxels
+     * (CPU splatting only).
+     */
+    public void setTrilinear(boolean trilinear) {
+        this.trilinear = trilinear;
+    }
+    
+    private CPUVolumetricAO getCPUVolumetricAO() {
+        if (cpuVolumetricAO == null) {
+            cpuVolumetricAO = new CPUVolumetricAO(workers);
+        }
+        cpuVolumetricAO.setTrilinear(trilinear);
+        return cpuVolumetricAO;
+    }
+    
+    public void init(GL4 gl, int atomCapacity) {
         // loading resources (shaders, data)
         try {
             volumeProgram = Utils.loadComputeProgram(gl, "/resources/shaders/ao/volume.glsl");
@@ -57,14 +101,11 @@ public class VolumetricAO {
             System.exit(1);
         }
         
-        atomsVolume = Buffers.newDirectFloatBuffer(Scene.MAX_ATOMS);
-        
         int buffers[] = new int[1];
         gl.glGenBuffers(1, buffers, 0);
         atomsVolumeBuffer = buffers[0];
         
-        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsVolumeBuffer);
-        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, Scene.MAX_ATOMS * Buffers.SIZEOF_FLOAT, null, GL_DYNAMIC_DRAW);
+        resize(gl, atomCapacity);
         
         int[] textures = new int[1];
         gl.glGenTextures(1, textures, 0);
@@ -89,9 +130,24 @@ public class VolumetricAO {
         aoElapsedQuery = queries[0];
     }
     
+    /**
+     * Reallocates volumes of atoms, volumes have to be updated again.
+     */
+    public void resize(GL4 gl, int atomCapacity) {
+        atomsVolume = Buffers.newDirectFloatBuffer(atomCapacity);
+        
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsVolumeBuffer);
+        gl.glBufferData(GL_SHADER_STORAGE_BUFFER, atomCapacity * Buffers.SIZEOF_FLOAT, null, GL_DYNAMIC_DRAW);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+    
     public int ambientOcclusion(GL4 gl, int atomsBuffer, int atomCount, float aabbSize) {
         voxelSize = aabbSize / VOLUME_SIZE;
         
+        if (cpu) {
+            return ambientOcclusionCPU(gl, atomsBuffer, atomCount);
+        }
+        
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, ATOMS_BUFFER_INDEX, atomsBuffer);
         gl.glBindBufferBase(GL_SHADER_STORAGE_BUFFER, ATOMS_VOLUME_BUFFER_INDEX, atomsVolumeBuffer);
         
@@ -125,6 +181,36 @@ public class VolumetricAO {
         return volumeTexture;
     }
     
+    private int ambientOcclusionCPU(GL4 gl, int atomsBuffer, int atomCount) {
+        // read back atoms
+        FloatBuffer data = Buffers.newDirectFloatBuffer(4 * atomCount);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, atomsBuffer);
+        gl.glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, 4 * atomCount * Buffers.SIZEOF_FLOAT, data);
+        gl.glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        float[] atoms = new float[4 * atomCount];
+        data.get(atoms);
+        float[] volumes = new float[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            volumes[i] = atomsVolume.get(i);
+        }
+        
+        long start = System.nanoTime();
+        float[] volume = getCPUVolumetricAO().computeVolume(atoms, volumes, atomCount, voxelSize, VOLUME_SIZE);
+        long elapsed = System.nanoTime() - start;
+        
+        // upload volume
+        gl.glBindTexture(GL_TEXTURE_3D, volumeTexture);
+        gl.glTexSubImage3D(GL_TEXTURE_3D, 0, 0, 0, 0, VOLUME_SIZE, VOLUME_SIZE, VOLUME_SIZE, GL_RED, GL_FLOAT, Buffers.newDirectFloatBuffer(volume));
+        gl.glBindTexture(GL_TEXTURE_3D, 0);
+        
+        if (writePerformanceInfo) {
+            writePerformanceInfo = false;
+            System.out.println("Time elapsed (AO, CPU): " + elapsed / 1000000.0 + " ms");
+        }
+        
+        return volumeTexture;
+    }
+    
     public void updateVolumes(GL4 gl, List<Atom> atoms) {
         for (int i = 0; i < atoms.size(); i++) {
             atomsVolume.put(i, atoms.get(i).v);
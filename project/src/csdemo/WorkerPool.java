@@ -0,0 +1,145 @@
+package csdemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pool of worker threads shared by the CPU stages of the scene
+ * (contour-buildup, graph, areas, integrals and volumetric AO). Ranges of
+ * indices are either split in halves until they are small enough (run),
+ * or split into one range per worker, whose partial results are combined
+ * at the end (reduce). With a single thread, ranges are computed
+ * sequentially by the caller. The pool is owned by its creator, stages
+ * using it do not dispose it.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class WorkerPool {
+
+    // null in sequential mode
+    private final ForkJoinPool pool;
+
+    public WorkerPool() {
+        this(1);
+    }
+
+    /**
+     * @param threadCount number of worker threads (1 for sequential mode)
+     */
+    public WorkerPool(int threadCount) {
+        this.pool = (threadCount > 1) ? new ForkJoinPool(threadCount) : null;
+    }
+
+    public boolean isParallel() {
+        return pool != null;
+    }
+
+    public void dispose() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Computes range 0 to count, which is split in halves until it is not
+     * larger than the grain size.
+     */
+    public void run(Range range, int count, int grainSize) {
+        if (pool != null) {
+            pool.invoke(new RangeTask(range, 0, count, grainSize));
+        } else {
+            range.compute(0, count);
+        }
+    }
+
+    /**
+     * Computes range 0 to count split into one range per worker (at least
+     * grainSize indices each) and combines partial results in the order of
+     * ranges.
+     */
+    public <T> T reduce(final Reduction<T> reduction, int count, int grainSize) {
+        int taskCount = (pool != null) ? Math.min(pool.getParallelism(), (count + grainSize - 1) / grainSize) : 1;
+        if (taskCount <= 1) {
+            return reduction.compute(0, count);
+        }
+
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int t = 0; t < taskCount; t++) {
+            final int from = (int) ((long) count * t / taskCount);
+            final int to = (int) ((long) count * (t + 1) / taskCount);
+            tasks.add(new Callable<T>() {
+                @Override
+                public T call() {
+                    return reduction.compute(from, to);
+                }
+            });
+        }
+        T result = null;
+        try {
+            for (Future<T> partial : pool.invokeAll(tasks)) {
+                result = (result == null) ? partial.get() : reduction.combine(result, partial.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Computation interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Computation failed", ex.getCause());
+        }
+        return result;
+    }
+
+    public interface Range {
+
+        void compute(int from, int to);
+
+    }
+
+    public interface Reduction<T> {
+
+        /**
+         * @return partial result of range from to
+         */
+        T compute(int from, int to);
+
+        /**
+         * @return result combined with the partial result (result may be
+         * updated in place)
+         */
+        T combine(T result, T partial);
+
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Range range;
+        private final int from;
+        private final int to;
+        private final int grainSize;
+
+        public RangeTask(Range range, int from, int to, int grainSize) {
+            this.range = range;
+            this.from = from;
+            this.to = to;
+            this.grainSize = grainSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grainSize) {
+                range.compute(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(range, from, mid, grainSize), new RangeTask(range, mid, to, grainSize));
+            }
+        }
+
+    }
+
+}
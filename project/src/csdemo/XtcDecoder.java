@@ -0,0 +1,304 @@
+package csdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder of XTC frames (see xdrfile.c of Gromacs). A frame is decoded
+ * from a buffer holding the frame header and coordinates, bit reader
+ * state is kept in fields. Decoder is not thread-safe, concurrent
+ * decoding requires a decoder per thread.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class XtcDecoder {
+
+    // magic, natoms, step, time, box (3x3)
+    public static final int HEADER_SIZE = 4 * 4 + 9 * 4;
+    // natoms, precision, minint (3), maxint (3), smallidx, byte count
+    public static final int COMPRESSED_HEADER_SIZE = 10 * 4;
+
+    private static final int FIRSTIDX = 9;
+    private static final int[] MAGICINTS = {
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 8, 10, 12, 16, 20, 25, 32, 40, 50, 64,
+        80, 101, 128, 161, 203, 256, 322, 406, 512, 645, 812, 1024, 1290,
+        1625, 2048, 2580, 3250, 4096, 5060, 6501, 8192, 10321, 13003, 16384,
+        20642, 26007, 32768, 41285, 52015, 65536, 82570, 104031, 131072,
+        165140, 208063, 262144, 330280, 416127, 524287, 660561, 832255,
+        1048576, 1321122, 1664510, 2097152, 2642245, 3329021, 4194304,
+        5284491, 6658042, 8388607, 10568983, 13316085, 16777216};
+
+    // frame data
+    private ByteBuffer data;
+
+    // bit reader
+    private int position;
+    private int lastBits;
+    private int lastByte;
+    private final int[] bytes = new int[32];
+
+    // decoding scratch
+    private final int[] minint = new int[3];
+    private final int[] sizeint = new int[3];
+    private final int[] sizesmall = new int[3];
+    private final int[] bitsizeint = new int[3];
+    private final int[] thiscoord = new int[3];
+    private final int[] prevcoord = new int[3];
+
+    /**
+     * @param frame frame data starting with the frame header
+     * @return number of atoms of the frame
+     */
+    public static int getAtomCount(ByteBuffer frame) {
+        return frame.getInt(4);
+    }
+
+    /**
+     * @param frame first bytes of a frame (at least HEADER_SIZE +
+     * COMPRESSED_HEADER_SIZE or the whole frame, if it is shorter)
+     * @return size of the frame in bytes
+     */
+    public static int getFrameSize(ByteBuffer frame) {
+        int atomCount = frame.getInt(HEADER_SIZE);
+        if (atomCount <= 9) {
+            return HEADER_SIZE + 4 + 3 * 4 * atomCount;
+        }
+        int byteCount = frame.getInt(HEADER_SIZE + COMPRESSED_HEADER_SIZE - 4);
+        // compressed data are padded to 4 bytes
+        return HEADER_SIZE + COMPRESSED_HEADER_SIZE + ((byteCount + 3) & ~3);
+    }
+
+    /**
+     * Decodes atom positions of a frame.
+     *
+     * @param frame frame data starting with the frame header
+     * @param positions positions (x, y, z) in angstroms, at least 3 times
+     * the number of atoms long
+     * @return number of atoms
+     */
+    public int decode(ByteBuffer frame, float[] positions) {
+        int atomCount = frame.getInt(HEADER_SIZE);
+        if (positions.length < 3 * atomCount) {
+            throw new IllegalArgumentException("Positions too short for " + atomCount + " atoms");
+        }
+
+        data = frame;
+        try {
+            if (atomCount <= 9) {
+                // uncompressed coordinates
+                int p = HEADER_SIZE + 4;
+                for (int i = 0; i < 3 * atomCount; i++) {
+                    positions[i] = data.getFloat(p + 4 * i) * 10f;
+                }
+            } else {
+                decodeCompressed(atomCount, positions);
+            }
+        } finally {
+            data = null;
+        }
+
+        return atomCount;
+    }
+
+    private void decodeCompressed(int atomCount, float[] positions) {
+        int p = HEADER_SIZE;
+        float precision = data.getFloat(p + 4);
+        minint[0] = data.getInt(p + 8);
+        minint[1] = data.getInt(p + 12);
+        minint[2] = data.getInt(p + 16);
+        sizeint[0] = data.getInt(p + 20) - minint[0] + 1;
+        sizeint[1] = data.getInt(p + 24) - minint[1] + 1;
+        sizeint[2] = data.getInt(p + 28) - minint[2] + 1;
+
+        int bitsize;
+        // check if one of the sizes is to big to be multiplied
+        if ((sizeint[0] | sizeint[1] | sizeint[2]) > 0xffffff) {
+            bitsizeint[0] = sizeOfInt(sizeint[0]);
+            bitsizeint[1] = sizeOfInt(sizeint[1]);
+            bitsizeint[2] = sizeOfInt(sizeint[2]);
+            bitsize = 0; // flag the use of large sizes
+        } else {
+            bitsize = sizeOfInts(3, sizeint);
+        }
+
+        int smallidx = data.getInt(p + 32);
+        int smaller = MAGICINTS[FIRSTIDX > smallidx - 1 ? FIRSTIDX : smallidx - 1] / 2;
+        int small = MAGICINTS[smallidx] / 2;
+        sizesmall[0] = sizesmall[1] = sizesmall[2] = MAGICINTS[smallidx];
+
+        // compressed data
+        position = p + COMPRESSED_HEADER_SIZE;
+        lastBits = 0;
+        lastByte = 0;
+
+        float invPrecision = 1.0f / precision;
+        int run = 0;
+        int i = 0;
+        int out = 0;
+        while (i < atomCount) {
+            if (bitsize == 0) {
+                thiscoord[0] = receiveBits(bitsizeint[0]);
+                thiscoord[1] = receiveBits(bitsizeint[1]);
+                thiscoord[2] = receiveBits(bitsizeint[2]);
+            } else {
+                receiveInts(3, bitsize, sizeint, thiscoord);
+            }
+
+            i++;
+
+            thiscoord[0] += minint[0];
+            thiscoord[1] += minint[1];
+            thiscoord[2] += minint[2];
+
+            prevcoord[0] = thiscoord[0];
+            prevcoord[1] = thiscoord[1];
+            prevcoord[2] = thiscoord[2];
+
+            int flag = receiveBits(1);
+            int isSmaller = 0;
+            if (flag == 1) {
+                run = receiveBits(5);
+                isSmaller = run % 3;
+                run -= isSmaller;
+                isSmaller--;
+            }
+            if (run > 0) {
+                for (int k = 0; k < run; k += 3) {
+                    receiveInts(3, smallidx, sizesmall, thiscoord);
+                    i++;
+
+                    thiscoord[0] += prevcoord[0] - small;
+                    thiscoord[1] += prevcoord[1] - small;
+                    thiscoord[2] += prevcoord[2] - small;
+                    if (k == 0) {
+                        // interchange first with second atom for better
+                        // compression of water molecules
+                        int tmp = thiscoord[0];
+                        thiscoord[0] = prevcoord[0];
+                        prevcoord[0] = tmp;
+                        tmp = thiscoord[1];
+                        thiscoord[1] = prevcoord[1];
+                        prevcoord[1] = tmp;
+                        tmp = thiscoord[2];
+                        thiscoord[2] = prevcoord[2];
+                        prevcoord[2] = tmp;
+
+                        positions[out++] = prevcoord[0] * invPrecision * 10f;
+                        positions[out++] = prevcoord[1] * invPrecision * 10f;
+                        positions[out++] = prevcoord[2] * invPrecision * 10f;
+                    } else {
+                        prevcoord[0] = thiscoord[0];
+                        prevcoord[1] = thiscoord[1];
+                        prevcoord[2] = thiscoord[2];
+                    }
+                    positions[out++] = thiscoord[0] * invPrecision * 10f;
+                    positions[out++] = thiscoord[1] * invPrecision * 10f;
+                    positions[out++] = thiscoord[2] * invPrecision * 10f;
+                }
+            } else {
+                positions[out++] = thiscoord[0] * invPrecision * 10f;
+                positions[out++] = thiscoord[1] * invPrecision * 10f;
+                positions[out++] = thiscoord[2] * invPrecision * 10f;
+            }
+            smallidx += isSmaller;
+            if (isSmaller < 0) {
+                small = smaller;
+                if (smallidx > FIRSTIDX) {
+                    smaller = MAGICINTS[smallidx - 1] / 2;
+                } else {
+                    smaller = 0;
+                }
+            } else if (isSmaller > 0) {
+                smaller = small;
+                small = MAGICINTS[smallidx] / 2;
+            }
+            sizesmall[0] = sizesmall[1] = sizesmall[2] = MAGICINTS[smallidx];
+        }
+    }
+
+    private int receiveBits(int nbits) {
+        int mask = (1 << nbits) - 1;
+        int num = 0;
+        while (nbits >= 8) {
+            lastByte = (lastByte << 8) | (data.get(position++) & 0xff);
+            num |= (lastByte >> lastBits) << (nbits - 8);
+            nbits -= 8;
+        }
+        if (nbits > 0) {
+            if (lastBits < nbits) {
+                lastBits += 8;
+                lastByte = (lastByte << 8) | (data.get(position++) & 0xff);
+            }
+            lastBits -= nbits;
+            num |= (lastByte >> lastBits) & ((1 << nbits) - 1);
+        }
+        return num & mask;
+    }
+
+    private void receiveInts(int nints, int nbits, int[] sizes, int[] nums) {
+        bytes[1] = bytes[2] = bytes[3] = 0;
+        int nbytes = 0;
+        while (nbits > 8) {
+            bytes[nbytes++] = receiveBits(8);
+            nbits -= 8;
+        }
+        if (nbits > 0) {
+            bytes[nbytes++] = receiveBits(nbits);
+        }
+        for (int i = nints - 1; i > 0; i--) {
+            int num = 0;
+            for (int j = nbytes - 1; j >= 0; j--) {
+                num = (num << 8) | bytes[j];
+                int p = num / sizes[i];
+                bytes[j] = p;
+                num = num - p * sizes[i];
+            }
+            nums[i] = num;
+        }
+        nums[0] = bytes[0] | (bytes[1] << 8) | (bytes[2] << 16) | (bytes[3] << 24);
+    }
+
+    private static int sizeOfInts(int intsCount, int[] ints) {
+        long[] bytes = new long[32];
+        int bytesCount = 1;
+        int bitsCount = 0;
+        bytes[0] = 1;
+
+        for (int i = 0; i < intsCount; i++) {
+            long tmp = 0;
+            int byteCount;
+            for (byteCount = 0; byteCount < bytesCount; byteCount++) {
+                tmp = bytes[byteCount] * ints[i] + tmp;
+                bytes[byteCount] = tmp & 0xff;
+                tmp >>= 8;
+            }
+            while (tmp != 0) {
+                bytes[byteCount] = tmp & 0xff;
+                byteCount++;
+                tmp >>= 8;
+            }
+            bytesCount = byteCount;
+        }
+        long size = 1;
+        bytesCount--;
+
+        while (bytes[bytesCount] >= size) {
+            bitsCount++;
+            size *= 2;
+        }
+
+        return bitsCount + bytesCount * 8;
+    }
+
+    private static int sizeOfInt(int size) {
+        long num = 1;
+        int nbits = 0;
+
+        while (size >= num && nbits < 32) {
+            nbits++;
+            num <<= 1;
+        }
+
+        return nbits;
+    }
+
+}
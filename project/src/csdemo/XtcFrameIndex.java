@@ -0,0 +1,191 @@
+package csdemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Byte offsets of frames of an uncompressed XTC trajectory. The index is
+ * built by reading frame headers and skipping compressed coordinates by
+ * their byte count, i.e., without decoding them. It is cached in a sidecar
+ * file (trajectory.xtc.idx) validated by size and modification time of
+ * the trajectory.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class XtcFrameIndex {
+
+    public static final String SIDECAR_EXTENSION = ".idx";
+
+    private static final int SIDECAR_MAGIC = 0x58544349; // XTCI
+    private static final int SIDECAR_VERSION = 1;
+
+    // magic, natoms, step, time, box (3x3)
+    private static final int HEADER_SIZE = 4 * 4 + 9 * 4;
+    // precision, minint (3), maxint (3), smallidx, byte count
+    private static final int COMPRESSED_HEADER_SIZE = 9 * 4;
+
+    private final long fileSize;
+    private final long lastModified;
+    private final long[] offsets;
+    private final int frameCount;
+
+    private XtcFrameIndex(long fileSize, long lastModified, long[] offsets, int frameCount) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.offsets = offsets;
+        this.frameCount = frameCount;
+    }
+
+    /**
+     * Loads index from the sidecar file, if it is up to date, or builds it
+     * and stores it in the sidecar file.
+     *
+     * @param trajectory XTC trajectory
+     * @return frame index or null, if the trajectory is compressed (gz, zip)
+     * and cannot be seeked
+     */
+    public static XtcFrameIndex get(File trajectory) throws IOException {
+        if (!isSeekable(trajectory)) {
+            return null;
+        }
+
+        File sidecar = getSidecar(trajectory);
+        XtcFrameIndex index = load(trajectory, sidecar);
+        if (index != null) {
+            return index;
+        }
+
+        index = build(trajectory);
+        try {
+            index.save(sidecar);
+        } catch (IOException ex) {
+            // the index is still valid, only the cache is missing
+            Logger.getLogger(XtcFrameIndex.class.getName()).log(Level.WARNING,
+                    "Failed to write frame index " + sidecar, ex);
+        }
+        return index;
+    }
+
+    public static boolean isSeekable(File trajectory) {
+        String path = trajectory.getAbsolutePath().toLowerCase();
+        return !path.endsWith(".gz") && !path.endsWith(".zip");
+    }
+
+    public static File getSidecar(File trajectory) {
+        return new File(trajectory.getAbsolutePath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Scans headers of all frames of the trajectory.
+     */
+    public static XtcFrameIndex build(File trajectory) throws IOException {
+        long[] offsets = new long[64];
+        int frameCount = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(trajectory, "r")) {
+            long length = raf.length();
+            long offset = 0L;
+            while (offset + HEADER_SIZE + 4 <= length) {
+                raf.seek(offset + 4);
+                int atomCount = raf.readInt();
+                raf.seek(offset + HEADER_SIZE);
+                int size = raf.readInt();
+                if (size != atomCount) {
+                    throw new IOException("Corrupted frame " + frameCount + " at offset " + offset);
+                }
+
+                long next = offset + HEADER_SIZE + 4;
+                if (size <= 9) {
+                    next += 3L * 4L * size;
+                } else {
+                    raf.seek(next + COMPRESSED_HEADER_SIZE - 4);
+                    int byteCount = raf.readInt();
+                    // compressed data are padded to 4 bytes
+                    next += COMPRESSED_HEADER_SIZE + ((byteCount + 3L) & ~3L);
+                }
+                if (next > length) {
+                    // truncated last frame
+                    break;
+                }
+
+                if (frameCount == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+                }
+                offsets[frameCount++] = offset;
+                offset = next;
+            }
+        }
+
+        return new XtcFrameIndex(trajectory.length(), trajectory.lastModified(), offsets, frameCount);
+    }
+
+    private static XtcFrameIndex load(File trajectory, File sidecar) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (dis.readInt() != SIDECAR_MAGIC || dis.readInt() != SIDECAR_VERSION) {
+                return null;
+            }
+            long fileSize = dis.readLong();
+            long lastModified = dis.readLong();
+            if (fileSize != trajectory.length() || lastModified != trajectory.lastModified()) {
+                // stale index
+                return null;
+            }
+            int frameCount = dis.readInt();
+            long[] offsets = new long[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                offsets[i] = dis.readLong();
+            }
+            return new XtcFrameIndex(fileSize, lastModified, offsets, frameCount);
+        } catch (EOFException ex) {
+            return null;
+        } catch (IOException ex) {
+            Logger.getLogger(XtcFrameIndex.class.getName()).log(Level.WARNING,
+                    "Failed to read frame index " + sidecar, ex);
+            return null;
+        }
+    }
+
+    public void save(File sidecar) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+            dos.writeInt(SIDECAR_MAGIC);
+            dos.writeInt(SIDECAR_VERSION);
+            dos.writeLong(fileSize);
+            dos.writeLong(lastModified);
+            dos.writeInt(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                dos.writeLong(offsets[i]);
+            }
+        }
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @param frame frame index
+     * @return byte offset of the frame header
+     */
+    public long getOffset(int frame) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " out of range 0.." + (frameCount - 1));
+        }
+        return offsets[frame];
+    }
+
+}
@@ -0,0 +1,140 @@
+package csdemo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped XTC trajectory reader. Frames are located by XtcFrameIndex
+ * and decoded by XtcDecoder directly from mapped windows of the file (the
+ * file may be larger than a single mapping), so no data are copied or
+ * boxed while decoding.
+ *
+ * @author Adam Jurcik <xjurc@fi.muni.cz>
+ */
+public class XtcReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final XtcFrameIndex index;
+
+    // current window of the file
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+
+    private final XtcDecoder decoder = new XtcDecoder();
+
+    // statistics
+    private int decodedFrames = 0;
+    private long decodeTime = 0L;
+
+    public XtcReader(File trajectory) throws IOException {
+        this(trajectory, XtcFrameIndex.get(trajectory));
+    }
+
+    public XtcReader(File trajectory, XtcFrameIndex index) throws IOException {
+        if (index == null) {
+            throw new IllegalArgumentException("Trajectory " + trajectory + " cannot be mapped");
+        }
+        this.file = new RandomAccessFile(trajectory, "r");
+        this.channel = file.getChannel();
+        this.fileSize = channel.size();
+        this.index = index;
+    }
+
+    public int getFrameCount() {
+        return index.getFrameCount();
+    }
+
+    /**
+     * @param frame frame index
+     * @return number of atoms of the frame
+     */
+    public int getAtomCount(int frame) throws IOException {
+        return XtcDecoder.getAtomCount(getFrameData(frame));
+    }
+
+    /**
+     * Returns frame data without copying them. The buffer stays valid
+     * after the reader maps another window or is closed.
+     *
+     * @param frame frame index
+     * @return buffer holding the frame header and coordinates
+     */
+    public ByteBuffer getFrameData(int frame) throws IOException {
+        long offset = index.getOffset(frame);
+        int base = map(offset, XtcDecoder.HEADER_SIZE + 4);
+        int headerSize = XtcDecoder.HEADER_SIZE + ((window.getInt(base + XtcDecoder.HEADER_SIZE) > 9)
+                ? XtcDecoder.COMPRESSED_HEADER_SIZE : 4);
+        base = map(offset, headerSize);
+        int size = XtcDecoder.getFrameSize(slice(base, headerSize));
+        base = map(offset, size);
+        return slice(base, size);
+    }
+
+    private ByteBuffer slice(int base, int length) {
+        ByteBuffer data = window.duplicate();
+        data.position(base);
+        data.limit(base + length);
+        return data.slice();
+    }
+
+    /**
+     * Decodes atom positions of a frame.
+     *
+     * @param frame frame index
+     * @param positions positions (x, y, z) in angstroms, at least 3 times
+     * the number of atoms long
+     * @return number of atoms
+     */
+    public int readFrame(int frame, float[] positions) throws IOException {
+        long time = System.nanoTime();
+        int atomCount = decoder.decode(getFrameData(frame), positions);
+        decodedFrames++;
+        decodeTime += System.nanoTime() - time;
+        return atomCount;
+    }
+
+    /**
+     * Maps window containing the given range of the file.
+     *
+     * @return position of the range start in the window
+     */
+    private int map(long offset, int length) throws IOException {
+        if (window == null || offset < windowStart || offset + length > windowEnd) {
+            windowStart = offset;
+            windowEnd = Math.min(fileSize, offset + Math.max(WINDOW_SIZE, length));
+            if (offset + length > windowEnd) {
+                throw new IOException("Frame at offset " + offset + " exceeds end of file");
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+        }
+        return (int) (offset - windowStart);
+    }
+
+    public int getDecodedFrameCount() {
+        return decodedFrames;
+    }
+
+    /**
+     * @return decode throughput of all frames read so far
+     */
+    public float getFramesPerSecond() {
+        return decodeTime > 0L ? decodedFrames * 1e9f / decodeTime : 0f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+}
@@ -1,18 +1,18 @@
 typedef struct {
-    uint key;
+    uint key; // atom i and flags
+    uint atomj;
     uint atomk;
     uint index;
-    uint padding;
 } arc_entry;
 
 constant uint INVALID_KEY = 0xffffffff;
 constant uint SECONDARY_FLAG = 0x80000000;
-constant uint KEY_VALUE_MASK = 0x07ffffff;
+constant uint KEY_VALUE_MASK = 0x7fffffff;
 
 constant float TWO_PI = 6.28318530718f;
 
 typedef struct {
-    uint threadCount;
+    uint arcOverflowCount;
     uint hashCount;
     uint hashErrorCount;
     uint totalArcCount;
@@ -24,6 +24,7 @@ typedef struct {
     int maxNumTotalArcHashes;
     int maxHashIterations;
     float probeRadius;
+    int maxNumTotalArcs;
 } params_t;
 
 //float fmod(float x, float y);
@@ -293,12 +294,9 @@ kernel void arcs(
             } // if (arcValid[aCnt])
         } // for (uint aCnt = 0; aCnt < arcCnt; aCnt++)
 
-        // debug
+        // count overflows of arc arrays (reported by the host)
         if (tmpArcCnt > 16 || arcCnt > 32) {
-            counters->hashErrorCount = tmpArcCnt * 1000;
-        }
-        if (arcCnt > 32) {
-            counters->hashErrorCount = arcCnt * 1000;
+            atomic_add(&counters->arcOverflowCount, 1);
         }
 
         // copy new arcs to arc array
@@ -372,8 +370,11 @@ kernel void arcs(
                 uint index = atomic_add(&counters->totalArcCount, 1);
                 //uint index = atomicCounterIncrement(totalArcCount);
                 //uint index = atomIdx * maxNumNeighbors * maxNumArcs + jIdx * maxNumArcs + arcWritten;
-                arcs[index] = (float4)(pi + vj + (cos(start[aCnt]) * xAxis + sin(start[aCnt]) * yAxis) * scj.w,
-                        (float)k + 0.2f); //start[aCnt]);
+                // arcs over capacity are counted only, the host grows buffers
+                if (index < params->maxNumTotalArcs) {
+                    arcs[index] = (float4)(pi + vj + (cos(start[aCnt]) * xAxis + sin(start[aCnt]) * yAxis) * scj.w,
+                            (float)k + 0.2f); //start[aCnt]);
+                }
                 writeArcHash(atomIdx, j, k, index, true, arcHashes, counters, params);
                 writeArcHash(atomIdx, k, j, index, false, arcHashes, counters, params);
                 writeArcHash(j, k, atomIdx, index, false, arcHashes, counters, params);
@@ -384,8 +385,11 @@ kernel void arcs(
                 uint index = atomic_add(&counters->totalArcCount, 1);
                 //uint index = atomicCounterIncrement(totalArcCount);
                 //uint index = atomIdx * maxNumNeighbors * maxNumArcs + jIdx * maxNumArcs + arcWritten;
-                arcs[index] = (float4)(pi + vj + (cos(end[aCnt]) * xAxis + sin(end[aCnt]) * yAxis) * scj.w,
-                        (float)k + 0.2f); //end[aCnt]);
+                // arcs over capacity are counted only, the host grows buffers
+                if (index < params->maxNumTotalArcs) {
+                    arcs[index] = (float4)(pi + vj + (cos(end[aCnt]) * xAxis + sin(end[aCnt]) * yAxis) * scj.w,
+                            (float)k + 0.2f); //end[aCnt]);
+                }
                 writeArcHash(atomIdx, j, k, index, true, arcHashes, counters, params);
                 writeArcHash(atomIdx, k, j, index, false, arcHashes, counters, params);
                 writeArcHash(j, k, atomIdx, index, false, arcHashes, counters, params);
@@ -420,7 +424,7 @@ uint packArcIndex(uint atomIdx, uint index) {
 }
 
 uint hash(uint value, uint iteration, uint capacity) {
-    value = ((value ^ 131071) + 2039) % 131101;
+    value = ((value ^ 131071) + 2039) % capacity;
     return (value + iteration * iteration) % capacity; // quadratic probing
 }
 
@@ -428,8 +432,9 @@ void writeArcHash(uint i, uint j, uint k, uint arcIdx, bool primary,
         global arc_entry * arcHashes,
         global counters_t * counters,
         constant params_t * params) {
+    // atoms are stored in full, i * atomsCount + j only seeds the hash
     uint key = i * params->atomsCount + j;
-    uint keyFlags = primary ? key : (key | SECONDARY_FLAG);
+    uint keyFlags = primary ? i : (i | SECONDARY_FLAG);
     bool written = false;
     uint iteration = 0;
     uint maxIterations = min(params->maxHashIterations, params->maxNumTotalArcHashes);
@@ -437,6 +442,7 @@ void writeArcHash(uint i, uint j, uint k, uint arcIdx, bool primary,
         uint index = hash(key, iteration, params->maxNumTotalArcHashes);
         uint oldKey = atomic_cmpxchg(&arcHashes[index].key, INVALID_KEY, keyFlags);
         if (oldKey == INVALID_KEY) {
+            arcHashes[index].atomj = j;
             arcHashes[index].atomk = k;
             arcHashes[index].index = arcIdx;
             written = true;
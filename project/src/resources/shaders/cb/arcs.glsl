@@ -1,15 +1,15 @@
 #version 430 core
 
 struct arc_entry {
-    uint key;
+    uint key; // atom i and flags
+    uint atomj;
     uint atomk;
     uint index;
-    uint padding; 
 };
 
 const uint INVALID_KEY = 0xffffffff;
 const uint SECONDARY_FLAG = 0x80000000;
-const uint KEY_VALUE_MASK = 0x07ffffff;
+const uint KEY_VALUE_MASK = 0x7fffffff;
 
 const float TWO_PI = 6.28318530718;
 
@@ -435,13 +435,14 @@ uint packArcIndex(uint atomIdx, uint index) {
 }
 
 uint hash(uint value, uint iteration, uint capacity) {
-    value = ((value ^ 131071) + 2039) % 131101;
+    value = ((value ^ 131071) + 2039) % capacity;
     return (value + iteration * iteration) % capacity; // quadratic probing
 }
 
 void writeArcHash(uint i, uint j, uint k, uint arcIdx, bool primary) {
+    // atoms are stored in full, i * atomsCount + j only seeds the hash
     uint key = i * atomsCount + j;
-    uint keyFlags = primary ? key : (key | SECONDARY_FLAG);
+    uint keyFlags = primary ? i : (i | SECONDARY_FLAG);
     bool written = false;
     uint iteration = 0;
     uint maxIterations = min(maxHashIterations, maxNumTotalArcHashes);
@@ -450,9 +451,9 @@ void writeArcHash(uint i, uint j, uint k, uint arcIdx, bool primary) {
         uint oldKey = atomicCompSwap(arcHashes[index].key, INVALID_KEY, keyFlags); // NVIDIA
         //uint oldKey = atomicCompSwap(arcHashes[index].key, keyFlags, INVALID_KEY); // ATI atomicCompSwap BUG (< 15.6 drivers)
         if (oldKey == INVALID_KEY) {
+            arcHashes[index].atomj = j;
             arcHashes[index].atomk = k;
             arcHashes[index].index = arcIdx;
-            arcHashes[index].padding = 0;
             written = true;
         }
         iteration++;
@@ -17,6 +17,7 @@ struct cap {
 
 uniform uint capCount;
 uniform uint maxSphereCapCount;
+uniform uint limitIndex;
 //uniform float probeRadius;
 
 uniform samplerBuffer atomsTex;
@@ -39,6 +40,10 @@ layout(std430) buffer SphereCapPlanes {
     vec4 sphereCapPlanes[];
 };
 
+layout(std430) buffer Limits {
+    uint limits[];
+};
+
 layout(std430) buffer Debug {
     vec4 debug[];
 };
@@ -98,7 +103,11 @@ void main() {
     plane.w = -atom.w * plane.w;
 
     caps[index].plane = plane;
-    sphereCapPlanes[atomIdx * maxSphereCapCount + capPlaneIdx] = plane;
+    if (capPlaneIdx < maxSphereCapCount) {
+        sphereCapPlanes[atomIdx * maxSphereCapCount + capPlaneIdx] = plane;
+    } else {
+        atomicMax(limits[limitIndex], capPlaneIdx + 1);
+    }
 }
 
 vec4 minSphericalCircleWithPoint(uint count, vec3 q);
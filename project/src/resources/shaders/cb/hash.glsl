@@ -4,6 +4,7 @@ uniform uint sphereCount;
 uniform uint maxNumSpheres;
 uniform uint gridSize;
 uniform float cellSize;
+uniform uint limitIndex;
 
 layout(std430) buffer Spheres { 
     vec4 positions[];
@@ -17,6 +18,10 @@ layout(std430) buffer Indices {
     uint indices[];
 };
 
+layout(std430) buffer Limits {
+    uint limits[];
+};
+
 layout(local_size_x = 64) in;
 
 void main() {
@@ -31,6 +36,7 @@ void main() {
 
     uint count = atomicAdd(counts[hash], 1);
     if (count >= maxNumSpheres) {
+        atomicMax(limits[limitIndex], count + 1);
         return;
     }
     indices[hash * maxNumSpheres + count] = index;
@@ -12,6 +12,7 @@ struct torus {
 
 uniform uint torusCount;
 uniform uint maxSphereIsolatedTori;
+uniform uint limitIndex;
 
 uniform usamplerBuffer circlesTex;
 uniform usamplerBuffer circlesCountTex;
@@ -38,6 +39,10 @@ layout(std430) buffer SphereIsolatedVisSphere {
     vec4 sphereIsolatedVS[];
 };
 
+layout(std430) buffer Limits {
+    uint limits[];
+};
+
 layout (local_size_x = 64) in;
 
 uint polygonLabel(uint index);
@@ -85,5 +90,9 @@ void clipPolygon(uint atomIdx, uint torusIdx) {
     vec4 vs = tori[torusIdx].visibility;
     // write torus visibilty sphere
     uint vsIdx = atomicAdd(sphereIsolatedCounts[atomIdx], 1);
-    sphereIsolatedVS[atomIdx * maxSphereIsolatedTori + vsIdx] = vec4(pos.xyz + vs.xyz, vs.w);
+    if (vsIdx < maxSphereIsolatedTori) {
+        sphereIsolatedVS[atomIdx * maxSphereIsolatedTori + vsIdx] = vec4(pos.xyz + vs.xyz, vs.w);
+    } else {
+        atomicMax(limits[limitIndex], vsIdx + 1);
+    }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ uniform float cellSize;
 uniform uint sphereCount;
 uniform uint maxNumSpheres;
 uniform uint maxNumNeighbors;
+uniform uint limitIndex;
 
 uniform float probeRadius;
 
@@ -25,6 +26,10 @@ layout(std430) buffer SmallCircles {
     vec4 smallCircles[];
 };
 
+layout(std430) buffer Limits {
+    uint limits[];
+};
+
 layout(local_size_x = 64) in;
 
 uint findNeighborsInCell(uint neighborIndex, uvec3 gridPos, uint index, vec4 pos);
@@ -59,13 +64,19 @@ void main() {
         }
     }
 
+    // neighbors over the limit are counted, but not written
+    if (count > maxNumNeighbors) {
+        atomicMax(limits[limitIndex], count);
+        count = maxNumNeighbors;
+    }
+
     // write new neighbor atom count back to (sorted) index location
     neighborCounts[index] = count;
 }
 
 uint findNeighborsInCell(uint neighborIndex, uvec3 gridPos, uint index, vec4 pos) {
     uint hash = gridSize * gridSize * gridPos.x + gridSize * gridPos.y + gridPos.z;
-    uint spheresInCell = texelFetch(gridCountsTex, int(hash)).r;
+    uint spheresInCell = min(texelFetch(gridCountsTex, int(hash)).r, maxNumSpheres);
     uint count = 0;
     // iterate over spheres in this cell
     for (uint j = 0; j < spheresInCell; j++) {
@@ -80,22 +91,21 @@ uint findNeighborsInCell(uint neighborIndex, uvec3 gridPos, uint index, vec4 pos
             float neighborDist = pos.w + pos2.w + 2.0 * probeRadius;
             if (dist < neighborDist) {
                 // check number of neighbors
-                if ((neighborIndex + count) >= maxNumNeighbors) {
-                    return count;
+                if ((neighborIndex + count) < maxNumNeighbors) {
+                    // write the (sorted) neighbor index
+                    neighbors[index * maxNumNeighbors + neighborIndex + count] = index2;
+                    // compute small circle / intersection plane
+                    float r = ((pos.w + probeRadius) * (pos.w + probeRadius))
+                        + (dist * dist)
+                        - ((pos2.w + probeRadius) * (pos2.w + probeRadius));
+                    r = r / (2.0 * dist * dist);
+                    vec3 vec = relPos * r;
+                    // set small circle
+                    vec4 smallCircle;
+                    smallCircle.xyz = vec;
+                    smallCircle.w = sign(r) * sqrt(((pos.w + probeRadius) * (pos.w + probeRadius)) - dot(vec, vec));
+                    smallCircles[index * maxNumNeighbors + neighborIndex + count] = smallCircle;
                 }
-                // write the (sorted) neighbor index
-                neighbors[index * maxNumNeighbors + neighborIndex + count] = index2;
-                // compute small circle / intersection plane
-                float r = ((pos.w + probeRadius) * (pos.w + probeRadius))
-                    + (dist * dist)
-                    - ((pos2.w + probeRadius) * (pos2.w + probeRadius));
-                r = r / (2.0 * dist * dist);
-                vec3 vec = relPos * r;
-                // set small circle
-                vec4 smallCircle;
-                smallCircle.xyz = vec;
-                smallCircle.w = sign(r) * sqrt(((pos.w + probeRadius) * (pos.w + probeRadius)) - dot(vec, vec));
-                smallCircles[index * maxNumNeighbors + neighborIndex + count] = smallCircle;
                 // increment the neighbor counter
                 count++;
             }
@@ -6,6 +6,7 @@ uniform float cellSize;
 uniform uint probeCount;
 uniform uint maxNumSpheres;
 uniform uint maxNumNeighbors;
+uniform uint limitIndex;
 
 uniform float probeRadius;
 
@@ -30,6 +31,10 @@ layout(std430) buffer NeighborProbes {
     vec4 neighborProbes[];
 };
 
+layout(std430) buffer Limits {
+    uint limits[];
+};
+
 layout(local_size_x = 64) in;
 
 uint findNeighborsInCell(uint neighborIndex, uvec3 gridPos, uint index, uint label, vec3 pos);
@@ -66,13 +71,19 @@ void main() {
         }
     }
 
+    // neighbors over the limit are counted, but not written
+    if (count > maxNumNeighbors) {
+        atomicMax(limits[limitIndex], count);
+        count = maxNumNeighbors;
+    }
+
     // write new neighbor atom count back to (sorted) index location
     neighborCounts[index] = count;
 }
 
 uint findNeighborsInCell(uint neighborIndex, uvec3 gridPos, uint index, uint label, vec3 pos) {
     uint hash = gridSize * gridSize * gridPos.x + gridSize * gridPos.y + gridPos.z;
-    uint spheresInCell = texelFetch(gridCountsTex, int(hash)).r;
+    uint spheresInCell = min(texelFetch(gridCountsTex, int(hash)).r, maxNumSpheres);
     uint count = 0;
     // iterate over spheres in this cell
     for (uint j = 0; j < spheresInCell; j++) {
@@ -97,13 +108,12 @@ uint findNeighborsInCell(uint neighborIndex, uvec3 gridPos, uint index, uint lab
                     continue;
                 }
                 // check number of neighbors
-                if ((neighborIndex + count) >= maxNumNeighbors) {
-                    return count;
+                if ((neighborIndex + count) < maxNumNeighbors) {
+                    // write the (sorted) neighbor index
+                    //neighbors[index * maxNumNeighbors + neighborIndex + count] = index2;
+                    // write neighbor probe
+                    neighborProbes[index * maxNumNeighbors + neighborIndex + count] = vec4(pos2, 1.0);
                 }
-                // write the (sorted) neighbor index
-                //neighbors[index * maxNumNeighbors + neighborIndex + count] = index2;
-                // write neighbor probe
-                neighborProbes[index * maxNumNeighbors + neighborIndex + count] = vec4(pos2, 1.0);
                 // increment the neighbor counter
                 count++;
             }
@@ -31,6 +31,9 @@ uniform uint maxNumNeighbors;
 //uniform uint maxNumArcs;
 uniform uint maxNumTotalArcHashes;
 uniform uint maxHashIterations;
+uniform uint maxNumTriangles;
+uniform uint maxNumTori;
+uniform uint maxNumIsolatedTori;
 
 uniform float probeRadius;
 
@@ -117,6 +120,10 @@ void main() {
             }
             uint arcIdx = entry.z;
             //uint arcIdx = index * maxNumNeighbors * maxNumArcs + j * maxNumArcs + a;
+            if (arcIdx >= maxNumTriangles) {
+                // missing arc or arc over capacity (reported by the host)
+                continue;
+            }
             vec4 arc = texelFetch(arcsTex, int(arcIdx));
             uint k = uint(floor(arc.w));
             // mark atoms visible
@@ -172,6 +179,10 @@ void main() {
                 debug[1] = jIdx;*/
                 uint torusIdx = atomicAdd(toriCount, 1);
                 uint isolatedTorusIdx = atomicAdd(isolatedToriCount, 1);
+                if (torusIdx >= maxNumTori || isolatedTorusIdx >= maxNumIsolatedTori) {
+                    // counted only, the host grows buffers
+                    continue;
+                }
                 float operation = 0.0; // ISOLATED
                 // write torus center & torus radius R
                 tori[torusIdx].position = vec4(tc, sc.w);
@@ -187,6 +198,8 @@ void main() {
                 // write invalid edge
                 edges[torusIdx].x = INVALID_VALUE;
                 edges[torusIdx].y = INVALID_VALUE;
+                edges[torusIdx].z = index;
+                edges[torusIdx].w = jIdx;
                 // OOB for ray-casting
                 vec3 tmp = ((ta.x > 0.9) || (ta.x < -0.9)) ? vec3(0.0, 0.0, 1.0) : vec3(1.0, 0.0, 0.0); // normal on ta
                 vec3 up = normalize(cross(ta, tmp));
@@ -258,6 +271,10 @@ void main() {
                 // write torus
                 for (uint t = 0; t < count; t += 2) {
                     uint torusIdx = atomicAdd(toriCount, 1);
+                    if (torusIdx >= maxNumTori) {
+                        // counted only, the host grows buffers
+                        continue;
+                    }
                     vec4 arc1 = arcs[offset + t];
                     vec4 arc2 = arcs[offset + t + 1];
                     vec4 plane1 = planes[offset + t];
@@ -358,15 +375,17 @@ vec4 torusPlane(vec3 pi, vec3 pj, uint k, vec3 probe) {
 }
 
 uvec3 readArcHash(uint i, uint j, inout uint iteration) {
+    // atoms are stored in full, i * atomsCount + j only seeds the hash
     uint key = i * atomsCount + j;
     uvec3 value = uvec3(INVALID_VALUE);
     bool read = false;
     uint maxIterations = min(maxHashIterations, maxNumTotalArcHashes);
     while (!read && iteration < maxIterations) {
         uint index = hash(key, iteration, maxNumTotalArcHashes);
-        uvec3 entry = texelFetch(arcHashesTex, int(index)).rgb;
-        if ((entry.x & KEY_VALUE_MASK) == key) {
-            value = entry;
+        uvec4 entry = texelFetch(arcHashesTex, int(index));
+        if ((entry.x & KEY_VALUE_MASK) == i && entry.y == j) {
+            // flags, atom k, arc index
+            value = entry.xzw;
             read = true;
         } else if (entry.x == INVALID_KEY) {
             break;
@@ -377,7 +396,7 @@ uvec3 readArcHash(uint i, uint j, inout uint iteration) {
 }
 
 uint hash(uint value, uint iteration, uint capacity) {
-    value = ((value ^ 131071) + 2039) % 131101;
+    value = ((value ^ 131071) + 2039) % capacity;
     return (value + iteration * iteration) % capacity; // quadratic probing
 }
 
@@ -22,6 +22,8 @@ struct cap {
 uniform uint atomCount;
 uniform uint circleCount;
 uniform uint outerLabel;
+uniform uint maxSphereCount;
+uniform uint maxCapCount;
 
 uniform samplerBuffer atomsTex;
 uniform usamplerBuffer circlesTex;
@@ -75,6 +77,10 @@ void main() {
         if (label == outerLabel) {
             // write polygon
             uint sphereIdx = atomicAdd(sphereCount, 1);
+            if (sphereIdx >= maxSphereCount) {
+                // counted only, the host grows buffers
+                return;
+            }
             // position, atom, label and circle
             spheres[sphereIdx].position = texelFetch(atomsTex, int(atomIdx));
             spheres[sphereIdx].index = atomIdx;
@@ -84,6 +90,10 @@ void main() {
         } else {
             // write cap (cavity patch)
             uint capIdx = atomicAdd(capCount, 1);
+            if (capIdx >= maxCapCount) {
+                // counted only, the host grows buffers
+                return;
+            }
             // position, cap start+len, atom and label
             caps[capIdx].position = texelFetch(atomsTex, int(atomIdx));
             caps[capIdx].plane.x = uintBitsToFloat(start);
@@ -6,6 +6,12 @@ const uint INVALID_VERTEX = 0xffffffff;
 
 uniform uint edgeCount;
 
+layout(std430) buffer Counts {
+    uint totalCircleCount;
+    uint polygonOverflowCount;
+    uint edgeOverflowCount;
+};
+
 layout(std430) buffer Edges {
     uvec4 edges[]; // TODO struct
 };
@@ -46,6 +52,15 @@ void main() {
     // initialize circles
     uint edgeIdx0 = atomicAdd(circlesLength[edge.z], 1);
     uint edgeIdx1 = atomicAdd(circlesLength[edge.w], 1);
-    circles[edge.z][edgeIdx0] = uvec4(edge.xy, index, edge.z);
-    circles[edge.w][edgeIdx1] = uvec4(edge.xy, index, edge.w);
+    // edges over the limit are counted only (reported by the host)
+    if (edgeIdx0 < MAX_SPHERE_EDGES) {
+        circles[edge.z][edgeIdx0] = uvec4(edge.xy, index, edge.z);
+    } else {
+        atomicAdd(edgeOverflowCount, 1);
+    }
+    if (edgeIdx1 < MAX_SPHERE_EDGES) {
+        circles[edge.w][edgeIdx1] = uvec4(edge.xy, index, edge.w);
+    } else {
+        atomicAdd(edgeOverflowCount, 1);
+    }
 }
@@ -1,15 +1,18 @@
 #version 430 core
 
 #define MAX_SPHERE_EDGES 64 // FIXME should be set by app
+#define MAX_SPHERE_POLYGONS 16 // see GPUGraph.MAX_SPHERE_POLYGON_COUNT
 
 const uint INVALID_VERTEX = 0xffffffff;
 
 uniform uint circleCount;
 uniform uint maxSphereEdges;
 uniform uint maxSpherePolygons;
+uniform uint maxCircleCount;
 
 layout(std430) buffer Counts {
     uint totalCircleCount;
+    uint polygonOverflowCount;
 };
 
 layout(std430) buffer Circles {
@@ -40,14 +43,14 @@ void main() {
         return;
     }
 
-    uint circleLength = circlesLength[index];
+    uint circleLength = min(circlesLength[index], maxSphereEdges);
     if (circleLength == 0) {
         return;
     }
 
     // find all circles
     uint count = 1;
-    uint start[16]; // FIXME it seems that there are too many circles for atom 260 in 1AF6
+    uint start[MAX_SPHERE_POLYGONS + 1];
     start[0] = 0;
     
     uint current = circles[index][0].y;
@@ -66,6 +69,11 @@ void main() {
             }
         }
         if (k == circleLength) {
+            if (count == MAX_SPHERE_POLYGONS) {
+                // remaining edges stay in the last circle (reported by the host)
+                atomicAdd(polygonOverflowCount, 1);
+                break;
+            }
             // start another circle for sphere
             start[count] = j + 1;
             current = circles[index][j + 1].y;
@@ -93,6 +101,10 @@ void main() {
     polygons[polygonsOffset] = index;
     for (uint i = 1; i < count; i++) {
         uint circleIdx = atomicAdd(totalCircleCount, 1);
+        if (circleIdx >= maxCircleCount) {
+            // counted only, the graph grows buffers
+            continue;
+        }
         circlesStart[circleIdx] = circlesOffset + start[i];
         circlesLength[circleIdx] = start[i + 1] - start[i];
         polygons[polygonsOffset + i] = circleIdx;
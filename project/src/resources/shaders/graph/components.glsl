@@ -1,5 +1,7 @@
 #version 430 core
 
+#define MAX_LABEL_COUNT 1024 // see GPUGraph.MAX_LABEL_COUNT
+
 const uint UNLABELLED = 0;
 const uint INVALID_VERTEX = 0xffffffff;
 
@@ -73,7 +75,9 @@ void main() {
     while (index < vertexCount) {
         uint label = vertices[index].y;
         verticesLabel[index] = label;
-        atomicAdd(labels[label - 1], 1);
+        if (label <= MAX_LABEL_COUNT) {
+            atomicAdd(labels[label - 1], 1);
+        }
         index += gl_WorkGroupSize.x;
     }
 